@@ -36,30 +36,43 @@ import me.lucko.spark.common.sampler.SamplerBuilder;
 import me.lucko.spark.common.sampler.SamplerMode;
 import me.lucko.spark.common.sampler.ThreadDumper;
 import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.async.AsyncAggregationWorker;
 import me.lucko.spark.common.sampler.async.AsyncSampler;
+import me.lucko.spark.common.sampler.diff.ProfileDiff;
+import me.lucko.spark.common.sampler.format.ProfileFormat;
+import me.lucko.spark.common.sampler.java.AdaptiveIntervalController;
+import me.lucko.spark.common.sampler.java.JavaIngestPipeline;
+import me.lucko.spark.common.sampler.java.JavaSampler;
 import me.lucko.spark.common.sampler.java.MergeStrategy;
+import me.lucko.spark.common.sampler.java.SamplingJitter;
+import me.lucko.spark.common.sampler.java.ThreadDeltaTracker;
 import me.lucko.spark.common.sampler.source.ClassSourceLookup;
 import me.lucko.spark.common.tick.TickHook;
+import me.lucko.spark.common.util.Compression;
 import me.lucko.spark.common.util.FormatUtil;
 import me.lucko.spark.common.util.MediaTypes;
+import me.lucko.spark.common.util.MethodDisambiguator;
 import me.lucko.spark.common.ws.ViewerSocket;
 import me.lucko.spark.proto.SparkSamplerProtos;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.event.ClickEvent;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.logging.Level;
+import java.util.stream.Collectors;
 
 import static net.kyori.adventure.text.Component.empty;
 import static net.kyori.adventure.text.Component.space;
@@ -84,9 +97,19 @@ public class SamplerModule implements CommandModule {
                 .argumentUsage("start", "thread", "thread name")
                 .argumentUsage("start", "only-ticks-over", "tick length millis")
                 .argumentUsage("start", "interval", "interval millis")
+                .argumentUsage("start", "overhead-budget", "percent of one core")
+                .argumentUsage("start", "jitter", "uniform|poisson")
                 .argumentUsage("start", "alloc", null)
+                .argumentUsage("start", "lock", null)
+                .argumentUsage("start", "lock --interval", "threshold nanos")
+                .argumentUsage("start", "native-alloc", null)
+                .argumentUsage("start", "alloc-survivors", null)
+                .argumentUsage("start", "cpu-time", null)
+                .argumentUsage("start", "heap-stats", null)
                 .argumentUsage("stop", "", null)
                 .argumentUsage("cancel", "", null)
+                .argumentUsage("diff", "baseline", "file")
+                .argumentUsage("diff", "current", "file")
                 .executor(this::profiler)
                 .tabCompleter((platform, sender, arguments) -> {
                     List<String> opts = Collections.emptyList();
@@ -94,19 +117,23 @@ public class SamplerModule implements CommandModule {
                     if (arguments.size() > 0) {
                         String subCommand = arguments.get(0);
                         if (subCommand.equals("stop") || subCommand.equals("upload")) {
-                            opts = new ArrayList<>(Arrays.asList("--comment", "--save-to-file"));
+                            opts = new ArrayList<>(Arrays.asList("--comment", "--save-to-file", "--format", "--compress", "--sparse-times"));
                             opts.removeAll(arguments);
                         }
                         if (subCommand.equals("start")) {
                             opts = new ArrayList<>(Arrays.asList("--timeout", "--regex", "--combine-all",
-                                    "--not-combined", "--interval", "--only-ticks-over", "--force-java-sampler", "--alloc", "--alloc-live-only"));
+                                    "--not-combined", "--interval", "--overhead-budget", "--jitter", "--only-ticks-over", "--force-java-sampler", "--batched-ingest", "--alloc", "--alloc-live-only", "--lock", "--native-alloc", "--alloc-survivors", "--cpu-time", "--heap-stats"));
                             opts.removeAll(arguments);
                             opts.add("--thread"); // allowed multiple times
                         }
+                        if (subCommand.equals("diff")) {
+                            opts = new ArrayList<>(Arrays.asList("--baseline", "--current"));
+                            opts.removeAll(arguments);
+                        }
                     }
 
                     return TabCompleter.create()
-                            .at(0, CompletionSupplier.startsWith(Arrays.asList("info", "start", "open", "stop", "cancel")))
+                            .at(0, CompletionSupplier.startsWith(Arrays.asList("info", "start", "open", "stop", "cancel", "diff")))
                             .from(1, CompletionSupplier.startsWith(opts))
                             .complete(arguments);
                 })
@@ -142,6 +169,11 @@ public class SamplerModule implements CommandModule {
             return;
         }
 
+        if (subCommand.equals("diff")) {
+            profilerDiff(platform, sender, resp, arguments);
+            return;
+        }
+
         if (subCommand.equals("start") || arguments.boolFlag("start")) {
             profilerStart(platform, sender, resp, arguments);
             return;
@@ -181,7 +213,34 @@ public class SamplerModule implements CommandModule {
                     "Consider setting a timeout value over 30 seconds."));
         }
 
-        SamplerMode mode = arguments.boolFlag("alloc") ? SamplerMode.ALLOCATION : SamplerMode.EXECUTION;
+        boolean alloc = arguments.boolFlag("alloc");
+        boolean lock = arguments.boolFlag("lock");
+        boolean nativeAlloc = arguments.boolFlag("native-alloc");
+        boolean allocSurvivors = arguments.boolFlag("alloc-survivors");
+        if ((alloc ? 1 : 0) + (lock ? 1 : 0) + (nativeAlloc ? 1 : 0) + (allocSurvivors ? 1 : 0) > 1) {
+            resp.replyPrefixed(text("Only one of allocation, allocation survivor, native allocation and lock profiling can be enabled at a time.", RED));
+            return;
+        }
+
+        SamplerMode mode;
+        if (alloc) {
+            mode = SamplerMode.ALLOCATION;
+        } else if (lock) {
+            mode = SamplerMode.LOCK;
+        } else if (nativeAlloc) {
+            mode = SamplerMode.NATIVE_ALLOCATION;
+        } else if (allocSurvivors) {
+            mode = SamplerMode.SURVIVORS;
+        } else {
+            mode = SamplerMode.EXECUTION;
+        }
+
+        boolean cpuTime = arguments.boolFlag("cpu-time");
+        boolean heapStatistics = arguments.boolFlag("heap-stats");
+        if (cpuTime && mode != SamplerMode.EXECUTION) {
+            resp.replyPrefixed(text("CPU time profiling can't be combined with allocation or lock profiling.", RED));
+            return;
+        }
         boolean allocLiveOnly = arguments.boolFlag("alloc-live-only");
 
         double interval = arguments.doubleFlag("interval");
@@ -189,8 +248,30 @@ public class SamplerModule implements CommandModule {
             interval = mode.defaultInterval();
         }
 
+        double overheadBudget = arguments.doubleFlag("overhead-budget");
+        if (overheadBudget > 100) {
+            resp.replyPrefixed(text("The overhead budget is a percentage of one core, and must be at most 100.", RED));
+            return;
+        }
+
+        SamplingJitter jitter = SamplingJitter.NONE;
+        String jitterName = Iterables.getFirst(arguments.stringFlag("jitter"), null);
+        if (jitterName != null) {
+            try {
+                jitter = SamplingJitter.valueOf(jitterName.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                resp.replyPrefixed(text("Unknown jitter '" + jitterName + "' - must be one of none, uniform or poisson.", RED));
+                return;
+            }
+        }
+
+        // checked before starting, as they're only used once the profiler has finished
+        ProfileFormat format = getSaveFormat(arguments);
+        Compression compression = getSaveCompression(arguments);
+
         boolean ignoreSleeping = arguments.boolFlag("ignore-sleeping");
         boolean forceJavaSampler = arguments.boolFlag("force-java-sampler");
+        boolean batchedIngest = arguments.boolFlag("batched-ingest");
 
         Set<String> threads = arguments.stringFlag("thread");
         ThreadDumper threadDumper;
@@ -237,9 +318,16 @@ public class SamplerModule implements CommandModule {
             builder.completeAfter(timeoutSeconds, TimeUnit.SECONDS);
         }
         builder.samplingInterval(interval);
+        if (overheadBudget > 0) {
+            builder.overheadBudget(overheadBudget / 100d);
+        }
+        builder.jitter(jitter);
         builder.ignoreSleeping(ignoreSleeping);
         builder.forceJavaSampler(forceJavaSampler);
+        builder.batchedIngest(batchedIngest);
         builder.allocLiveOnly(allocLiveOnly);
+        builder.cpuTime(cpuTime);
+        builder.heapStatistics(heapStatistics);
         if (ticksOver != -1) {
             builder.ticksOver(ticksOver, tickHook);
         }
@@ -255,9 +343,9 @@ public class SamplerModule implements CommandModule {
         platform.getSamplerContainer().setActiveSampler(sampler);
 
         resp.broadcastPrefixed(text()
-                .append(text((mode == SamplerMode.ALLOCATION ? "Allocation Profiler" : "Profiler") + " is now running!", GOLD))
+                .append(text(getProfilerName(mode) + " is now running!", GOLD))
                 .append(space())
-                .append(text("(" + (sampler instanceof AsyncSampler ? "async" : "built-in java") + ")", DARK_GRAY))
+                .append(text("(" + (sampler instanceof AsyncSampler ? "async, " + sampler.getEngineEvent() : "built-in java" + (sampler.getEngineEvent() != null ? ", " + sampler.getEngineEvent() : "")) + ")", DARK_GRAY))
                 .build()
         );
 
@@ -287,10 +375,10 @@ public class SamplerModule implements CommandModule {
         // await the result
         if (timeoutSeconds != -1) {
             Sampler.ExportProps exportProps = getExportProps(platform, resp, arguments);
-            boolean saveToFile = arguments.boolFlag("save-to-file");
+            boolean saveToFile = arguments.boolFlag("save-to-file") || format != ProfileFormat.SPARK;
             future.thenAcceptAsync(s -> {
                 resp.broadcastPrefixed(text("The active profiler has completed! Uploading results..."));
-                handleUpload(platform, resp, s, exportProps, saveToFile);
+                handleUpload(platform, resp, s, exportProps, saveToFile, format, compression);
             });
         }
     }
@@ -317,6 +405,81 @@ public class SamplerModule implements CommandModule {
                 resp.replyPrefixed(text("So far, it has profiled for " + FormatUtil.formatSeconds(runningTime) + "."));
             }
 
+            if (sampler instanceof JavaSampler && ((JavaSampler) sampler).getIntervalController() != null) {
+                AdaptiveIntervalController controller = ((JavaSampler) sampler).getIntervalController();
+                resp.replyPrefixed(text()
+                        .color(GRAY)
+                        .append(text("Sampling interval: "))
+                        .append(text(String.format(Locale.ENGLISH, "%.1fms", controller.getInterval() / 1000d), WHITE))
+                        .append(text(" (adaptive, "))
+                        .append(text(String.format(Locale.ENGLISH, "%.2f%%", controller.getOverhead() * 100), WHITE))
+                        .append(text(" of a core, budget "))
+                        .append(text(String.format(Locale.ENGLISH, "%.2f%%", controller.getBudget() * 100), WHITE))
+                        .append(text(")"))
+                        .build()
+                );
+            }
+
+            if (sampler instanceof JavaSampler && ((JavaSampler) sampler).getDeltaTracker() != null) {
+                ThreadDeltaTracker tracker = ((JavaSampler) sampler).getDeltaTracker();
+                resp.replyPrefixed(text()
+                        .color(GRAY)
+                        .append(text("Per-thread " + sampler.getEngineEvent() + " accounting: "))
+                        .append(text(String.format(Locale.ENGLISH, "%.3fms", tracker.getMeanCostMicros() / 1000d), WHITE))
+                        .append(text(" per sample"))
+                        .build()
+                );
+            }
+
+            if (sampler instanceof JavaSampler && ((JavaSampler) sampler).getIngestPipeline() != null) {
+                JavaIngestPipeline pipeline = ((JavaSampler) sampler).getIngestPipeline();
+                resp.replyPrefixed(text()
+                        .color(GRAY)
+                        .append(text("Ingest queue: "))
+                        .append(text(pipeline.getQueueDepth(), WHITE))
+                        .append(text(" pending, "))
+                        .append(text(pipeline.getDroppedDumps(), WHITE))
+                        .append(text(" dropped, "))
+                        .append(text(String.format(Locale.ENGLISH, "%.2fms", pipeline.getMeanIngestLatencyMillis()), WHITE))
+                        .append(text(" mean / "))
+                        .append(text(String.format(Locale.ENGLISH, "%.2fms", pipeline.getMaxIngestLatencyMillis()), WHITE))
+                        .append(text(" max latency"))
+                        .build()
+                );
+            }
+
+            if (sampler instanceof AsyncSampler) {
+                AsyncAggregationWorker worker = ((AsyncSampler) sampler).getAggregationWorker();
+                resp.replyPrefixed(text()
+                        .color(GRAY)
+                        .append(text("Aggregation queue: "))
+                        .append(text(worker.getQueueDepth(), WHITE))
+                        .append(text(" pending, "))
+                        .append(text(String.format(Locale.ENGLISH, "%.2fms", worker.getLastLagMillis()), WHITE))
+                        .append(text(" last / "))
+                        .append(text(String.format(Locale.ENGLISH, "%.2fms", worker.getMaxLagMillis()), WHITE))
+                        .append(text(" max lag, "))
+                        .append(text(String.format(Locale.ENGLISH, "%.2fms", worker.getBlockedMillis()), WHITE))
+                        .append(text(" blocked"))
+                        .build()
+                );
+            }
+
+            if (sampler instanceof JavaSampler) {
+                MethodDisambiguator.ClassCache classCache = MethodDisambiguator.ClassCache.SHARED;
+                resp.replyPrefixed(text()
+                        .color(GRAY)
+                        .append(text("Method cache: "))
+                        .append(text(classCache.size(), WHITE))
+                        .append(text(" classes, "))
+                        .append(text(classCache.getHits(), WHITE))
+                        .append(text(" hits / "))
+                        .append(text(classCache.getMisses(), WHITE))
+                        .append(text(" misses"))
+                        .build()
+                );
+            }
+
             resp.replyPrefixed(text("To view the profiler while it's running, run:"));
             resp.replyPrefixed(cmdPrompt("/" + platform.getPlugin().getCommandName() + " profiler open"));
 
@@ -392,10 +555,14 @@ public class SamplerModule implements CommandModule {
         if (sampler == null) {
             resp.replyPrefixed(text("There isn't an active profiler running."));
         } else {
+            // checked before stopping, so the profiler keeps running if the arguments are invalid
+            ProfileFormat format = getSaveFormat(arguments);
+            Compression compression = getSaveCompression(arguments);
+
             platform.getSamplerContainer().unsetActiveSampler(sampler);
             sampler.stop(false);
 
-            boolean saveToFile = arguments.boolFlag("save-to-file");
+            boolean saveToFile = arguments.boolFlag("save-to-file") || format != ProfileFormat.SPARK;
             if (saveToFile) {
                 resp.broadcastPrefixed(text("Stopping the profiler & saving results, please wait..."));
             } else {
@@ -403,7 +570,7 @@ public class SamplerModule implements CommandModule {
             }
 
             Sampler.ExportProps exportProps = getExportProps(platform, resp, arguments);
-            handleUpload(platform, resp, sampler, exportProps, saveToFile);
+            handleUpload(platform, resp, sampler, exportProps, saveToFile, format, compression);
 
             // if the previous sampler was running in the background, create a new one
             if (platform.getBackgroundSamplerManager().restartBackgroundSampler()) {
@@ -416,50 +583,205 @@ public class SamplerModule implements CommandModule {
         }
     }
 
-    private void handleUpload(SparkPlatform platform, CommandResponseHandler resp, Sampler sampler, Sampler.ExportProps exportProps, boolean saveToFileFlag) {
-        SparkSamplerProtos.SamplerData output = sampler.toProto(platform, exportProps);
+    private void profilerDiff(SparkPlatform platform, CommandSender sender, CommandResponseHandler resp, Arguments arguments) {
+        String baselineName = Iterables.getFirst(arguments.stringFlag("baseline"), null);
+        if (baselineName == null) {
+            resp.replyPrefixed(text("Please specify the baseline profile file to compare against with '--baseline <file>'.", RED));
+            return;
+        }
+
+        Path baselineFile = resolveProfileFile(platform, baselineName);
+        if (baselineFile == null) {
+            resp.replyPrefixed(text("Unable to find a profile file named '" + baselineName + "' in the spark directory.", RED));
+            return;
+        }
 
-        boolean saveToFile = false;
-        if (saveToFileFlag) {
-            saveToFile = true;
+        // compare against another file if one is given, otherwise against the active profiler
+        String currentName = Iterables.getFirst(arguments.stringFlag("current"), null);
+        Path currentFile = null;
+        Sampler sampler = null;
+        if (currentName != null) {
+            currentFile = resolveProfileFile(platform, currentName);
+            if (currentFile == null) {
+                resp.replyPrefixed(text("Unable to find a profile file named '" + currentName + "' in the spark directory.", RED));
+                return;
+            }
         } else {
+            sampler = platform.getSamplerContainer().getActiveSampler();
+            if (sampler == null) {
+                resp.replyPrefixed(text("There isn't an active profiler running. Please specify the profile file to compare with '--current <file>'.", RED));
+                return;
+            }
+        }
+
+        resp.broadcastPrefixed(text("Comparing profiles, please wait..."));
+
+        Sampler.ExportProps exportProps = getExportProps(platform, resp, arguments);
+        Path finalCurrentFile = currentFile;
+        Sampler finalSampler = sampler;
+
+        // loading & comparing large profiles can take a while, so don't hold up other commands whilst it runs
+        platform.getPlugin().executeAsync(() -> {
+            Path file = platform.resolveSaveFile("profile-diff", "sparkdiff");
             try {
-                String key = platform.getBytebinClient().postContent(output, MediaTypes.SPARK_SAMPLER_MEDIA_TYPE).key();
-                String url = platform.getViewerUrl() + key;
+                SparkSamplerProtos.SamplerData baseline = ProfileDiff.read(baselineFile);
+                SparkSamplerProtos.SamplerData current = finalCurrentFile != null
+                        ? ProfileDiff.read(finalCurrentFile)
+                        : finalSampler.toProto(platform, exportProps);
+
+                String incompatibility = ProfileDiff.getIncompatibility(baseline.getMetadata(), current.getMetadata());
+                if (incompatibility != null) {
+                    resp.broadcastPrefixed(text("Unable to compare the profiles - " + incompatibility + ".", RED));
+                    return;
+                }
 
-                resp.broadcastPrefixed(text("Profiler stopped & upload complete!", GOLD));
-                resp.broadcast(text()
-                        .content(url)
-                        .color(GRAY)
-                        .clickEvent(ClickEvent.openUrl(url))
-                        .build()
-                );
+                ProfileDiff diff = ProfileDiff.compare(baseline, current);
+                try (OutputStream out = Files.newOutputStream(file)) {
+                    diff.writeTo(out);
+                }
 
-                platform.getActivityLog().addToLog(Activity.urlActivity(resp.senderData(), System.currentTimeMillis(), "Profiler", url));
+                resp.broadcastPrefixed(text("Profile diff complete!", GOLD));
+                resp.broadcastPrefixed(text("Data has been written to: " + file));
+
+                List<ProfileDiff.Change> changes = diff.getLargestSelfIncreases(5);
+                if (!changes.isEmpty()) {
+                    resp.broadcastPrefixed(text("Largest increases in self time:"));
+                    for (ProfileDiff.Change change : changes) {
+                        resp.broadcastPrefixed(text()
+                                .content(" ")
+                                .append(text("+" + formatPercent(change.getDelta()), RED))
+                                .append(space())
+                                .append(text(change.getClassName() + "." + change.getMethodName(), WHITE))
+                                .append(text(" (" + formatPercent(change.getBaseline()) + " -> " + formatPercent(change.getCurrent()) + ")", GRAY))
+                                .build()
+                        );
+                    }
+                }
+
+                platform.getActivityLog().addToLog(Activity.fileActivity(resp.senderData(), System.currentTimeMillis(), "Profile diff", file.toString()));
             } catch (Exception e) {
-                resp.broadcastPrefixed(text("An error occurred whilst uploading the results. Attempting to save to disk instead.", RED));
-                platform.getPlugin().log(Level.WARNING, "Error whilst uploading profiler results", e);
-                saveToFile = true;
+                resp.broadcastPrefixed(text("An error occurred whilst comparing the profiles.", RED));
+                platform.getPlugin().log(Level.WARNING, "Error whilst comparing profiles", e);
             }
+        });
+    }
+
+    private static Path resolveProfileFile(SparkPlatform platform, String name) {
+        Path directory = platform.getPlugin().getPluginDirectory().toAbsolutePath().normalize();
+        Path file = directory.resolve(name).normalize();
+
+        // only allow files in the spark directory to be read
+        if (!file.startsWith(directory) || !Files.isRegularFile(file)) {
+            return null;
         }
+        return file;
+    }
+
+    private static String formatPercent(double fraction) {
+        return String.format(Locale.ROOT, "%.2f%%", fraction * 100);
+    }
 
+    private void handleUpload(SparkPlatform platform, CommandResponseHandler resp, Sampler sampler, Sampler.ExportProps exportProps, boolean saveToFile, ProfileFormat format, Compression compression) {
         if (saveToFile) {
-            Path file = platform.resolveSaveFile("profile", "sparkprofile");
-            try {
-                Files.write(file, output.toByteArray());
+            // stream straight to the file, instead of building the whole message in memory first.
+            // this can take a while for large profiles, so don't hold up other commands whilst it runs
+            platform.getPlugin().executeAsync(() -> handleSaveToFile(platform, resp, format, out -> sampler.writeProto(platform, exportProps, format.createSink(out)), compression));
+            return;
+        }
 
-                resp.broadcastPrefixed(text("Profiler stopped & save complete!", GOLD));
-                resp.broadcastPrefixed(text("Data has been written to: " + file));
+        SparkSamplerProtos.SamplerData output = sampler.toProto(platform, exportProps);
+        try {
+            String key = platform.getBytebinClient().postContent(output, MediaTypes.SPARK_SAMPLER_MEDIA_TYPE).key();
+            String url = platform.getViewerUrl() + key;
+
+            resp.broadcastPrefixed(text("Profiler stopped & upload complete!", GOLD));
+            resp.broadcast(text()
+                    .content(url)
+                    .color(GRAY)
+                    .clickEvent(ClickEvent.openUrl(url))
+                    .build()
+            );
+
+            platform.getActivityLog().addToLog(Activity.urlActivity(resp.senderData(), System.currentTimeMillis(), "Profiler", url));
+        } catch (Exception e) {
+            resp.broadcastPrefixed(text("An error occurred whilst uploading the results. Attempting to save to disk instead.", RED));
+            platform.getPlugin().log(Level.WARNING, "Error whilst uploading profiler results", e);
+            handleSaveToFile(platform, resp, ProfileFormat.SPARK, output::writeTo, compression);
+        }
+    }
+
+    private void handleSaveToFile(SparkPlatform platform, CommandResponseHandler resp, ProfileFormat format, ProfileWriter writer, Compression compression) {
+        String extension = compression == null ? format.getFileExtension() : format.getFileExtension() + "." + compression.getFileExtension();
+        Path file = platform.resolveSaveFile("profile", extension);
+        try {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                if (compression == null) {
+                    writer.write(out);
+                } else {
+                    try (OutputStream compressionOut = compression.compress(out)) {
+                        writer.write(compressionOut);
+                    }
+                }
+            }
+
+            resp.broadcastPrefixed(text("Profiler stopped & save complete!", GOLD));
+            resp.broadcastPrefixed(text("Data has been written to: " + file));
+            if (format == ProfileFormat.SPARK) {
                 resp.broadcastPrefixed(text("You can view the profile file using the web app @ " + platform.getViewerUrl(), GRAY));
+            }
 
-                platform.getActivityLog().addToLog(Activity.fileActivity(resp.senderData(), System.currentTimeMillis(), "Profiler", file.toString()));
-            } catch (IOException e) {
-                resp.broadcastPrefixed(text("An error occurred whilst saving the data.", RED));
-                platform.getPlugin().log(Level.WARNING, "Error whilst saving profiler results", e);
+            platform.getActivityLog().addToLog(Activity.fileActivity(resp.senderData(), System.currentTimeMillis(), "Profiler", file.toString()));
+        } catch (Exception e) {
+            resp.broadcastPrefixed(text("An error occurred whilst saving the data.", RED));
+            platform.getPlugin().log(Level.WARNING, "Error whilst saving profiler results", e);
+
+            // don't leave a truncated file behind
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                platform.getPlugin().log(Level.WARNING, "Unable to delete partially saved profiler results: " + file, ex);
             }
         }
     }
 
+    private static Compression getSaveCompression(Arguments arguments) {
+        String compression = Iterables.getFirst(arguments.stringFlag("compress"), null);
+        if (compression == null) {
+            return null;
+        }
+        try {
+            return Compression.valueOf(compression.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new Arguments.ParseException("Unknown compression '" + compression + "' - must be one of " + describeValues(Compression.values()) + ".");
+        }
+    }
+
+    private static ProfileFormat getSaveFormat(Arguments arguments) {
+        String format = Iterables.getFirst(arguments.stringFlag("format"), null);
+        if (format == null) {
+            return ProfileFormat.SPARK;
+        }
+        try {
+            return ProfileFormat.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new Arguments.ParseException("Unknown format '" + format + "' - must be one of " + describeValues(ProfileFormat.values()) + ".");
+        }
+    }
+
+    private static String describeValues(Enum<?>[] values) {
+        return Arrays.stream(values)
+                .map(value -> value.name().toLowerCase(Locale.ROOT))
+                .collect(Collectors.joining(", "));
+    }
+
+    /**
+     * Writes profile data to an output stream.
+     */
+    @FunctionalInterface
+    private interface ProfileWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
     private void handleOpen(SparkPlatform platform, BytesocksClient bytesocksClient, CommandResponseHandler resp, Sampler sampler, Sampler.ExportProps exportProps) {
         try {
             ViewerSocket socket = new ViewerSocket(platform, bytesocksClient, exportProps);
@@ -506,7 +828,23 @@ public class SamplerModule implements CommandModule {
                 .creator(resp.senderData())
                 .comment(Iterables.getFirst(arguments.stringFlag("comment"), null))
                 .mergeStrategy(arguments.boolFlag("separate-parent-calls") ? MergeStrategy.SEPARATE_PARENT_CALLS : MergeStrategy.SAME_METHOD)
-                .classSourceLookup(() -> ClassSourceLookup.create(platform));
+                .classSourceLookup(() -> ClassSourceLookup.create(platform))
+                .sparseTimes(arguments.boolFlag("sparse-times"));
+    }
+
+    private static String getProfilerName(SamplerMode mode) {
+        switch (mode) {
+            case ALLOCATION:
+                return "Allocation Profiler";
+            case NATIVE_ALLOCATION:
+                return "Native Allocation Profiler";
+            case SURVIVORS:
+                return "Allocation Survivor Profiler";
+            case LOCK:
+                return "Lock Profiler";
+            default:
+                return "Profiler";
+        }
     }
 
     private static Component cmdPrompt(String cmd) {
@@ -27,21 +27,27 @@ import me.lucko.spark.common.platform.SparkMetadata;
 import me.lucko.spark.common.sampler.aggregator.DataAggregator;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 import me.lucko.spark.common.sampler.node.exporter.NodeExporter;
+import me.lucko.spark.common.sampler.node.exporter.ParallelNodeExport;
 import me.lucko.spark.common.sampler.source.ClassSourceLookup;
 import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
 import me.lucko.spark.common.sampler.window.WindowStatisticsCollector;
 import me.lucko.spark.common.util.classfinder.ClassFinder;
 import me.lucko.spark.common.ws.ViewerSocket;
 import me.lucko.spark.proto.SparkProtos;
+import me.lucko.spark.proto.SparkSamplerProtos;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.logging.Level;
@@ -178,6 +184,48 @@ public abstract class AbstractSampler implements Sampler {
         }
     }
 
+    @Override
+    public SamplerData toProto(SparkPlatform platform, ExportProps exportProps) {
+        SamplerData.Builder proto = SamplerData.newBuilder();
+        writeProto(proto, platform, exportProps, proto::addThreads);
+        return proto.build();
+    }
+
+    @Override
+    public void writeProto(SparkPlatform platform, ExportProps exportProps, OutputStream out) throws IOException {
+        writeProto(platform, exportProps, new SamplerDataWriter(out));
+    }
+
+    @Override
+    public void writeProto(SparkPlatform platform, ExportProps exportProps, SamplerDataSink sink) throws IOException {
+        SamplerData.Builder proto = SamplerData.newBuilder();
+        try {
+            writeProto(proto, platform, exportProps, thread -> {
+                try {
+                    sink.writeThread(proto, thread);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        sink.finish(proto);
+    }
+
+    /**
+     * Writes the sampler data to the given proto builder.
+     *
+     * <p>Exported thread nodes are passed to the {@code threadSink} instead of being added to
+     * the builder, so that they can be streamed elsewhere.</p>
+     *
+     * @param proto the proto builder
+     * @param platform the platform
+     * @param exportProps the export props
+     * @param threadSink the consumer of exported thread nodes
+     */
+    protected abstract void writeProto(SamplerData.Builder proto, SparkPlatform platform, ExportProps exportProps, Consumer<SparkSamplerProtos.ThreadNode> threadSink);
+
     protected void writeMetadataToProto(SamplerData.Builder proto, SparkPlatform platform, CommandSender.Data creator, String comment, DataAggregator dataAggregator) {
         SamplerMetadata.Builder metadata = SamplerMetadata.newBuilder()
                 .setSamplerEngine(getType().asProto())
@@ -198,15 +246,25 @@ public abstract class AbstractSampler implements Sampler {
             metadata.setSamplerEngineVersion(libraryVersion);
         }
 
+        String engineEvent = getEngineEvent();
+        if (engineEvent != null) {
+            metadata.setSamplerEngineEvent(engineEvent);
+        }
+
         int totalTicks = this.windowStatisticsCollector.getTotalTicks();
         if (totalTicks != -1) {
             metadata.setNumberOfTicks(totalTicks);
         }
 
+        long collapsedNodes = dataAggregator.getCollapsedNodeCount();
+        if (collapsedNodes != 0) {
+            metadata.setCollapsedNodes(collapsedNodes);
+        }
+
         proto.setMetadata(metadata);
     }
 
-    protected void writeDataToProto(SamplerData.Builder proto, DataAggregator dataAggregator, Function<ProtoTimeEncoder, NodeExporter> nodeExporterFunction, ClassSourceLookup classSourceLookup, Supplier<ClassFinder> classFinderSupplier) {
+    protected void writeDataToProto(SamplerData.Builder proto, DataAggregator dataAggregator, Function<ProtoTimeEncoder, NodeExporter> nodeExporterFunction, ClassSourceLookup classSourceLookup, Supplier<ClassFinder> classFinderSupplier, Consumer<SparkSamplerProtos.ThreadNode> threadSink) {
         List<ThreadNode> data = dataAggregator.exportData();
         data.sort(Comparator.comparing(ThreadNode::getThreadLabel));
 
@@ -218,14 +276,22 @@ public abstract class AbstractSampler implements Sampler {
             proto.addTimeWindows(timeWindow);
         }
 
-        this.windowStatisticsCollector.ensureHasStatisticsForAllWindows(timeWindows);
-        proto.putAllTimeWindowStatistics(this.windowStatisticsCollector.export());
+        // survivor data is bucketed by age rather than time, so the statistics (which are recorded
+        // per time window) don't correspond to any of the exported windows
+        if (getMode() != SamplerMode.SURVIVORS) {
+            this.windowStatisticsCollector.ensureHasStatisticsForAllWindows(timeWindows);
+            proto.putAllTimeWindowStatistics(this.windowStatisticsCollector.export());
+        }
 
         NodeExporter exporter = nodeExporterFunction.apply(timeEncoder);
 
-        for (ThreadNode entry : data) {
-            proto.addThreads(exporter.export(entry));
-            classSourceVisitor.visit(entry);
+        // export each thread node in parallel, then add them in sorted order
+        // so that the output is the same as exporting them one at a time
+        try (ParallelNodeExport export = new ParallelNodeExport(exporter, data)) {
+            for (int i = 0; i < data.size(); i++) {
+                threadSink.accept(export.get(i));
+                classSourceVisitor.visit(data.get(i));
+            }
         }
 
         if (classSourceVisitor.hasClassSourceMappings()) {
@@ -32,6 +32,7 @@ public class BackgroundSamplerManager {
     private static final String OPTION_ENABLED = "backgroundProfiler";
     private static final String OPTION_ENGINE = "backgroundProfilerEngine";
     private static final String OPTION_INTERVAL = "backgroundProfilerInterval";
+    private static final String OPTION_OVERHEAD_BUDGET = "backgroundProfilerOverheadBudget";
     private static final String OPTION_THREAD_GROUPER = "backgroundProfilerThreadGrouper";
     private static final String OPTION_THREAD_DUMPER = "backgroundProfilerThreadDumper";
 
@@ -112,11 +113,20 @@ public class BackgroundSamplerManager {
 
         int interval = this.configuration.getInteger(OPTION_INTERVAL, 10);
 
+        // percentage of one core, or 0 to always use the configured interval
+        int overheadBudget = this.configuration.getInteger(OPTION_OVERHEAD_BUDGET, 0);
+        if (overheadBudget < 0 || overheadBudget > 100) {
+            int clamped = Math.max(0, Math.min(overheadBudget, 100));
+            this.platform.getPlugin().log(Level.WARNING, "The background profiler overhead budget must be between 0 and 100 (percent of one core), but was " + overheadBudget + ". Using " + clamped + " instead.");
+            overheadBudget = clamped;
+        }
+
         Sampler sampler = new SamplerBuilder()
               .background(true)
               .threadDumper(threadDumper)
               .threadGrouper(threadGrouper)
               .samplingInterval(interval)
+              .overheadBudget(overheadBudget / 100d)
               .forceJavaSampler(forceJavaEngine)
               .start(this.platform);
 
@@ -29,6 +29,8 @@ import me.lucko.spark.proto.SparkProtos;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
 import me.lucko.spark.proto.SparkSamplerProtos.SocketChannelInfo;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
@@ -98,6 +100,13 @@ public interface Sampler {
      */
     String getLibraryVersion();
 
+    /**
+     * Gets the name of the event sampled by the sampler engine, e.g. "wall" or "cpu".
+     *
+     * @return the event name if known, else null
+     */
+    String getEngineEvent();
+
     /**
      * Gets the sampler mode.
      *
@@ -122,12 +131,35 @@ public interface Sampler {
     // Methods used to export the sampler data to the web viewer.
     SamplerData toProto(SparkPlatform platform, ExportProps exportProps);
 
+    /**
+     * Exports the sampler data to the given output stream, in the same format
+     * as {@link #toProto(SparkPlatform, ExportProps)}, but without building the
+     * whole message in memory first.
+     *
+     * @param platform the platform
+     * @param exportProps the export props
+     * @param out the output stream
+     * @throws IOException if an I/O error occurs
+     */
+    void writeProto(SparkPlatform platform, ExportProps exportProps, OutputStream out) throws IOException;
+
+    /**
+     * Exports the sampler data to the given sink, one thread node at a time.
+     *
+     * @param platform the platform
+     * @param exportProps the export props
+     * @param sink the sink
+     * @throws IOException if an I/O error occurs
+     */
+    void writeProto(SparkPlatform platform, ExportProps exportProps, SamplerDataSink sink) throws IOException;
+
     final class ExportProps {
         private CommandSender.Data creator;
         private String comment;
         private MergeStrategy mergeStrategy;
         private Supplier<ClassSourceLookup> classSourceLookup;
         private SocketChannelInfo channelInfo;
+        private boolean sparseTimes;
 
         public ExportProps() {
         }
@@ -152,6 +184,10 @@ public interface Sampler {
             return this.channelInfo;
         }
 
+        public boolean sparseTimes() {
+            return this.sparseTimes;
+        }
+
         public ExportProps creator(CommandSender.Data creator) {
             this.creator = creator;
             return this;
@@ -176,6 +212,11 @@ public interface Sampler {
             this.channelInfo = channelInfo;
             return this;
         }
+
+        public ExportProps sparseTimes(boolean sparseTimes) {
+            this.sparseTimes = sparseTimes;
+            return this;
+        }
     }
 
 }
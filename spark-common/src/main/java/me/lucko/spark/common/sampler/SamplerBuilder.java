@@ -25,8 +25,12 @@ import me.lucko.spark.common.sampler.async.AsyncProfilerAccess;
 import me.lucko.spark.common.sampler.async.AsyncSampler;
 import me.lucko.spark.common.sampler.async.SampleCollector;
 import me.lucko.spark.common.sampler.java.JavaSampler;
+import me.lucko.spark.common.sampler.java.SamplingJitter;
+import me.lucko.spark.common.sampler.java.ThreadAllocationTracker;
+import me.lucko.spark.common.sampler.java.ThreadCpuTimeTracker;
 import me.lucko.spark.common.tick.TickHook;
 
+import java.lang.management.ManagementFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.logging.Level;
@@ -42,6 +46,11 @@ public class SamplerBuilder {
     private boolean ignoreSleeping = false;
     private boolean forceJavaSampler = false;
     private boolean allocLiveOnly = false;
+    private boolean cpuTime = false;
+    private boolean heapStatistics = false;
+    private boolean batchedIngest = false;
+    private double overheadBudget = -1;
+    private SamplingJitter jitter = SamplingJitter.NONE;
     private long autoEndTime = -1;
     private boolean background = false;
     private ThreadDumper threadDumper = ThreadDumper.ALL;
@@ -107,6 +116,31 @@ public class SamplerBuilder {
         return this;
     }
 
+    public SamplerBuilder cpuTime(boolean cpuTime) {
+        this.cpuTime = cpuTime;
+        return this;
+    }
+
+    public SamplerBuilder heapStatistics(boolean heapStatistics) {
+        this.heapStatistics = heapStatistics;
+        return this;
+    }
+
+    public SamplerBuilder batchedIngest(boolean batchedIngest) {
+        this.batchedIngest = batchedIngest;
+        return this;
+    }
+
+    public SamplerBuilder jitter(SamplingJitter jitter) {
+        this.jitter = jitter;
+        return this;
+    }
+
+    public SamplerBuilder overheadBudget(double overheadBudget) {
+        this.overheadBudget = overheadBudget;
+        return this;
+    }
+
     public Sampler start(SparkPlatform platform) throws UnsupportedOperationException {
         if (this.samplingInterval <= 0) {
             throw new IllegalArgumentException("samplingInterval = " + this.samplingInterval);
@@ -117,42 +151,135 @@ public class SamplerBuilder {
         boolean onlyTicksOverMode = this.ticksOver != -1 && this.tickHook != null;
         boolean canUseAsyncProfiler = asyncProfiler.checkSupported(platform) && (!onlyTicksOverMode || platform.getTickReporter() != null);
 
-        if (this.mode == SamplerMode.ALLOCATION) {
-            if (!canUseAsyncProfiler || !asyncProfiler.checkAllocationProfilingSupported(platform)) {
-                throw new UnsupportedOperationException("Allocation profiling is not supported on your system. Check the console for more info.");
+        if (this.mode == SamplerMode.ALLOCATION || this.mode == SamplerMode.SURVIVORS) {
+            if (!canUseAsyncProfiler || this.forceJavaSampler || !asyncProfiler.checkAllocationProfilingSupported(platform)) {
+                // fall back to measuring the bytes allocated by each sampled thread in the java sampler
+                if (this.mode == SamplerMode.SURVIVORS || !ThreadAllocationTracker.isSupported(ManagementFactory.getThreadMXBean())) {
+                    throw new UnsupportedOperationException("Allocation profiling is not supported on your system. Check the console for more info.");
+                }
+                if (onlyTicksOverMode) {
+                    throw new UnsupportedOperationException("Allocation profiling with the built-in Java sampler can't be combined with --only-ticks-over.");
+                }
+                if (this.allocLiveOnly) {
+                    platform.getPlugin().log(Level.WARNING, "Only retaining live objects is not supported by the built-in Java sampler. All allocations will be included in the results.");
+                }
+                canUseAsyncProfiler = false;
             }
             if (this.ignoreSleeping) {
                 platform.getPlugin().log(Level.WARNING, "Ignoring sleeping threads is not supported in allocation profiling mode. Sleeping threads will be included in the results.");
             }
         }
 
+        if (this.mode == SamplerMode.SURVIVORS && onlyTicksOverMode) {
+            throw new UnsupportedOperationException("Allocation survivor profiling can't be combined with --only-ticks-over.");
+        }
+
+        if (this.mode == SamplerMode.EXECUTION && this.cpuTime) {
+            if (!canUseAsyncProfiler || this.forceJavaSampler || !asyncProfiler.checkCpuProfilingSupported(platform)) {
+                // fall back to measuring the cpu time of each sampled thread in the java sampler
+                if (!ThreadCpuTimeTracker.isSupported(ManagementFactory.getThreadMXBean())) {
+                    throw new UnsupportedOperationException("CPU time profiling is not supported on your system. Check the console for more info.");
+                }
+                canUseAsyncProfiler = false;
+            }
+        }
+
+        boolean ignoreSleeping = this.ignoreSleeping;
+        if (this.mode == SamplerMode.ALLOCATION) {
+            ignoreSleeping = false;
+        }
+        if (this.mode == SamplerMode.LOCK) {
+            if (!canUseAsyncProfiler || this.forceJavaSampler) {
+                throw new UnsupportedOperationException("Lock profiling is not supported on your system. Check the console for more info.");
+            }
+            if (ignoreSleeping) {
+                // threads blocked on a lock are parked, so they would all be ignored
+                platform.getPlugin().log(Level.WARNING, "Ignoring sleeping threads is not supported in lock profiling mode. Sleeping threads will be included in the results.");
+                ignoreSleeping = false;
+            }
+        }
+
+        if (this.mode == SamplerMode.NATIVE_ALLOCATION) {
+            if (!canUseAsyncProfiler || this.forceJavaSampler) {
+                throw new UnsupportedOperationException("Native allocation profiling is not supported on your system. Check the console for more info.");
+            }
+            if (ignoreSleeping) {
+                platform.getPlugin().log(Level.WARNING, "Ignoring sleeping threads is not supported in native allocation profiling mode. Sleeping threads will be included in the results.");
+            }
+        }
+
         if (this.forceJavaSampler) {
             canUseAsyncProfiler = false;
         }
 
+        boolean heapStatistics = this.heapStatistics;
+        if (heapStatistics) {
+            // heap summaries come from a JFR recording started alongside async-profiler (jfrsync),
+            // which isn't carried over when a survivors job resumes the previous session
+            if (!canUseAsyncProfiler || this.mode == SamplerMode.SURVIVORS || !isFlightRecorderAvailable()) {
+                platform.getPlugin().log(Level.WARNING, "Heap statistics are only supported by the async-profiler engine on JVMs with Flight Recorder, and not in allocation survivor mode. They will not be recorded.");
+                heapStatistics = false;
+            }
+        }
+
         int interval = (int) (this.mode == SamplerMode.EXECUTION ?
                 this.samplingInterval * 1000d : // convert to microseconds
                 this.samplingInterval
         );
+        if (!canUseAsyncProfiler && this.mode == SamplerMode.ALLOCATION) {
+            // the java sampler takes thread dumps on a timer, rather than every n bytes allocated
+            interval = SamplerMode.EXECUTION.defaultInterval() * 1000;
+        }
+
+        if (canUseAsyncProfiler && this.overheadBudget > 0) {
+            platform.getPlugin().log(Level.WARNING, "An adaptive sampling interval is only supported by the built-in Java sampler. The requested interval will be used as-is.");
+        }
+        if (canUseAsyncProfiler && this.jitter != SamplingJitter.NONE) {
+            platform.getPlugin().log(Level.WARNING, "Sampling jitter is only supported by the built-in Java sampler. Samples will be taken at a fixed rate.");
+        }
 
-        SamplerSettings settings = new SamplerSettings(interval, this.threadDumper, this.threadGrouper.get(), this.autoEndTime, this.background, this.ignoreSleeping);
+        SamplerSettings settings = new SamplerSettings(interval, this.threadDumper, this.threadGrouper.get(), this.autoEndTime, this.background, ignoreSleeping, this.overheadBudget, this.jitter, this.mode, this.cpuTime, heapStatistics);
 
         Sampler sampler;
         if (canUseAsyncProfiler) {
-            SampleCollector<?> collector = this.mode == SamplerMode.ALLOCATION
-                    ? new SampleCollector.Allocation(interval, this.allocLiveOnly)
-                    : new SampleCollector.Execution(interval);
+            SampleCollector<?> collector;
+            switch (this.mode) {
+                case ALLOCATION:
+                    collector = new SampleCollector.Allocation(interval, this.allocLiveOnly);
+                    break;
+                case LOCK:
+                    collector = new SampleCollector.Lock(interval);
+                    break;
+                case NATIVE_ALLOCATION:
+                    collector = new SampleCollector.NativeAllocation(interval);
+                    break;
+                case SURVIVORS:
+                    collector = new SampleCollector.Survivors(interval);
+                    break;
+                default:
+                    collector = new SampleCollector.Execution(interval, this.cpuTime);
+                    break;
+            }
             sampler = onlyTicksOverMode
                     ? new AsyncSampler(platform, settings, collector, this.ticksOver)
                     : new AsyncSampler(platform, settings, collector);
         } else {
             sampler = onlyTicksOverMode
                     ? new JavaSampler(platform, settings, this.tickHook, this.ticksOver)
-                    : new JavaSampler(platform, settings);
+                    : new JavaSampler(platform, settings, this.batchedIngest);
         }
 
         sampler.start();
         return sampler;
     }
 
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
 }
@@ -0,0 +1,56 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerDataOrBuilder;
+import me.lucko.spark.proto.SparkSamplerProtos.ThreadNode;
+
+import java.io.IOException;
+
+/**
+ * Receives sampler data as it is exported, one thread node at a time.
+ *
+ * <p>When {@link #writeThread(SamplerDataOrBuilder, ThreadNode)} is first called, the
+ * metadata, time windows and window statistics have already been set on the proto.</p>
+ *
+ * @see SamplerDataWriter
+ */
+public interface SamplerDataSink {
+
+    /**
+     * Writes a thread node.
+     *
+     * @param proto the rest of the message
+     * @param thread the thread node
+     * @throws IOException if an I/O error occurs
+     */
+    void writeThread(SamplerDataOrBuilder proto, ThreadNode thread) throws IOException;
+
+    /**
+     * Writes anything that remains once all thread nodes have been written, and flushes the output.
+     *
+     * @param proto the rest of the message (the thread nodes should not be set)
+     * @throws IOException if an I/O error occurs
+     */
+    void finish(SamplerData.Builder proto) throws IOException;
+
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import com.google.protobuf.CodedOutputStream;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerDataOrBuilder;
+import me.lucko.spark.proto.SparkSamplerProtos.ThreadNode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a {@link SamplerData} message to a stream, one thread node at a time.
+ *
+ * <p>Thread nodes make up most of the message, so writing each one as soon as it has been
+ * exported (instead of building the whole message first) means they never all have to be
+ * held in memory at once.</p>
+ *
+ * <p>The fields are written in field number order - metadata, then threads, then
+ * everything else - so the output is identical to serializing the complete message.</p>
+ */
+public class SamplerDataWriter implements SamplerDataSink {
+
+    /** The size of the write buffer */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The output stream */
+    private final CodedOutputStream out;
+
+    /** If the metadata has been written */
+    private boolean metadataWritten = false;
+
+    public SamplerDataWriter(OutputStream out) {
+        this.out = CodedOutputStream.newInstance(out, BUFFER_SIZE);
+    }
+
+    @Override
+    public void writeThread(SamplerDataOrBuilder proto, ThreadNode thread) throws IOException {
+        writeMetadata(proto);
+        this.out.writeMessage(SamplerData.THREADS_FIELD_NUMBER, thread);
+    }
+
+    @Override
+    public void finish(SamplerData.Builder proto) throws IOException {
+        writeMetadata(proto);
+        proto.clearMetadata().clearThreads().build().writeTo(this.out);
+        this.out.flush();
+    }
+
+    private void writeMetadata(SamplerDataOrBuilder proto) throws IOException {
+        if (!this.metadataWritten) {
+            this.metadataWritten = true;
+            if (proto.hasMetadata()) {
+                this.out.writeMessage(SamplerData.METADATA_FIELD_NUMBER, proto.getMetadata());
+            }
+        }
+    }
+}
@@ -42,6 +42,33 @@ public enum SamplerMode {
             },
             524287, // 512 KiB
             SamplerMetadata.SamplerMode.ALLOCATION
+    ),
+
+    LOCK(
+            value -> {
+                // do nothing - values are the time spent blocked in nanoseconds
+                return value;
+            },
+            10000, // 10 us
+            SamplerMetadata.SamplerMode.LOCK
+    ),
+
+    NATIVE_ALLOCATION(
+            value -> {
+                // do nothing
+                return value;
+            },
+            524287, // 512 KiB
+            SamplerMetadata.SamplerMode.NATIVE_ALLOCATION
+    ),
+
+    SURVIVORS(
+            value -> {
+                // do nothing
+                return value;
+            },
+            524287, // 512 KiB
+            SamplerMetadata.SamplerMode.SURVIVORS
     );
 
     private final LongToDoubleFunction valueTransformer;
@@ -20,6 +20,8 @@
 
 package me.lucko.spark.common.sampler;
 
+import me.lucko.spark.common.sampler.java.SamplingJitter;
+
 /**
  * Base settings for all samplers
  */
@@ -31,14 +33,24 @@ public class SamplerSettings {
     private final long autoEndTime;
     private final boolean runningInBackground;
     private final boolean ignoreSleeping;
+    private final double overheadBudget;
+    private final SamplingJitter jitter;
+    private final SamplerMode mode;
+    private final boolean cpuTime;
+    private final boolean heapStatistics;
 
-    public SamplerSettings(int interval, ThreadDumper threadDumper, ThreadGrouper threadGrouper, long autoEndTime, boolean runningInBackground, boolean ignoreSleeping) {
+    public SamplerSettings(int interval, ThreadDumper threadDumper, ThreadGrouper threadGrouper, long autoEndTime, boolean runningInBackground, boolean ignoreSleeping, double overheadBudget, SamplingJitter jitter, SamplerMode mode, boolean cpuTime, boolean heapStatistics) {
         this.interval = interval;
         this.threadDumper = threadDumper;
         this.threadGrouper = threadGrouper;
         this.autoEndTime = autoEndTime;
         this.runningInBackground = runningInBackground;
         this.ignoreSleeping = ignoreSleeping;
+        this.overheadBudget = overheadBudget;
+        this.jitter = jitter;
+        this.mode = mode;
+        this.cpuTime = cpuTime;
+        this.heapStatistics = heapStatistics;
     }
 
     public int interval() {
@@ -64,4 +76,24 @@ public class SamplerSettings {
     public boolean ignoreSleeping() {
         return this.ignoreSleeping;
     }
+
+    public double overheadBudget() {
+        return this.overheadBudget;
+    }
+
+    public SamplingJitter jitter() {
+        return this.jitter;
+    }
+
+    public SamplerMode mode() {
+        return this.mode;
+    }
+
+    public boolean cpuTime() {
+        return this.cpuTime;
+    }
+
+    public boolean heapStatistics() {
+        return this.heapStatistics;
+    }
 }
@@ -21,12 +21,15 @@
 package me.lucko.spark.common.sampler.aggregator;
 
 import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.node.NodeBudget;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.IntPredicate;
 
 /**
@@ -43,6 +46,12 @@ public abstract class AbstractDataAggregator implements DataAggregator {
     /** If sleeping threads should be ignored */
     protected final boolean ignoreSleeping;
 
+    /** The limit on the number of nodes in the call trees */
+    private final NodeBudget nodeBudget = new NodeBudget(NodeBudget.DEFAULT_MAX_NODES);
+
+    /** The number of nodes that have been collapsed to stay within the budget */
+    private final AtomicLong collapsedNodes = new AtomicLong();
+
     protected AbstractDataAggregator(ThreadGrouper threadGrouper, boolean ignoreSleeping) {
         this.threadGrouper = threadGrouper;
         this.ignoreSleeping = ignoreSleeping;
@@ -59,6 +68,27 @@ public abstract class AbstractDataAggregator implements DataAggregator {
     @Override
     public void pruneData(IntPredicate timeWindowPredicate) {
         this.threadData.values().removeIf(node -> node.removeTimeWindowsRecursively(timeWindowPredicate));
+
+        // samples logged concurrently into a subtree that is being collapsed may be lost,
+        // in the same way as when an empty subtree is removed above
+        enforceNodeBudget(this.threadData.values());
+    }
+
+    /**
+     * Collapses the lowest weight subtrees of the given call trees if they exceed the node budget.
+     *
+     * @param threads the call trees
+     */
+    protected void enforceNodeBudget(Collection<ThreadNode> threads) {
+        int collapsed = this.nodeBudget.enforce(threads);
+        if (collapsed != 0) {
+            this.collapsedNodes.addAndGet(collapsed);
+        }
+    }
+
+    @Override
+    public long getCollapsedNodeCount() {
+        return this.collapsedNodes.get();
     }
 
     @Override
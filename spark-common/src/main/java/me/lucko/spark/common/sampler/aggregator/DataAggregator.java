@@ -45,6 +45,14 @@ public interface DataAggregator {
      */
     void pruneData(IntPredicate timeWindowPredicate);
 
+    /**
+     * Gets the number of call tree nodes that have been collapsed (when pruning)
+     * to keep the size of the call trees within the node budget.
+     *
+     * @return the number of collapsed nodes
+     */
+    long getCollapsedNodeCount();
+
     /**
      * Gets metadata about the data aggregator instance.
      */
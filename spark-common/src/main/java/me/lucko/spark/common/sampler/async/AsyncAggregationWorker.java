@@ -0,0 +1,268 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.common.util.log.SparkStaticLogger;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.logging.Level;
+
+/**
+ * Aggregates the output of completed {@link AsyncProfilerJob}s on a dedicated thread,
+ * so that rotating to a new job doesn't have to wait for the previous one to be parsed.
+ *
+ * <p>Completed jobs are queued, and then read into the {@link AsyncDataAggregator} one at
+ * a time, in order. The aggregator is only ever written to (and pruned) by the worker thread.
+ * The queue is bounded - if parsing falls behind, submitting blocks until there is space,
+ * rather than letting profiler output pile up on disk.</p>
+ *
+ * <p>Each output file is deleted as soon as it has been consumed.</p>
+ */
+public final class AsyncAggregationWorker {
+
+    /** The default maximum number of completed jobs waiting to be aggregated */
+    public static final int DEFAULT_CAPACITY = 2;
+
+    /** Marker task used to stop the worker once the queue has been drained */
+    private static final Task SHUTDOWN = new Task(null, null, 0);
+
+    /** The aggregator to read data into */
+    private final AsyncDataAggregator dataAggregator;
+
+    /** Called with each job, once its data has been aggregated */
+    private final Consumer<AsyncProfilerJob> jobCallback;
+
+    /** The queue of jobs waiting to be aggregated */
+    private final BlockingQueue<Task> queue;
+
+    /** The worker thread */
+    private final Thread thread;
+
+    /** If the worker has been cancelled - any remaining output is discarded */
+    private volatile boolean cancelled = false;
+
+    // metrics
+    private final Map<Integer, Long> lagNanos = new ConcurrentHashMap<>();
+    private final AtomicLong lastLagNanos = new AtomicLong();
+    private final AtomicLong maxLagNanos = new AtomicLong();
+    private final LongAdder blockedNanos = new LongAdder();
+
+    public AsyncAggregationWorker(AsyncDataAggregator dataAggregator, ThreadFactory threadFactory, Consumer<AsyncProfilerJob> jobCallback, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        this.dataAggregator = dataAggregator;
+        this.jobCallback = jobCallback;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.thread = threadFactory.newThread(this::run);
+    }
+
+    /**
+     * Starts the worker thread.
+     */
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Submits a completed job to be aggregated.
+     *
+     * <p>Blocks if the queue is full.</p>
+     *
+     * @param job the job, which must have been stopped
+     * @param prunePredicate the predicate to prune the aggregator with once the job has been aggregated, or null
+     * @return true if the job was queued, false if the calling thread was interrupted while waiting
+     */
+    public boolean submit(AsyncProfilerJob job, IntPredicate prunePredicate) {
+        Task task = new Task(job, prunePredicate, System.nanoTime());
+        if (this.queue.offer(task)) {
+            return true;
+        }
+
+        // the worker has fallen behind - wait for it to catch up
+        try {
+            this.queue.put(task);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.deleteOutputFile();
+            return false;
+        } finally {
+            this.blockedNanos.add(System.nanoTime() - task.submitTime);
+        }
+    }
+
+    /**
+     * Waits for all submitted jobs to be aggregated, then stops the worker thread.
+     */
+    public void finish() {
+        try {
+            this.queue.put(SHUTDOWN);
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the worker thread, discarding any jobs that have not been aggregated yet.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        this.thread.interrupt();
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        discardQueue();
+    }
+
+    /**
+     * Gets the number of completed jobs waiting to be aggregated.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    /**
+     * Gets the aggregation lag of each window still held by the aggregator - the time between
+     * the window's job being submitted and its data becoming available.
+     *
+     * @return the lag for each window, in milliseconds
+     */
+    public Map<Integer, Double> getLagMillis() {
+        Map<Integer, Double> lag = new TreeMap<>();
+        this.lagNanos.forEach((window, nanos) -> lag.put(window, nanos / 1e6));
+        return lag;
+    }
+
+    /**
+     * Gets the aggregation lag of the most recently aggregated window.
+     *
+     * @return the lag, in milliseconds
+     */
+    public double getLastLagMillis() {
+        return this.lastLagNanos.get() / 1e6;
+    }
+
+    /**
+     * Gets the largest aggregation lag of any window.
+     *
+     * @return the lag, in milliseconds
+     */
+    public double getMaxLagMillis() {
+        return this.maxLagNanos.get() / 1e6;
+    }
+
+    /**
+     * Gets the total time spent waiting in {@link #submit(AsyncProfilerJob, IntPredicate)}
+     * because the queue was full.
+     *
+     * @return the time, in milliseconds
+     */
+    public double getBlockedMillis() {
+        return this.blockedNanos.sum() / 1e6;
+    }
+
+    private void run() {
+        try {
+            while (!this.cancelled) {
+                Task task = this.queue.take();
+                if (task == SHUTDOWN) {
+                    return;
+                }
+                process(task);
+            }
+        } catch (InterruptedException e) {
+            // cancelled
+        } finally {
+            if (this.cancelled) {
+                discardQueue();
+            }
+        }
+    }
+
+    private void process(Task task) {
+        int window = task.job.getWindow();
+        try {
+            task.job.aggregate(this.dataAggregator);
+
+            if (task.prunePredicate != null) {
+                this.dataAggregator.pruneData(task.prunePredicate);
+                this.lagNanos.keySet().removeIf(task.prunePredicate::test);
+            }
+        } catch (Throwable e) {
+            if (!this.cancelled) {
+                SparkStaticLogger.log(Level.WARNING, "Failed to aggregate profiler output for window " + window, e);
+            }
+        } finally {
+            task.job.deleteOutputFile();
+        }
+
+        if (this.cancelled) {
+            return;
+        }
+
+        long lag = System.nanoTime() - task.submitTime;
+        this.lagNanos.put(window, lag);
+        this.lastLagNanos.set(lag);
+        this.maxLagNanos.accumulateAndGet(lag, Math::max);
+
+        try {
+            this.jobCallback.accept(task.job);
+        } catch (Throwable e) {
+            SparkStaticLogger.log(Level.WARNING, "Exception occurred while processing window " + window, e);
+        }
+    }
+
+    private void discardQueue() {
+        for (Task task; (task = this.queue.poll()) != null; ) {
+            if (task != SHUTDOWN) {
+                task.job.deleteOutputFile();
+            }
+        }
+    }
+
+    private static final class Task {
+        private final AsyncProfilerJob job;
+        private final IntPredicate prunePredicate;
+        private final long submitTime;
+
+        Task(AsyncProfilerJob job, IntPredicate prunePredicate, long submitTime) {
+            this.job = job;
+            this.prunePredicate = prunePredicate;
+            this.submitTime = submitTime;
+        }
+    }
+
+}
@@ -26,6 +26,9 @@ import me.lucko.spark.common.sampler.node.StackTraceNode;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
 
+import java.util.Map;
+import java.util.function.IntPredicate;
+
 /**
  * Data aggregator for {@link AsyncSampler}.
  */
@@ -35,6 +38,9 @@ public class AsyncDataAggregator extends AbstractDataAggregator implements AutoC
     private static final StackTraceNode.Describer<AsyncStackTraceElement> STACK_TRACE_DESCRIBER = (element, parent) ->
             new StackTraceNode.AsyncDescription(element.getClassName(), element.getMethodName(), element.getMethodDescription());
 
+    /** Resolved call tree paths for each stack trace in the current recording */
+    private final StackPathCache pathCache = new StackPathCache();
+
     protected AsyncDataAggregator(ThreadGrouper threadGrouper, boolean ignoreSleeping) {
         super(threadGrouper, ignoreSleeping);
     }
@@ -47,28 +53,99 @@ public class AsyncDataAggregator extends AbstractDataAggregator implements AutoC
                 .build();
     }
 
+    /**
+     * Gets if this aggregator needs data to be inserted in time order.
+     *
+     * <p>Aggregators which don't can be fed directly from a stream of events.</p>
+     *
+     * @return true if data must be inserted in time order
+     */
+    public boolean requiresOrderedData() {
+        return false;
+    }
+
     public void insertData(ProfileSegment element, int window) {
-        if (this.ignoreSleeping && isSleeping(element)) {
+        if (this.ignoreSleeping && isSleepingState(element)) {
             return;
         }
         try {
-            ThreadNode node = getNode(this.threadGrouper.getGroup(element.getNativeThreadId(), element.getThreadName()));
-            node.log(STACK_TRACE_DESCRIBER, element.getStackTrace(), element.getValue(), window);
+            StackPathCache.Entry path = this.pathCache.get(element.getNativeThreadId(), element.getStackTraceId(), element.getMonitorClassId());
+            if (path == null) {
+                path = resolvePath(element);
+                this.pathCache.put(element.getNativeThreadId(), element.getStackTraceId(), element.getMonitorClassId(), path);
+            }
+            if (this.ignoreSleeping && path.sleeping) {
+                return;
+            }
+            path.threadNode.log(path.path, element.getValue(), window);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private static boolean isSleeping(ProfileSegment element) {
+    private StackPathCache.Entry resolvePath(ProfileSegment element) {
+        AsyncStackTraceElement[] stackTrace = element.getStackTrace();
+
+        boolean sleeping = isSleepingStack(stackTrace);
+        if (this.ignoreSleeping && sleeping) {
+            // never logged, so no need to create any nodes
+            return new StackPathCache.Entry(null, null, true);
+        }
+
+        ThreadNode node = getNode(this.threadGrouper.getGroup(element.getNativeThreadId(), element.getThreadName()));
+        return new StackPathCache.Entry(node, node.resolvePath(STACK_TRACE_DESCRIBER, stackTrace), sleeping);
+    }
+
+    /**
+     * Invalidates the cached call tree paths of previously inserted stack traces.
+     *
+     * <p>Must be called before data from a new recording is inserted, as stack trace
+     * ids are only unique within a single recording.</p>
+     */
+    public void invalidateStackTraceCache() {
+        this.pathCache.clear();
+    }
+
+    /**
+     * Replaces all of the data in this aggregator with the data inserted by the given writer.
+     *
+     * <p>The new data is inserted into a separate aggregator and then swapped in, so that
+     * exports made in the meantime see the previous data rather than an empty or partially
+     * populated profile.</p>
+     *
+     * @param writer the function which inserts the new data
+     * @param <X> the type of exception thrown by the writer
+     * @throws X if the writer fails, in which case the previous data is kept
+     */
+    public <X extends Exception> void replaceData(DataWriter<X> writer) throws X {
+        AsyncDataAggregator replacement = new AsyncDataAggregator(this.threadGrouper, this.ignoreSleeping);
+        writer.write(replacement);
+
+        Map<String, ThreadNode> data = replacement.threadData;
+        enforceNodeBudget(data.values());
+        this.threadData.putAll(data);
+        this.threadData.keySet().retainAll(data.keySet());
+
+        // cached paths refer to the nodes that have just been replaced
+        this.pathCache.clear();
+    }
+
+    @Override
+    public void pruneData(IntPredicate timeWindowPredicate) {
+        super.pruneData(timeWindowPredicate);
+
+        // cached paths may refer to nodes that have just been removed
+        this.pathCache.clear();
+    }
+
+    private static boolean isSleepingState(ProfileSegment element) {
         // thread states written by async-profiler:
         // https://github.com/async-profiler/async-profiler/blob/116504c9f75721911b2f561e29eda065c224caf6/src/flightRecorder.cpp#L1017-L1023
-        String threadState = element.getThreadState();
-        if (threadState.equals("STATE_SLEEPING")) {
-            return true;
-        }
+        return element.getThreadState().equals("STATE_SLEEPING");
+    }
 
+    private static boolean isSleepingStack(AsyncStackTraceElement[] stackTrace) {
         // async-profiler includes native frames - let's check more than just the top frame
-        AsyncStackTraceElement[] stackTrace = element.getStackTrace();
         for (int i = 0; i < Math.min(3, stackTrace.length); i++) {
             String clazz = stackTrace[i].getClassName();
             String method = stackTrace[i].getMethodName();
@@ -83,4 +160,14 @@ public class AsyncDataAggregator extends AbstractDataAggregator implements AutoC
     public void close() {
 
     }
+
+    /**
+     * Inserts data into an aggregator.
+     *
+     * @param <X> the type of exception thrown
+     */
+    @FunctionalInterface
+    public interface DataWriter<X extends Exception> {
+        void write(AsyncDataAggregator aggregator) throws X;
+    }
 }
@@ -32,7 +32,11 @@ import java.util.Collection;
  */
 public class AsyncNodeExporter extends AbstractNodeExporter {
     public AsyncNodeExporter(ProtoTimeEncoder timeEncoder) {
-        super(timeEncoder);
+        this(timeEncoder, false);
+    }
+
+    public AsyncNodeExporter(ProtoTimeEncoder timeEncoder, boolean sparseTimes) {
+        super(timeEncoder, sparseTimes);
     }
 
     @Override
@@ -41,10 +45,7 @@ public class AsyncNodeExporter extends AbstractNodeExporter {
                 .setClassName(stackTraceNode.getClassName())
                 .setMethodName(stackTraceNode.getMethodName());
 
-        double[] times = stackTraceNode.encodeTimesForProto(this.timeEncoder);
-        for (double time : times) {
-            proto.addTimes(time);
-        }
+        stackTraceNode.encodeTimesForProto(this.timeEncoder, this.sparseTimes, proto::addTimes, proto::addTimeIndexes);
 
         String methodDescription = stackTraceNode.getMethodDescription();
         if (methodDescription != null) {
@@ -58,6 +58,8 @@ public class AsyncProfilerAccess {
     private final ProfilingEvent profilingEvent;
     /** The event to use for allocation profiling */
     private final ProfilingEvent allocationProfilingEvent;
+    /** The event to use for cpu time profiling */
+    private final ProfilingEvent cpuProfilingEvent;
 
     /** If profiler is null, contains the reason why setup failed */
     private final Exception setupException;
@@ -66,6 +68,7 @@ public class AsyncProfilerAccess {
         AsyncProfiler profiler;
         ProfilingEvent profilingEvent = null;
         ProfilingEvent allocationProfilingEvent = null;
+        ProfilingEvent cpuProfilingEvent = null;
         Exception setupException = null;
 
         try {
@@ -73,6 +76,12 @@ public class AsyncProfilerAccess {
             if (isEventSupported(profiler, ProfilingEvent.ALLOC, false)) {
                 allocationProfilingEvent = ProfilingEvent.ALLOC;
             }
+            if (isEventSupported(profiler, ProfilingEvent.CPU, false)) {
+                cpuProfilingEvent = ProfilingEvent.CPU;
+            } else if (isEventSupported(profiler, ProfilingEvent.ITIMER, false)) {
+                // perf_events are unavailable (e.g. in a container), fallback to a timer signal
+                cpuProfilingEvent = ProfilingEvent.ITIMER;
+            }
             if (isEventSupported(profiler, ProfilingEvent.WALL, true)) {
                 profilingEvent = ProfilingEvent.WALL;
             }
@@ -84,6 +93,7 @@ public class AsyncProfilerAccess {
         this.profiler = profiler;
         this.profilingEvent = profilingEvent;
         this.allocationProfilingEvent = allocationProfilingEvent;
+        this.cpuProfilingEvent = cpuProfilingEvent;
         this.setupException = setupException;
     }
 
@@ -102,6 +112,10 @@ public class AsyncProfilerAccess {
         return this.allocationProfilingEvent;
     }
 
+    public ProfilingEvent getCpuProfilingEvent() {
+        return this.cpuProfilingEvent;
+    }
+
     public boolean checkSupported(SparkPlatform platform) {
         if (this.setupException != null) {
             if (this.setupException instanceof UnsupportedSystemException) {
@@ -135,6 +149,14 @@ public class AsyncProfilerAccess {
         return supported;
     }
 
+    public boolean checkCpuProfilingSupported(SparkPlatform platform) {
+        boolean supported = this.cpuProfilingEvent != null;
+        if (!supported && this.profiler != null) {
+            platform.getPlugin().log(Level.WARNING, "The cpu time profiling mode is not supported on your system. Neither the 'cpu' nor the 'itimer' event is available.");
+        }
+        return supported;
+    }
+
     public String getVersion() {
         return this.profiler.getVersion();
     }
@@ -202,6 +224,8 @@ public class AsyncProfilerAccess {
 
     public enum ProfilingEvent {
         WALL(Events.WALL),
+        CPU(Events.CPU),
+        ITIMER(Events.ITIMER),
         ALLOC(Events.ALLOC);
 
         private final String id;
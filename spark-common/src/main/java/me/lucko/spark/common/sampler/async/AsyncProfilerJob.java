@@ -86,9 +86,15 @@ public class AsyncProfilerJob {
     private boolean quiet;
     /** If the profiler needs to use the same clock as {@link System#nanoTime()} */
     private boolean forceNanoTime;
+    /** If the job should resume the previous profiling session, instead of starting a new one */
+    private boolean resume;
+    /** If heap usage & garbage collections should be recorded */
+    private boolean heapStatistics;
 
     /** The file used by async-profiler to output data */
     private Path outputFile;
+    /** The heap usage & garbage collections recorded in the output, once aggregated */
+    private HeapTimeline heapTimeline;
 
     private AsyncProfilerJob(AsyncProfilerAccess access, AsyncProfiler profiler) {
         this.access = access;
@@ -128,6 +134,27 @@ public class AsyncProfilerJob {
         this.forceNanoTime = forceNanoTime;
     }
 
+    /**
+     * Sets the job to resume the previous profiling session when it is started, so that
+     * data collected by the session (e.g. the objects being tracked for liveness) is kept.
+     *
+     * @param resume if the session should be resumed
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Sets the job to record heap usage & garbage collections, by starting a JFR recording
+     * alongside the profiler (async-profiler's {@code jfrsync} option) so that the JVM's
+     * {@code jdk.GCHeapSummary} events are written to the output.
+     *
+     * @param heapStatistics if heap statistics should be recorded
+     */
+    public void setHeapStatistics(boolean heapStatistics) {
+        this.heapStatistics = heapStatistics;
+    }
+
     /**
      * Starts the job.
      */
@@ -144,7 +171,7 @@ public class AsyncProfilerJob {
 
             // construct a command to send to async-profiler
             ImmutableList.Builder<String> command = ImmutableList.<String>builder()
-                    .add("start")
+                    .add(this.resume ? "resume" : "start")
                     .addAll(this.sampleCollector.initArguments(this.access))
                     .add("threads").add("jfr").add("file=" + this.outputFile.toString());
 
@@ -157,11 +184,14 @@ public class AsyncProfilerJob {
             if (this.forceNanoTime) {
                 command.add("clock=monotonic");
             }
+            if (this.heapStatistics) {
+                command.add("jfrsync=default");
+            }
 
             // start the profiler
             String resp = execute(command.build()).trim();
 
-            if (!resp.equalsIgnoreCase("profiling started")) {
+            if (!resp.equalsIgnoreCase("profiling started") && !resp.equalsIgnoreCase("profiling resumed")) {
                 throw new RuntimeException("Unexpected response: " + resp);
             }
 
@@ -207,8 +237,15 @@ public class AsyncProfilerJob {
      */
     public void aggregate(AsyncDataAggregator dataAggregator) {
         // read the jfr file produced by async-profiler
-        try (JfrReader reader = new JfrReader(this.outputFile)) {
-            readSegments(reader, this.sampleCollector, dataAggregator);
+        try {
+            try (JfrReader reader = new JfrReader(this.outputFile)) {
+                readSegments(reader, this.sampleCollector, this.threadDumper, this.window, dataAggregator, dataAggregator.requiresOrderedData());
+            }
+            if (this.heapStatistics) {
+                try (JfrReader reader = new JfrReader(this.outputFile)) {
+                    this.heapTimeline = readHeapTimeline(reader);
+                }
+            }
         } catch (Exception e) {
             boolean fileExists;
             try {
@@ -235,30 +272,140 @@ public class AsyncProfilerJob {
         }
     }
 
-    private <E extends JfrReader.Event> void readSegments(JfrReader reader, SampleCollector<E> collector, AsyncDataAggregator dataAggregator) throws IOException {
-        List<E> samples = reader.readAllEvents(collector.eventClass());
-        for (E sample : samples) {
-            String threadName = reader.threads.get((long) sample.tid);
-            if (threadName == null) {
-                continue;
+    /**
+     * Reads samples from the JFR file and inserts them into the data aggregator.
+     *
+     * <p>By default, events are streamed from the reader straight into the aggregator, so
+     * memory use is bounded by the reader's buffer rather than the number of events. If the
+     * aggregator needs events in time order, they are all read and sorted first.</p>
+     *
+     * @param reader the reader
+     * @param collector the sample collector
+     * @param threadDumper the thread dumper used to filter threads
+     * @param window the window to insert data into
+     * @param dataAggregator the data aggregator
+     * @param ordered if events should be read and sorted before they are inserted
+     * @param <E> the event type
+     * @throws IOException if an error occurs reading the file
+     */
+    static <E extends JfrReader.Event> void readSegments(JfrReader reader, SampleCollector<E> collector, ThreadDumper threadDumper, int window, AsyncDataAggregator dataAggregator, boolean ordered) throws IOException {
+        dataAggregator.invalidateStackTraceCache();
+        if (collector instanceof SampleCollector.Survivors) {
+            readSurvivors(reader, (SampleCollector.Survivors) collector, threadDumper, dataAggregator);
+        } else if (collector instanceof SampleCollector.NativeAllocation) {
+            readNativeAllocations(reader, (SampleCollector.NativeAllocation) collector, threadDumper, window, dataAggregator);
+        } else if (ordered) {
+            List<E> samples = reader.readAllEvents(collector.eventClass());
+            for (E sample : samples) {
+                readSegment(reader, sample, collector, threadDumper, window, dataAggregator);
+            }
+        } else {
+            long chunk = reader.chunkStartNanos;
+            for (E sample; (sample = reader.readEvent(collector.eventClass())) != null; ) {
+                if (reader.chunkStartNanos != chunk) {
+                    // the constant pools have been replaced by those of the next chunk
+                    chunk = reader.chunkStartNanos;
+                    dataAggregator.invalidateStackTraceCache();
+                }
+                readSegment(reader, sample, collector, threadDumper, window, dataAggregator);
             }
+        }
+    }
+
+    /**
+     * Reads the heap summary events from the JFR file.
+     *
+     * <p>This is a separate pass to {@link #readSegments}, so that only heap summary events
+     * are parsed - every other event is skipped over without being read.</p>
+     *
+     * @param reader the reader
+     * @return the heap usage & garbage collections recorded in the file
+     * @throws IOException if an error occurs reading the file
+     */
+    static HeapTimeline readHeapTimeline(JfrReader reader) throws IOException {
+        HeapTimeline heapTimeline = new HeapTimeline();
+        for (JfrReader.GCHeapSummary event; (event = reader.readEvent(JfrReader.GCHeapSummary.class)) != null; ) {
+            heapTimeline.accept(event, reader.ticksPerSec);
+        }
+        return heapTimeline;
+    }
+
+    /**
+     * Reads native memory events from the JFR file, and inserts the allocations which
+     * were not freed by the end of the recording into the data aggregator.
+     *
+     * <p>All events have to be read before any can be inserted, as an allocation may be
+     * freed at any point later on in the recording.</p>
+     */
+    private static void readNativeAllocations(JfrReader reader, SampleCollector.NativeAllocation collector, ThreadDumper threadDumper, int window, AsyncDataAggregator dataAggregator) throws IOException {
+        NativeAllocationMatcher matcher = new NativeAllocationMatcher(collector::measure);
+        for (JfrReader.MallocEvent event; (event = reader.readEvent(JfrReader.MallocEvent.class)) != null; ) {
+            matcher.accept(event);
+        }
+
+        for (JfrReader.MallocEvent event : matcher.getOutstanding()) {
+            readSegment(reader, event, collector, threadDumper, window, dataAggregator);
+        }
+        collector.recordOutstandingBytes(window, matcher.getOutstandingBytes());
+    }
 
-            if (!this.threadDumper.isThreadIncluded(sample.tid, threadName)) {
-                continue;
+    /**
+     * Reads live objects from the JFR file, and inserts them into the data aggregator
+     * bucketed by age.
+     *
+     * <p>Each recording contains all of the objects which have survived so far, so the
+     * previous data is replaced, rather than added to.</p>
+     */
+    private static void readSurvivors(JfrReader reader, SampleCollector.Survivors collector, ThreadDumper threadDumper, AsyncDataAggregator dataAggregator) throws IOException {
+        dataAggregator.replaceData(survivors -> {
+            long chunk = reader.chunkStartNanos;
+            for (JfrReader.LiveObject event; (event = reader.readEvent(JfrReader.LiveObject.class)) != null; ) {
+                if (reader.chunkStartNanos != chunk) {
+                    chunk = reader.chunkStartNanos;
+                    survivors.invalidateStackTraceCache();
+                }
+
+                // convert the age from ticks -> nanoseconds
+                long ageNanos = (long) ((event.time - event.allocationTime) * (1e9 / reader.ticksPerSec));
+                readSegment(reader, event, collector, threadDumper, SampleCollector.Survivors.ageBucket(ageNanos), survivors);
             }
+        });
+    }
 
-            long value = collector.measure(sample);
+    private static <E extends JfrReader.Event> void readSegment(JfrReader reader, E sample, SampleCollector<E> collector, ThreadDumper threadDumper, int window, AsyncDataAggregator dataAggregator) {
+        String threadName = reader.threads.get((long) sample.tid);
+        if (threadName == null) {
+            return;
+        }
 
-            // parse the segment and give it to the data aggregator
-            ProfileSegment segment = ProfileSegment.parseSegment(reader, sample, threadName, value);
-            dataAggregator.insertData(segment, this.window);
+        if (!threadDumper.isThreadIncluded(sample.tid, threadName)) {
+            return;
         }
+
+        long value = collector.measure(reader, sample);
+
+        // parse the segment and give it to the data aggregator
+        ProfileSegment segment = ProfileSegment.parseSegment(reader, sample, threadName, value);
+        dataAggregator.insertData(segment, window);
     }
 
     public int getWindow() {
         return this.window;
     }
 
+    /**
+     * Gets the heap usage & garbage collections recorded by this job.
+     *
+     * @return the heap timeline, or null if the job hasn't been aggregated
+     */
+    HeapTimeline getHeapTimeline() {
+        return this.heapTimeline;
+    }
+
+    Path getOutputFile() {
+        return this.outputFile;
+    }
+
     private void close() {
         ACTIVE.compareAndSet(this, null);
     }
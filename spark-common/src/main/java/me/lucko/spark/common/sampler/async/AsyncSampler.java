@@ -30,12 +30,15 @@ import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
 import me.lucko.spark.common.tick.TickHook;
 import me.lucko.spark.common.util.SparkThreadFactory;
 import me.lucko.spark.common.ws.ViewerSocket;
+import me.lucko.spark.proto.SparkSamplerProtos;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
 
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.IntPredicate;
 import java.util.logging.Level;
 
@@ -53,9 +56,15 @@ public class AsyncSampler extends AbstractSampler {
     /** Responsible for aggregating and then outputting collected sampling data */
     private final AsyncDataAggregator dataAggregator;
 
+    /** Reads the output of completed profiler jobs into the data aggregator */
+    private final AsyncAggregationWorker aggregationWorker;
+
     /** Whether to force the sampler to use monotonic/nano time */
     private final boolean forceNanoTime;
 
+    /** Whether to record heap usage & garbage collections in the window statistics */
+    private final boolean heapStatistics;
+
     /** Mutex for the current profiler job */
     private final Object[] currentJobMutex = new Object[0];
 
@@ -68,6 +77,9 @@ public class AsyncSampler extends AbstractSampler {
     /** The task to send statistics to the viewer socket */
     private ScheduledFuture<?> socketStatisticsTask;
 
+    /** Whether the sampler is stopping, and so no longer needs to notify sockets of window rotations */
+    private volatile boolean stopping;
+
     public AsyncSampler(SparkPlatform platform, SamplerSettings settings, SampleCollector<?> collector) {
         this(platform, settings, collector, new AsyncDataAggregator(settings.threadGrouper(), settings.ignoreSleeping()), false);
     }
@@ -81,6 +93,7 @@ public class AsyncSampler extends AbstractSampler {
         this.sampleCollector = collector;
         this.dataAggregator = dataAggregator;
         this.forceNanoTime = forceNanoTime;
+        this.heapStatistics = settings.heapStatistics();
         this.profilerAccess = AsyncProfilerAccess.getInstance(platform);
         this.scheduler = Executors.newSingleThreadScheduledExecutor(
                 new ThreadFactoryBuilder()
@@ -88,6 +101,16 @@ public class AsyncSampler extends AbstractSampler {
                         .setUncaughtExceptionHandler(SparkThreadFactory.EXCEPTION_HANDLER)
                         .build()
         );
+        this.aggregationWorker = new AsyncAggregationWorker(
+                dataAggregator,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("spark-async-aggregation-thread")
+                        .setDaemon(true)
+                        .setUncaughtExceptionHandler(SparkThreadFactory.EXCEPTION_HANDLER)
+                        .build(),
+                this::processJobAggregated,
+                AsyncAggregationWorker.DEFAULT_CAPACITY
+        );
     }
 
     /**
@@ -104,8 +127,11 @@ public class AsyncSampler extends AbstractSampler {
 
         int window = ProfilingWindowUtils.windowNow();
 
+        this.aggregationWorker.start();
+
         AsyncProfilerJob job = this.profilerAccess.startNewProfilerJob();
         job.init(this.platform, this.sampleCollector, this.threadDumper, window, this.background, this.forceNanoTime);
+        job.setHeapStatistics(this.heapStatistics);
         job.start();
         this.windowStatisticsCollector.recordWindowStartTime(window);
         this.currentJob = job;
@@ -133,6 +159,9 @@ public class AsyncSampler extends AbstractSampler {
                     return;
                 }
 
+                // survivor data is bucketed by age rather than time, and is replaced by each job
+                boolean survivors = this.sampleCollector instanceof SampleCollector.Survivors;
+
                 try {
                     // stop the previous job
                     previousJob.stop();
@@ -144,6 +173,8 @@ public class AsyncSampler extends AbstractSampler {
                 int window = previousJob.getWindow() + 1;
                 AsyncProfilerJob newJob = this.profilerAccess.startNewProfilerJob();
                 newJob.init(this.platform, this.sampleCollector, this.threadDumper, window, this.background, this.forceNanoTime);
+                newJob.setResume(survivors);
+                newJob.setHeapStatistics(this.heapStatistics);
                 newJob.start();
                 this.windowStatisticsCollector.recordWindowStartTime(window);
                 this.currentJob = newJob;
@@ -155,15 +186,13 @@ public class AsyncSampler extends AbstractSampler {
                     this.platform.getPlugin().log(Level.WARNING, "Failed to measure window statistics", e);
                 }
 
-                // aggregate the output of the previous job
-                previousJob.aggregate(this.dataAggregator);
-
                 // prune data older than the history size
                 IntPredicate predicate = ProfilingWindowUtils.keepHistoryBefore(window);
-                this.dataAggregator.pruneData(predicate);
                 this.windowStatisticsCollector.pruneStatistics(predicate);
 
-                this.scheduler.execute(this::processWindowRotate);
+                // hand the output of the previous job over to be aggregated (and then pruned)
+                // blocks if the worker has fallen behind
+                this.aggregationWorker.submit(previousJob, survivors ? null : predicate);
             }
         } catch (Throwable e) {
             this.platform.getPlugin().log(Level.WARNING, "Exception occurred while rotating profiler job", e);
@@ -195,19 +224,31 @@ public class AsyncSampler extends AbstractSampler {
      */
     @Override
     public void stop(boolean cancelled) {
-        super.stop(cancelled);
+        this.stopping = true;
+        // stop counting ticks now, rather than once the aggregation worker has caught up
+        this.windowStatisticsCollector.stop();
 
         synchronized (this.currentJobMutex) {
             this.currentJob.stop();
             if (!cancelled) {
                 this.windowStatisticsCollector.measureNow(this.currentJob.getWindow());
-                this.currentJob.aggregate(this.dataAggregator);
+                this.aggregationWorker.submit(this.currentJob, null);
             } else {
                 this.currentJob.deleteOutputFile();
             }
             this.currentJob = null;
         }
 
+        if (!cancelled) {
+            // wait for everything to be aggregated before the data is exported
+            this.aggregationWorker.finish();
+        } else {
+            this.aggregationWorker.cancel();
+        }
+
+        // only notify sockets once all of the data has been aggregated
+        super.stop(cancelled);
+
         if (this.socketStatisticsTask != null) {
             this.socketStatisticsTask.cancel(false);
         }
@@ -228,6 +269,39 @@ public class AsyncSampler extends AbstractSampler {
         }
     }
 
+    public AsyncAggregationWorker getAggregationWorker() {
+        return this.aggregationWorker;
+    }
+
+    /**
+     * Called on the aggregation thread once the data for a window has been aggregated.
+     *
+     * @param job the job which has been aggregated
+     */
+    private void processJobAggregated(AsyncProfilerJob job) {
+        int window = job.getWindow();
+        HeapTimeline heapTimeline = job.getHeapTimeline();
+        if (heapTimeline != null && !heapTimeline.isEmpty()) {
+            this.windowStatisticsCollector.amendStatistics(window, heapTimeline::writeTo);
+        }
+        if (this.sampleCollector instanceof SampleCollector.NativeAllocation) {
+            long outstandingBytes = ((SampleCollector.NativeAllocation) this.sampleCollector).pollOutstandingBytes(window);
+            if (outstandingBytes >= 0) {
+                this.windowStatisticsCollector.recordNativeMemory(window, outstandingBytes);
+            }
+        }
+
+        // notify sockets on the scheduler, so a slow upload doesn't hold up aggregation
+        ScheduledExecutorService scheduler = this.scheduler;
+        if (!this.stopping && scheduler != null) {
+            try {
+                scheduler.execute(this::processWindowRotate);
+            } catch (RejectedExecutionException e) {
+                // the sampler has been stopped
+            }
+        }
+    }
+
     @Override
     public SamplerType getType() {
         return SamplerType.ASYNC;
@@ -238,20 +312,23 @@ public class AsyncSampler extends AbstractSampler {
         return this.profilerAccess.getVersion();
     }
 
+    @Override
+    public String getEngineEvent() {
+        return this.sampleCollector.getEventName(this.profilerAccess);
+    }
+
     @Override
     public SamplerMode getMode() {
         return this.sampleCollector.getMode();
     }
 
     @Override
-    public SamplerData toProto(SparkPlatform platform, ExportProps exportProps) {
-        SamplerData.Builder proto = SamplerData.newBuilder();
+    protected void writeProto(SamplerData.Builder proto, SparkPlatform platform, ExportProps exportProps, Consumer<SparkSamplerProtos.ThreadNode> threadSink) {
         if (exportProps.channelInfo() != null) {
             proto.setChannelInfo(exportProps.channelInfo());
         }
         writeMetadataToProto(proto, platform, exportProps.creator(), exportProps.comment(), this.dataAggregator);
-        writeDataToProto(proto, this.dataAggregator, AsyncNodeExporter::new, exportProps.classSourceLookup().get(), platform::createClassFinder);
-        return proto.build();
+        writeDataToProto(proto, this.dataAggregator, timeEncoder -> new AsyncNodeExporter(timeEncoder, exportProps.sparseTimes()), exportProps.classSourceLookup().get(), platform::createClassFinder, threadSink);
     }
 
 }
@@ -28,6 +28,9 @@ public class AsyncStackTraceElement {
     /** The class name used for native method calls */
     public static final String NATIVE_CALL = "native";
 
+    /** The method name used for the monitor class frame of a contended lock */
+    public static final String CONTENDED_LOCK = "<lock>";
+
     /** The name of the class */
     private final String className;
     /** The name of the method */
@@ -0,0 +1,138 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.common.sampler.async.jfr.JfrReader.GCHeapSummary;
+import me.lucko.spark.proto.SparkProtos;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Summarises the heap usage and garbage collections recorded in a window.
+ *
+ * <p>The JVM records a heap summary event before and after each collection, identified by
+ * the same gc id. The pause time is approximated by the time between the two. This is only
+ * accurate for stop-the-world collections - for the concurrent phases of collectors such as
+ * G1, ZGC and Shenandoah, the time between the summaries includes time when application
+ * threads were running, so the pause time is overstated.</p>
+ */
+final class HeapTimeline {
+
+    /** The time (in ticks) of the before-gc summary of each collection still in progress */
+    private final Map<Integer, Long> gcStartTimes = new HashMap<>();
+    /** The ids of the collections that have finished */
+    private final Set<Integer> completedGcIds = new HashSet<>();
+
+    private long usedMin = Long.MAX_VALUE;
+    private long usedMax = 0;
+    private long usedAfterGc = -1;
+    private long usedAfterGcTime = Long.MIN_VALUE;
+    private long gcPauseNanos = 0;
+
+    /**
+     * Processes a heap summary event.
+     *
+     * @param event the event
+     * @param ticksPerSec the tick frequency of the chunk the event was read from
+     */
+    public void accept(GCHeapSummary event, long ticksPerSec) {
+        accept(event.gcId, event.afterGC, event.time, event.used, ticksPerSec);
+    }
+
+    /**
+     * Processes a heap summary.
+     *
+     * @param gcId the id of the collection
+     * @param afterGC if the summary was recorded after the collection, rather than before
+     * @param time the time the summary was recorded, in ticks
+     * @param used the used heap, in bytes
+     * @param ticksPerSec the tick frequency
+     */
+    public void accept(int gcId, boolean afterGC, long time, long used, long ticksPerSec) {
+        this.usedMin = Math.min(this.usedMin, used);
+        this.usedMax = Math.max(this.usedMax, used);
+
+        if (!afterGC) {
+            this.gcStartTimes.put(gcId, time);
+            return;
+        }
+
+        this.completedGcIds.add(gcId);
+        if (time >= this.usedAfterGcTime) {
+            this.usedAfterGcTime = time;
+            this.usedAfterGc = used;
+        }
+
+        Long startTime = this.gcStartTimes.remove(gcId);
+        if (startTime != null && time > startTime) {
+            // convert from ticks -> nanoseconds
+            this.gcPauseNanos += (long) ((time - startTime) * (1e9 / ticksPerSec));
+        }
+    }
+
+    /**
+     * Gets if any heap summary events have been processed.
+     *
+     * @return true if there is no data
+     */
+    public boolean isEmpty() {
+        return this.usedMin == Long.MAX_VALUE;
+    }
+
+    public long getUsedMin() {
+        return isEmpty() ? 0 : this.usedMin;
+    }
+
+    public long getUsedMax() {
+        return this.usedMax;
+    }
+
+    public long getUsedAfterGc() {
+        return this.usedAfterGc;
+    }
+
+    public int getGcCount() {
+        return this.completedGcIds.size();
+    }
+
+    public long getGcPauseNanos() {
+        return this.gcPauseNanos;
+    }
+
+    /**
+     * Writes the summary to the given window statistics.
+     *
+     * @param builder the statistics builder
+     */
+    public void writeTo(SparkProtos.WindowStatistics.Builder builder) {
+        builder.setHeapUsedMin(getUsedMin())
+                .setHeapUsedMax(this.usedMax)
+                .setGcCount(getGcCount())
+                .setGcPauseTotal(this.gcPauseNanos / 1_000_000d);
+        if (this.usedAfterGc >= 0) {
+            builder.setHeapUsedAfterGc(this.usedAfterGc);
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.common.sampler.async.jfr.JfrReader.MallocEvent;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Matches native memory frees against the allocations recorded in the same window.
+ *
+ * <p>async-profiler records a malloc event (with a size) for each sampled allocation, and a free
+ * event (without a size) when memory is released. Allocations that have not been freed by the
+ * end of the window are outstanding - either still in use, or leaked.</p>
+ *
+ * <p>Frees of memory allocated in an earlier window can't be matched, and are ignored.</p>
+ */
+final class NativeAllocationMatcher {
+
+    /** The function used to weigh each allocation */
+    private final ToLongFunction<MallocEvent> weigher;
+
+    /** Outstanding allocations, keyed by address, in the order they were made */
+    private final Map<Long, MallocEvent> outstanding = new LinkedHashMap<>();
+
+    /** The total size of the outstanding allocations */
+    private long outstandingBytes = 0;
+
+    NativeAllocationMatcher() {
+        this(event -> event.size);
+    }
+
+    /**
+     * Creates a new matcher.
+     *
+     * @param weigher the function used to weigh each allocation towards the outstanding bytes
+     */
+    NativeAllocationMatcher(ToLongFunction<MallocEvent> weigher) {
+        this.weigher = weigher;
+    }
+
+    /**
+     * Processes a malloc or free event.
+     *
+     * @param event the event
+     */
+    public void accept(MallocEvent event) {
+        if (event.size > 0) {
+            // if an address is allocated twice, the free in between wasn't recorded
+            MallocEvent previous = this.outstanding.put(event.address, event);
+            if (previous != null) {
+                this.outstandingBytes -= this.weigher.applyAsLong(previous);
+            }
+            this.outstandingBytes += this.weigher.applyAsLong(event);
+        } else {
+            MallocEvent allocation = this.outstanding.remove(event.address);
+            if (allocation != null) {
+                this.outstandingBytes -= this.weigher.applyAsLong(allocation);
+            }
+        }
+    }
+
+    /**
+     * Gets the allocations which have not been freed.
+     *
+     * @return the outstanding allocations
+     */
+    public Collection<MallocEvent> getOutstanding() {
+        return this.outstanding.values();
+    }
+
+    /**
+     * Gets the total size of the allocations which have not been freed.
+     *
+     * @return the outstanding bytes
+     */
+    public long getOutstandingBytes() {
+        return this.outstandingBytes;
+    }
+
+}
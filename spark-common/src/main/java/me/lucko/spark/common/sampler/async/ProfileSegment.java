@@ -39,8 +39,14 @@ public class ProfileSegment {
     private final int nativeThreadId;
     /** The name of the thread */
     private final String threadName;
-    /** The stack trace for this segment */
-    private final AsyncStackTraceElement[] stackTrace;
+    /** The id of the stack trace for this segment, unique within the recording */
+    private final int stackTraceId;
+    /** The id of the monitor class, for contended lock samples. 0 otherwise */
+    private final int monitorClassId;
+    /** The reader to parse the stack trace from, or null once it has been parsed */
+    private JfrReader reader;
+    /** The stack trace for this segment, or null if it has not been parsed yet */
+    private AsyncStackTraceElement[] stackTrace;
     /** The time spent executing this segment in microseconds */
     private final long value;
     /** The state of the thread. {@value #UNKNOWN_THREAD_STATE} if state is unknown */
@@ -48,15 +54,26 @@ public class ProfileSegment {
     /** The time at which this segment was recorded, as if it was produced by {@link System#nanoTime()} */
     private final long time;
 
-    private ProfileSegment(int nativeThreadId, String threadName, AsyncStackTraceElement[] stackTrace, long value, String threadState, long time) {
+    private ProfileSegment(int nativeThreadId, String threadName, int stackTraceId, int monitorClassId, JfrReader reader, AsyncStackTraceElement[] stackTrace, long value, String threadState, long time) {
         this.nativeThreadId = nativeThreadId;
         this.threadName = threadName;
+        this.stackTraceId = stackTraceId;
+        this.monitorClassId = monitorClassId;
+        this.reader = reader;
         this.stackTrace = stackTrace;
         this.value = value;
         this.threadState = threadState;
         this.time = time;
     }
 
+    ProfileSegment(int nativeThreadId, String threadName, int stackTraceId, AsyncStackTraceElement[] stackTrace, long value, String threadState, long time) {
+        this(nativeThreadId, threadName, stackTraceId, 0, null, stackTrace, value, threadState, time);
+    }
+
+    ProfileSegment(int nativeThreadId, String threadName, int stackTraceId, int monitorClassId, AsyncStackTraceElement[] stackTrace, long value, String threadState, long time) {
+        this(nativeThreadId, threadName, stackTraceId, monitorClassId, null, stackTrace, value, threadState, time);
+    }
+
     public int getNativeThreadId() {
         return this.nativeThreadId;
     }
@@ -65,7 +82,19 @@ public class ProfileSegment {
         return this.threadName;
     }
 
+    public int getStackTraceId() {
+        return this.stackTraceId;
+    }
+
+    public int getMonitorClassId() {
+        return this.monitorClassId;
+    }
+
     public AsyncStackTraceElement[] getStackTrace() {
+        if (this.stackTrace == null) {
+            this.stackTrace = parseStackTrace(this.reader, this.stackTraceId, this.monitorClassId);
+            this.reader = null;
+        }
         return this.stackTrace;
     }
 
@@ -81,23 +110,63 @@ public class ProfileSegment {
         return this.time;
     }
 
+    /**
+     * Parses a segment from the given sample.
+     *
+     * <p>The stack trace is not parsed until {@link #getStackTrace()} is called, so the
+     * segment must be used before the reader moves on to another chunk.</p>
+     *
+     * <p>For contended lock samples, the class of the monitor is added to the top of the stack.</p>
+     *
+     * @param reader the reader
+     * @param sample the sample
+     * @param threadName the name of the thread
+     * @param value the value of the sample
+     * @return the segment
+     */
     public static ProfileSegment parseSegment(JfrReader reader, JfrReader.Event sample, String threadName, long value) {
-        JfrReader.StackTrace stackTrace = reader.stackTraces.get(sample.stackTraceId);
-        int len = stackTrace != null ? stackTrace.methods.length : 0;
-
-        AsyncStackTraceElement[] stack = new AsyncStackTraceElement[len];
-        for (int i = 0; i < len; i++) {
-            stack[i] = parseStackFrame(reader, stackTrace.methods[i]);
-        }
         String threadState = UNKNOWN_THREAD_STATE;
+        int monitorClassId = 0;
         if (sample instanceof JfrReader.ExecutionSample) {
             JfrReader.ExecutionSample executionSample = (JfrReader.ExecutionSample) sample;
 
             Map<Integer, String> threadStateLookup = reader.enums.getOrDefault("jdk.types.ThreadState", ImmutableMap.of());
             threadState = threadStateLookup.getOrDefault(executionSample.threadState, UNKNOWN_THREAD_STATE);
+        } else if (sample instanceof JfrReader.ContendedLock) {
+            monitorClassId = ((JfrReader.ContendedLock) sample).classId;
         }
 
-        return new ProfileSegment(sample.tid, threadName, stack, value, threadState, sample.time);
+        return new ProfileSegment(sample.tid, threadName, sample.stackTraceId, monitorClassId, reader, null, value, threadState, sample.time);
+    }
+
+    private static AsyncStackTraceElement[] parseStackTrace(JfrReader reader, int stackTraceId, int monitorClassId) {
+        JfrReader.StackTrace stackTrace = reader.stackTraces.get(stackTraceId);
+        int len = stackTrace != null ? stackTrace.methods.length : 0;
+
+        AsyncStackTraceElement monitorFrame = monitorClassId != 0 ? parseMonitorFrame(reader, monitorClassId) : null;
+        int offset = monitorFrame != null ? 1 : 0;
+
+        AsyncStackTraceElement[] stack = new AsyncStackTraceElement[len + offset];
+        if (monitorFrame != null) {
+            stack[0] = monitorFrame;
+        }
+        for (int i = 0; i < len; i++) {
+            stack[i + offset] = parseStackFrame(reader, stackTrace.methods[i]);
+        }
+        return stack;
+    }
+
+    private static AsyncStackTraceElement parseMonitorFrame(JfrReader reader, int classId) {
+        JfrReader.ClassRef classRef = reader.classes.get(classId);
+        byte[] className = classRef != null ? reader.symbols.get(classRef.name) : null;
+        if (className == null || className.length == 0) {
+            return null;
+        }
+        return new AsyncStackTraceElement(
+                new String(className, StandardCharsets.UTF_8).replace('/', '.'),
+                AsyncStackTraceElement.CONTENDED_LOCK,
+                null
+        );
     }
 
     private static AsyncStackTraceElement parseStackFrame(JfrReader reader, long methodId) {
@@ -22,13 +22,21 @@ package me.lucko.spark.common.sampler.async;
 
 import com.google.common.collect.ImmutableList;
 import me.lucko.spark.common.sampler.SamplerMode;
+import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
 import me.lucko.spark.common.sampler.async.AsyncProfilerAccess.ProfilingEvent;
+import me.lucko.spark.common.sampler.async.jfr.JfrReader;
 import me.lucko.spark.common.sampler.async.jfr.JfrReader.AllocationSample;
+import me.lucko.spark.common.sampler.async.jfr.JfrReader.ContendedLock;
 import me.lucko.spark.common.sampler.async.jfr.JfrReader.Event;
 import me.lucko.spark.common.sampler.async.jfr.JfrReader.ExecutionSample;
+import me.lucko.spark.common.sampler.async.jfr.JfrReader.LiveObject;
+import me.lucko.spark.common.sampler.async.jfr.JfrReader.MallocEvent;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Collects and processes sample events for a given type.
@@ -60,6 +68,17 @@ public interface SampleCollector<E extends Event> {
      */
     long measure(E event);
 
+    /**
+     * Gets the measurements for a given event, in the context of the reader it was read from.
+     *
+     * @param reader the reader
+     * @param event the event
+     * @return the measurement
+     */
+    default long measure(JfrReader reader, E event) {
+        return measure(event);
+    }
+
     /**
      * Gets the mode for the collector.
      *
@@ -68,18 +87,43 @@ public interface SampleCollector<E extends Event> {
     SamplerMode getMode();
 
     /**
-     * Sample collector for execution (cpu time) profiles.
+     * Gets the name of the event sampled by async-profiler for the collector.
+     *
+     * @param access the async profiler access object
+     * @return the event name
+     */
+    String getEventName(AsyncProfilerAccess access);
+
+    /**
+     * Sample collector for execution profiles.
+     *
+     * <p>By default, threads are sampled on a wall clock interval regardless of what they are
+     * doing. In cpu time mode, only threads running on a CPU are sampled.</p>
      */
     final class Execution implements SampleCollector<ExecutionSample> {
         private final int interval; // time in microseconds
+        private final boolean cpuTime;
 
         public Execution(int interval) {
+            this(interval, false);
+        }
+
+        public Execution(int interval, boolean cpuTime) {
             this.interval = interval;
+            this.cpuTime = cpuTime;
+        }
+
+        public boolean isCpuTime() {
+            return this.cpuTime;
+        }
+
+        private ProfilingEvent getProfilingEvent(AsyncProfilerAccess access) {
+            return this.cpuTime ? access.getCpuProfilingEvent() : access.getProfilingEvent();
         }
 
         @Override
         public Collection<String> initArguments(AsyncProfilerAccess access) {
-            ProfilingEvent event = access.getProfilingEvent();
+            ProfilingEvent event = getProfilingEvent(access);
             Objects.requireNonNull(event, "event");
 
             return ImmutableList.of(
@@ -102,6 +146,11 @@ public interface SampleCollector<E extends Event> {
         public SamplerMode getMode() {
             return SamplerMode.EXECUTION;
         }
+
+        @Override
+        public String getEventName(AsyncProfilerAccess access) {
+            return String.valueOf(getProfilingEvent(access));
+        }
     }
 
     /**
@@ -148,6 +197,208 @@ public interface SampleCollector<E extends Event> {
         public SamplerMode getMode() {
             return SamplerMode.ALLOCATION;
         }
+
+        @Override
+        public String getEventName(AsyncProfilerAccess access) {
+            return String.valueOf(access.getAllocationProfilingEvent());
+        }
+    }
+
+    /**
+     * Sample collector for lock contention profiles.
+     */
+    final class Lock implements SampleCollector<ContendedLock> {
+        private final int thresholdNanos;
+
+        public Lock(int thresholdNanos) {
+            this.thresholdNanos = thresholdNanos;
+        }
+
+        @Override
+        public Collection<String> initArguments(AsyncProfilerAccess access) {
+            return ImmutableList.of(
+                    "lock=" + this.thresholdNanos
+            );
+        }
+
+        @Override
+        public Class<ContendedLock> eventClass() {
+            return ContendedLock.class;
+        }
+
+        /**
+         * Gets the time spent blocked in JFR ticks.
+         *
+         * @param event the event
+         * @return the duration in ticks
+         */
+        @Override
+        public long measure(ContendedLock event) {
+            return event.value();
+        }
+
+        @Override
+        public long measure(JfrReader reader, ContendedLock event) {
+            // convert the duration from ticks -> nanoseconds
+            return (long) (event.value() * (1e9 / reader.ticksPerSec));
+        }
+
+        @Override
+        public SamplerMode getMode() {
+            return SamplerMode.LOCK;
+        }
+
+        @Override
+        public String getEventName(AsyncProfilerAccess access) {
+            return "lock";
+        }
+    }
+
+    /**
+     * Sample collector for native memory allocation profiles.
+     *
+     * <p>Only allocations which are still outstanding at the end of each window are
+     * aggregated - see {@link NativeAllocationMatcher}.</p>
+     *
+     * <p>async-profiler only records a sample of allocations, so each one is weighted by
+     * the number of bytes it represents - see {@link #scaleSize(long, int)}.</p>
+     */
+    final class NativeAllocation implements SampleCollector<MallocEvent> {
+        private final int intervalBytes;
+
+        /** The outstanding bytes of windows which have been aggregated but not yet polled */
+        private final Map<Integer, Long> outstandingBytes = new ConcurrentHashMap<>();
+
+        public NativeAllocation(int intervalBytes) {
+            this.intervalBytes = intervalBytes;
+        }
+
+        void recordOutstandingBytes(int window, long bytes) {
+            this.outstandingBytes.put(window, bytes);
+        }
+
+        /**
+         * Gets and removes the number of bytes allocated in the given window that were not freed.
+         *
+         * @param window the window
+         * @return the outstanding bytes, or -1 if the window hasn't been aggregated
+         */
+        public long pollOutstandingBytes(int window) {
+            Long bytes = this.outstandingBytes.remove(window);
+            return bytes != null ? bytes : -1;
+        }
+
+        @Override
+        public Collection<String> initArguments(AsyncProfilerAccess access) {
+            return ImmutableList.of(
+                    "nativemem=" + this.intervalBytes
+            );
+        }
+
+        @Override
+        public Class<MallocEvent> eventClass() {
+            return MallocEvent.class;
+        }
+
+        @Override
+        public long measure(MallocEvent event) {
+            return scaleSize(event.size, this.intervalBytes);
+        }
+
+        /**
+         * Estimates the number of bytes represented by a sampled allocation.
+         *
+         * <p>Each byte is sampled with a probability of {@code 1 / intervalBytes}, so an
+         * allocation of {@code size} bytes is sampled with a probability of
+         * {@code 1 - e^(-size / intervalBytes)}. Dividing by that probability gives an
+         * unbiased estimate - roughly the interval for small allocations, and the size
+         * itself for allocations much larger than the interval.</p>
+         *
+         * @param size the size of the allocation
+         * @param intervalBytes the sampling interval, or 0 if every allocation is recorded
+         * @return the estimated bytes
+         */
+        static long scaleSize(long size, int intervalBytes) {
+            if (intervalBytes <= 0 || size <= 0) {
+                return size;
+            }
+            double probability = -Math.expm1(-(double) size / intervalBytes);
+            return Math.round(size / probability);
+        }
+
+        @Override
+        public SamplerMode getMode() {
+            return SamplerMode.NATIVE_ALLOCATION;
+        }
+
+        @Override
+        public String getEventName(AsyncProfilerAccess access) {
+            return "nativemem";
+        }
+    }
+
+    /**
+     * Sample collector for tracking which allocations survive over a number of windows.
+     *
+     * <p>The profiling session is resumed rather than restarted when jobs are rotated, so
+     * async-profiler keeps tracking objects allocated in earlier windows. Each job reports
+     * every sampled object which is still alive, and the data is bucketed by the age of the
+     * objects instead of by time window - see {@link #ageBucket(long)}.</p>
+     */
+    final class Survivors implements SampleCollector<LiveObject> {
+        /** The number of age buckets - older objects are counted in the last bucket */
+        public static final int AGE_BUCKETS = 16;
+
+        private static final long WINDOW_SIZE_NANOS = TimeUnit.SECONDS.toNanos(ProfilingWindowUtils.WINDOW_SIZE_SECONDS);
+
+        private final int intervalBytes;
+
+        public Survivors(int intervalBytes) {
+            this.intervalBytes = intervalBytes;
+        }
+
+        /**
+         * Gets the age bucket for an object, which is used in place of the time window.
+         *
+         * @param ageNanos the age of the object
+         * @return the bucket, from 1 (allocated within the last window) to {@link #AGE_BUCKETS}
+         */
+        public static int ageBucket(long ageNanos) {
+            long windows = Math.max(0, ageNanos) / WINDOW_SIZE_NANOS;
+            return (int) Math.min(windows, AGE_BUCKETS - 1) + 1;
+        }
+
+        @Override
+        public Collection<String> initArguments(AsyncProfilerAccess access) {
+            ProfilingEvent event = access.getAllocationProfilingEvent();
+            Objects.requireNonNull(event, "event");
+
+            return ImmutableList.of(
+                    "event=" + event,
+                    "alloc=" + this.intervalBytes,
+                    "live"
+            );
+        }
+
+        @Override
+        public Class<LiveObject> eventClass() {
+            return LiveObject.class;
+        }
+
+        @Override
+        public long measure(LiveObject event) {
+            return event.allocationSize;
+        }
+
+        @Override
+        public SamplerMode getMode() {
+            return SamplerMode.SURVIVORS;
+        }
+
+        @Override
+        public String getEventName(AsyncProfilerAccess access) {
+            return String.valueOf(access.getAllocationProfilingEvent());
+        }
     }
 
 }
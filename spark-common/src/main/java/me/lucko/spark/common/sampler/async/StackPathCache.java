@@ -0,0 +1,185 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+
+import java.util.Arrays;
+
+/**
+ * Caches the resolved path through the call tree for each (thread, stack trace id, monitor class id)
+ * combination seen in a recording.
+ *
+ * <p>async-profiler assigns ids to unique stack traces, so the same id is seen over and
+ * over again within a recording. Once a stack has been resolved to a path of nodes, further
+ * samples with the same id can be logged against the cached path directly, without parsing
+ * the stack or walking the tree.</p>
+ *
+ * <p>Stack trace ids are only unique within a recording, and cached paths hold references
+ * to nodes in the tree, so the cache must be {@link #clear() cleared} when a new recording
+ * is read and whenever nodes may have been removed from the tree.</p>
+ *
+ * <p>Not thread-safe - data is inserted into the async aggregator by one thread at a time.</p>
+ */
+final class StackPathCache {
+
+    /** The initial number of slots in the table */
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** The number of entries at which the cache is cleared, to keep memory bounded */
+    private static final int MAX_SIZE = 1 << 18;
+
+    // open addressing with linear probing, always a power of two in length
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int[] monitorClassIds = new int[INITIAL_CAPACITY];
+    private Entry[] values = new Entry[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Gets the cached path for the given thread and stack trace.
+     *
+     * @param nativeThreadId the native thread id
+     * @param stackTraceId the stack trace id
+     * @param monitorClassId the monitor class id, or 0
+     * @return the cached path, or null
+     */
+    public Entry get(int nativeThreadId, int stackTraceId, int monitorClassId) {
+        long key = key(nativeThreadId, stackTraceId);
+        int mask = this.keys.length - 1;
+        for (int slot = hash(key, monitorClassId) & mask; this.values[slot] != null; slot = (slot + 1) & mask) {
+            if (this.keys[slot] == key && this.monitorClassIds[slot] == monitorClassId) {
+                return this.values[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Caches the path for the given thread and stack trace.
+     *
+     * @param nativeThreadId the native thread id
+     * @param stackTraceId the stack trace id
+     * @param monitorClassId the monitor class id, or 0
+     * @param entry the path
+     */
+    public void put(int nativeThreadId, int stackTraceId, int monitorClassId, Entry entry) {
+        if (this.size >= MAX_SIZE) {
+            clear();
+        } else if ((this.size + 1) * 2 > this.keys.length) {
+            resize(this.keys.length * 2);
+        }
+
+        long key = key(nativeThreadId, stackTraceId);
+        int mask = this.keys.length - 1;
+        int slot = hash(key, monitorClassId) & mask;
+        while (this.values[slot] != null) {
+            if (this.keys[slot] == key && this.monitorClassIds[slot] == monitorClassId) {
+                this.values[slot] = entry;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        this.keys[slot] = key;
+        this.monitorClassIds[slot] = monitorClassId;
+        this.values[slot] = entry;
+        this.size++;
+    }
+
+    /**
+     * Gets the number of cached paths.
+     *
+     * @return the size
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Removes all cached paths.
+     */
+    public void clear() {
+        if (this.size == 0) {
+            return;
+        }
+        if (this.keys.length > INITIAL_CAPACITY) {
+            this.keys = new long[INITIAL_CAPACITY];
+            this.monitorClassIds = new int[INITIAL_CAPACITY];
+            this.values = new Entry[INITIAL_CAPACITY];
+        } else {
+            Arrays.fill(this.values, null);
+        }
+        this.size = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = this.keys;
+        int[] oldMonitorClassIds = this.monitorClassIds;
+        Entry[] oldValues = this.values;
+
+        this.keys = new long[capacity];
+        this.monitorClassIds = new int[capacity];
+        this.values = new Entry[capacity];
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] == null) {
+                continue;
+            }
+            int slot = hash(oldKeys[i], oldMonitorClassIds[i]) & mask;
+            while (this.values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            this.keys[slot] = oldKeys[i];
+            this.monitorClassIds[slot] = oldMonitorClassIds[i];
+            this.values[slot] = oldValues[i];
+        }
+    }
+
+    private static long key(int nativeThreadId, int stackTraceId) {
+        return ((long) nativeThreadId << 32) | (stackTraceId & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key, int monitorClassId) {
+        long h = (key ^ ((long) monitorClassId * 0xC2B2AE3D27D4EB4FL)) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * A cached path through the call tree.
+     */
+    static final class Entry {
+        /** The thread node the path belongs to, or null if the stack is never logged */
+        final ThreadNode threadNode;
+        /** The path from the root of the stack to the leaf, or null if the stack is never logged */
+        final StackTraceNode[] path;
+        /** If the stack is one of a sleeping thread */
+        final boolean sleeping;
+
+        Entry(ThreadNode threadNode, StackTraceNode[] path, boolean sleeping) {
+            this.threadNode = threadNode;
+            this.path = path;
+            this.sleeping = sleeping;
+        }
+    }
+
+}
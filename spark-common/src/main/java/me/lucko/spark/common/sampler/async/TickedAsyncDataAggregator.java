@@ -44,6 +44,12 @@ public class TickedAsyncDataAggregator extends AsyncDataAggregator {
         this.closeCallback = () -> tickReporter.removeCallback(this.filter);
     }
 
+    @Override
+    public boolean requiresOrderedData() {
+        // the filter discards exceeding ticks as it moves forward in time
+        return true;
+    }
+
     @Override
     public void insertData(ProfileSegment element, int window) {
         // with async-profiler clock=monotonic, the event time uses the same clock
@@ -874,7 +874,7 @@ public class JfrReader implements Closeable {
         }
     }
 
-    static class ContendedLock extends Event {
+    public static class ContendedLock extends Event {
         public final long duration;
         public final int classId;
 
@@ -988,7 +988,7 @@ public class JfrReader implements Closeable {
         }
     }
 
-    static class GCHeapSummary extends Event {
+    public static class GCHeapSummary extends Event {
         public final int gcId;
         public final boolean afterGC;
         public final long committed;
@@ -1008,7 +1008,7 @@ public class JfrReader implements Closeable {
         }
     }
 
-    static class LiveObject extends Event {
+    public static class LiveObject extends Event {
         public final int classId;
         public final long allocationSize;
         public final long allocationTime;
@@ -1045,7 +1045,7 @@ public class JfrReader implements Closeable {
         }
     }
 
-    static class MallocEvent extends Event {
+    public static class MallocEvent extends Event {
         public final long address;
         public final long size;
 
@@ -0,0 +1,418 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.diff;
+
+import com.google.protobuf.CodedOutputStream;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerDiff;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+import me.lucko.spark.proto.SparkSamplerProtos.StackTraceNode;
+import me.lucko.spark.proto.SparkSamplerProtos.ThreadNode;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The difference between two sampler profiles.
+ *
+ * <p>Nodes are aligned by their path from the thread - the thread name, then the class name,
+ * method name and method description of each frame. Line numbers are ignored, so that frames
+ * still line up when code has moved between the two profiles. Each profile is walked once, and
+ * each node is looked up (or added) with a single hash lookup keyed by its parent and
+ * description.</p>
+ *
+ * <p>Times are normalised by the total time of all threads in each profile, so profiles of
+ * different lengths can be compared.</p>
+ */
+public final class ProfileDiff {
+
+    /** The size of the write buffer */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The nodes, in the order they were added - a node always comes after its parent */
+    private final List<Node> nodes = new ArrayList<>();
+
+    /** The nodes, keyed by their parent and description */
+    private final Map<Key, Node> index = new HashMap<>();
+
+    private SamplerMetadata baselineMetadata;
+    private SamplerMetadata currentMetadata;
+    private double baselineTotal;
+    private double currentTotal;
+
+    private ProfileDiff() {
+
+    }
+
+    /**
+     * Compares two profiles.
+     *
+     * @param baseline the baseline profile
+     * @param current the current profile
+     * @return the diff
+     * @throws IllegalArgumentException if the profiles measure different things
+     * @see #getIncompatibility(SamplerMetadata, SamplerMetadata)
+     */
+    public static ProfileDiff compare(SamplerData baseline, SamplerData current) {
+        String incompatibility = getIncompatibility(baseline.getMetadata(), current.getMetadata());
+        if (incompatibility != null) {
+            throw new IllegalArgumentException(incompatibility);
+        }
+
+        ProfileDiff diff = new ProfileDiff();
+        diff.baselineMetadata = baseline.getMetadata();
+        diff.currentMetadata = current.getMetadata();
+        diff.baselineTotal = diff.add(baseline, true);
+        diff.currentTotal = diff.add(current, false);
+        return diff;
+    }
+
+    /**
+     * Gets the reason two profiles can't be compared, if they were recorded in a different
+     * mode, by a different engine, or of a different event - in which case their times are
+     * measured in different units.
+     *
+     * @param baseline the metadata of the baseline profile
+     * @param current the metadata of the current profile
+     * @return the reason, or null if the profiles can be compared
+     */
+    public static String getIncompatibility(SamplerMetadata baseline, SamplerMetadata current) {
+        if (baseline.getSamplerMode() != current.getSamplerMode()) {
+            return "the baseline was recorded in " + describe(baseline.getSamplerMode()) + " mode, but the current profile in " + describe(current.getSamplerMode()) + " mode";
+        }
+        if (baseline.getSamplerEngine() != current.getSamplerEngine()) {
+            return "the baseline was recorded by the " + describe(baseline.getSamplerEngine()) + " engine, but the current profile by the " + describe(current.getSamplerEngine()) + " engine";
+        }
+        if (!baseline.getSamplerEngineEvent().equals(current.getSamplerEngineEvent())) {
+            return "the baseline measures the '" + describeEvent(baseline) + "' event, but the current profile measures '" + describeEvent(current) + "'";
+        }
+        return null;
+    }
+
+    private static String describe(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT).replace('_', ' ');
+    }
+
+    private static String describeEvent(SamplerMetadata metadata) {
+        String event = metadata.getSamplerEngineEvent();
+        return event.isEmpty() ? "default" : event;
+    }
+
+    /**
+     * Reads a profile from a file, which may be gzip compressed.
+     *
+     * @param file the file
+     * @return the profile
+     * @throws IOException if an I/O error occurs
+     */
+    public static SamplerData read(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE)) {
+            in.mark(2);
+            boolean gzip = in.read() == 0x1F && in.read() == 0x8B;
+            in.reset();
+            return SamplerData.parseFrom(gzip ? new GZIPInputStream(in, BUFFER_SIZE) : in);
+        }
+    }
+
+    private double add(SamplerData data, boolean baseline) {
+        double total = 0;
+
+        // work stack of node indexes, and the index of the diff node of each one's parent
+        int[] work = new int[64];
+        int[] workParent = new int[64];
+
+        for (ThreadNode thread : data.getThreadsList()) {
+            double threadTime = sum(thread.getTimesList());
+            total += threadTime;
+
+            Node threadNode = getOrCreate(-1, thread.getName(), "", "");
+            threadNode.add(threadTime, baseline);
+
+            List<StackTraceNode> children = thread.getChildrenList();
+            int size = 0;
+            for (int ref : thread.getChildrenRefsList()) {
+                if (size == work.length) {
+                    work = Arrays.copyOf(work, size * 2);
+                    workParent = Arrays.copyOf(workParent, size * 2);
+                }
+                work[size] = ref;
+                workParent[size] = threadNode.index;
+                size++;
+            }
+
+            while (size != 0) {
+                size--;
+                StackTraceNode child = children.get(work[size]);
+
+                Node node = getOrCreate(workParent[size], child.getClassName(), child.getMethodName(), child.getMethodDesc());
+                node.add(sum(child.getTimesList()), baseline);
+
+                for (int ref : child.getChildrenRefsList()) {
+                    if (size == work.length) {
+                        work = Arrays.copyOf(work, size * 2);
+                        workParent = Arrays.copyOf(workParent, size * 2);
+                    }
+                    work[size] = ref;
+                    workParent[size] = node.index;
+                    size++;
+                }
+            }
+        }
+
+        return total;
+    }
+
+    private Node getOrCreate(int parent, String name, String methodName, String methodDesc) {
+        Key key = new Key(parent, name, methodName, methodDesc);
+        Node node = this.index.get(key);
+        if (node == null) {
+            node = new Node(this.nodes.size(), key);
+            this.index.put(key, node);
+            this.nodes.add(node);
+        }
+        return node;
+    }
+
+    private static double sum(List<Double> times) {
+        // the sum is the same whether the times are sparsely encoded or not
+        double total = 0;
+        for (double time : times) {
+            total += time;
+        }
+        return total;
+    }
+
+    private static double fraction(double time, double total) {
+        return total == 0 ? 0 : time / total;
+    }
+
+    private static double ratio(double current, double baseline) {
+        if (baseline == 0) {
+            return current == 0 ? 1 : Double.POSITIVE_INFINITY;
+        }
+        return current / baseline;
+    }
+
+    /**
+     * Gets the number of aligned nodes.
+     *
+     * @return the number of nodes
+     */
+    public int getNodeCount() {
+        return this.nodes.size();
+    }
+
+    /**
+     * Writes the diff as a {@link SamplerDiff} message.
+     *
+     * <p>The nodes are written one at a time, so the whole message is never built in memory.</p>
+     *
+     * @param out the output stream
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        CodedOutputStream coded = CodedOutputStream.newInstance(out, BUFFER_SIZE);
+        coded.writeMessage(SamplerDiff.BASELINE_METADATA_FIELD_NUMBER, this.baselineMetadata);
+        coded.writeMessage(SamplerDiff.CURRENT_METADATA_FIELD_NUMBER, this.currentMetadata);
+        coded.writeDouble(SamplerDiff.BASELINE_TOTAL_FIELD_NUMBER, this.baselineTotal);
+        coded.writeDouble(SamplerDiff.CURRENT_TOTAL_FIELD_NUMBER, this.currentTotal);
+
+        for (Node node : this.nodes) {
+            double baseline = fraction(node.baseline, this.baselineTotal);
+            double current = fraction(node.current, this.currentTotal);
+
+            SamplerDiff.Node.Builder proto = SamplerDiff.Node.newBuilder()
+                    .setParent(node.key.parent)
+                    .setName(node.key.name)
+                    .setMethodName(node.key.methodName)
+                    .setMethodDesc(node.key.methodDesc)
+                    .setBaseline(baseline)
+                    .setCurrent(current)
+                    .setDelta(current - baseline)
+                    .setRatio(ratio(current, baseline));
+            coded.writeMessage(SamplerDiff.NODES_FIELD_NUMBER, proto.build());
+        }
+        coded.flush();
+    }
+
+    /**
+     * Gets the frames whose self time (the time of the frame minus the time of its children)
+     * increased the most, as a fraction of the total time.
+     *
+     * @param limit the maximum number of frames to return
+     * @return the frames, largest increase first
+     */
+    public List<Change> getLargestSelfIncreases(int limit) {
+        double[] selfBaseline = new double[this.nodes.size()];
+        double[] selfCurrent = new double[this.nodes.size()];
+        for (Node node : this.nodes) {
+            selfBaseline[node.index] += node.baseline;
+            selfCurrent[node.index] += node.current;
+            if (node.key.parent != -1) {
+                selfBaseline[node.key.parent] -= node.baseline;
+                selfCurrent[node.key.parent] -= node.current;
+            }
+        }
+
+        PriorityQueue<Change> largest = new PriorityQueue<>(Comparator.comparingDouble(Change::getDelta));
+        for (Node node : this.nodes) {
+            if (node.key.parent == -1) {
+                continue;
+            }
+
+            Change change = new Change(node.key.name, node.key.methodName,
+                    fraction(selfBaseline[node.index], this.baselineTotal),
+                    fraction(selfCurrent[node.index], this.currentTotal));
+            if (change.getDelta() <= 0) {
+                continue;
+            }
+
+            largest.add(change);
+            if (largest.size() > limit) {
+                largest.poll();
+            }
+        }
+
+        List<Change> result = new ArrayList<>(largest);
+        result.sort(Comparator.comparingDouble(Change::getDelta).reversed());
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * A change in the self time of a frame.
+     */
+    public static final class Change {
+        private final String className;
+        private final String methodName;
+        private final double baseline;
+        private final double current;
+
+        Change(String className, String methodName, double baseline, double current) {
+            this.className = className;
+            this.methodName = methodName;
+            this.baseline = baseline;
+            this.current = current;
+        }
+
+        public String getClassName() {
+            return this.className;
+        }
+
+        public String getMethodName() {
+            return this.methodName;
+        }
+
+        /**
+         * Gets the self time in the baseline profile, as a fraction of its total time.
+         *
+         * @return the baseline self time
+         */
+        public double getBaseline() {
+            return this.baseline;
+        }
+
+        /**
+         * Gets the self time in the current profile, as a fraction of its total time.
+         *
+         * @return the current self time
+         */
+        public double getCurrent() {
+            return this.current;
+        }
+
+        public double getDelta() {
+            return this.current - this.baseline;
+        }
+    }
+
+    private static final class Node {
+        private final int index;
+        private final Key key;
+        private double baseline;
+        private double current;
+
+        Node(int index, Key key) {
+            this.index = index;
+            this.key = key;
+        }
+
+        void add(double time, boolean baseline) {
+            if (baseline) {
+                this.baseline += time;
+            } else {
+                this.current += time;
+            }
+        }
+    }
+
+    private static final class Key {
+        private final int parent;
+        private final String name;
+        private final String methodName;
+        private final String methodDesc;
+        private final int hash;
+
+        Key(int parent, String name, String methodName, String methodDesc) {
+            this.parent = parent;
+            this.name = name;
+            this.methodName = methodName;
+            this.methodDesc = methodDesc;
+
+            int hash = parent;
+            hash = 31 * hash + name.hashCode();
+            hash = 31 * hash + methodName.hashCode();
+            hash = 31 * hash + methodDesc.hashCode();
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return this.parent == key.parent &&
+                    this.hash == key.hash &&
+                    this.name.equals(key.name) &&
+                    this.methodName.equals(key.methodName) &&
+                    this.methodDesc.equals(key.methodDesc);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.format;
+
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+import me.lucko.spark.proto.SparkSamplerProtos.StackTraceNode;
+import me.lucko.spark.proto.SparkSamplerProtos.ThreadNode;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Walks the call tree of an exported {@link ThreadNode}, giving the self time
+ * (the time of a node minus the time of its children) of each stack.
+ *
+ * <p>Self times are given per time window, in the same order as the time windows
+ * of the sampler data.</p>
+ */
+final class CallTreeWalker {
+
+    /** The number of time windows */
+    private final int windows;
+
+    /** The stack of nodes from the root to the node being visited */
+    private StackTraceNode[] path = new StackTraceNode[64];
+
+    /** Work stack of node indexes, and the depth of each */
+    private int[] work = new int[64];
+    private int[] workDepth = new int[64];
+
+    /** The self times of the node being visited, and a scratch array for decoding child times */
+    private final double[] selfTimes;
+    private final double[] childTimes;
+
+    CallTreeWalker(int windows) {
+        this.windows = windows;
+        this.selfTimes = new double[windows];
+        this.childTimes = new double[windows];
+    }
+
+    /**
+     * Visits each stack in the thread, depth first, in child order.
+     *
+     * <p>The thread itself is visited first, with a depth of 0. The arrays passed to the
+     * visitor are reused, and must not be kept after it returns.</p>
+     *
+     * @param thread the thread
+     * @param visitor the visitor
+     * @throws IOException if the visitor throws
+     */
+    void walk(ThreadNode thread, Visitor visitor) throws IOException {
+        List<StackTraceNode> nodes = thread.getChildrenList();
+
+        decode(thread.getTimesList(), thread.getTimeIndexesList(), this.selfTimes);
+        subtractChildren(nodes, thread.getChildrenRefsList());
+        visitor.visit(this.path, 0, this.selfTimes);
+
+        int size = 0;
+        for (int i = thread.getChildrenRefsCount() - 1; i >= 0; i--) {
+            size = push(size, thread.getChildrenRefs(i), 0);
+        }
+
+        while (size != 0) {
+            size--;
+            StackTraceNode node = nodes.get(this.work[size]);
+            int depth = this.workDepth[size];
+
+            if (depth == this.path.length) {
+                this.path = Arrays.copyOf(this.path, depth * 2);
+            }
+            this.path[depth] = node;
+
+            decode(node.getTimesList(), node.getTimeIndexesList(), this.selfTimes);
+            subtractChildren(nodes, node.getChildrenRefsList());
+            visitor.visit(this.path, depth + 1, this.selfTimes);
+
+            // push in reverse, so that the children are visited in order
+            for (int i = node.getChildrenRefsCount() - 1; i >= 0; i--) {
+                size = push(size, node.getChildrenRefs(i), depth + 1);
+            }
+        }
+    }
+
+    private int push(int size, int index, int depth) {
+        if (size == this.work.length) {
+            this.work = Arrays.copyOf(this.work, size * 2);
+            this.workDepth = Arrays.copyOf(this.workDepth, size * 2);
+        }
+        this.work[size] = index;
+        this.workDepth[size] = depth;
+        return size + 1;
+    }
+
+    private void subtractChildren(List<StackTraceNode> nodes, List<Integer> childrenRefs) {
+        for (int ref : childrenRefs) {
+            StackTraceNode child = nodes.get(ref);
+            decode(child.getTimesList(), child.getTimeIndexesList(), this.childTimes);
+            for (int i = 0; i < this.windows; i++) {
+                this.selfTimes[i] -= this.childTimes[i];
+            }
+        }
+    }
+
+    /**
+     * Decodes the times of a node, which may be sparsely encoded, into one value per window.
+     *
+     * @param times the times
+     * @param timeIndexes the window index of each time, or empty if the times are dense
+     * @param out the output array
+     */
+    private void decode(List<Double> times, List<Integer> timeIndexes, double[] out) {
+        if (timeIndexes.isEmpty()) {
+            int count = Math.min(times.size(), this.windows);
+            for (int i = 0; i < count; i++) {
+                out[i] = times.get(i);
+            }
+            Arrays.fill(out, count, this.windows, 0);
+        } else {
+            Arrays.fill(out, 0);
+            for (int i = 0; i < timeIndexes.size(); i++) {
+                out[timeIndexes.get(i)] = times.get(i);
+            }
+        }
+    }
+
+    /**
+     * Gets the factor that exported times should be multiplied by to give whole numbers
+     * in the unit returned by {@link #valueUnit(SamplerMetadata.SamplerMode)}.
+     *
+     * @param mode the sampler mode
+     * @return the scale
+     */
+    static double valueScale(SamplerMetadata.SamplerMode mode) {
+        // execution times are exported in milliseconds
+        return mode == SamplerMetadata.SamplerMode.EXECUTION ? 1000 : 1;
+    }
+
+    /**
+     * Gets the unit of scaled values.
+     *
+     * @param mode the sampler mode
+     * @return the unit
+     */
+    static String valueUnit(SamplerMetadata.SamplerMode mode) {
+        switch (mode) {
+            case EXECUTION:
+                return "microseconds";
+            case LOCK:
+                return "nanoseconds";
+            default:
+                return "bytes";
+        }
+    }
+
+    /**
+     * Gets a readable name for a frame.
+     *
+     * @param node the node
+     * @return the name
+     */
+    static String frameName(StackTraceNode node) {
+        String className = node.getClassName();
+        return className.isEmpty() ? node.getMethodName() : className + "." + node.getMethodName();
+    }
+
+    @FunctionalInterface
+    interface Visitor {
+
+        /**
+         * Visits a stack.
+         *
+         * @param path the nodes from the root of the stack, the first {@code depth} are valid
+         * @param depth the depth of the stack, or 0 for the thread itself
+         * @param selfTimes the self time in each window
+         * @throws IOException if an I/O error occurs
+         */
+        void visit(StackTraceNode[] path, int depth, double[] selfTimes) throws IOException;
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.format;
+
+import me.lucko.spark.common.sampler.SamplerDataSink;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerDataOrBuilder;
+import me.lucko.spark.proto.SparkSamplerProtos.ThreadNode;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes sampler data in the collapsed stack format used by
+ * <a href="https://github.com/brendangregg/FlameGraph">FlameGraph</a>.
+ *
+ * <p>Each line is a thread name followed by the frames of a stack (root first),
+ * separated by semicolons, then a space and the self value of the stack summed
+ * over all time windows. Values are whole numbers - microseconds for execution
+ * profiles, otherwise the unit of the sampler mode.</p>
+ */
+public class CollapsedStackWriter implements SamplerDataSink {
+
+    /** The size of the write buffer */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The output */
+    private final Writer out;
+
+    /** Reused to build each line */
+    private final StringBuilder line = new StringBuilder();
+
+    /** The tree walker, created when the first thread is written */
+    private CallTreeWalker walker;
+    private double scale;
+
+    public CollapsedStackWriter(OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    @Override
+    public void writeThread(SamplerDataOrBuilder proto, ThreadNode thread) throws IOException {
+        if (this.walker == null) {
+            this.walker = new CallTreeWalker(proto.getTimeWindowsCount());
+            this.scale = CallTreeWalker.valueScale(proto.getMetadata().getSamplerMode());
+        }
+
+        String threadName = sanitize(thread.getName());
+        this.walker.walk(thread, (path, depth, selfTimes) -> {
+            double total = 0;
+            for (double time : selfTimes) {
+                total += time;
+            }
+
+            long value = Math.round(total * this.scale);
+            if (value <= 0) {
+                return;
+            }
+
+            this.line.setLength(0);
+            this.line.append(threadName);
+            for (int i = 0; i < depth; i++) {
+                this.line.append(';').append(sanitize(CallTreeWalker.frameName(path[i])));
+            }
+            this.line.append(' ').append(value).append('\n');
+            this.out.append(this.line);
+        });
+    }
+
+    @Override
+    public void finish(SamplerData.Builder proto) throws IOException {
+        this.out.flush();
+    }
+
+    /**
+     * Replaces characters which have a special meaning in the collapsed format.
+     *
+     * @param name the name of a thread or frame
+     * @return the sanitized name
+     */
+    private static String sanitize(String name) {
+        return name.replace(';', ':').replace('\n', ' ').replace('\r', ' ');
+    }
+
+}
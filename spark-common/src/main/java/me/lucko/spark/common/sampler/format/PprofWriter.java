@@ -0,0 +1,245 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.format;
+
+import com.google.protobuf.CodedOutputStream;
+import me.lucko.spark.common.sampler.SamplerDataSink;
+import me.lucko.spark.proto.PprofProtos;
+import me.lucko.spark.proto.SparkProtos.WindowStatistics;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerDataOrBuilder;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+import me.lucko.spark.proto.SparkSamplerProtos.StackTraceNode;
+import me.lucko.spark.proto.SparkSamplerProtos.ThreadNode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes sampler data in the <a href="https://github.com/google/pprof">pprof</a> profile format.
+ *
+ * <p>A sample is written for each stack and time window with a non-zero self value,
+ * labelled with the thread name, the window and (when known) the start and end time
+ * of the window.</p>
+ *
+ * <p>A profile message is a list of repeated fields, which may appear in any order,
+ * so samples are written as each thread is exported. Functions, locations and strings
+ * are written the first time they are used.</p>
+ */
+public class PprofWriter implements SamplerDataSink {
+
+    /** The size of the write buffer */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The output stream */
+    private final CodedOutputStream out;
+
+    /** The index of each string in the string table */
+    private final Map<String, Long> strings = new HashMap<>();
+
+    /** The id of each function, keyed by class name, method name and description */
+    private final Map<String, Long> functions = new HashMap<>();
+
+    /** The id of each location, keyed by function id and line number */
+    private final Map<Long, Long> locations = new HashMap<>();
+
+    /** The tree walker, created when the first thread is written */
+    private CallTreeWalker walker;
+    private double scale;
+
+    /** The labels for each time window */
+    private List<List<PprofProtos.Label>> windowLabels;
+
+    public PprofWriter(OutputStream out) {
+        this.out = CodedOutputStream.newInstance(out, BUFFER_SIZE);
+    }
+
+    @Override
+    public void writeThread(SamplerDataOrBuilder proto, ThreadNode thread) throws IOException {
+        writeHeader(proto);
+
+        PprofProtos.Label threadLabel = PprofProtos.Label.newBuilder()
+                .setKey(string("thread"))
+                .setStr(string(thread.getName()))
+                .build();
+
+        this.walker.walk(thread, (path, depth, selfTimes) -> {
+            // samples must have a location, so time not spent in any frame is left out
+            if (depth == 0) {
+                return;
+            }
+
+            List<Long> locationIds = null;
+            for (int i = 0; i < selfTimes.length; i++) {
+                long value = Math.round(selfTimes[i] * this.scale);
+                if (value <= 0) {
+                    continue;
+                }
+
+                if (locationIds == null) {
+                    locationIds = new ArrayList<>(depth);
+                    for (int j = depth - 1; j >= 0; j--) {
+                        locationIds.add(location(path[j]));
+                    }
+                }
+
+                PprofProtos.Sample sample = PprofProtos.Sample.newBuilder()
+                        .addAllLocationId(locationIds)
+                        .addValue(value)
+                        .addLabel(threadLabel)
+                        .addAllLabel(this.windowLabels.get(i))
+                        .build();
+                this.out.writeMessage(PprofProtos.Profile.SAMPLE_FIELD_NUMBER, sample);
+            }
+        });
+    }
+
+    @Override
+    public void finish(SamplerData.Builder proto) throws IOException {
+        writeHeader(proto);
+        this.out.flush();
+    }
+
+    private void writeHeader(SamplerDataOrBuilder proto) throws IOException {
+        if (this.walker != null) {
+            return;
+        }
+
+        int windows = proto.getTimeWindowsCount();
+        this.walker = new CallTreeWalker(windows);
+
+        SamplerMetadata metadata = proto.getMetadata();
+        this.scale = CallTreeWalker.valueScale(metadata.getSamplerMode());
+
+        // the first string in the table must be empty
+        string("");
+
+        PprofProtos.ValueType valueType = PprofProtos.ValueType.newBuilder()
+                .setType(string(metadata.getSamplerMode().name().toLowerCase(Locale.ROOT)))
+                .setUnit(string(CallTreeWalker.valueUnit(metadata.getSamplerMode())))
+                .build();
+        this.out.writeMessage(PprofProtos.Profile.SAMPLE_TYPE_FIELD_NUMBER, valueType);
+        this.out.writeMessage(PprofProtos.Profile.PERIOD_TYPE_FIELD_NUMBER, valueType);
+        this.out.writeInt64(PprofProtos.Profile.PERIOD_FIELD_NUMBER, metadata.getInterval());
+        this.out.writeInt64(PprofProtos.Profile.TIME_NANOS_FIELD_NUMBER, TimeUnit.MILLISECONDS.toNanos(metadata.getStartTime()));
+        if (metadata.getEndTime() > metadata.getStartTime()) {
+            this.out.writeInt64(PprofProtos.Profile.DURATION_NANOS_FIELD_NUMBER, TimeUnit.MILLISECONDS.toNanos(metadata.getEndTime() - metadata.getStartTime()));
+        }
+        if (!metadata.getComment().isEmpty()) {
+            this.out.writeInt64(PprofProtos.Profile.COMMENT_FIELD_NUMBER, string(metadata.getComment()));
+        }
+
+        this.windowLabels = new ArrayList<>(windows);
+        for (int i = 0; i < windows; i++) {
+            int window = proto.getTimeWindows(i);
+
+            List<PprofProtos.Label> labels = new ArrayList<>(3);
+            labels.add(numLabel("window", window, null));
+
+            WindowStatistics statistics = proto.getTimeWindowStatisticsMap().get(window);
+            if (statistics != null && statistics.getStartTime() != 0) {
+                labels.add(numLabel("window_start", statistics.getStartTime(), "milliseconds"));
+                labels.add(numLabel("window_end", statistics.getEndTime(), "milliseconds"));
+            }
+            this.windowLabels.add(labels);
+        }
+    }
+
+    private PprofProtos.Label numLabel(String key, long value, String unit) throws IOException {
+        PprofProtos.Label.Builder label = PprofProtos.Label.newBuilder()
+                .setKey(string(key))
+                .setNum(value);
+        if (unit != null) {
+            label.setNumUnit(string(unit));
+        }
+        return label.build();
+    }
+
+    /**
+     * Gets the id of the location for a frame, writing it (and its function) if it is new.
+     *
+     * @param node the frame
+     * @return the location id
+     * @throws IOException if an I/O error occurs
+     */
+    private long location(StackTraceNode node) throws IOException {
+        long functionId = function(node);
+        long key = (functionId << 32) | (node.getLineNumber() & 0xFFFFFFFFL);
+
+        Long id = this.locations.get(key);
+        if (id == null) {
+            id = (long) this.locations.size() + 1;
+            this.locations.put(key, id);
+
+            PprofProtos.Location location = PprofProtos.Location.newBuilder()
+                    .setId(id)
+                    .addLine(PprofProtos.Line.newBuilder()
+                            .setFunctionId(functionId)
+                            .setLine(node.getLineNumber()))
+                    .build();
+            this.out.writeMessage(PprofProtos.Profile.LOCATION_FIELD_NUMBER, location);
+        }
+        return id;
+    }
+
+    private long function(StackTraceNode node) throws IOException {
+        String key = node.getClassName() + '\0' + node.getMethodName() + '\0' + node.getMethodDesc();
+
+        Long id = this.functions.get(key);
+        if (id == null) {
+            id = (long) this.functions.size() + 1;
+            this.functions.put(key, id);
+
+            String name = CallTreeWalker.frameName(node);
+            PprofProtos.Function function = PprofProtos.Function.newBuilder()
+                    .setId(id)
+                    .setName(string(name))
+                    .setSystemName(string(name + node.getMethodDesc()))
+                    .build();
+            this.out.writeMessage(PprofProtos.Profile.FUNCTION_FIELD_NUMBER, function);
+        }
+        return id;
+    }
+
+    /**
+     * Gets the index of a string in the string table, writing it if it is new.
+     *
+     * @param string the string
+     * @return the index
+     * @throws IOException if an I/O error occurs
+     */
+    private long string(String string) throws IOException {
+        Long index = this.strings.get(string);
+        if (index == null) {
+            index = (long) this.strings.size();
+            this.strings.put(string, index);
+            this.out.writeString(PprofProtos.Profile.STRING_TABLE_FIELD_NUMBER, string);
+        }
+        return index;
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.format;
+
+import me.lucko.spark.common.sampler.SamplerDataSink;
+import me.lucko.spark.common.sampler.SamplerDataWriter;
+
+import java.io.OutputStream;
+import java.util.function.Function;
+
+/**
+ * The formats that sampler data can be saved to a file in.
+ */
+public enum ProfileFormat {
+
+    /** The spark viewer format, see {@link SamplerDataWriter} */
+    SPARK("sparkprofile", SamplerDataWriter::new),
+
+    /** Collapsed stacks, see {@link CollapsedStackWriter} */
+    COLLAPSED("folded", CollapsedStackWriter::new),
+
+    /** The pprof format, see {@link PprofWriter} */
+    PPROF("pb", PprofWriter::new);
+
+    private final String fileExtension;
+    private final Function<OutputStream, SamplerDataSink> sinkFunction;
+
+    ProfileFormat(String fileExtension, Function<OutputStream, SamplerDataSink> sinkFunction) {
+        this.fileExtension = fileExtension;
+        this.sinkFunction = sinkFunction;
+    }
+
+    public String getFileExtension() {
+        return this.fileExtension;
+    }
+
+    /**
+     * Creates a sink which writes sampler data in this format.
+     *
+     * @param out the output stream
+     * @return the sink
+     */
+    public SamplerDataSink createSink(OutputStream out) {
+        return this.sinkFunction.apply(out);
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+/**
+ * Adjusts the sampling interval of the {@link JavaSampler} to keep the cost of
+ * sampling within an overhead budget.
+ *
+ * <p>The cost of each sample (capturing the thread dump, and then inserting it into the
+ * aggregator) is measured and smoothed. The interval is then set so that the cost per
+ * sample divided by the interval is equal to the budget, bounded below by the requested
+ * (base) interval and above by {@link #MAX_INTERVAL_SCALE} times the base interval.</p>
+ *
+ * <p>The sampler ticks at the base interval, so the effective interval is always a
+ * whole number of ticks.</p>
+ */
+public final class AdaptiveIntervalController {
+
+    /** The weight given to each new cost measurement */
+    private static final double SMOOTHING = 0.2;
+
+    /** The maximum interval, as a multiple of the base interval */
+    private static final int MAX_INTERVAL_SCALE = 20;
+
+    /** The base interval, in microseconds */
+    private final int baseInterval;
+
+    /** The target fraction of one core to spend sampling */
+    private final double budget;
+
+    // guarded by 'this'
+    private double captureCostNanos = 0;
+    private double insertCostNanos = 0;
+    private int intervalTicks = 1;
+
+    public AdaptiveIntervalController(int baseInterval, double budget) {
+        if (baseInterval <= 0) {
+            throw new IllegalArgumentException("baseInterval must be > 0");
+        }
+        if (budget <= 0 || budget > 1) {
+            throw new IllegalArgumentException("budget must be in (0, 1]");
+        }
+        this.baseInterval = baseInterval;
+        this.budget = budget;
+    }
+
+    /**
+     * Records the time taken to capture a sample.
+     *
+     * @param nanos the time taken, in nanoseconds
+     */
+    public synchronized void recordCaptureCost(long nanos) {
+        this.captureCostNanos = smooth(this.captureCostNanos, nanos);
+        update();
+    }
+
+    /**
+     * Records the time taken to insert a sample into the aggregator.
+     *
+     * @param nanos the time taken, in nanoseconds
+     */
+    public synchronized void recordInsertCost(long nanos) {
+        this.insertCostNanos = smooth(this.insertCostNanos, nanos);
+        update();
+    }
+
+    /**
+     * Gets the number of base interval ticks between each sample.
+     *
+     * @return the interval, in ticks
+     */
+    public synchronized int getIntervalTicks() {
+        return this.intervalTicks;
+    }
+
+    /**
+     * Gets the current sampling interval.
+     *
+     * @return the interval, in microseconds
+     */
+    public synchronized int getInterval() {
+        return this.intervalTicks * this.baseInterval;
+    }
+
+    /**
+     * Gets the estimated overhead of sampling at the current interval.
+     *
+     * @return the overhead, as a fraction of one core
+     */
+    public synchronized double getOverhead() {
+        return costMicros() / (this.intervalTicks * this.baseInterval);
+    }
+
+    /**
+     * Gets the target overhead.
+     *
+     * @return the budget, as a fraction of one core
+     */
+    public double getBudget() {
+        return this.budget;
+    }
+
+    // guarded by 'this'
+    private void update() {
+        double targetInterval = costMicros() / this.budget;
+        int ticks = (int) Math.ceil(targetInterval / this.baseInterval);
+        this.intervalTicks = Math.max(1, Math.min(MAX_INTERVAL_SCALE, ticks));
+    }
+
+    // guarded by 'this'
+    private double costMicros() {
+        return (this.captureCostNanos + this.insertCostNanos) / 1000d;
+    }
+
+    private static double smooth(double current, long measurement) {
+        return current == 0 ? measurement : current + SMOOTHING * (measurement - current);
+    }
+
+}
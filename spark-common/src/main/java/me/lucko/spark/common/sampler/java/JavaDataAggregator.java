@@ -23,7 +23,6 @@ package me.lucko.spark.common.sampler.java;
 import me.lucko.spark.common.sampler.ThreadGrouper;
 import me.lucko.spark.common.sampler.aggregator.AbstractDataAggregator;
 import me.lucko.spark.common.sampler.aggregator.DataAggregator;
-import me.lucko.spark.common.sampler.node.StackTraceNode;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 
 import java.lang.management.ThreadInfo;
@@ -36,16 +35,13 @@ import java.util.concurrent.TimeUnit;
  */
 public abstract class JavaDataAggregator extends AbstractDataAggregator {
 
-    /** A describer for java.lang.StackTraceElement */
-    private static final StackTraceNode.Describer<StackTraceElement> STACK_TRACE_DESCRIBER = (element, parent) -> {
-        int parentLineNumber = parent == null ? StackTraceNode.NULL_LINE_NUMBER : parent.getLineNumber();
-        return new StackTraceNode.JavaDescription(element.getClassName(), element.getMethodName(), element.getLineNumber(), parentLineNumber);
-    };
+    /** A describer for java.lang.StackTraceElement, which interns the descriptions it creates */
+    private final JavaFrameTable frameTable = new JavaFrameTable();
 
     /** The worker pool for inserting stack nodes */
     protected final ExecutorService workerPool;
 
-    /** The interval to wait between sampling, in microseconds */
+    /** The (base) interval to wait between sampling, in microseconds */
     protected final int interval;
 
     public JavaDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, int interval, boolean ignoreSleeping) {
@@ -58,18 +54,27 @@ public abstract class JavaDataAggregator extends AbstractDataAggregator {
      * Inserts sampling data into this aggregator
      *
      * @param threadInfo the thread info
+     * @param interval the sampling interval in effect when the data was captured, in microseconds
      * @param window the window
      */
-    public abstract void insertData(ThreadInfo threadInfo, int window);
+    public abstract void insertData(ThreadInfo threadInfo, int interval, int window);
 
-    protected void writeData(ThreadInfo threadInfo, int window) {
+    protected void writeData(ThreadInfo threadInfo, int interval, int window) {
+        writeData(threadInfo, getGroup(threadInfo), interval, window);
+    }
+
+    String getGroup(ThreadInfo threadInfo) {
+        return this.threadGrouper.getGroup(threadInfo.getThreadId(), threadInfo.getThreadName());
+    }
+
+    void writeData(ThreadInfo threadInfo, String group, int interval, int window) {
         if (this.ignoreSleeping && isSleeping(threadInfo)) {
             return;
         }
 
         try {
-            ThreadNode node = getNode(this.threadGrouper.getGroup(threadInfo.getThreadId(), threadInfo.getThreadName()));
-            node.log(STACK_TRACE_DESCRIBER, threadInfo.getStackTrace(), this.interval, window);
+            ThreadNode node = getNode(group);
+            node.log(this.frameTable, threadInfo.getStackTrace(), interval, window);
         } catch (Exception e) {
             e.printStackTrace();
         }
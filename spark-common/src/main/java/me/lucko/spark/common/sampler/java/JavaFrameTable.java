@@ -0,0 +1,142 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.StackTraceNode.JavaDescription;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Interns {@link JavaDescription}s for {@link StackTraceElement}s.
+ *
+ * <p>Frames are looked up by their class, method, line and parent line without
+ * allocating a key, so describing a frame that has been seen before returns the
+ * existing (canonical) description. That description is then used as-is to resolve
+ * the child node, meaning the ingest path for a previously seen stack does not
+ * allocate.</p>
+ *
+ * <p>Lookups are lock-free. Inserts are guarded by the table's monitor.</p>
+ */
+final class JavaFrameTable implements StackTraceNode.Describer<StackTraceElement> {
+
+    /** The initial number of slots in the table */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** The number of entries at which the table is cleared, to keep memory bounded */
+    private static final int MAX_SIZE = Integer.getInteger("spark.maxInternedFrames", 1 << 20);
+
+    /** The table - open addressing with linear probing, always a power of two in length */
+    private volatile JavaDescription[] table = new JavaDescription[INITIAL_CAPACITY];
+
+    /** The number of entries in the table, guarded by 'this' */
+    private int size = 0;
+
+    @Override
+    public StackTraceNode.Description describe(StackTraceElement element, @Nullable StackTraceElement parent) {
+        String className = element.getClassName();
+        String methodName = element.getMethodName();
+        int lineNumber = element.getLineNumber();
+        int parentLineNumber = parent == null ? StackTraceNode.NULL_LINE_NUMBER : parent.getLineNumber();
+        int hash = JavaDescription.hash(className, methodName, lineNumber, parentLineNumber);
+
+        JavaDescription description = find(this.table, hash, className, methodName, lineNumber, parentLineNumber);
+        if (description != null) {
+            return description;
+        }
+        return insert(hash, className, methodName, lineNumber, parentLineNumber);
+    }
+
+    /**
+     * Gets the number of interned frames.
+     *
+     * @return the size
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    private synchronized JavaDescription insert(int hash, String className, String methodName, int lineNumber, int parentLineNumber) {
+        JavaDescription[] table = this.table;
+
+        // check again, another thread may have inserted whilst we were waiting
+        JavaDescription existing = find(table, hash, className, methodName, lineNumber, parentLineNumber);
+        if (existing != null) {
+            return existing;
+        }
+
+        if (this.size >= MAX_SIZE) {
+            // descriptions are still compared by value, so dropping the table is safe
+            table = new JavaDescription[INITIAL_CAPACITY];
+            this.size = 0;
+        } else if ((this.size + 1) * 2 > table.length) {
+            // keep the load factor under 0.5
+            table = resize(table, table.length * 2);
+        }
+
+        JavaDescription description = new JavaDescription(className, methodName, lineNumber, parentLineNumber);
+        table[freeSlot(table, hash)] = description;
+        this.size++;
+
+        this.table = table;
+        return description;
+    }
+
+    private static JavaDescription[] resize(JavaDescription[] from, int capacity) {
+        JavaDescription[] to = new JavaDescription[capacity];
+        for (JavaDescription description : from) {
+            if (description != null) {
+                to[freeSlot(to, description.hashCode())] = description;
+            }
+        }
+        return to;
+    }
+
+    private static JavaDescription find(JavaDescription[] table, int hash, String className, String methodName, int lineNumber, int parentLineNumber) {
+        int mask = table.length - 1;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            JavaDescription description = table[slot];
+            if (description == null) {
+                return null;
+            }
+            if (description.hashCode() == hash &&
+                    description.lineNumber() == lineNumber &&
+                    description.parentLineNumber() == parentLineNumber &&
+                    description.methodName().equals(methodName) &&
+                    description.className().equals(className)) {
+                return description;
+            }
+        }
+    }
+
+    private static int freeSlot(JavaDescription[] table, int hash) {
+        int mask = table.length - 1;
+        int slot = spread(hash) & mask;
+        while (table[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -0,0 +1,334 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Batched ingest engine for the {@link JavaSampler}.
+ *
+ * <p>Thread dumps are pushed onto a bounded lock-free queue by the sampling task, and
+ * drained in batches by a single drain task. Each batch is sharded by thread group, so
+ * that exactly one writer touches a given {@link me.lucko.spark.common.sampler.node.ThreadNode}
+ * at a time, rather than every worker contending on the same nodes.</p>
+ *
+ * <p>If the queue is full, new dumps are dropped (and counted) rather than letting
+ * the backlog grow without bound.</p>
+ */
+public final class JavaIngestPipeline {
+
+    /** The default maximum number of dumps waiting to be ingested */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** The maximum number of dumps ingested in a single batch */
+    private static final int MAX_BATCH_SIZE = 64;
+
+    /** The number of shards each batch is split into */
+    private static final int SHARD_COUNT = 4;
+
+    /** The aggregator to write data into */
+    private final JavaDataAggregator dataAggregator;
+
+    /** The executor used to run the drain and shard tasks */
+    private final Executor executor;
+
+    /** Called (in order) with each window that a batch contained, once the batch has been written */
+    private final IntConsumer windowCallback;
+
+    /** Called with the time spent inserting each dump, in nanoseconds */
+    private final LongConsumer insertCostCallback;
+
+    /** The maximum number of dumps waiting to be ingested */
+    private final int capacity;
+
+    /** The queue of dumps waiting to be ingested */
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+
+    /** The number of dumps in the queue - used to bound its size */
+    private final AtomicInteger depth = new AtomicInteger();
+
+    /** If a drain task is currently scheduled or running */
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    // metrics
+    private final LongAdder droppedDumps = new LongAdder();
+    private final LongAdder ingestedDumps = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public JavaIngestPipeline(JavaDataAggregator dataAggregator, Executor executor, IntConsumer windowCallback, LongConsumer insertCostCallback, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        this.dataAggregator = dataAggregator;
+        this.executor = executor;
+        this.windowCallback = windowCallback;
+        this.insertCostCallback = insertCostCallback;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Submits a set of thread dumps to be ingested.
+     *
+     * @param threadDumps the thread dumps
+     * @param interval the sampling interval in effect when the dumps were taken, in microseconds
+     * @param window the window the dumps were taken in
+     * @return true if the dumps were queued, false if they were dropped because the queue is full
+     */
+    public boolean submit(ThreadInfo[] threadDumps, int interval, int window) {
+        return submit(threadDumps, interval, null, window);
+    }
+
+    /**
+     * Submits a set of thread dumps to be ingested, each with its own weight.
+     *
+     * @param threadDumps the thread dumps
+     * @param interval the sampling interval in effect when the dumps were taken, in microseconds
+     * @param threadIntervals the time to attribute to each dump, in microseconds, or null to use the interval
+     * @param window the window the dumps were taken in
+     * @return true if the dumps were queued, false if they were dropped because the queue is full
+     */
+    public boolean submit(ThreadInfo[] threadDumps, int interval, int[] threadIntervals, int window) {
+        if (this.depth.incrementAndGet() > this.capacity) {
+            this.depth.decrementAndGet();
+            this.droppedDumps.increment();
+            return false;
+        }
+
+        this.queue.offer(new Entry(threadDumps, interval, threadIntervals, window, System.nanoTime()));
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Gets the number of dumps waiting to be ingested.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return this.depth.get();
+    }
+
+    /**
+     * Gets the number of dumps that have been dropped because the queue was full.
+     *
+     * @return the number of dropped dumps
+     */
+    public long getDroppedDumps() {
+        return this.droppedDumps.sum();
+    }
+
+    /**
+     * Gets the number of dumps that have been ingested.
+     *
+     * @return the number of ingested dumps
+     */
+    public long getIngestedDumps() {
+        return this.ingestedDumps.sum();
+    }
+
+    /**
+     * Gets the mean time between a dump being submitted and it being written to the aggregator.
+     *
+     * @return the mean ingest latency, in milliseconds
+     */
+    public double getMeanIngestLatencyMillis() {
+        long count = this.ingestedDumps.sum();
+        if (count == 0) {
+            return 0;
+        }
+        return (this.totalLatencyNanos.sum() / (double) count) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Gets the max time between a dump being submitted and it being written to the aggregator.
+     *
+     * @return the max ingest latency, in milliseconds
+     */
+    public double getMaxIngestLatencyMillis() {
+        return this.maxLatencyNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private void scheduleDrain() {
+        if (this.draining.compareAndSet(false, true)) {
+            execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        do {
+            List<Entry> batch;
+            while (!(batch = pollBatch()).isEmpty()) {
+                ingest(batch);
+            }
+            this.draining.set(false);
+
+            // an entry may have been queued after we last polled, but before we cleared the flag
+        } while (!this.queue.isEmpty() && this.draining.compareAndSet(false, true));
+    }
+
+    private List<Entry> pollBatch() {
+        List<Entry> batch = new ArrayList<>(Math.min(MAX_BATCH_SIZE, this.depth.get()));
+        Entry entry;
+        while (batch.size() < MAX_BATCH_SIZE && (entry = this.queue.poll()) != null) {
+            this.depth.decrementAndGet();
+            batch.add(entry);
+        }
+        return batch;
+    }
+
+    private void ingest(List<Entry> batch) {
+        // split the batch into shards by thread group
+        Shard[] shards = new Shard[SHARD_COUNT];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+
+        for (Entry entry : batch) {
+            for (int i = 0; i < entry.threadDumps.length; i++) {
+                ThreadInfo threadInfo = entry.threadDumps[i];
+                if (threadInfo.getThreadName() == null || threadInfo.getStackTrace() == null) {
+                    continue;
+                }
+                int interval = entry.threadIntervals != null ? entry.threadIntervals[i] : entry.interval;
+                if (interval <= 0) {
+                    continue;
+                }
+                String group = this.dataAggregator.getGroup(threadInfo);
+                shards[Math.floorMod(group.hashCode(), SHARD_COUNT)].add(threadInfo, group, interval, entry.window);
+            }
+        }
+
+        // write each shard on its own worker, and wait for them all to complete.
+        // drains never overlap, so no two writers ever touch the same thread group
+        CountDownLatch latch = new CountDownLatch(SHARD_COUNT - 1);
+        for (int i = 1; i < SHARD_COUNT; i++) {
+            Shard shard = shards[i];
+            execute(() -> {
+                try {
+                    shard.run();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        shards[0].run();
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // record metrics and notify the sampler of the windows that have been written
+        long cost = 0;
+        for (Shard shard : shards) {
+            cost += shard.elapsed;
+        }
+        this.insertCostCallback.accept(cost / batch.size());
+
+        long now = System.nanoTime();
+        int lastWindow = Integer.MIN_VALUE;
+        for (Entry entry : batch) {
+            long latency = now - entry.submitTime;
+            this.totalLatencyNanos.add(latency);
+            this.maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            this.ingestedDumps.increment();
+
+            if (entry.window != lastWindow) {
+                this.windowCallback.accept(entry.window);
+                lastWindow = entry.window;
+            }
+        }
+    }
+
+    private void execute(Runnable runnable) {
+        try {
+            this.executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            // the executor is shutting down - run inline so that queued data is not lost
+            runnable.run();
+        }
+    }
+
+    private static final class Entry {
+        private final ThreadInfo[] threadDumps;
+        private final int interval;
+        private final int[] threadIntervals;
+        private final int window;
+        private final long submitTime;
+
+        Entry(ThreadInfo[] threadDumps, int interval, int[] threadIntervals, int window, long submitTime) {
+            this.threadDumps = threadDumps;
+            this.interval = interval;
+            this.threadIntervals = threadIntervals;
+            this.window = window;
+            this.submitTime = submitTime;
+        }
+    }
+
+    private final class Shard implements Runnable {
+        private final List<Sample> samples = new ArrayList<>();
+        private long elapsed;
+
+        void add(ThreadInfo threadInfo, String group, int interval, int window) {
+            this.samples.add(new Sample(threadInfo, group, interval, window));
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            for (Sample sample : this.samples) {
+                JavaIngestPipeline.this.dataAggregator.writeData(sample.threadInfo, sample.group, sample.interval, sample.window);
+            }
+            this.elapsed = System.nanoTime() - start;
+        }
+    }
+
+    private static final class Sample {
+        private final ThreadInfo threadInfo;
+        private final String group;
+        private final int interval;
+        private final int window;
+
+        Sample(ThreadInfo threadInfo, String group, int interval, int window) {
+            this.threadInfo = threadInfo;
+            this.group = group;
+            this.interval = interval;
+            this.window = window;
+        }
+    }
+
+}
@@ -26,9 +26,9 @@ import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
 import me.lucko.spark.common.util.MethodDisambiguator;
 import me.lucko.spark.proto.SparkSamplerProtos;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Node exporter for the {@link JavaSampler}.
@@ -38,7 +38,11 @@ public class JavaNodeExporter extends AbstractNodeExporter {
     private final MethodDisambiguator methodDisambiguator;
 
     public JavaNodeExporter(ProtoTimeEncoder timeEncoder, MergeStrategy mergeStrategy, MethodDisambiguator methodDisambiguator) {
-        super(timeEncoder);
+        this(timeEncoder, mergeStrategy, methodDisambiguator, false);
+    }
+
+    public JavaNodeExporter(ProtoTimeEncoder timeEncoder, MergeStrategy mergeStrategy, MethodDisambiguator methodDisambiguator, boolean sparseTimes) {
+        super(timeEncoder, sparseTimes);
         this.mergeStrategy = mergeStrategy;
         this.methodDisambiguator = methodDisambiguator;
     }
@@ -48,10 +52,7 @@ public class JavaNodeExporter extends AbstractNodeExporter {
                 .setClassName(stackTraceNode.getClassName())
                 .setMethodName(stackTraceNode.getMethodName());
 
-        double[] times = stackTraceNode.encodeTimesForProto(this.timeEncoder);
-        for (double time : times) {
-            proto.addTimes(time);
-        }
+        stackTraceNode.encodeTimesForProto(this.timeEncoder, this.sparseTimes, proto::addTimes, proto::addTimeIndexes);
 
         int lineNumber = stackTraceNode.getLineNumber();
         if (lineNumber >= 0) {
@@ -76,22 +77,19 @@ public class JavaNodeExporter extends AbstractNodeExporter {
 
     @Override
     protected Collection<StackTraceNode> exportChildren(Collection<StackTraceNode> children) {
-        if (children.isEmpty()) {
+        if (children.size() <= 1) {
             return children;
         }
 
-        List<StackTraceNode> list = new ArrayList<>(children.size());
-
-        outer:
+        // group children by merge key, merging each into the first child seen with the same key
+        Map<MergeStrategy.MergeKey, StackTraceNode> merged = new LinkedHashMap<>();
         for (StackTraceNode child : children) {
-            for (StackTraceNode other : list) {
-                if (this.mergeStrategy.shouldMerge(this.methodDisambiguator, other, child)) {
-                    other.merge(child);
-                    continue outer;
-                }
+            MergeStrategy.MergeKey key = this.mergeStrategy.mergeKey(this.methodDisambiguator, child);
+            StackTraceNode existing = merged.putIfAbsent(key, child);
+            if (existing != null) {
+                existing.merge(child);
             }
-            list.add(child);
         }
-        return list;
+        return merged.values();
     }
 }
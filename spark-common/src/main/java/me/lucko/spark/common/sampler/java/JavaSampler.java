@@ -32,16 +32,21 @@ import me.lucko.spark.common.tick.TickHook;
 import me.lucko.spark.common.util.MethodDisambiguator;
 import me.lucko.spark.common.util.SparkThreadFactory;
 import me.lucko.spark.common.ws.ViewerSocket;
+import me.lucko.spark.proto.SparkSamplerProtos;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.IntPredicate;
 
 /**
@@ -58,8 +63,11 @@ public class JavaSampler extends AbstractSampler implements Runnable {
                     .build()
     );
 
-    /** The main sampling task */
-    private ScheduledFuture<?> task;
+    /** The main sampling task - replaced after each sample if the schedule is jittered */
+    private volatile ScheduledFuture<?> task;
+
+    /** If the sampler has been stopped */
+    private volatile boolean stopped = false;
 
     /** The task to send statistics to the viewer socket */
     private ScheduledFuture<?> socketStatisticsTask;
@@ -70,17 +78,104 @@ public class JavaSampler extends AbstractSampler implements Runnable {
     /** Responsible for aggregating and then outputting collected sampling data */
     private final JavaDataAggregator dataAggregator;
 
+    /** The batched ingest engine, or null if dumps are inserted directly by the worker pool */
+    private final JavaIngestPipeline ingestPipeline;
+
+    /** Adjusts the sampling interval to meet an overhead budget, or null if the interval is fixed */
+    private final AdaptiveIntervalController intervalController;
+
+    /** The profiling mode */
+    private final SamplerMode mode;
+
+    /** Measures what each sampled thread did between dumps, or null if samples are weighted by wall time */
+    private final ThreadDeltaTracker deltaTracker;
+
+    /** Aggregates the threads blocked waiting for a lock held by another thread, or null if not profiling execution */
+    private final LockContentionAggregator lockContention;
+
+    /** The jitter added to the delay between samples */
+    private final SamplingJitter jitter;
+
+    /** The time the last sample was taken, from {@link System#nanoTime()}, only used with a jittered schedule */
+    private long lastCaptureNanos = 0;
+
+    /** Records the phase of the tick in which each sample was taken, or null if there is no tick hook */
+    private TickPhaseHistogram tickPhases;
+
+    /** The number of ticks since a sample was last taken, only used with an adaptive interval */
+    private int ticksSinceSample = 0;
+
     /** The last window that was profiled */
     private final AtomicInteger lastWindow = new AtomicInteger();
     
-    public JavaSampler(SparkPlatform platform, SamplerSettings settings) {
+    public JavaSampler(SparkPlatform platform, SamplerSettings settings, boolean batchedIngest) {
         super(platform, settings);
+        this.intervalController = createIntervalController(settings);
+        this.mode = settings.mode();
+        this.deltaTracker = createDeltaTracker(settings, this.threadBean);
+        this.jitter = settings.jitter();
+        this.lockContention = createLockContentionAggregator(settings);
         this.dataAggregator = new SimpleJavaDataAggregator(this.workerPool, settings.threadGrouper(), settings.interval(), settings.ignoreSleeping());
+        this.ingestPipeline = batchedIngest
+                ? new JavaIngestPipeline(this.dataAggregator, this.workerPool, this::onWindowInserted, this::recordInsertCost, JavaIngestPipeline.DEFAULT_CAPACITY)
+                : null;
     }
 
     public JavaSampler(SparkPlatform platform, SamplerSettings settings, TickHook tickHook, int tickLengthThreshold) {
         super(platform, settings);
+        this.intervalController = createIntervalController(settings);
+        this.mode = settings.mode();
+        this.deltaTracker = createDeltaTracker(settings, this.threadBean);
+        this.jitter = settings.jitter();
+        this.lockContention = createLockContentionAggregator(settings);
         this.dataAggregator = new TickedJavaDataAggregator(this.workerPool, settings.threadGrouper(), settings.interval(), settings.ignoreSleeping(), tickHook, tickLengthThreshold);
+        // the ticked aggregator reads the current tick as data is inserted, so it can't be batched
+        this.ingestPipeline = null;
+    }
+
+    /**
+     * Gets the batched ingest engine, if it is being used.
+     *
+     * @return the ingest pipeline, or null
+     */
+    public JavaIngestPipeline getIngestPipeline() {
+        return this.ingestPipeline;
+    }
+
+    /**
+     * Gets the adaptive interval controller, if the interval is not fixed.
+     *
+     * @return the interval controller, or null
+     */
+    public AdaptiveIntervalController getIntervalController() {
+        return this.intervalController;
+    }
+
+    /**
+     * Gets the per-thread delta tracker, if samples are weighted by CPU time or allocated bytes.
+     *
+     * @return the delta tracker, or null
+     */
+    public ThreadDeltaTracker getDeltaTracker() {
+        return this.deltaTracker;
+    }
+
+    private static AdaptiveIntervalController createIntervalController(SamplerSettings settings) {
+        return settings.overheadBudget() > 0
+                ? new AdaptiveIntervalController(settings.interval(), settings.overheadBudget())
+                : null;
+    }
+
+    private static LockContentionAggregator createLockContentionAggregator(SamplerSettings settings) {
+        // contention is weighted by time, so isn't recorded when profiling allocations
+        return settings.mode() == SamplerMode.EXECUTION ? new LockContentionAggregator() : null;
+    }
+
+    private static ThreadDeltaTracker createDeltaTracker(SamplerSettings settings, ThreadMXBean threadBean) {
+        if (settings.mode() == SamplerMode.ALLOCATION) {
+            return new ThreadAllocationTracker(threadBean);
+        }
+        return settings.cpuTime() ? new ThreadCpuTimeTracker(threadBean) : null;
     }
 
     @Override
@@ -95,18 +190,49 @@ public class JavaSampler extends AbstractSampler implements Runnable {
             } else {
                 this.windowStatisticsCollector.startCountingTicks(tickHook);
             }
+
+            this.tickPhases = new TickPhaseHistogram();
+            tickHook.addCallback(this.tickPhases);
         }
 
         this.windowStatisticsCollector.recordWindowStartTime(ProfilingWindowUtils.unixMillisToWindow(this.startTime));
-        this.task = this.workerPool.scheduleAtFixedRate(this, 0, this.interval, TimeUnit.MICROSECONDS);
+        if (this.jitter == SamplingJitter.NONE) {
+            this.task = this.workerPool.scheduleAtFixedRate(this, 0, this.interval, TimeUnit.MICROSECONDS);
+        } else {
+            scheduleNextSample();
+        }
+    }
+
+    /**
+     * Gets the histogram of the tick phases in which samples were taken.
+     *
+     * @return the tick phase histogram, or null if there is no tick hook
+     */
+    public TickPhaseHistogram getTickPhases() {
+        return this.tickPhases;
+    }
+
+    private void scheduleNextSample() {
+        long delay = this.jitter.nextDelay(this.interval, ThreadLocalRandom.current());
+        try {
+            this.task = this.workerPool.schedule(this, delay, TimeUnit.MICROSECONDS);
+        } catch (RejectedExecutionException e) {
+            // the sampler has been stopped
+        }
     }
 
     @Override
     public void stop(boolean cancelled) {
         super.stop(cancelled);
 
+        this.stopped = true;
         this.task.cancel(false);
 
+        TickHook tickHook = this.platform.getTickHook();
+        if (tickHook != null && this.tickPhases != null) {
+            tickHook.removeCallback(this.tickPhases);
+        }
+
         if (this.socketStatisticsTask != null) {
             this.socketStatisticsTask.cancel(false);
         }
@@ -123,6 +249,10 @@ public class JavaSampler extends AbstractSampler implements Runnable {
     public void run() {
         // this is effectively synchronized, the worker pool will not allow this task
         // to concurrently execute.
+        if (this.stopped) {
+            return;
+        }
+
         try {
             long time = System.currentTimeMillis();
 
@@ -132,12 +262,50 @@ public class JavaSampler extends AbstractSampler implements Runnable {
                 return;
             }
 
+            int interval = this.interval;
+            if (this.intervalController != null) {
+                // the task runs at the base interval - skip ticks until the adaptive interval has elapsed,
+                // then weight the sample by the number of ticks it covers
+                if (++this.ticksSinceSample < this.intervalController.getIntervalTicks()) {
+                    return;
+                }
+                interval = this.ticksSinceSample * this.interval;
+                this.ticksSinceSample = 0;
+            }
+
             int window = ProfilingWindowUtils.unixMillisToWindow(time);
+            long captureStart = System.nanoTime();
+            if (this.jitter != SamplingJitter.NONE) {
+                // the delays vary, so weight the sample by the time that actually elapsed since the last one
+                if (this.lastCaptureNanos != 0) {
+                    interval = (int) Math.min((captureStart - this.lastCaptureNanos) / 1000, Integer.MAX_VALUE);
+                }
+                this.lastCaptureNanos = captureStart;
+            }
+            if (this.tickPhases != null) {
+                this.tickPhases.record(captureStart);
+            }
             ThreadInfo[] threadDumps = this.threadDumper.dumpThreads(this.threadBean);
-            this.workerPool.execute(new InsertDataTask(threadDumps, window));
+            int[] threadIntervals = this.deltaTracker != null ? this.deltaTracker.measure(threadDumps) : null;
+            if (this.lockContention != null) {
+                this.lockContention.record(threadDumps, interval, window, this.threadBean);
+            }
+            if (this.intervalController != null) {
+                this.intervalController.recordCaptureCost(System.nanoTime() - captureStart);
+            }
+
+            if (this.ingestPipeline != null) {
+                this.ingestPipeline.submit(threadDumps, interval, threadIntervals, window);
+            } else {
+                this.workerPool.execute(new InsertDataTask(threadDumps, interval, threadIntervals, window));
+            }
         } catch (Throwable t) {
             stop(false);
             this.future.completeExceptionally(t);
+        } finally {
+            if (this.jitter != SamplingJitter.NONE && !this.stopped) {
+                scheduleNextSample();
+            }
         }
     }
 
@@ -152,55 +320,91 @@ public class JavaSampler extends AbstractSampler implements Runnable {
 
     private final class InsertDataTask implements Runnable {
         private final ThreadInfo[] threadDumps;
+        private final int interval;
+        private final int[] threadIntervals;
         private final int window;
 
-        InsertDataTask(ThreadInfo[] threadDumps, int window) {
+        InsertDataTask(ThreadInfo[] threadDumps, int interval, int[] threadIntervals, int window) {
             this.threadDumps = threadDumps;
+            this.interval = interval;
+            this.threadIntervals = threadIntervals;
             this.window = window;
         }
 
         @Override
         public void run() {
-            for (ThreadInfo threadInfo : this.threadDumps) {
+            long start = System.nanoTime();
+            for (int i = 0; i < this.threadDumps.length; i++) {
+                ThreadInfo threadInfo = this.threadDumps[i];
                 if (threadInfo.getThreadName() == null || threadInfo.getStackTrace() == null) {
                     continue;
                 }
-                JavaSampler.this.dataAggregator.insertData(threadInfo, this.window);
+                int interval = this.threadIntervals != null ? this.threadIntervals[i] : this.interval;
+                if (interval <= 0) {
+                    // the thread didn't use any cpu time / allocate since the previous dump
+                    continue;
+                }
+                JavaSampler.this.dataAggregator.insertData(threadInfo, interval, this.window);
             }
+            recordInsertCost(System.nanoTime() - start);
+
+            onWindowInserted(this.window);
+        }
+    }
 
-            // if we have just stepped over into a new window...
-            int previousWindow = JavaSampler.this.lastWindow.getAndUpdate(previous -> Math.max(this.window, previous));
-            if (previousWindow != 0 && previousWindow != this.window) {
+    private void recordInsertCost(long nanos) {
+        if (this.intervalController != null) {
+            this.intervalController.recordInsertCost(nanos);
+        }
+    }
 
-                // record the start time for the new window
-                JavaSampler.this.windowStatisticsCollector.recordWindowStartTime(this.window);
+    private void onWindowInserted(int window) {
+        // if we have just stepped over into a new window...
+        int previousWindow = this.lastWindow.getAndUpdate(previous -> Math.max(window, previous));
+        if (previousWindow != 0 && previousWindow != window) {
 
-                // collect statistics for the previous window
-                JavaSampler.this.windowStatisticsCollector.measureNow(previousWindow);
+            // record the start time for the new window
+            this.windowStatisticsCollector.recordWindowStartTime(window);
 
-                // prune data older than the history size
-                IntPredicate predicate = ProfilingWindowUtils.keepHistoryBefore(this.window);
-                JavaSampler.this.dataAggregator.pruneData(predicate);
-                JavaSampler.this.windowStatisticsCollector.pruneStatistics(predicate);
+            // collect statistics for the previous window
+            this.windowStatisticsCollector.measureNow(previousWindow);
 
-                JavaSampler.this.workerPool.execute(JavaSampler.this::processWindowRotate);
+            // prune data older than the history size
+            IntPredicate predicate = ProfilingWindowUtils.keepHistoryBefore(window);
+            this.dataAggregator.pruneData(predicate);
+            this.windowStatisticsCollector.pruneStatistics(predicate);
+            if (this.lockContention != null) {
+                this.lockContention.pruneData(predicate);
             }
+
+            this.workerPool.execute(this::processWindowRotate);
         }
     }
 
     @Override
-    public SamplerData toProto(SparkPlatform platform, ExportProps exportProps) {
-        SamplerData.Builder proto = SamplerData.newBuilder();
+    protected void writeProto(SamplerData.Builder proto, SparkPlatform platform, ExportProps exportProps, Consumer<SparkSamplerProtos.ThreadNode> threadSink) {
         if (exportProps.channelInfo() != null) {
             proto.setChannelInfo(exportProps.channelInfo());
         }
 
         writeMetadataToProto(proto, platform, exportProps.creator(), exportProps.comment(), this.dataAggregator);
 
-        MethodDisambiguator methodDisambiguator = new MethodDisambiguator(platform.createClassFinder());
-        writeDataToProto(proto, this.dataAggregator, timeEncoder -> new JavaNodeExporter(timeEncoder, exportProps.mergeStrategy(), methodDisambiguator), exportProps.classSourceLookup().get(), platform::createClassFinder);
+        SamplerMetadata.Builder metadata = proto.getMetadata().toBuilder()
+                .setSamplingJitter(this.jitter.asProto());
+        if (this.tickPhases != null) {
+            for (long count : this.tickPhases.getCounts()) {
+                metadata.addTickPhaseSamples(count);
+            }
+        }
+        proto.setMetadata(metadata);
 
-        return proto.build();
+        // the class finder is only created if a class isn't already cached from a previous export
+        MethodDisambiguator methodDisambiguator = new MethodDisambiguator(platform::createClassFinder, MethodDisambiguator.ClassCache.SHARED);
+        writeDataToProto(proto, this.dataAggregator, timeEncoder -> new JavaNodeExporter(timeEncoder, exportProps.mergeStrategy(), methodDisambiguator, exportProps.sparseTimes()), exportProps.classSourceLookup().get(), platform::createClassFinder, threadSink);
+
+        if (this.lockContention != null) {
+            this.lockContention.writeTo(proto);
+        }
     }
 
     @Override
@@ -213,8 +417,16 @@ public class JavaSampler extends AbstractSampler implements Runnable {
         return null;
     }
 
+    @Override
+    public String getEngineEvent() {
+        if (this.deltaTracker instanceof ThreadAllocationTracker) {
+            return "alloc";
+        }
+        return this.deltaTracker instanceof ThreadCpuTimeTracker ? "cpu" : null;
+    }
+
     @Override
     public SamplerMode getMode() {
-        return SamplerMode.EXECUTION;
+        return this.mode;
     }
 }
@@ -0,0 +1,207 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import me.lucko.spark.proto.SparkSamplerProtos.LockContention;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.IntPredicate;
+
+/**
+ * Aggregates the threads sampled by the {@link JavaSampler} which were blocked waiting
+ * for a lock held by another thread.
+ *
+ * <p>Each (window, waiting thread, owning thread, lock class) edge is weighted by the time
+ * the waiter was sampled blocked, and keeps the stacks the owner was sampled with while
+ * it held the lock - i.e. what it was doing that stalled the waiter.</p>
+ *
+ * <p>Owners which aren't included in the thread dump are dumped separately, but only
+ * when there is contention.</p>
+ */
+public final class LockContentionAggregator {
+
+    /** The maximum number of distinct owner stacks kept for each edge */
+    private static final int MAX_OWNER_STACKS = 8;
+
+    /** The maximum number of frames kept from the top of each owner stack */
+    private static final int MAX_OWNER_STACK_DEPTH = 32;
+
+    private static final StackTraceElement[] EMPTY_STACK = new StackTraceElement[0];
+
+    // guarded by 'this'
+    private final Map<EdgeKey, Edge> edges = new HashMap<>();
+
+    /**
+     * Records the threads in the dump which are blocked waiting for a lock held by another thread.
+     *
+     * @param threadDumps the thread dumps
+     * @param interval the time to attribute to each blocked thread, in microseconds
+     * @param window the window
+     * @param threadBean the thread management interface, used to dump owners which aren't in the dump
+     */
+    public void record(ThreadInfo[] threadDumps, int interval, int window, ThreadMXBean threadBean) {
+        Map<Long, ThreadInfo> threads = null;
+        for (ThreadInfo waiter : threadDumps) {
+            if (waiter == null || waiter.getLockOwnerId() == -1 || waiter.getLockInfo() == null) {
+                continue;
+            }
+
+            if (threads == null) {
+                threads = new HashMap<>();
+                for (ThreadInfo thread : threadDumps) {
+                    if (thread != null) {
+                        threads.put(thread.getThreadId(), thread);
+                    }
+                }
+            }
+
+            long ownerId = waiter.getLockOwnerId();
+            ThreadInfo owner = threads.get(ownerId);
+            if (owner == null) {
+                owner = threadBean.getThreadInfo(ownerId, MAX_OWNER_STACK_DEPTH);
+                if (owner != null) {
+                    threads.put(ownerId, owner);
+                }
+            }
+
+            String ownerName = owner != null ? owner.getThreadName() : waiter.getLockOwnerName();
+            if (ownerName == null) {
+                continue;
+            }
+            StackTraceElement[] ownerStack = owner != null ? owner.getStackTrace() : EMPTY_STACK;
+
+            insert(window, waiter.getThreadName(), ownerName, waiter.getLockInfo().getClassName(), interval, ownerStack);
+        }
+    }
+
+    synchronized void insert(int window, String waiter, String owner, String lockClass, long time, StackTraceElement[] ownerStack) {
+        Edge edge = this.edges.computeIfAbsent(new EdgeKey(window, waiter, owner, lockClass), key -> new Edge());
+        edge.time += time;
+
+        List<StackTraceElement> stack = Arrays.asList(Arrays.copyOf(ownerStack, Math.min(ownerStack.length, MAX_OWNER_STACK_DEPTH)));
+        Long stackTime = edge.ownerStacks.get(stack);
+        if (stackTime != null) {
+            edge.ownerStacks.put(stack, stackTime + time);
+        } else if (edge.ownerStacks.size() < MAX_OWNER_STACKS) {
+            edge.ownerStacks.put(stack, time);
+        }
+    }
+
+    /**
+     * Removes the data for windows matching the given predicate.
+     *
+     * @param timeWindowPredicate the predicate
+     */
+    public synchronized void pruneData(IntPredicate timeWindowPredicate) {
+        this.edges.keySet().removeIf(key -> timeWindowPredicate.test(key.window));
+    }
+
+    /**
+     * Writes the aggregated contention to the given proto, ordered by window and then by time (most first).
+     *
+     * @param proto the proto
+     */
+    public synchronized void writeTo(SamplerData.Builder proto) {
+        List<Map.Entry<EdgeKey, Edge>> entries = new ArrayList<>(this.edges.entrySet());
+        entries.sort(Comparator.<Map.Entry<EdgeKey, Edge>>comparingInt(e -> e.getKey().window)
+                .thenComparing(Comparator.<Map.Entry<EdgeKey, Edge>>comparingLong(e -> e.getValue().time).reversed()));
+
+        for (Map.Entry<EdgeKey, Edge> entry : entries) {
+            EdgeKey key = entry.getKey();
+            Edge edge = entry.getValue();
+
+            LockContention.Builder contention = LockContention.newBuilder()
+                    .setWindow(key.window)
+                    .setWaiterThread(key.waiter)
+                    .setOwnerThread(key.owner)
+                    .setLockClass(key.lockClass)
+                    .setTime(edge.time / 1000d);
+
+            List<Map.Entry<List<StackTraceElement>, Long>> stacks = new ArrayList<>(edge.ownerStacks.entrySet());
+            stacks.sort(Collections.reverseOrder(Map.Entry.comparingByValue()));
+            for (Map.Entry<List<StackTraceElement>, Long> stack : stacks) {
+                LockContention.OwnerStack.Builder ownerStack = LockContention.OwnerStack.newBuilder()
+                        .setTime(stack.getValue() / 1000d);
+                for (StackTraceElement element : stack.getKey()) {
+                    LockContention.Frame.Builder frame = LockContention.Frame.newBuilder()
+                            .setClassName(element.getClassName())
+                            .setMethodName(element.getMethodName());
+                    if (element.getLineNumber() >= 0) {
+                        frame.setLineNumber(element.getLineNumber());
+                    }
+                    ownerStack.addFrames(frame.build());
+                }
+                contention.addOwnerStacks(ownerStack.build());
+            }
+
+            proto.addLockContention(contention.build());
+        }
+    }
+
+    private static final class EdgeKey {
+        private final int window;
+        private final String waiter;
+        private final String owner;
+        private final String lockClass;
+
+        EdgeKey(int window, String waiter, String owner, String lockClass) {
+            this.window = window;
+            this.waiter = waiter;
+            this.owner = owner;
+            this.lockClass = lockClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            EdgeKey other = (EdgeKey) o;
+            return this.window == other.window &&
+                    this.waiter.equals(other.waiter) &&
+                    this.owner.equals(other.owner) &&
+                    this.lockClass.equals(other.lockClass);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.window, this.waiter, this.owner, this.lockClass);
+        }
+    }
+
+    private static final class Edge {
+        /** The time the waiter was sampled blocked, in microseconds */
+        long time;
+        /** The time recorded against each owner stack, in microseconds */
+        final Map<List<StackTraceElement>, Long> ownerStacks = new LinkedHashMap<>();
+    }
+
+}
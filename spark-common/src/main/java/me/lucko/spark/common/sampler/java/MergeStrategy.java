@@ -78,4 +78,53 @@ public enum MergeStrategy {
         return Objects.equals(desc1, desc2);
     }
 
+    /**
+     * Gets a key for the given node, such that two nodes {@link #shouldMerge(MethodDisambiguator, StackTraceNode, StackTraceNode) should be merged}
+     * if and only if their keys are equal.
+     *
+     * @param disambiguator the method disambiguator
+     * @param node the node
+     * @return the merge key
+     */
+    public MergeKey mergeKey(MethodDisambiguator disambiguator, StackTraceNode node) {
+        String desc = disambiguator.disambiguate(node).map(MethodDisambiguator.MethodDescription::getDescription).orElse(null);
+        int parentLineNumber = this.separateParentCalls ? node.getParentLineNumber() : StackTraceNode.NULL_LINE_NUMBER;
+        return new MergeKey(node.getClassName(), node.getMethodName(), parentLineNumber, desc);
+    }
+
+    /**
+     * The properties of a {@link StackTraceNode} that determine whether it should be merged with another.
+     */
+    public static final class MergeKey {
+        private final String className;
+        private final String methodName;
+        private final int parentLineNumber;
+        private final String methodDescription;
+        private final int hash;
+
+        MergeKey(String className, String methodName, int parentLineNumber, String methodDescription) {
+            this.className = className;
+            this.methodName = methodName;
+            this.parentLineNumber = parentLineNumber;
+            this.methodDescription = methodDescription;
+            this.hash = Objects.hash(className, methodName, parentLineNumber, methodDescription);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            MergeKey other = (MergeKey) o;
+            return this.parentLineNumber == other.parentLineNumber &&
+                    this.className.equals(other.className) &&
+                    this.methodName.equals(other.methodName) &&
+                    Objects.equals(this.methodDescription, other.methodDescription);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
 }
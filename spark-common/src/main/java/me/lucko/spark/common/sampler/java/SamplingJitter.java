@@ -0,0 +1,98 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+
+import java.util.Random;
+
+/**
+ * Randomises the delay between each sample taken by the {@link JavaSampler}.
+ *
+ * <p>When samples are taken at a fixed rate which divides the length of the server tick
+ * (e.g. every 10ms with a 50ms tick), they lock into the same phases of every tick, and
+ * short phases are either missed entirely or over-weighted. Adding jitter to each delay
+ * spreads the samples across the whole tick.</p>
+ *
+ * <p>The mean delay is always the sampling interval. Jittered samples are weighted by the
+ * time that actually elapsed since the previous sample, so the estimates stay unbiased.</p>
+ */
+public enum SamplingJitter {
+
+    /**
+     * Samples are taken at a fixed rate.
+     */
+    NONE(SamplerMetadata.SamplingJitter.NONE) {
+        @Override
+        public long nextDelay(long interval, Random random) {
+            return interval;
+        }
+    },
+
+    /**
+     * Delays are uniformly distributed between half and one and a half times the interval.
+     */
+    UNIFORM(SamplerMetadata.SamplingJitter.UNIFORM) {
+        @Override
+        public long nextDelay(long interval, Random random) {
+            return Math.max(1, (long) (interval * (0.5 + random.nextDouble())));
+        }
+    },
+
+    /**
+     * Delays are exponentially distributed, so samples form a Poisson process.
+     */
+    POISSON(SamplerMetadata.SamplingJitter.POISSON) {
+        @Override
+        public long nextDelay(long interval, Random random) {
+            double delay = -Math.log(1 - random.nextDouble()) * interval;
+            return Math.max(1, (long) Math.min(delay, interval * MAX_POISSON_SCALE));
+        }
+    };
+
+    /** The maximum delay of the poisson jitter, as a multiple of the interval */
+    private static final int MAX_POISSON_SCALE = 10;
+
+    private final SamplerMetadata.SamplingJitter proto;
+
+    SamplingJitter(SamplerMetadata.SamplingJitter proto) {
+        this.proto = proto;
+    }
+
+    /**
+     * Gets the delay before the next sample.
+     *
+     * @param interval the sampling interval
+     * @param random the random source
+     * @return the delay, in the same unit as the interval
+     */
+    public abstract long nextDelay(long interval, Random random);
+
+    /**
+     * Gets the metadata enum instance for this jitter.
+     *
+     * @return proto metadata
+     */
+    public SamplerMetadata.SamplingJitter asProto() {
+        return this.proto;
+    }
+
+}
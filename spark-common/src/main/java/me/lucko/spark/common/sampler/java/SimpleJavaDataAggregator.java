@@ -44,8 +44,8 @@ public class SimpleJavaDataAggregator extends JavaDataAggregator {
     }
 
     @Override
-    public void insertData(ThreadInfo threadInfo, int window) {
-        writeData(threadInfo, window);
+    public void insertData(ThreadInfo threadInfo, int interval, int window) {
+        writeData(threadInfo, interval, window);
     }
 
 }
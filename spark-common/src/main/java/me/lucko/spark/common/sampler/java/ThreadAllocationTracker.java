@@ -0,0 +1,69 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the bytes allocated by each sampled thread between successive thread dumps.
+ *
+ * <p>Attributing the bytes to the stack captured at the end of the interval gives a
+ * statistical allocation profile, without needing async-profiler. The allocated bytes
+ * of all threads in a dump are read with a single bulk call.</p>
+ */
+public final class ThreadAllocationTracker extends ThreadDeltaTracker {
+
+    /** The thread management interface */
+    private final com.sun.management.ThreadMXBean threadBean;
+
+    public ThreadAllocationTracker(ThreadMXBean threadBean) {
+        if (!isSupported(threadBean)) {
+            throw new UnsupportedOperationException("Thread allocation measurement is not supported");
+        }
+        this.threadBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!this.threadBean.isThreadAllocatedMemoryEnabled()) {
+            this.threadBean.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    /**
+     * Gets if the bytes allocated by other threads can be measured.
+     *
+     * @param threadBean the thread management interface
+     * @return true if supported
+     */
+    public static boolean isSupported(ThreadMXBean threadBean) {
+        return threadBean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported();
+    }
+
+    @Override
+    protected long[] readCounters(long[] threadIds) {
+        return this.threadBean.getThreadAllocatedBytes(threadIds);
+    }
+
+    @Override
+    protected long unitsPerWeight() {
+        // bytes, the unit used for allocation samples
+        return 1;
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the CPU time used by each sampled thread between successive thread dumps.
+ *
+ * <p>A thread that was asleep or blocked for the whole interval is given no weight.
+ * Where the JVM supports it, the CPU times of all threads in a dump are read with a
+ * single bulk call.</p>
+ */
+public final class ThreadCpuTimeTracker extends ThreadDeltaTracker {
+
+    /** The thread management interface */
+    private final ThreadMXBean threadBean;
+
+    /** The same interface, if it supports reading the CPU time of many threads at once, else null */
+    private final com.sun.management.ThreadMXBean bulkThreadBean;
+
+    public ThreadCpuTimeTracker(ThreadMXBean threadBean) {
+        if (!isSupported(threadBean)) {
+            throw new UnsupportedOperationException("Thread CPU time measurement is not supported");
+        }
+        if (!threadBean.isThreadCpuTimeEnabled()) {
+            threadBean.setThreadCpuTimeEnabled(true);
+        }
+        this.threadBean = threadBean;
+        this.bulkThreadBean = threadBean instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threadBean
+                : null;
+    }
+
+    /**
+     * Gets if the CPU time of other threads can be measured.
+     *
+     * @param threadBean the thread management interface
+     * @return true if supported
+     */
+    public static boolean isSupported(ThreadMXBean threadBean) {
+        return threadBean.isThreadCpuTimeSupported();
+    }
+
+    @Override
+    protected long[] readCounters(long[] threadIds) {
+        if (this.bulkThreadBean != null) {
+            return this.bulkThreadBean.getThreadCpuTime(threadIds);
+        }
+
+        long[] cpuTimes = new long[threadIds.length];
+        for (int i = 0; i < threadIds.length; i++) {
+            cpuTimes[i] = this.threadBean.getThreadCpuTime(threadIds[i]);
+        }
+        return cpuTimes;
+    }
+
+    @Override
+    protected long unitsPerWeight() {
+        // nanoseconds -> microseconds, the unit used for execution samples
+        return 1000;
+    }
+
+}
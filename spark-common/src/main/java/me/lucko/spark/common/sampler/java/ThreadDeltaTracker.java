@@ -0,0 +1,157 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import java.lang.management.ThreadInfo;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how much of a per-thread counter each sampled thread has used between
+ * successive thread dumps.
+ *
+ * <p>Used by the {@link JavaSampler} to weight each sample by what the thread actually
+ * did since the previous dump (e.g. the CPU time it used, or the bytes it allocated),
+ * rather than by the full sampling interval.</p>
+ *
+ * <p>The counters for all threads in a dump are read together. The previous value of
+ * each thread's counter is kept in a map keyed by thread id, and threads which are no
+ * longer sampled are swept out periodically.</p>
+ *
+ * <p>Not thread safe - only called from the sampling task.</p>
+ */
+public abstract class ThreadDeltaTracker {
+
+    /** The number of dumps between sweeps of threads that are no longer being sampled */
+    private static final int SWEEP_INTERVAL = 100;
+
+    /** The state of each thread that has been seen, keyed by thread id */
+    private final Map<Long, ThreadState> threads = new HashMap<>();
+
+    /** Incremented for each dump */
+    private int generation = 0;
+
+    // metrics
+    private final LongAdder measuredDumps = new LongAdder();
+    private final LongAdder totalCostNanos = new LongAdder();
+
+    /**
+     * Reads the current value of the counter for each thread.
+     *
+     * @param threadIds the thread ids
+     * @return the counter values, negative for threads which have terminated
+     */
+    protected abstract long[] readCounters(long[] threadIds);
+
+    /**
+     * Gets the number of counter units in one unit of weight.
+     *
+     * @return the units per weight
+     */
+    protected abstract long unitsPerWeight();
+
+    /**
+     * Measures how much each thread in the dump has used since the previous dump.
+     *
+     * <p>Threads which are seen for the first time have no previous measurement, so are
+     * given no weight.</p>
+     *
+     * @param threadDumps the thread dumps
+     * @return the weight of each thread
+     */
+    public int[] measure(ThreadInfo[] threadDumps) {
+        long start = System.nanoTime();
+        int generation = ++this.generation;
+        long unitsPerWeight = unitsPerWeight();
+
+        // dumps of specific threads contain null entries for threads which have terminated
+        long[] threadIds = new long[threadDumps.length];
+        int[] indexes = new int[threadDumps.length];
+        int count = 0;
+        for (int i = 0; i < threadDumps.length; i++) {
+            if (threadDumps[i] != null) {
+                threadIds[count] = threadDumps[i].getThreadId();
+                indexes[count++] = i;
+            }
+        }
+        long[] counters = readCounters(count == threadIds.length ? threadIds : Arrays.copyOf(threadIds, count));
+
+        int[] weights = new int[threadDumps.length];
+        for (int j = 0; j < count; j++) {
+            int i = indexes[j];
+            long counter = counters[j];
+            if (counter < 0) {
+                // the thread has terminated
+                continue;
+            }
+
+            ThreadState state = this.threads.get(threadIds[j]);
+            if (state == null) {
+                this.threads.put(threadIds[j], new ThreadState(counter, generation));
+                continue;
+            }
+
+            long weight = (counter - state.counter) / unitsPerWeight;
+            if (weight > 0) {
+                weights[i] = (int) Math.min(weight, Integer.MAX_VALUE);
+                // carry the remainder over to the next dump
+                state.counter += weight * unitsPerWeight;
+            }
+            state.generation = generation;
+        }
+
+        if (generation % SWEEP_INTERVAL == 0) {
+            this.threads.values().removeIf(state -> state.generation != generation);
+        }
+
+        this.measuredDumps.increment();
+        this.totalCostNanos.add(System.nanoTime() - start);
+        return weights;
+    }
+
+    /**
+     * Gets the mean time spent measuring each dump, i.e. the overhead added to each sample.
+     *
+     * @return the mean cost, in microseconds
+     */
+    public double getMeanCostMicros() {
+        long count = this.measuredDumps.sum();
+        if (count == 0) {
+            return 0;
+        }
+        return (this.totalCostNanos.sum() / (double) count) / 1000d;
+    }
+
+    private static final class ThreadState {
+        /** The value of the counter that has been attributed to the thread so far */
+        long counter;
+        /** The generation in which the thread was last seen */
+        int generation;
+
+        ThreadState(long counter, int generation) {
+            this.counter = counter;
+            this.generation = generation;
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import me.lucko.spark.common.tick.TickHook;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the phase of the server tick in which each sample was taken.
+ *
+ * <p>The tick is divided into {@link #BUCKETS} equal phases, based on the smoothed length
+ * of recent ticks. Samples taken after the expected end of a tick (i.e. in a long tick)
+ * are counted in the last phase. An even distribution shows that samples are not locked
+ * to particular phases of the tick.</p>
+ */
+public final class TickPhaseHistogram implements TickHook.Callback {
+
+    /** The number of phases the tick is divided into */
+    public static final int BUCKETS = 10;
+
+    /** The weight given to each new tick length measurement */
+    private static final double SMOOTHING = 0.1;
+
+    /** The number of samples taken in each phase */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    // written by the tick thread only
+    private volatile long tickStartNanos = 0;
+    private volatile double tickLengthNanos = 0;
+
+    @Override
+    public void onTick(int currentTick) {
+        recordTick(System.nanoTime());
+    }
+
+    void recordTick(long nanos) {
+        long previousStart = this.tickStartNanos;
+        if (previousStart != 0) {
+            long length = nanos - previousStart;
+            double smoothed = this.tickLengthNanos;
+            this.tickLengthNanos = smoothed == 0 ? length : smoothed + SMOOTHING * (length - smoothed);
+        }
+        this.tickStartNanos = nanos;
+    }
+
+    /**
+     * Records a sample taken at the given time.
+     *
+     * @param nanos the time the sample was taken, from {@link System#nanoTime()}
+     */
+    public void record(long nanos) {
+        long tickStart = this.tickStartNanos;
+        double tickLength = this.tickLengthNanos;
+        if (tickStart == 0 || tickLength <= 0 || nanos < tickStart) {
+            return;
+        }
+
+        int bucket = (int) ((nanos - tickStart) / tickLength * BUCKETS);
+        this.counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    /**
+     * Gets the number of samples taken in each phase of the tick.
+     *
+     * @return the counts
+     */
+    public long[] getCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.counts.get(i);
+        }
+        return counts;
+    }
+
+}
@@ -29,6 +29,7 @@ import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
 
 import java.lang.management.ThreadInfo;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
@@ -89,7 +90,7 @@ public class TickedJavaDataAggregator extends JavaDataAggregator {
     }
 
     @Override
-    public void insertData(ThreadInfo threadInfo, int window) {
+    public void insertData(ThreadInfo threadInfo, int interval, int window) {
         synchronized (this.mutex) {
             int tick = this.tickHook.getCurrentTick();
             if (this.currentTick != tick || this.currentData == null) {
@@ -98,7 +99,7 @@ public class TickedJavaDataAggregator extends JavaDataAggregator {
                 this.currentData = new TickList(this.expectedSize, window);
             }
 
-            this.currentData.addData(threadInfo);
+            this.currentData.addData(threadInfo, interval);
         }
     }
 
@@ -110,7 +111,7 @@ public class TickedJavaDataAggregator extends JavaDataAggregator {
         }
 
         // approximate how long the tick lasted
-        int tickLengthMicros = currentData.sizeWithoutTrailingSleeping() * this.interval;
+        int tickLengthMicros = currentData.durationWithoutTrailingSleeping();
 
         // don't push data below the threshold
         if (tickLengthMicros < this.tickLengthThreshold) {
@@ -133,17 +134,19 @@ public class TickedJavaDataAggregator extends JavaDataAggregator {
 
     private final class TickList implements Runnable {
         private final List<ThreadInfo> list;
+        private int[] intervals;
         private final int window;
 
         TickList(int expectedSize, int window) {
             this.list = new ArrayList<>(expectedSize);
+            this.intervals = new int[expectedSize];
             this.window = window;
         }
 
         @Override
         public void run() {
-            for (ThreadInfo data : this.list) {
-                writeData(data, this.window);
+            for (int i = 0; i < this.list.size(); i++) {
+                writeData(this.list.get(i), this.intervals[i], this.window);
             }
         }
 
@@ -151,17 +154,28 @@ public class TickedJavaDataAggregator extends JavaDataAggregator {
             return this.list;
         }
 
-        public int sizeWithoutTrailingSleeping() {
+        public int durationWithoutTrailingSleeping() {
             // find the last index at which the thread wasn't sleeping
+            int size = 0;
             for (int i = this.list.size() - 1; i >= 0; i--) {
                 if (!isSleeping(this.list.get(i))) {
-                    return i + 1; // add one to go from index to size
+                    size = i + 1; // add one to go from index to size
+                    break;
                 }
             }
-            return 0;
+
+            int duration = 0;
+            for (int i = 0; i < size; i++) {
+                duration += this.intervals[i];
+            }
+            return duration;
         }
 
-        public void addData(ThreadInfo data) {
+        public void addData(ThreadInfo data, int interval) {
+            if (this.list.size() == this.intervals.length) {
+                this.intervals = Arrays.copyOf(this.intervals, this.intervals.length * 2);
+            }
+            this.intervals[this.list.size()] = interval;
             this.list.add(data);
         }
     }
@@ -21,13 +21,13 @@
 package me.lucko.spark.common.sampler.node;
 
 import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
+import me.lucko.spark.common.sampler.window.TimeRing;
 
 import java.util.Collection;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.LongAdder;
-import java.util.function.IntPredicate;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
 
 /**
  * Encapsulates a timed node in the sampling stack.
@@ -40,51 +40,30 @@ public abstract class AbstractNode {
     public Map<StackTraceNode.Description, StackTraceNode> children = new ConcurrentHashMap<>();
 
     /** The accumulated sample time for this node, measured in microseconds */
-    // Integer key = the window (effectively System.currentTimeMillis() / 60_000)
-    // LongAdder value = accumulated time in microseconds
-    private final Map<Integer, LongAdder> times = new ConcurrentHashMap<>();
+    // key = the window (effectively System.currentTimeMillis() / 60_000)
+    // value = accumulated time in microseconds
+    private final TimeRing times = new TimeRing();
 
     /**
-     * Gets the time accumulator for a given window
+     * Gets the accumulated sample times for this node, keyed by window.
      *
-     * @param window the window
-     * @return the accumulator
+     * @return the times
      */
-    protected LongAdder getTimeAccumulator(int window) {
-        LongAdder adder = this.times.get(window);
-        if (adder == null) {
-            adder = new LongAdder();
-            this.times.put(window, adder);
-        }
-        return adder;
-    }
-
-    /**
-     * Gets the time windows that have been logged for this node.
-     *
-     * @return the time windows
-     */
-    public Set<Integer> getTimeWindows() {
-        return this.times.keySet();
-    }
-
-    /**
-     * Removes time windows from this node if they pass the given {@code predicate} test.
-     *
-     * @param predicate the predicate
-     * @return true if any time windows were removed
-     */
-    public boolean removeTimeWindows(IntPredicate predicate) {
-        return this.times.keySet().removeIf(predicate::test);
+    public TimeRing getTimes() {
+        return this.times;
     }
 
     /**
-     * Gets the encoded total sample times logged for this node in milliseconds.
+     * Encodes the total sample times logged for this node into the 'times' (and if sparse,
+     * 'time_indexes') fields of a proto.
      *
-     * @return the total times
+     * @param encoder the encoder
+     * @param sparse if the times can be sparsely encoded
+     * @param timesConsumer the consumer of the encoded times
+     * @param indexesConsumer the consumer of the time indexes, if sparsely encoded
      */
-    public double[] encodeTimesForProto(ProtoTimeEncoder encoder) {
-        return encoder.encode(this.times);
+    public void encodeTimesForProto(ProtoTimeEncoder encoder, boolean sparse, DoubleConsumer timesConsumer, IntConsumer indexesConsumer) {
+        encoder.encode(this.times, sparse, timesConsumer, indexesConsumer);
     }
 
     public Collection<StackTraceNode> getChildren() {
@@ -99,13 +78,32 @@ public abstract class AbstractNode {
         return this.children.computeIfAbsent(description, StackTraceNode::new);
     }
 
+    /**
+     * Removes {@code child} (and its subtree) from this node, adding its times
+     * to the synthetic "other" child of this node.
+     *
+     * @param child the child to collapse
+     * @return true if the "other" child had to be created
+     */
+    boolean collapseChild(StackTraceNode child) {
+        if (!this.children.remove(child.description, child)) {
+            return false;
+        }
+
+        StackTraceNode.Description otherDescription = StackTraceNode.otherDescription(child.description);
+        boolean created = !this.children.containsKey(otherDescription);
+        StackTraceNode other = resolveChild(otherDescription);
+        child.getTimes().forEach(other.getTimes()::add);
+        return created;
+    }
+
     /**
      * Merge {@code other} into {@code this}.
      *
      * @param other the other node
      */
     public void merge(AbstractNode other) {
-        other.times.forEach((key, value) -> getTimeAccumulator(key).add(value.longValue()));
+        other.times.forEach(this.times::add);
         for (Map.Entry<StackTraceNode.Description, StackTraceNode> child : other.children.entrySet()) {
             resolveChild(child.getKey()).merge(child.getValue());
         }
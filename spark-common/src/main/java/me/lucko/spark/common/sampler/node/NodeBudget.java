@@ -0,0 +1,168 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Limits the number of {@link StackTraceNode}s in a set of call trees.
+ *
+ * <p>When the budget is exceeded, the subtrees with the lowest total time are removed, and
+ * their times are added to a synthetic "other" child of their parent, so the total time
+ * of every remaining node is preserved.</p>
+ */
+public final class NodeBudget {
+
+    /** The default maximum number of nodes, or 0 for no limit */
+    public static final int DEFAULT_MAX_NODES = Integer.getInteger("spark.maxCallTreeNodes", 500_000);
+
+    /** Once the budget is exceeded, nodes are collapsed until this fraction of it remains */
+    private static final double COLLAPSE_TARGET = 0.9;
+
+    /** The maximum number of nodes */
+    private final int maxNodes;
+
+    public NodeBudget(int maxNodes) {
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Collapses the lowest weight subtrees of the given call trees, if they
+     * contain more nodes than the budget allows.
+     *
+     * @param threads the call trees
+     * @return the number of nodes that were removed
+     */
+    public int enforce(Collection<ThreadNode> threads) {
+        if (this.maxNodes <= 0) {
+            return 0;
+        }
+
+        // count first - most trees are within the budget, and don't need to be weighed
+        int count = countNodes(threads);
+        if (count <= this.maxNodes) {
+            return 0;
+        }
+
+        List<Candidate> candidates = new ArrayList<>(count);
+
+        // breadth first, so that (after a stable sort) ancestors come before descendants of the same weight
+        Queue<AbstractNode> queue = new ArrayDeque<>(threads);
+        while (!queue.isEmpty()) {
+            AbstractNode node = queue.remove();
+            for (StackTraceNode child : node.getChildren()) {
+                if (!child.isOther()) {
+                    candidates.add(new Candidate(node, child, child.getTimes().total()));
+                }
+                queue.add(child);
+            }
+        }
+
+        // collapse the lightest subtrees first
+        candidates.sort(Comparator.comparingLong(candidate -> candidate.weight));
+
+        int target = (int) (this.maxNodes * COLLAPSE_TARGET);
+        Set<StackTraceNode> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        int collapsed = 0;
+
+        for (Candidate candidate : candidates) {
+            if (count <= target) {
+                break;
+            }
+
+            // already removed as part of a collapsed ancestor
+            if (removed.contains(candidate.node)) {
+                continue;
+            }
+
+            if (candidate.parent.collapseChild(candidate.node)) {
+                count++;
+            }
+            int size = markRemoved(candidate.node, removed);
+            count -= size;
+            collapsed += size;
+        }
+
+        return collapsed;
+    }
+
+    /**
+     * Counts the {@link StackTraceNode}s in the given call trees.
+     *
+     * @param threads the call trees
+     * @return the number of nodes
+     */
+    private static int countNodes(Collection<ThreadNode> threads) {
+        int count = 0;
+        Deque<AbstractNode> stack = new ArrayDeque<>(threads);
+        while (!stack.isEmpty()) {
+            AbstractNode node = stack.pop();
+            for (StackTraceNode child : node.getChildren()) {
+                count++;
+                stack.push(child);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Marks the given node and all of its descendants as removed.
+     *
+     * @param node the root of the subtree
+     * @param removed the set of removed nodes
+     * @return the number of nodes in the subtree
+     */
+    private static int markRemoved(StackTraceNode node, Set<StackTraceNode> removed) {
+        int size = 0;
+        Deque<StackTraceNode> stack = new ArrayDeque<>();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            StackTraceNode next = stack.pop();
+            removed.add(next);
+            size++;
+            for (StackTraceNode child : next.getChildren()) {
+                stack.push(child);
+            }
+        }
+        return size;
+    }
+
+    private static final class Candidate {
+        private final AbstractNode parent;
+        private final StackTraceNode node;
+        private final long weight;
+
+        Candidate(AbstractNode parent, StackTraceNode node, long weight) {
+            this.parent = parent;
+            this.node = node;
+            this.weight = weight;
+        }
+    }
+}
@@ -34,6 +34,14 @@ public final class StackTraceNode extends AbstractNode {
      */
     public static final int NULL_LINE_NUMBER = -1;
 
+    /**
+     * The class & method name of the synthetic node that collapsed subtrees are folded into.
+     *
+     * @see NodeBudget
+     */
+    public static final String OTHER_CLASS_NAME = "spark";
+    public static final String OTHER_METHOD_NAME = "(other)";
+
     /** A description of the element */
     public Description description;
 
@@ -67,6 +75,28 @@ public final class StackTraceNode extends AbstractNode {
                 : NULL_LINE_NUMBER;
     }
 
+    /**
+     * Gets if this is the synthetic node that collapsed subtrees are folded into.
+     *
+     * @return true if this is an "other" node
+     */
+    public boolean isOther() {
+        // '(' can't appear in a real method name
+        return getMethodName().equals(OTHER_METHOD_NAME) && getClassName().equals(OTHER_CLASS_NAME);
+    }
+
+    /**
+     * Gets the description of the "other" node, of the same type as {@code sibling}.
+     *
+     * @param sibling the description of a sibling node
+     * @return the description
+     */
+    static Description otherDescription(Description sibling) {
+        return sibling instanceof AsyncDescription
+                ? new AsyncDescription(OTHER_CLASS_NAME, OTHER_METHOD_NAME, null)
+                : new JavaDescription(OTHER_CLASS_NAME, OTHER_METHOD_NAME, NULL_LINE_NUMBER, NULL_LINE_NUMBER);
+    }
+
     /**
      * Function to construct a {@link Description} from a stack trace element
      * of type {@code T}.
@@ -150,7 +180,28 @@ public final class StackTraceNode extends AbstractNode {
             this.methodName = methodName;
             this.lineNumber = lineNumber;
             this.parentLineNumber = parentLineNumber;
-            this.hash = Objects.hash(this.className, this.methodName, this.lineNumber, this.parentLineNumber);
+            this.hash = hash(className, methodName, lineNumber, parentLineNumber);
+        }
+
+        /**
+         * Computes the hash code of a description with the given properties,
+         * without allocating.
+         *
+         * <p>Equivalent to {@link Objects#hash(Object...)} over the same values.</p>
+         *
+         * @param className the class name
+         * @param methodName the method name
+         * @param lineNumber the line number
+         * @param parentLineNumber the parent line number
+         * @return the hash code
+         */
+        public static int hash(String className, String methodName, int lineNumber, int parentLineNumber) {
+            int result = 1;
+            result = 31 * result + className.hashCode();
+            result = 31 * result + methodName.hashCode();
+            result = 31 * result + lineNumber;
+            result = 31 * result + parentLineNumber;
+            return result;
         }
 
         @Override
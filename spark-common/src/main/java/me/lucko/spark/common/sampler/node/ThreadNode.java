@@ -71,7 +71,7 @@ public final class ThreadNode extends AbstractNode {
             return;
         }
 
-        getTimeAccumulator(window).add(time);
+        getTimes().add(window, time);
 
         AbstractNode node = this;
         T previousElement = null;
@@ -80,12 +80,61 @@ public final class ThreadNode extends AbstractNode {
             T element = stack[(stack.length - 1) - offset];
 
             node = node.resolveChild(describer.describe(element, previousElement));
-            node.getTimeAccumulator(window).add(time);
+            node.getTimes().add(window, time);
 
             previousElement = element;
         }
     }
 
+    /**
+     * Resolves the path of nodes that the given stack trace would be logged against,
+     * creating any that do not already exist.
+     *
+     * <p>The path can be cached and then passed to {@link #log(StackTraceNode[], long, int)}
+     * to log the same stack again without walking the tree, for as long as the nodes in
+     * it have not been removed.</p>
+     *
+     * @param describer the function that describes the elements of the stack
+     * @param stack the stack
+     * @param <T> the stack trace element type
+     * @return the path, from the root of the stack to the leaf
+     */
+    public <T> StackTraceNode[] resolvePath(StackTraceNode.Describer<T> describer, T[] stack) {
+        StackTraceNode[] path = new StackTraceNode[Math.min(MAX_STACK_DEPTH, stack.length)];
+
+        AbstractNode node = this;
+        T previousElement = null;
+
+        for (int offset = 0; offset < path.length; offset++) {
+            T element = stack[(stack.length - 1) - offset];
+
+            StackTraceNode child = node.resolveChild(describer.describe(element, previousElement));
+            path[offset] = child;
+            node = child;
+
+            previousElement = element;
+        }
+        return path;
+    }
+
+    /**
+     * Logs time against a path previously returned by {@link #resolvePath(StackTraceNode.Describer, Object[])}.
+     *
+     * @param path the path
+     * @param time the total time to log
+     * @param window the window
+     */
+    public void log(StackTraceNode[] path, long time, int window) {
+        if (path.length == 0) {
+            return;
+        }
+
+        getTimes().add(window, time);
+        for (StackTraceNode node : path) {
+            node.getTimes().add(window, time);
+        }
+    }
+
     /**
      * Removes time windows that match the given {@code predicate}.
      *
@@ -105,8 +154,8 @@ public final class ThreadNode extends AbstractNode {
             for (Iterator<StackTraceNode> it = children.iterator(); it.hasNext(); ) {
                 StackTraceNode child = it.next();
 
-                boolean windowsWereRemoved = child.removeTimeWindows(predicate);
-                boolean childIsNowEmpty = child.getTimeWindows().isEmpty();
+                boolean windowsWereRemoved = child.getTimes().removeIf(predicate);
+                boolean childIsNowEmpty = child.getTimes().isEmpty();
 
                 if (childIsNowEmpty) {
                     it.remove();
@@ -123,8 +172,8 @@ public final class ThreadNode extends AbstractNode {
             }
         }
 
-        removeTimeWindows(predicate);
-        return getTimeWindows().isEmpty();
+        getTimes().removeIf(predicate);
+        return getTimes().isEmpty();
     }
 
 }
@@ -34,9 +34,11 @@ import java.util.List;
 
 public abstract class AbstractNodeExporter implements NodeExporter {
     protected final ProtoTimeEncoder timeEncoder;
+    protected final boolean sparseTimes;
 
-    protected AbstractNodeExporter(ProtoTimeEncoder timeEncoder) {
+    protected AbstractNodeExporter(ProtoTimeEncoder timeEncoder, boolean sparseTimes) {
         this.timeEncoder = timeEncoder;
+        this.sparseTimes = sparseTimes;
     }
 
     @Override
@@ -44,10 +46,7 @@ public abstract class AbstractNodeExporter implements NodeExporter {
         SparkSamplerProtos.ThreadNode.Builder proto = SparkSamplerProtos.ThreadNode.newBuilder()
                 .setName(threadNode.getThreadLabel());
 
-        double[] times = threadNode.encodeTimesForProto(this.timeEncoder);
-        for (double time : times) {
-            proto.addTimes(time);
-        }
+        threadNode.encodeTimesForProto(this.timeEncoder, this.sparseTimes, proto::addTimes, proto::addTimeIndexes);
 
         // When converting to a proto, we change the data structure from a recursive tree to an array.
         // Effectively, instead of:
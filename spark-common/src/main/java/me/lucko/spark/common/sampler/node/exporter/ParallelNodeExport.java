@@ -0,0 +1,162 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node.exporter;
+
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.util.SparkThreadFactory;
+import me.lucko.spark.proto.SparkSamplerProtos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports a list of {@link ThreadNode}s using a shared, bounded pool of threads.
+ *
+ * <p>Exporting a thread node only reads/mutates that node, so each one can be exported
+ * independently. The results are then retrieved in the original order, which means the
+ * output is identical to exporting each node one after another.</p>
+ *
+ * <p>Only a limited number of nodes are exported ahead of the one being retrieved, so
+ * that a caller streaming the results elsewhere doesn't have to hold them all at once.</p>
+ */
+public final class ParallelNodeExport implements AutoCloseable {
+
+    /** The maximum number of threads used to export */
+    private static final int MAX_THREADS = 4;
+
+    /** The number of exports (per thread) that are allowed to run ahead of the results being retrieved */
+    private static final int LOOKAHEAD_PER_THREAD = 2;
+
+    /**
+     * Gets the number of threads that should be used to export the given number of nodes.
+     *
+     * @param nodes the number of nodes
+     * @return the parallelism
+     */
+    public static int defaultParallelism(int nodes) {
+        return Math.max(1, Math.min(nodes, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())));
+    }
+
+    /** The exporter */
+    private final NodeExporter exporter;
+
+    /** The nodes being exported */
+    private final List<ThreadNode> nodes;
+
+    /** The export results, in the same order as the input nodes (null if exporting on the calling thread) */
+    private final List<CompletableFuture<SparkSamplerProtos.ThreadNode>> results;
+
+    /** The number of exports that are allowed to run ahead of the results being retrieved */
+    private final int lookahead;
+
+    public ParallelNodeExport(NodeExporter exporter, List<ThreadNode> nodes) {
+        this(exporter, nodes, defaultParallelism(nodes.size()));
+    }
+
+    public ParallelNodeExport(NodeExporter exporter, List<ThreadNode> nodes, int parallelism) {
+        this.exporter = exporter;
+        this.nodes = nodes;
+
+        if (parallelism > 1) {
+            this.results = new ArrayList<>(nodes.size());
+            this.lookahead = parallelism * LOOKAHEAD_PER_THREAD;
+            for (int i = 0; i < Math.min(this.lookahead, nodes.size()); i++) {
+                submit(i);
+            }
+        } else {
+            this.results = null;
+            this.lookahead = 0;
+        }
+    }
+
+    private void submit(int index) {
+        ThreadNode node = this.nodes.get(index);
+        this.results.add(CompletableFuture.supplyAsync(() -> this.exporter.export(node), SharedExecutor.INSTANCE));
+    }
+
+    /**
+     * Gets the exported proto for the node at the given index, waiting for it if necessary.
+     *
+     * <p>Each index must be retrieved once, in ascending order.</p>
+     *
+     * @param index the index of the node in the input list
+     * @return the exported proto
+     */
+    public SparkSamplerProtos.ThreadNode get(int index) {
+        if (this.results == null) {
+            return this.exporter.export(this.nodes.get(index));
+        }
+
+        // start exporting the next node, and release the result being retrieved
+        int next = index + this.lookahead;
+        if (next < this.nodes.size() && next == this.results.size()) {
+            submit(next);
+        }
+        CompletableFuture<SparkSamplerProtos.ThreadNode> result = this.results.set(index, null);
+
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.results != null) {
+            // exports which haven't started yet are skipped
+            for (CompletableFuture<SparkSamplerProtos.ThreadNode> result : this.results) {
+                if (result != null) {
+                    result.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Holds the executor shared by all exports, which is created when it is first needed.
+     *
+     * <p>Its threads exit after being idle for a while, so no threads are kept around
+     * in between exports.</p>
+     */
+    private static final class SharedExecutor {
+        private static final ExecutorService INSTANCE = create();
+
+        private static ExecutorService create() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new SparkThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+}
@@ -23,15 +23,15 @@ package me.lucko.spark.common.sampler.window;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 import org.jetbrains.annotations.VisibleForTesting;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
 import java.util.function.LongToDoubleFunction;
 import java.util.stream.IntStream;
 
 /**
- * Encodes a map of int->double into a double array.
+ * Encodes a {@link TimeRing} of window->time into a double array.
  */
 public class ProtoTimeEncoder {
 
@@ -40,26 +40,49 @@ public class ProtoTimeEncoder {
 
     /** A sorted array of all possible keys to encode */
     private final int[] keys;
-    /** A map of key value -> index in the keys array */
-    private final Map<Integer, Integer> keysToIndex;
 
     @VisibleForTesting
     ProtoTimeEncoder(LongToDoubleFunction valueTransformer, IntStream keys) {
-        this.valueTransformer = valueTransformer;
-        this.keys = keys.distinct().sorted().toArray();
+        this(valueTransformer, keys.distinct().sorted().toArray());
+    }
 
-        // construct a reverse index lookup
-        this.keysToIndex = new HashMap<>(this.keys.length);
-        for (int i = 0; i < this.keys.length; i++) {
-            this.keysToIndex.put(this.keys[i], i);
-        }
+    private ProtoTimeEncoder(LongToDoubleFunction valueTransformer, int[] keys) {
+        this.valueTransformer = valueTransformer;
+        this.keys = keys;
     }
 
     public ProtoTimeEncoder(LongToDoubleFunction valueTransformer, List<ThreadNode> sourceData) {
-        this(valueTransformer, sourceData.stream()
-                .map(n -> n.getTimeWindows().stream().mapToInt(i -> i))
-                .reduce(IntStream.empty(), IntStream::concat)
-        );
+        this(valueTransformer, collectKeys(sourceData));
+    }
+
+    /**
+     * Collects the distinct windows recorded by the given nodes into a sorted array.
+     *
+     * @param sourceData the nodes
+     * @return the sorted windows
+     */
+    private static int[] collectKeys(List<ThreadNode> sourceData) {
+        int[] keys = new int[ProfilingWindowUtils.HISTORY_SIZE];
+        int size = 0;
+        for (ThreadNode node : sourceData) {
+            int[] windows = node.getTimes().windows();
+            if (size + windows.length > keys.length) {
+                keys = Arrays.copyOf(keys, Math.max(keys.length * 2, size + windows.length));
+            }
+            System.arraycopy(windows, 0, keys, size, windows.length);
+            size += windows.length;
+        }
+
+        Arrays.sort(keys, 0, size);
+
+        // remove duplicates
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (distinct == 0 || keys[i] != keys[distinct - 1]) {
+                keys[distinct++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, distinct);
     }
 
     /**
@@ -72,27 +95,89 @@ public class ProtoTimeEncoder {
     }
 
     /**
-     * Encode a map of times/durations into a double array.
+     * Encode a ring of times/durations into a double array.
      *
-     * @param times a dictionary of times (unix-time millis -> duration in microseconds)
+     * @param times the times (window -> duration in microseconds)
      * @return the times encoded as a double array
      */
-    public double[] encode(Map<Integer, LongAdder> times) {
+    public double[] encode(TimeRing times) {
         // construct an array of values - length needs to exactly match the
         // number of keys, even if some values are zero.
         double[] array = new double[this.keys.length];
 
         times.forEach((key, value) -> {
             // get the index for the given key
-            Integer idx = this.keysToIndex.get(key);
-            if (idx == null) {
-                throw new RuntimeException("No index for key " + key + " in " + this.keysToIndex.keySet());
+            int idx = Arrays.binarySearch(this.keys, key);
+            if (idx < 0) {
+                throw new RuntimeException("No index for key " + key + " in " + Arrays.toString(this.keys));
             }
 
             // store in the array
-            array[idx] = this.valueTransformer.applyAsDouble(value.longValue());
+            array[idx] = this.valueTransformer.applyAsDouble(value);
         });
 
         return array;
     }
+
+    /**
+     * Encode a ring of times/durations into the 'times' (and if sparse, 'time_indexes')
+     * fields of a proto.
+     *
+     * <p>If {@code sparse} is true and the ring has a time for fewer than ~90% of the keys,
+     * only the non-zero times are written, along with their index into the keys.</p>
+     *
+     * @param times the times (window -> duration in microseconds)
+     * @param sparse if the times can be sparsely encoded
+     * @param timesConsumer the consumer of the encoded times
+     * @param indexesConsumer the consumer of the key indexes, if sparsely encoded
+     */
+    public void encode(TimeRing times, boolean sparse, DoubleConsumer timesConsumer, IntConsumer indexesConsumer) {
+        double[] array = encode(times);
+
+        if (sparse) {
+            int nonZero = 0;
+            for (double value : array) {
+                if (value != 0) {
+                    nonZero++;
+                }
+            }
+
+            if (nonZero != 0 && sparseSize(nonZero) < denseSize(array.length)) {
+                for (int i = 0; i < array.length; i++) {
+                    if (array[i] != 0) {
+                        indexesConsumer.accept(i);
+                        timesConsumer.accept(array[i]);
+                    }
+                }
+                return;
+            }
+        }
+
+        for (double value : array) {
+            timesConsumer.accept(value);
+        }
+    }
+
+    /**
+     * Approximates the encoded size in bytes of a dense 'times' field.
+     *
+     * @param count the number of keys
+     * @return the size
+     */
+    private static int denseSize(int count) {
+        return Double.BYTES * count;
+    }
+
+    /**
+     * Approximates the encoded size in bytes of a sparse 'times' + 'time_indexes' field.
+     *
+     * @param nonZero the number of non-zero times
+     * @return the size
+     */
+    private int sparseSize(int nonZero) {
+        // each index is a varint (1 byte if < 128, 2 bytes otherwise),
+        // plus a tag and length prefix for the extra packed field
+        int indexSize = this.keys.length <= 128 ? 1 : 2;
+        return (Double.BYTES + indexSize) * nonZero + 2;
+    }
 }
@@ -0,0 +1,308 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.window;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntPredicate;
+
+/**
+ * A compact store of accumulated time values, keyed by profiling window.
+ *
+ * <p>Values are held in a primitive ring indexed by {@code window % capacity}, with
+ * each slot stamped with the window that currently owns it. The ring starts small and
+ * grows as more windows are recorded, up to a size which can hold the full
+ * {@link ProfilingWindowUtils#HISTORY_SIZE history} without collisions.</p>
+ *
+ * <p>Adding time to a window which already has a slot is lock-free (a CAS on the slot).
+ * Claiming a new slot, removing windows and reading are guarded by the ring's monitor.
+ * When the ring is resized, each old slot is sealed as it is copied, so that concurrent
+ * writers retry against the new ring rather than losing their update.</p>
+ */
+public final class TimeRing {
+
+    /** The number of slots needed to hold the full history, plus one window of overlap during rotation */
+    private static final int RING_SIZE = ProfilingWindowUtils.HISTORY_SIZE + 2;
+
+    /** Stamp value for a slot that is not owned by any window */
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    /** Value written into a slot once it has been copied to a new ring */
+    private static final long SEALED = Long.MIN_VALUE;
+
+    /** The current ring */
+    private volatile Ring ring = new Ring(1);
+
+    /** The number of occupied slots in the current ring, guarded by 'this' */
+    private int size = 0;
+
+    /**
+     * Adds {@code value} to the accumulated total for the given {@code window}.
+     *
+     * @param window the window
+     * @param value the value to add
+     */
+    public void add(int window, long value) {
+        while (true) {
+            Ring ring = this.ring;
+            int idx = ring.indexOf(window);
+            if (idx == -1) {
+                synchronized (this) {
+                    claimSlot(window);
+                }
+                continue;
+            }
+
+            long current = ring.values.get(idx);
+            if (current == SEALED) {
+                // the ring is being replaced - wait for that to finish, then retry
+                awaitResize();
+                continue;
+            }
+
+            if (ring.values.compareAndSet(idx, current, current + value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the accumulated total for the given {@code window}.
+     *
+     * @param window the window
+     * @return the total, or zero if nothing has been recorded
+     */
+    public synchronized long get(int window) {
+        Ring ring = this.ring;
+        int idx = ring.indexOf(window);
+        return idx == -1 ? 0 : ring.values.get(idx);
+    }
+
+    /**
+     * Gets the number of windows that have been recorded.
+     *
+     * @return the number of windows
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Gets if no windows have been recorded.
+     *
+     * @return true if empty
+     */
+    public synchronized boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Gets the windows that have been recorded, in ascending order.
+     *
+     * @return the windows
+     */
+    public synchronized int[] windows() {
+        Ring ring = this.ring;
+        int[] windows = new int[this.size];
+        int i = 0;
+        for (int slot = 0; slot < ring.capacity; slot++) {
+            int window = ring.windows.get(slot);
+            if (window != EMPTY) {
+                windows[i++] = window;
+            }
+        }
+        Arrays.sort(windows);
+        return windows;
+    }
+
+    /**
+     * Passes each recorded window and its accumulated total to the {@code consumer}.
+     *
+     * @param consumer the consumer
+     */
+    public synchronized void forEach(WindowConsumer consumer) {
+        Ring ring = this.ring;
+        for (int slot = 0; slot < ring.capacity; slot++) {
+            int window = ring.windows.get(slot);
+            if (window != EMPTY) {
+                consumer.accept(window, ring.values.get(slot));
+            }
+        }
+    }
+
+    /**
+     * Gets the sum of the accumulated totals for all recorded windows.
+     *
+     * @return the total
+     */
+    public synchronized long total() {
+        Ring ring = this.ring;
+        long total = 0;
+        for (int slot = 0; slot < ring.capacity; slot++) {
+            if (ring.windows.get(slot) != EMPTY) {
+                total += ring.values.get(slot);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Removes windows if they pass the given {@code predicate} test.
+     *
+     * @param predicate the predicate
+     * @return true if any windows were removed
+     */
+    public synchronized boolean removeIf(IntPredicate predicate) {
+        Ring ring = this.ring;
+
+        int remaining = 0;
+        for (int slot = 0; slot < ring.capacity; slot++) {
+            int window = ring.windows.get(slot);
+            if (window != EMPTY && !predicate.test(window)) {
+                remaining++;
+            }
+        }
+
+        if (remaining == this.size) {
+            return false;
+        }
+
+        // rebuild into a (possibly smaller) ring, dropping the removed windows
+        resize(capacityFor(remaining), predicate);
+        return true;
+    }
+
+    private synchronized void awaitResize() {
+        // resizing happens whilst holding the lock, so acquiring it is enough
+    }
+
+    // guarded by 'this'
+    private void claimSlot(int window) {
+        if (this.ring.indexOf(window) != -1) {
+            return; // claimed by another writer
+        }
+
+        if (this.size == this.ring.capacity) {
+            resize(capacityFor(this.size + 1), null);
+        }
+
+        Ring ring = this.ring;
+        int slot = ring.freeSlotFor(window);
+        ring.windows.set(slot, window);
+        this.size++;
+    }
+
+    // guarded by 'this'
+    private void resize(int capacity, IntPredicate remove) {
+        Ring from = this.ring;
+        Ring to = new Ring(capacity);
+
+        int size = 0;
+        for (int slot = 0; slot < from.capacity; slot++) {
+            int window = from.windows.get(slot);
+            if (window == EMPTY) {
+                continue;
+            }
+
+            long value = from.values.getAndSet(slot, SEALED);
+            if (remove != null && remove.test(window)) {
+                continue;
+            }
+
+            int newSlot = to.freeSlotFor(window);
+            to.values.set(newSlot, value);
+            to.windows.set(newSlot, window);
+            size++;
+        }
+
+        this.size = size;
+        this.ring = to;
+    }
+
+    private static int capacityFor(int size) {
+        if (size <= 1) {
+            return 1;
+        }
+
+        // grow in powers of two until the ring can hold the whole history
+        int capacity = Integer.highestOneBit(size - 1) << 1;
+        if (capacity > RING_SIZE && size <= RING_SIZE) {
+            capacity = RING_SIZE;
+        }
+        return capacity;
+    }
+
+    /**
+     * A fixed-size array of slots.
+     */
+    private static final class Ring {
+        private final int capacity;
+        private final AtomicIntegerArray windows;
+        private final AtomicLongArray values;
+
+        Ring(int capacity) {
+            int[] windows = new int[capacity];
+            Arrays.fill(windows, EMPTY);
+
+            this.capacity = capacity;
+            this.windows = new AtomicIntegerArray(windows);
+            this.values = new AtomicLongArray(capacity);
+        }
+
+        int indexOf(int window) {
+            // windows are usually consecutive, so the first probe is almost always a hit
+            int slot = Math.floorMod(window, this.capacity);
+            for (int i = 0; i < this.capacity; i++) {
+                int stamp = this.windows.get(slot);
+                if (stamp == window) {
+                    return slot;
+                }
+                if (stamp == EMPTY) {
+                    return -1;
+                }
+                if (++slot == this.capacity) {
+                    slot = 0;
+                }
+            }
+            return -1;
+        }
+
+        int freeSlotFor(int window) {
+            int slot = Math.floorMod(window, this.capacity);
+            while (this.windows.get(slot) != EMPTY) {
+                if (++slot == this.capacity) {
+                    slot = 0;
+                }
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * Consumer of a window and its accumulated value.
+     */
+    @FunctionalInterface
+    public interface WindowConsumer {
+        void accept(int window, long value);
+    }
+
+}
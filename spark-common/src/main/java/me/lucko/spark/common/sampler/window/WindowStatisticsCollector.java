@@ -34,6 +34,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.IntPredicate;
 import java.util.logging.Level;
 
@@ -135,6 +136,37 @@ public class WindowStatisticsCollector {
         }
     }
 
+    /**
+     * Records the native memory allocated in the given window which was still outstanding at the end of it.
+     *
+     * @param window the window
+     * @param outstandingBytes the outstanding bytes
+     */
+    public void recordNativeMemory(int window, long outstandingBytes) {
+        amendStatistics(window, builder -> {
+            double durationSeconds = builder.getDuration() / 1000d;
+            builder.setNativeMemoryOutstanding(outstandingBytes)
+                    .setNativeMemoryLeakRate(durationSeconds > 0 ? outstandingBytes / durationSeconds : 0);
+        });
+    }
+
+    /**
+     * Adds to the statistics already measured for the given window.
+     *
+     * <p>Statistics are measured when the window ends, before the profiler output for it
+     * has been aggregated, so anything derived from that output is added afterwards.</p>
+     *
+     * @param window the window
+     * @param amendment the function used to amend the statistics
+     */
+    public void amendStatistics(int window, Consumer<SparkProtos.WindowStatistics.Builder> amendment) {
+        this.stats.computeIfPresent(window, (w, stats) -> {
+            SparkProtos.WindowStatistics.Builder builder = stats.toBuilder();
+            amendment.accept(builder);
+            return builder.build();
+        });
+    }
+
     public void pruneStatistics(IntPredicate predicate) {
         this.stats.keySet().removeIf(predicate::test);
     }
@@ -244,7 +276,9 @@ public class WindowStatisticsCollector {
 
         @Override
         public void stop() {
-            this.stopTick = this.tickHook.getCurrentTick();
+            if (this.stopTick == -1) {
+                this.stopTick = this.tickHook.getCurrentTick();
+            }
         }
 
         @Override
@@ -29,19 +29,24 @@ import java.util.function.LongConsumer;
 import java.util.zip.GZIPOutputStream;
 
 public enum Compression {
-    GZIP {
+    GZIP("gz") {
         @Override
         public Path compress(Path file, LongConsumer progressHandler) throws IOException {
             Path compressedFile = file.getParent().resolve(file.getFileName().toString() + ".gz");
             try (InputStream in = Files.newInputStream(file)) {
                 try (OutputStream out = Files.newOutputStream(compressedFile)) {
-                    try (GZIPOutputStream compressionOut = new GZIPOutputStream(out, 1024 * 64)) {
+                    try (OutputStream compressionOut = compress(out)) {
                         copy(in, compressionOut, progressHandler);
                     }
                 }
             }
             return compressedFile;
         }
+
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, 1024 * 64);
+        }
     };
     // XZ {
     //     @Override
@@ -72,8 +77,20 @@ public enum Compression {
     //     }
     // };
 
+    private final String fileExtension;
+
+    Compression(String fileExtension) {
+        this.fileExtension = fileExtension;
+    }
+
+    public String getFileExtension() {
+        return this.fileExtension;
+    }
+
     public abstract Path compress(Path file, LongConsumer progressHandler) throws IOException;
 
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
     private static long copy(InputStream from, OutputStream to, LongConsumer progress) throws IOException {
         byte[] buf = new byte[1024 * 64];
         long total = 0;
@@ -33,22 +33,50 @@ import org.objectweb.asm.Opcodes;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.ref.WeakReference;
+import java.security.ProtectionDomain;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 /**
  * Utility to disambiguate a method call (class + method name + line)
  * to a method (method name + method description).
  */
 public final class MethodDisambiguator {
-    private final ClassFinder classFinder;
+    private final Supplier<ClassFinder> classFinderSupplier;
+    private final ClassCache classCache;
     private final Map<String, ComputedClass> cache;
 
+    // guarded by 'this', only created once a class isn't found in the class cache
+    private ClassFinder classFinder;
+
     public MethodDisambiguator(ClassFinder classFinder) {
-        this.classFinder = classFinder;
+        this(classFinder, ClassCache.SHARED);
+    }
+
+    public MethodDisambiguator(ClassFinder classFinder, ClassCache classCache) {
+        this(() -> classFinder, classCache);
+    }
+
+    /**
+     * Creates a disambiguator which only creates a class finder if it needs to look up
+     * a class that isn't already in the class cache.
+     *
+     * @param classFinderSupplier supplies the class finder
+     * @param classCache the class cache
+     */
+    public MethodDisambiguator(Supplier<ClassFinder> classFinderSupplier, ClassCache classCache) {
+        this.classFinderSupplier = classFinderSupplier;
+        this.classCache = classCache;
         this.cache = new ConcurrentHashMap<>();
     }
 
@@ -64,11 +92,7 @@ public final class MethodDisambiguator {
     public Optional<MethodDescription> disambiguate(String className, String methodName, int lineNumber) {
         ComputedClass computedClass = this.cache.get(className);
         if (computedClass == null) {
-            try {
-                computedClass = compute(className);
-            } catch (Throwable e) {
-                computedClass = ComputedClass.EMPTY;
-            }
+            computedClass = lookup(className);
 
             // harmless race
             this.cache.put(className, computedClass);
@@ -85,11 +109,41 @@ public final class MethodDisambiguator {
         }
     }
 
-    private ComputedClass compute(String className) throws IOException {
+    private ComputedClass lookup(String className) {
+        // finding the class loader is relatively expensive, so the result is cached too
+        ClassCache.Key key = this.classCache.getKey(className);
+        if (key == null) {
+            ClassLoader classLoader;
+            try {
+                classLoader = getClassLoader(className);
+            } catch (Throwable e) {
+                return ComputedClass.EMPTY;
+            }
+
+            // the same class name can be loaded by more than one class loader
+            key = new ClassCache.Key(className, classLoader);
+            this.classCache.putKey(key);
+        }
+
+        ComputedClass computedClass = this.classCache.get(key);
+        if (computedClass == null) {
+            try {
+                computedClass = compute(className, key.getClassLoader());
+            } catch (Throwable e) {
+                computedClass = ComputedClass.EMPTY;
+            }
+
+            // harmless race
+            this.classCache.put(key, computedClass);
+        }
+        return computedClass;
+    }
+
+    private ComputedClass compute(String className, ClassLoader classLoader) throws IOException {
         final ImmutableListMultimap.Builder<String, MethodDescription> descriptionsByName = ImmutableListMultimap.builder();
         final Map<Integer, MethodDescription> descriptionsByLine = new HashMap<>();
 
-        ClassReader classReader = getClassReader(className);
+        ClassReader classReader = getClassReader(className, classLoader);
         classReader.accept(new ClassVisitor(Opcodes.ASM7) {
             @Override
             public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
@@ -108,18 +162,25 @@ public final class MethodDisambiguator {
         return new ComputedClass(descriptionsByName.build(), ImmutableMap.copyOf(descriptionsByLine));
     }
 
-    private ClassReader getClassReader(String className) throws IOException {
-        String resource = className.replace('.', '/') + ".class";
+    private ClassLoader getClassLoader(String className) {
+        if (ClassLoader.getSystemResource(getResourceName(className)) != null) {
+            return ClassLoader.getSystemClassLoader();
+        }
+
+        Class<?> clazz = getClassFinder().findClass(className);
+        return clazz != null ? clazz.getClassLoader() : null;
+    }
 
-        try (InputStream is = ClassLoader.getSystemResourceAsStream(resource)) {
-            if (is != null) {
-                return new ClassReader(is);
-            }
+    private synchronized ClassFinder getClassFinder() {
+        if (this.classFinder == null) {
+            this.classFinder = this.classFinderSupplier.get();
         }
+        return this.classFinder;
+    }
 
-        Class<?> clazz = this.classFinder.findClass(className);
-        if (clazz != null) {
-            try (InputStream is = clazz.getClassLoader().getResourceAsStream(resource)) {
+    private static ClassReader getClassReader(String className, ClassLoader classLoader) throws IOException {
+        if (classLoader != null) {
+            try (InputStream is = classLoader.getResourceAsStream(getResourceName(className))) {
                 if (is != null) {
                     return new ClassReader(is);
                 }
@@ -129,6 +190,10 @@ public final class MethodDisambiguator {
         throw new IOException("Unable to get resource: " + className);
     }
 
+    private static String getResourceName(String className) {
+        return className.replace('.', '/') + ".class";
+    }
+
     private static final class ComputedClass {
         private static final ComputedClass EMPTY = new ComputedClass(ImmutableListMultimap.of(), ImmutableMap.of());
 
@@ -141,6 +206,197 @@ public final class MethodDisambiguator {
         }
     }
 
+    /**
+     * A bounded (least recently used) cache of computed classes, which outlives
+     * individual disambiguators, so that the bytecode for each class only needs to
+     * be read once rather than on every export.
+     */
+    public static final class ClassCache {
+
+        /** The cache shared by all disambiguators by default */
+        public static final ClassCache SHARED = new ClassCache(Integer.getInteger("spark.methodDisambiguatorCacheSize", 4096));
+
+        // guarded by 'this'
+        private final Map<Key, ComputedClass> classes;
+        /** The key (class name and class loader) each class name was last resolved to */
+        private final Map<String, Key> keys;
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final AtomicBoolean listeningForRedefinitions = new AtomicBoolean(false);
+
+        public ClassCache(int maxSize) {
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize must be > 0");
+            }
+            this.classes = new LinkedHashMap<Key, ComputedClass>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, ComputedClass> eldest) {
+                    return size() > maxSize;
+                }
+            };
+            this.keys = new LinkedHashMap<String, Key>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Key> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized Key getKey(String className) {
+            Key key = this.keys.get(className);
+            if (key != null && !key.isLoaderReachable()) {
+                // the class loader has been unloaded, the class may have been loaded again by another
+                this.keys.remove(className);
+                return null;
+            }
+            return key;
+        }
+
+        synchronized void putKey(Key key) {
+            this.keys.put(key.className, key);
+        }
+
+        /**
+         * Forgets which class loader the given class name was resolved to, e.g. because
+         * a class with that name has been defined by another class loader.
+         *
+         * @param className the name of the class
+         */
+        synchronized void forgetClassLoader(String className) {
+            this.keys.remove(className);
+        }
+
+        synchronized ComputedClass get(Key key) {
+            ComputedClass computedClass = this.classes.get(key);
+            if (computedClass != null) {
+                this.hits.increment();
+            } else {
+                this.misses.increment();
+            }
+            return computedClass;
+        }
+
+        synchronized void put(Key key, ComputedClass computedClass) {
+            this.classes.put(key, computedClass);
+        }
+
+        /**
+         * Removes any cached data for the given class, e.g. because it has been redefined.
+         *
+         * @param className the name of the class
+         */
+        public synchronized void invalidate(String className) {
+            this.classes.keySet().removeIf(key -> key.className.equals(className));
+            this.keys.remove(className);
+        }
+
+        /**
+         * Removes all cached data.
+         */
+        public synchronized void invalidateAll() {
+            this.classes.clear();
+            this.keys.clear();
+        }
+
+        /**
+         * Registers a transformer with the given instrumentation, so that classes are
+         * {@link #invalidate(String) invalidated} whenever they are redefined.
+         *
+         * <p>Only has an effect the first time it is called.</p>
+         *
+         * @param instrumentation the instrumentation
+         */
+        public void listenForRedefinitions(Instrumentation instrumentation) {
+            if (this.listeningForRedefinitions.compareAndSet(false, true)) {
+                instrumentation.addTransformer(new RedefinitionListener(this), instrumentation.isRetransformClassesSupported());
+            }
+        }
+
+        public synchronized int size() {
+            return this.classes.size();
+        }
+
+        public long getHits() {
+            return this.hits.sum();
+        }
+
+        public long getMisses() {
+            return this.misses.sum();
+        }
+
+        /**
+         * Identifies a class by its name and class loader.
+         *
+         * <p>The class loader is only weakly referenced, so that the cache doesn't prevent it
+         * from being unloaded.</p>
+         */
+        static final class Key {
+            private final String className;
+            private final WeakReference<ClassLoader> classLoader;
+            private final int hash;
+
+            Key(String className, ClassLoader classLoader) {
+                this.className = className;
+                this.classLoader = classLoader != null ? new WeakReference<>(classLoader) : null;
+                this.hash = 31 * className.hashCode() + System.identityHashCode(classLoader);
+            }
+
+            ClassLoader getClassLoader() {
+                return this.classLoader != null ? this.classLoader.get() : null;
+            }
+
+            boolean isLoaderReachable() {
+                return this.classLoader == null || this.classLoader.get() != null;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (this == o) return true;
+                if (o == null || getClass() != o.getClass()) return false;
+                Key other = (Key) o;
+                if (!this.className.equals(other.className)) {
+                    return false;
+                }
+                if (this.classLoader == null || other.classLoader == null) {
+                    return this.classLoader == other.classLoader;
+                }
+                ClassLoader classLoader = this.classLoader.get();
+                return classLoader != null && classLoader == other.classLoader.get();
+            }
+
+            @Override
+            public int hashCode() {
+                return this.hash;
+            }
+        }
+    }
+
+    /**
+     * Invalidates classes in a {@link ClassCache} when they are redefined, or defined
+     * again by another class loader.
+     */
+    private static final class RedefinitionListener implements ClassFileTransformer {
+        private final ClassCache classCache;
+
+        private RedefinitionListener(ClassCache classCache) {
+            this.classCache = classCache;
+        }
+
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            if (className != null) {
+                if (classBeingRedefined != null) {
+                    this.classCache.invalidate(className.replace('/', '.'));
+                } else {
+                    // a (possibly another) class loader has defined a class with this name
+                    this.classCache.forgetClassLoader(className.replace('/', '.'));
+                }
+            }
+            return null; // no transformation
+        }
+    }
+
     public static final class MethodDescription {
         private final String name;
         private final String description;
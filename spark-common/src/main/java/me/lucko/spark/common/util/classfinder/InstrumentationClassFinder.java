@@ -22,6 +22,7 @@ package me.lucko.spark.common.util.classfinder;
 
 import me.lucko.spark.common.SparkPlugin;
 import me.lucko.spark.common.util.JavaVersion;
+import me.lucko.spark.common.util.MethodDisambiguator;
 import net.bytebuddy.agent.ByteBuddyAgent;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
@@ -65,6 +66,9 @@ public class InstrumentationClassFinder implements ClassFinder {
             return;
         }
 
+        // evict disambiguation data for classes which are redefined
+        MethodDisambiguator.ClassCache.SHARED.listenForRedefinitions(instrumentation);
+
         // obtain and cache loaded classes
         for (Class<?> loadedClass : instrumentation.getAllLoadedClasses()) {
             this.classes.put(loadedClass.getName(), loadedClass);
@@ -0,0 +1,429 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.ws;
+
+import me.lucko.spark.proto.SparkProtos;
+import me.lucko.spark.proto.SparkSamplerProtos.LockContention;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.StackTraceNode;
+import me.lucko.spark.proto.SparkSamplerProtos.ThreadNode;
+import me.lucko.spark.proto.SparkWebSocketProtos.ServerUpdateSamplerDelta;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Encodes successive exports of the sampler data as deltas for the viewer.
+ *
+ * <p>Each exported node is assigned an id, and the ids are remembered between exports,
+ * so a delta only needs to describe the nodes that didn't exist in the version the client
+ * last acknowledged, plus the times recorded in any windows it hasn't seen yet.</p>
+ *
+ * <p>The times in a window that has already been sent can still change - the newest window
+ * is still being written to, and older windows can be rewritten as a whole (for example when
+ * the data is replaced, or when nodes are collapsed to stay within the node budget). The times
+ * of each sent window are therefore hashed, and a window is sent again (replacing the times the
+ * client already has) whenever its hash changes.</p>
+ *
+ * <p>The lock contention section is small, so it is sent as a whole whenever it has changed.</p>
+ *
+ * <p>Ids are reset by each keyframe (a full export sent to the client separately). See
+ * {@link ServerUpdateSamplerDelta} for how the client assigns the same ids.</p>
+ */
+public final class SamplerDeltaEncoder {
+
+    /** The maximum number of deltas sent before another keyframe is required */
+    public static final int KEYFRAME_INTERVAL = 10;
+
+    /** The serialized size above which a delta is replaced by a keyframe */
+    private static final int MAX_DELTA_SIZE = 1024 * 1024;
+
+    // all guarded by 'this'
+
+    /** The current version - incremented for each keyframe or delta */
+    private int version = 0;
+    /** The version of the most recent keyframe, or 0 if there hasn't been one */
+    private int keyframeVersion = 0;
+    /** The most recent version that the client has acknowledged */
+    private int acknowledgedVersion = 0;
+
+    /** The next id to assign */
+    private int nextId = 1;
+    /** The version in which each id was assigned */
+    private int[] idVersions = new int[256];
+
+    private final Map<String, Integer> threadIds = new HashMap<>();
+    private final Map<NodeKey, Integer> nodeIds = new HashMap<>();
+
+    /** The windows that have been sent */
+    private final Map<Integer, SentWindow> sentWindows = new HashMap<>();
+
+    /** The lock contention section that has been sent, and the version it last changed in */
+    private List<LockContention> lockContention = Collections.emptyList();
+    private int lockContentionVersion = 0;
+
+    /** The version in which each source mapping was first sent */
+    private final Map<String, Integer> classSourceVersions = new HashMap<>();
+    private final Map<String, Integer> methodSourceVersions = new HashMap<>();
+    private final Map<String, Integer> lineSourceVersions = new HashMap<>();
+
+    /**
+     * Records that the client has applied the given version.
+     *
+     * @param version the version
+     */
+    public synchronized void acknowledge(int version) {
+        if (version <= this.version && version > this.acknowledgedVersion) {
+            this.acknowledgedVersion = version;
+        }
+    }
+
+    /**
+     * Gets the version of the most recent keyframe.
+     *
+     * @return the keyframe version, or 0 if there hasn't been one
+     */
+    public synchronized int getKeyframeVersion() {
+        return this.keyframeVersion;
+    }
+
+    /**
+     * Records that the given data is being sent to the client in full, as a keyframe.
+     *
+     * @param data the data
+     * @return the version of the keyframe
+     */
+    public synchronized int encodeKeyframe(SamplerData data) {
+        this.version++;
+        this.keyframeVersion = this.version;
+
+        this.nextId = 1;
+        this.threadIds.clear();
+        this.nodeIds.clear();
+        this.sentWindows.clear();
+        this.classSourceVersions.clear();
+        this.methodSourceVersions.clear();
+        this.lineSourceVersions.clear();
+
+        for (ThreadNode thread : data.getThreadsList()) {
+            int threadId = newId();
+            this.threadIds.put(thread.getName(), threadId);
+
+            // ids are assigned in array order, but keyed by parent
+            int count = thread.getChildrenCount();
+            int firstId = this.nextId;
+            for (int i = 0; i < count; i++) {
+                newId();
+            }
+
+            int[] parentIds = new int[count];
+            for (int ref : thread.getChildrenRefsList()) {
+                parentIds[ref] = threadId;
+            }
+            for (int i = 0; i < count; i++) {
+                for (int ref : thread.getChildren(i).getChildrenRefsList()) {
+                    parentIds[ref] = firstId + i;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                this.nodeIds.put(new NodeKey(parentIds[i], thread.getChildren(i)), firstId + i);
+            }
+        }
+
+        long[] windowHashes = new long[data.getTimeWindowsCount()];
+        int id = 1;
+        for (ThreadNode thread : data.getThreadsList()) {
+            hashTimes(windowHashes, id++, thread.getTimesList(), thread.getTimeIndexesList());
+            for (StackTraceNode node : thread.getChildrenList()) {
+                hashTimes(windowHashes, id++, node.getTimesList(), node.getTimeIndexesList());
+            }
+        }
+
+        for (int i = 0; i < data.getTimeWindowsCount(); i++) {
+            this.sentWindows.put(data.getTimeWindows(i), new SentWindow(this.version, windowHashes[i]));
+        }
+        this.lockContention = data.getLockContentionList();
+        this.lockContentionVersion = this.version;
+        for (String key : data.getClassSourcesMap().keySet()) {
+            this.classSourceVersions.put(key, this.version);
+        }
+        for (String key : data.getMethodSourcesMap().keySet()) {
+            this.methodSourceVersions.put(key, this.version);
+        }
+        for (String key : data.getLineSourcesMap().keySet()) {
+            this.lineSourceVersions.put(key, this.version);
+        }
+
+        return this.version;
+    }
+
+    /**
+     * Encodes the given data as a delta against the version most recently acknowledged by the client.
+     *
+     * @param data the data
+     * @return the delta, or null if a keyframe should be sent instead
+     */
+    public synchronized ServerUpdateSamplerDelta encodeDelta(SamplerData data) {
+        if (this.keyframeVersion == 0 || this.acknowledgedVersion < this.keyframeVersion || this.version - this.keyframeVersion >= KEYFRAME_INTERVAL) {
+            return null;
+        }
+
+        int base = this.acknowledgedVersion;
+        this.version++;
+
+        ServerUpdateSamplerDelta.Builder delta = ServerUpdateSamplerDelta.newBuilder()
+                .setVersion(this.version)
+                .setBaseVersion(base)
+                .setKeyframeVersion(this.keyframeVersion)
+                .addAllTimeWindows(data.getTimeWindowsList());
+
+        // collect the times of every window - any of them may have changed since they were sent
+        List<ServerUpdateSamplerDelta.WindowTimes.Builder> windowTimes = new ArrayList<>();
+        for (int window : data.getTimeWindowsList()) {
+            windowTimes.add(ServerUpdateSamplerDelta.WindowTimes.newBuilder().setWindow(window));
+        }
+        long[] windowHashes = new long[windowTimes.size()];
+
+        Deque<int[]> stack = new ArrayDeque<>();
+        for (ThreadNode thread : data.getThreadsList()) {
+            Integer threadId = this.threadIds.get(thread.getName());
+            if (threadId == null) {
+                threadId = newId();
+                this.threadIds.put(thread.getName(), threadId);
+            }
+            if (this.idVersions[threadId] > base) {
+                delta.addNewThreads(ServerUpdateSamplerDelta.NewThread.newBuilder()
+                        .setId(threadId)
+                        .setName(thread.getName())
+                        .build()
+                );
+            }
+            addTimes(windowTimes, windowHashes, threadId, thread.getTimesList(), thread.getTimeIndexesList());
+
+            // walk the tree from the top down, so parents are resolved (and listed) before their children
+            // each entry is {index, parent id}
+            for (int ref : thread.getChildrenRefsList()) {
+                stack.push(new int[]{ref, threadId});
+            }
+            while (!stack.isEmpty()) {
+                int[] entry = stack.pop();
+                StackTraceNode node = thread.getChildren(entry[0]);
+                int parentId = entry[1];
+
+                NodeKey key = new NodeKey(parentId, node);
+                Integer nodeId = this.nodeIds.get(key);
+                if (nodeId == null) {
+                    nodeId = newId();
+                    this.nodeIds.put(key, nodeId);
+                }
+                if (this.idVersions[nodeId] > base) {
+                    delta.addNewNodes(ServerUpdateSamplerDelta.NewNode.newBuilder()
+                            .setId(nodeId)
+                            .setParentId(parentId)
+                            .setNode(node.toBuilder().clearTimes().clearChildrenRefs().build())
+                            .build()
+                    );
+                }
+                addTimes(windowTimes, windowHashes, nodeId, node.getTimesList(), node.getTimeIndexesList());
+
+                for (int ref : node.getChildrenRefsList()) {
+                    stack.push(new int[]{ref, nodeId});
+                }
+            }
+        }
+
+        for (int i = 0; i < windowTimes.size(); i++) {
+            int window = windowTimes.get(i).getWindow();
+
+            // skip windows the client already has an up to date copy of
+            SentWindow sent = this.sentWindows.get(window);
+            if (sent != null && sent.version <= base && sent.hash == windowHashes[i]) {
+                continue;
+            }
+
+            this.sentWindows.put(window, new SentWindow(this.version, windowHashes[i]));
+            delta.addWindowTimes(windowTimes.get(i).build());
+
+            SparkProtos.WindowStatistics statistics = data.getTimeWindowStatisticsMap().get(window);
+            if (statistics != null) {
+                delta.putTimeWindowStatistics(window, statistics);
+            }
+        }
+        this.sentWindows.keySet().retainAll(data.getTimeWindowsList());
+
+        if (!this.lockContention.equals(data.getLockContentionList())) {
+            this.lockContention = data.getLockContentionList();
+            this.lockContentionVersion = this.version;
+        }
+        if (this.lockContentionVersion > base) {
+            delta.setLockContention(ServerUpdateSamplerDelta.LockContentionUpdate.newBuilder()
+                    .addAllEntries(this.lockContention)
+                    .build()
+            );
+        }
+
+        data.getClassSourcesMap().forEach((key, value) -> {
+            if (isNew(this.classSourceVersions, key, base)) {
+                delta.putClassSources(key, value);
+            }
+        });
+        data.getMethodSourcesMap().forEach((key, value) -> {
+            if (isNew(this.methodSourceVersions, key, base)) {
+                delta.putMethodSources(key, value);
+            }
+        });
+        data.getLineSourcesMap().forEach((key, value) -> {
+            if (isNew(this.lineSourceVersions, key, base)) {
+                delta.putLineSources(key, value);
+            }
+        });
+
+        ServerUpdateSamplerDelta result = delta.build();
+        if (result.getSerializedSize() > MAX_DELTA_SIZE) {
+            return null;
+        }
+        return result;
+    }
+
+    // guarded by 'this'
+    private int newId() {
+        int id = this.nextId++;
+        if (id >= this.idVersions.length) {
+            this.idVersions = Arrays.copyOf(this.idVersions, this.idVersions.length * 2);
+        }
+        this.idVersions[id] = this.version;
+        return id;
+    }
+
+    // guarded by 'this'
+    private <K> boolean isNew(Map<K, Integer> versions, K key, int base) {
+        Integer version = versions.get(key);
+        if (version == null) {
+            versions.put(key, this.version);
+            return true;
+        }
+        return version > base;
+    }
+
+    private static void addTimes(List<ServerUpdateSamplerDelta.WindowTimes.Builder> windowTimes, long[] windowHashes, int id, List<Double> times, List<Integer> timeIndexes) {
+        for (int i = 0; i < times.size(); i++) {
+            double time = times.get(i);
+            if (time != 0) {
+                int windowIndex = timeIndexes.isEmpty() ? i : timeIndexes.get(i);
+                windowTimes.get(windowIndex).addNodeIds(id).addTimes(time);
+                windowHashes[windowIndex] += hash(id, time);
+            }
+        }
+    }
+
+    private static void hashTimes(long[] windowHashes, int id, List<Double> times, List<Integer> timeIndexes) {
+        for (int i = 0; i < times.size(); i++) {
+            double time = times.get(i);
+            if (time != 0) {
+                windowHashes[timeIndexes.isEmpty() ? i : timeIndexes.get(i)] += hash(id, time);
+            }
+        }
+    }
+
+    /**
+     * Hashes the time of a node in a window. The hashes of each node are summed to give a
+     * hash of the window which doesn't depend on the order the nodes are visited in.
+     *
+     * @param id the node id
+     * @param time the time
+     * @return the hash
+     */
+    private static long hash(int id, double time) {
+        long hash = (id * 0x9E3779B97F4A7C15L) ^ Double.doubleToLongBits(time);
+        hash *= 0xBF58476D1CE4E5B9L;
+        return hash ^ (hash >>> 31);
+    }
+
+
+        // sparsely encoded - the indexes are in ascending order
+        int i = Collections.binarySearch(timeIndexes, windowIndex);
+        return i >= 0 ? times.get(i) : 0;
+    }
+
+    /**
+     * A window that has been sent to the client.
+     */
+    private static final class SentWindow {
+        /** The version it was last sent in */
+        private final int version;
+        /** The hash of the times sent */
+        private final long hash;
+
+        SentWindow(int version, long hash) {
+            this.version = version;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Identifies a node by its parent and the frame it represents.
+     */
+    private static final class NodeKey {
+        private final int parentId;
+        private final String className;
+        private final String methodName;
+        private final String methodDesc;
+        private final int lineNumber;
+        private final int parentLineNumber;
+        private final int hash;
+
+        NodeKey(int parentId, StackTraceNode node) {
+            this.parentId = parentId;
+            this.className = node.getClassName();
+            this.methodName = node.getMethodName();
+            this.methodDesc = node.getMethodDesc();
+            this.lineNumber = node.getLineNumber();
+            this.parentLineNumber = node.getParentLineNumber();
+            this.hash = Objects.hash(parentId, this.className, this.methodName, this.methodDesc, this.lineNumber, this.parentLineNumber);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            NodeKey other = (NodeKey) o;
+            return this.parentId == other.parentId &&
+                    this.lineNumber == other.lineNumber &&
+                    this.parentLineNumber == other.parentLineNumber &&
+                    this.className.equals(other.className) &&
+                    this.methodName.equals(other.methodName) &&
+                    this.methodDesc.equals(other.methodDesc);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+}
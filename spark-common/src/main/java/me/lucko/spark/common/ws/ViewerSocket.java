@@ -29,12 +29,14 @@ import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
 import me.lucko.spark.common.util.MediaTypes;
 import me.lucko.spark.proto.SparkProtos;
 import me.lucko.spark.proto.SparkSamplerProtos;
+import me.lucko.spark.proto.SparkWebSocketProtos.ClientAckSamplerData;
 import me.lucko.spark.proto.SparkWebSocketProtos.ClientConnect;
 import me.lucko.spark.proto.SparkWebSocketProtos.ClientPing;
 import me.lucko.spark.proto.SparkWebSocketProtos.PacketWrapper;
 import me.lucko.spark.proto.SparkWebSocketProtos.ServerConnectResponse;
 import me.lucko.spark.proto.SparkWebSocketProtos.ServerPong;
 import me.lucko.spark.proto.SparkWebSocketProtos.ServerUpdateSamplerData;
+import me.lucko.spark.proto.SparkWebSocketProtos.ServerUpdateSamplerDelta;
 import me.lucko.spark.proto.SparkWebSocketProtos.ServerUpdateStatistics;
 
 import java.security.PublicKey;
@@ -58,6 +60,8 @@ public class ViewerSocket implements ViewerSocketConnection.Listener, AutoClosea
     private final Sampler.ExportProps exportProps;
     /** The underlying connection */
     private final ViewerSocketConnection socket;
+    /** Encodes updated sampler data as deltas against what the client already has */
+    private final SamplerDeltaEncoder deltaEncoder = new SamplerDeltaEncoder();
 
     private boolean closed = false;
     private final long socketOpenTime = System.currentTimeMillis();
@@ -114,8 +118,17 @@ public class ViewerSocket implements ViewerSocketConnection.Listener, AutoClosea
 
         try {
             SparkSamplerProtos.SamplerData samplerData = sampler.toProto(this.platform, this.exportProps);
+
+            // send only what has changed if the client is able to apply it
+            ServerUpdateSamplerDelta delta = this.deltaEncoder.encodeDelta(samplerData);
+            if (delta != null) {
+                sendUpdatedSamplerDelta(delta);
+                return;
+            }
+
+            // otherwise, upload everything as a new keyframe
             String key = this.platform.getBytebinClient().postContent(samplerData, MediaTypes.SPARK_SAMPLER_MEDIA_TYPE, "live").key();
-            sendUpdatedSamplerData(key);
+            sendUpdatedSamplerData(key, this.deltaEncoder.encodeKeyframe(samplerData));
         } catch (Exception e) {
             this.platform.getPlugin().log(Level.WARNING, "Error whilst sending updated sampler data to the socket", e);
         }
@@ -166,15 +179,26 @@ public class ViewerSocket implements ViewerSocketConnection.Listener, AutoClosea
      * Sends a message to the socket to indicate that updated sampler data is available
      *
      * @param payloadId the payload id of the updated data
+     * @param version the version of the updated data
      */
-    public void sendUpdatedSamplerData(String payloadId) {
+    public void sendUpdatedSamplerData(String payloadId, int version) {
         this.socket.sendPacket(builder -> builder.setServerUpdateSampler(ServerUpdateSamplerData.newBuilder()
                 .setPayloadId(payloadId)
+                .setVersion(version)
                 .build()
         ));
         this.lastPayloadId = payloadId;
     }
 
+    /**
+     * Sends a message to the socket with the changes to the sampler data since the last acknowledged version
+     *
+     * @param delta the delta
+     */
+    public void sendUpdatedSamplerDelta(ServerUpdateSamplerDelta delta) {
+        this.socket.sendPacket(builder -> builder.setServerUpdateSamplerDelta(delta));
+    }
+
     /**
      * Sends a message to the socket with updated statistics
      *
@@ -198,6 +222,9 @@ public class ViewerSocket implements ViewerSocketConnection.Listener, AutoClosea
             case CLIENT_CONNECT:
                 onClientConnect(packet.getClientConnect(), verified, publicKey);
                 break;
+            case CLIENT_ACK_SAMPLER_DATA:
+                onClientAckSamplerData(packet.getClientAckSamplerData(), verified);
+                break;
             default:
                 throw new IllegalArgumentException("Unexpected packet: " + packet.getPacketCase());
         }
@@ -232,6 +259,7 @@ public class ViewerSocket implements ViewerSocketConnection.Listener, AutoClosea
 
         if (this.lastPayloadId != null) {
             resp.setLastPayloadId(this.lastPayloadId);
+            resp.setLastPayloadVersion(this.deltaEncoder.getKeyframeVersion());
         }
 
         if (this.closed) {
@@ -246,6 +274,14 @@ public class ViewerSocket implements ViewerSocketConnection.Listener, AutoClosea
         this.socket.sendPacket(builder -> builder.setServerConnectResponse(resp.build()));
     }
 
+    private void onClientAckSamplerData(ClientAckSamplerData packet, boolean verified) {
+        // only trusted clients are sent sampler data
+        if (!verified) {
+            return;
+        }
+        this.deltaEncoder.acknowledge(packet.getVersion());
+    }
+
     private static String hashPublicKey(PublicKey publicKey) {
         return publicKey == null ? "null" : Integer.toHexString(publicKey.hashCode());
     }
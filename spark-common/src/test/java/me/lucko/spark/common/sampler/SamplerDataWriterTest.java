@@ -0,0 +1,97 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.proto.SparkProtos;
+import me.lucko.spark.proto.SparkSamplerProtos;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SamplerDataWriterTest {
+
+    @Test
+    public void testMatchesSerializedMessage() throws IOException {
+        SamplerData.Builder proto = SamplerData.newBuilder()
+                .setMetadata(SparkSamplerProtos.SamplerMetadata.newBuilder()
+                        .setStartTime(1000)
+                        .setInterval(4)
+                        .setComment("test")
+                )
+                .setChannelInfo(SparkSamplerProtos.SocketChannelInfo.newBuilder().setChannelId("channel"))
+                .addTimeWindows(1)
+                .addTimeWindows(2)
+                .putTimeWindowStatistics(1, SparkProtos.WindowStatistics.newBuilder().setTicks(20).build())
+                .putClassSources("test.Foo", "foo")
+                .putMethodSources("test.Bar.run()V", "bar")
+                .putLineSources("test.Baz:12", "baz");
+
+        SparkSamplerProtos.ThreadNode[] threads = new SparkSamplerProtos.ThreadNode[3];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = SparkSamplerProtos.ThreadNode.newBuilder()
+                    .setName("Thread " + i)
+                    .addTimes(i * 100)
+                    .addTimes(i * 200)
+                    .addChildren(SparkSamplerProtos.StackTraceNode.newBuilder()
+                            .setClassName("test.Foo")
+                            .setMethodName("run")
+                            .addTimes(i * 100)
+                            .addTimes(i * 200))
+                    .addChildrenRefs(0)
+                    .build();
+        }
+
+        SamplerData.Builder expected = proto.clone();
+        for (SparkSamplerProtos.ThreadNode thread : threads) {
+            expected.addThreads(thread);
+        }
+        byte[] expectedBytes = expected.build().toByteArray();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SamplerDataWriter writer = new SamplerDataWriter(out);
+        for (SparkSamplerProtos.ThreadNode thread : threads) {
+            writer.writeThread(proto, thread);
+        }
+        writer.finish(proto);
+
+        assertArrayEquals(expectedBytes, out.toByteArray());
+        assertEquals(expected.build(), SamplerData.parseFrom(out.toByteArray()));
+    }
+
+    @Test
+    public void testNoThreads() throws IOException {
+        SamplerData.Builder proto = SamplerData.newBuilder()
+                .setMetadata(SparkSamplerProtos.SamplerMetadata.newBuilder().setStartTime(1000))
+                .addTimeWindows(1);
+        byte[] expectedBytes = proto.build().toByteArray();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SamplerDataWriter(out).finish(proto);
+
+        assertArrayEquals(expectedBytes, out.toByteArray());
+    }
+
+}
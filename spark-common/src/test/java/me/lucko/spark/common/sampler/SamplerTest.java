@@ -20,20 +20,35 @@
 
 package me.lucko.spark.common.sampler;
 
+import com.google.common.collect.ImmutableSet;
+import me.lucko.spark.common.sampler.async.AsyncProfilerAccess;
+import me.lucko.spark.common.sampler.async.SampleCollector;
+import me.lucko.spark.common.sampler.java.JavaSampler;
 import me.lucko.spark.common.sampler.java.MergeStrategy;
+import me.lucko.spark.common.sampler.java.ThreadAllocationTracker;
+import me.lucko.spark.common.sampler.java.ThreadCpuTimeTracker;
 import me.lucko.spark.common.sampler.source.ClassSourceLookup;
+import me.lucko.spark.common.util.Compression;
 import me.lucko.spark.proto.SparkSamplerProtos;
 import me.lucko.spark.test.TestClass2;
 import me.lucko.spark.test.plugin.TestCommandSender;
 import me.lucko.spark.test.plugin.TestSparkPlugin;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
@@ -100,4 +115,254 @@ public class SamplerTest {
         }
     }
 
+    @Test
+    public void testStreamingExport(@TempDir Path directory) throws Exception {
+        Thread thread = new Thread(new TestClass2(), "Test Thread");
+        thread.start();
+
+        try (TestSparkPlugin plugin = new TestSparkPlugin(directory)) {
+            Sampler sampler = new SamplerBuilder()
+                    .threadDumper(new ThreadDumper.Specific(thread))
+                    .threadGrouper(ThreadGrouper.BY_NAME)
+                    .samplingInterval(5)
+                    .forceJavaSampler(true)
+                    .completeAfter(3, TimeUnit.SECONDS)
+                    .start(plugin.platform());
+            sampler.getFuture().join();
+
+            Sampler.ExportProps exportProps = new Sampler.ExportProps()
+                    .creator(TestCommandSender.INSTANCE.toData())
+                    .mergeStrategy(MergeStrategy.SAME_METHOD)
+                    .classSourceLookup(() -> ClassSourceLookup.create(plugin.platform()));
+
+            Path file = directory.resolve("profile.sparkprofile.gz");
+            try (OutputStream out = Compression.GZIP.compress(Files.newOutputStream(file))) {
+                sampler.writeProto(plugin.platform(), exportProps, out);
+            }
+
+            SparkSamplerProtos.SamplerData streamed;
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+                streamed = SparkSamplerProtos.SamplerData.parseFrom(in);
+            }
+            SparkSamplerProtos.SamplerData proto = sampler.toProto(plugin.platform(), exportProps);
+
+            assertEquals(proto.getMetadata().getStartTime(), streamed.getMetadata().getStartTime());
+            assertEquals(proto.getMetadata().getCreator(), streamed.getMetadata().getCreator());
+            assertEquals(proto.getTimeWindowsList(), streamed.getTimeWindowsList());
+            assertEquals(proto.getThreadsList(), streamed.getThreadsList());
+            assertEquals(proto.getClassSourcesMap(), streamed.getClassSourcesMap());
+
+            assertEquals(1, streamed.getThreadsCount());
+            assertEquals("Test Thread", streamed.getThreads(0).getName());
+        } finally {
+            thread.interrupt();
+        }
+    }
+
+    @Test
+    public void testAsyncCpuTimeSampler(@TempDir Path directory) {
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT).replace(" ", "");
+        assumeTrue(os.equals("linux") || os.equals("macosx"), "async profiler is only supported on Linux and macOS");
+
+        Thread sleepingThread = new Thread(new TestClass2(), "Sleeping Thread");
+        Thread busyThread = new Thread(() -> {
+            long x = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                x += Long.toString(x).hashCode();
+            }
+        }, "Busy Thread");
+        sleepingThread.start();
+        busyThread.start();
+
+        try (TestSparkPlugin plugin = new TestSparkPlugin(directory)) {
+            assumeTrue(AsyncProfilerAccess.getInstance(plugin.platform()).checkCpuProfilingSupported(plugin.platform()), "cpu time profiling is not supported");
+
+            Sampler sampler = new SamplerBuilder()
+                    .threadDumper(new ThreadDumper.Specific(ImmutableSet.of("Sleeping Thread", "Busy Thread")))
+                    .threadGrouper(ThreadGrouper.BY_NAME)
+                    .samplingInterval(5)
+                    .cpuTime(true)
+                    .completeAfter(5, TimeUnit.SECONDS)
+                    .start(plugin.platform());
+
+            // the engine reports the event actually used
+            String event = sampler.getEngineEvent();
+            assertTrue(event.equals("cpu") || event.equals("itimer"), event);
+
+            sampler.getFuture().join();
+
+            SparkSamplerProtos.SamplerData proto = sampler.toProto(plugin.platform(), new Sampler.ExportProps()
+                    .creator(TestCommandSender.INSTANCE.toData())
+                    .classSourceLookup(() -> ClassSourceLookup.create(plugin.platform())));
+            assertEquals(event, proto.getMetadata().getSamplerEngineEvent());
+
+            // only on-cpu time is recorded, so the busy thread dominates
+            double busyTime = totalTime(proto, "Busy Thread");
+            double sleepingTime = totalTime(proto, "Sleeping Thread");
+            assertTrue(busyTime > 0);
+            assertTrue(sleepingTime < busyTime / 10, sleepingTime + " vs " + busyTime);
+        } finally {
+            sleepingThread.interrupt();
+            busyThread.interrupt();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testJavaCpuTimeSampler(boolean batchedIngest, @TempDir Path directory) {
+        assumeTrue(ThreadCpuTimeTracker.isSupported(ManagementFactory.getThreadMXBean()), "thread cpu time is not supported");
+
+        Thread sleepingThread = new Thread(new TestClass2(), "Sleeping Thread");
+        Thread busyThread = new Thread(() -> {
+            long x = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                x += Long.toString(x).hashCode();
+            }
+        }, "Busy Thread");
+        sleepingThread.start();
+        busyThread.start();
+
+        try (TestSparkPlugin plugin = new TestSparkPlugin(directory)) {
+            Sampler sampler = new SamplerBuilder()
+                    .threadDumper(new ThreadDumper.Specific(ImmutableSet.of("Sleeping Thread", "Busy Thread")))
+                    .threadGrouper(ThreadGrouper.BY_NAME)
+                    .samplingInterval(5)
+                    .forceJavaSampler(true)
+                    .batchedIngest(batchedIngest)
+                    .cpuTime(true)
+                    .completeAfter(5, TimeUnit.SECONDS)
+                    .start(plugin.platform());
+
+            assertInstanceOf(JavaSampler.class, sampler);
+            assertEquals("cpu", sampler.getEngineEvent());
+
+            sampler.getFuture().join();
+
+            SparkSamplerProtos.SamplerData proto = sampler.toProto(plugin.platform(), new Sampler.ExportProps()
+                    .creator(TestCommandSender.INSTANCE.toData())
+                    .classSourceLookup(() -> ClassSourceLookup.create(plugin.platform())));
+
+            // samples are weighted by the cpu time used since the previous dump, so the busy thread dominates
+            double busyTime = totalTime(proto, "Busy Thread");
+            double sleepingTime = totalTime(proto, "Sleeping Thread");
+            assertTrue(busyTime > 0);
+            assertTrue(sleepingTime < busyTime / 10, sleepingTime + " vs " + busyTime);
+            assertTrue(((JavaSampler) sampler).getDeltaTracker().getMeanCostMicros() > 0);
+        } finally {
+            sleepingThread.interrupt();
+            busyThread.interrupt();
+        }
+    }
+
+    @Test
+    public void testJavaAllocationSampler(@TempDir Path directory) {
+        assumeTrue(ThreadAllocationTracker.isSupported(ManagementFactory.getThreadMXBean()), "thread allocation measurement is not supported");
+
+        // both threads are busy, but only one of them allocates
+        Thread allocatingThread = new Thread(() -> {
+            List<byte[]> retained = new ArrayList<>();
+            while (!Thread.currentThread().isInterrupted()) {
+                retained.add(new byte[1024]);
+                if (retained.size() > 1024) {
+                    retained.clear();
+                }
+            }
+        }, "Allocating Thread");
+        Thread computingThread = new Thread(() -> {
+            long x = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                x = x * 31 + 7;
+            }
+            if (x == 42) {
+                System.out.println(x);
+            }
+        }, "Computing Thread");
+        allocatingThread.start();
+        computingThread.start();
+
+        try (TestSparkPlugin plugin = new TestSparkPlugin(directory)) {
+            Sampler sampler = new SamplerBuilder()
+                    .mode(SamplerMode.ALLOCATION)
+                    .threadDumper(new ThreadDumper.Specific(ImmutableSet.of("Allocating Thread", "Computing Thread")))
+                    .threadGrouper(ThreadGrouper.BY_NAME)
+                    .samplingInterval(SamplerMode.ALLOCATION.defaultInterval())
+                    .forceJavaSampler(true)
+                    .completeAfter(5, TimeUnit.SECONDS)
+                    .start(plugin.platform());
+
+            assertInstanceOf(JavaSampler.class, sampler);
+            assertEquals(SamplerMode.ALLOCATION, sampler.getMode());
+            assertEquals("alloc", sampler.getEngineEvent());
+
+            sampler.getFuture().join();
+
+            SparkSamplerProtos.SamplerData proto = sampler.toProto(plugin.platform(), new Sampler.ExportProps()
+                    .creator(TestCommandSender.INSTANCE.toData())
+                    .classSourceLookup(() -> ClassSourceLookup.create(plugin.platform())));
+            assertEquals(SparkSamplerProtos.SamplerMetadata.SamplerMode.ALLOCATION, proto.getMetadata().getSamplerMode());
+
+            // samples are weighted by the bytes allocated since the previous dump
+            double allocatingBytes = totalTime(proto, "Allocating Thread");
+            double computingBytes = totalTime(proto, "Computing Thread");
+            assertTrue(allocatingBytes > 1024 * 1024, Double.toString(allocatingBytes));
+            assertTrue(computingBytes < allocatingBytes / 100, computingBytes + " vs " + allocatingBytes);
+        } finally {
+            allocatingThread.interrupt();
+            computingThread.interrupt();
+        }
+    }
+
+    @Test
+    public void testAsyncSurvivorsSampler(@TempDir Path directory) {
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT).replace(" ", "");
+        assumeTrue(os.equals("linux") || os.equals("macosx"), "async profiler is only supported on Linux and macOS");
+
+        // keeps a rolling set of objects alive, so some of them survive for a while
+        Thread allocatingThread = new Thread(() -> {
+            byte[][] retained = new byte[1024][];
+            int i = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                retained[i++ % retained.length] = new byte[16 * 1024];
+            }
+        }, "Allocating Thread");
+        allocatingThread.start();
+
+        try (TestSparkPlugin plugin = new TestSparkPlugin(directory)) {
+            assumeTrue(AsyncProfilerAccess.getInstance(plugin.platform()).checkAllocationProfilingSupported(plugin.platform()), "allocation profiling is not supported");
+
+            Sampler sampler = new SamplerBuilder()
+                    .mode(SamplerMode.SURVIVORS)
+                    .threadDumper(new ThreadDumper.Specific(allocatingThread))
+                    .threadGrouper(ThreadGrouper.BY_NAME)
+                    .samplingInterval(SamplerMode.SURVIVORS.defaultInterval())
+                    .completeAfter(5, TimeUnit.SECONDS)
+                    .start(plugin.platform());
+
+            assertEquals(SamplerMode.SURVIVORS, sampler.getMode());
+            sampler.getFuture().join();
+
+            SparkSamplerProtos.SamplerData proto = sampler.toProto(plugin.platform(), new Sampler.ExportProps()
+                    .creator(TestCommandSender.INSTANCE.toData())
+                    .classSourceLookup(() -> ClassSourceLookup.create(plugin.platform())));
+            assertEquals(SparkSamplerProtos.SamplerMetadata.SamplerMode.SURVIVORS, proto.getMetadata().getSamplerMode());
+
+            // the windows are age buckets, which have no statistics of their own
+            assertTrue(proto.getTimeWindowsCount() > 0);
+            for (int window : proto.getTimeWindowsList()) {
+                assertTrue(window >= 1 && window <= SampleCollector.Survivors.AGE_BUCKETS, Integer.toString(window));
+            }
+            assertTrue(proto.getTimeWindowStatisticsMap().isEmpty(), proto.getTimeWindowStatisticsMap().keySet().toString());
+        } finally {
+            allocatingThread.interrupt();
+        }
+    }
+
+    private static double totalTime(SparkSamplerProtos.SamplerData proto, String threadName) {
+        return proto.getThreadsList().stream()
+                .filter(thread -> thread.getName().equals(threadName))
+                .flatMap(thread -> thread.getTimesList().stream())
+                .mapToDouble(Double::doubleValue)
+                .sum();
+    }
+
 }
@@ -0,0 +1,97 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.common.sampler.ThreadDumper;
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.util.SparkThreadFactory;
+import me.lucko.spark.test.plugin.TestSparkPlugin;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class AsyncAggregationWorkerTest {
+
+    @Test
+    public void testAggregatesInOrder(@TempDir Path directory) throws Exception {
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT).replace(" ", "");
+        assumeTrue(os.equals("linux") || os.equals("macosx"), "async profiler is only supported on Linux and macOS");
+
+        try (TestSparkPlugin plugin = new TestSparkPlugin(directory)) {
+            AsyncProfilerAccess access = AsyncProfilerAccess.getInstance(plugin.platform());
+            assumeTrue(access.checkSupported(plugin.platform()), "async profiler is not supported");
+
+            AsyncDataAggregator dataAggregator = new AsyncDataAggregator(ThreadGrouper.BY_NAME.get(), false);
+            List<Integer> windows = Collections.synchronizedList(new ArrayList<>());
+            AsyncAggregationWorker worker = new AsyncAggregationWorker(dataAggregator, new SparkThreadFactory(), job -> windows.add(job.getWindow()), 1);
+            worker.start();
+
+            SampleCollector.Execution collector = new SampleCollector.Execution(100);
+            List<Path> files = new ArrayList<>();
+            for (int window = 1; window <= 3; window++) {
+                AsyncProfilerJob job = access.startNewProfilerJob();
+                job.init(plugin.platform(), collector, ThreadDumper.ALL, window, true, false);
+                job.start();
+                generateLoad(500);
+                job.stop();
+
+                files.add(job.getOutputFile());
+                assertTrue(worker.submit(job, w -> w < 2));
+            }
+            worker.finish();
+
+            assertEquals(Arrays.asList(1, 2, 3), windows);
+            assertEquals(0, worker.getQueueDepth());
+            for (Path file : files) {
+                assertFalse(Files.exists(file));
+            }
+
+            // window 1 was pruned once windows 2 and 3 were aggregated
+            assertEquals(Arrays.asList(2, 3), new ArrayList<>(worker.getLagMillis().keySet()));
+            assertTrue(worker.getMaxLagMillis() >= worker.getLastLagMillis());
+            assertFalse(dataAggregator.exportData().isEmpty());
+        }
+    }
+
+    private static void generateLoad(long durationMillis) {
+        long end = System.currentTimeMillis() + durationMillis;
+        long x = 0;
+        while (System.currentTimeMillis() < end) {
+            x += Long.toString(x).hashCode();
+        }
+        if (x == 42) {
+            System.out.println(x);
+        }
+    }
+
+}
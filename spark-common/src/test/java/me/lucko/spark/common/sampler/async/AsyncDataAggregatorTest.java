@@ -0,0 +1,208 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AsyncDataAggregatorTest {
+
+    private static final String THREAD_NAME = "Test Thread";
+    private static final String THREAD_STATE = "STATE_RUNNABLE";
+
+    private static final AsyncStackTraceElement RUN = new AsyncStackTraceElement("java.lang.Thread", "run", "()V");
+    private static final AsyncStackTraceElement FOO = new AsyncStackTraceElement("test.Foo", "example", "()V");
+    private static final AsyncStackTraceElement BAR = new AsyncStackTraceElement("test.Bar", "example", "()V");
+    private static final AsyncStackTraceElement PARK = new AsyncStackTraceElement("jdk.internal.misc.Unsafe", "park", "(ZJ)V");
+
+    private static final AsyncStackTraceElement[] STACK_FOO = {FOO, RUN};
+    private static final AsyncStackTraceElement[] STACK_BAR = {BAR, RUN};
+    private static final AsyncStackTraceElement[] STACK_PARK = {PARK, RUN};
+
+    @Test
+    public void testRepeatedStackTrace() {
+        AsyncDataAggregator aggregator = new AsyncDataAggregator(ThreadGrouper.BY_NAME.get(), false);
+        aggregator.insertData(segment(1, 1, STACK_FOO, 10), 1);
+        aggregator.insertData(segment(1, 1, STACK_FOO, 20), 1);
+        aggregator.insertData(segment(1, 1, STACK_FOO, 30), 2);
+
+        ThreadNode thread = exportSingleThread(aggregator);
+        assertEquals(30, thread.getTimes().get(1));
+        assertEquals(30, thread.getTimes().get(2));
+
+        StackTraceNode leaf = onlyChild(onlyChild(thread));
+        assertEquals("test.Foo", leaf.getClassName());
+        assertEquals(30, leaf.getTimes().get(1));
+        assertEquals(30, leaf.getTimes().get(2));
+    }
+
+    @Test
+    public void testCachedPathIsReused() {
+        AsyncDataAggregator aggregator = new AsyncDataAggregator(ThreadGrouper.BY_NAME.get(), false);
+        aggregator.insertData(segment(1, 1, STACK_FOO, 10), 1);
+
+        // same ids - the stack isn't looked at again
+        aggregator.insertData(segment(1, 1, STACK_BAR, 10), 1);
+        assertEquals("test.Foo", onlyChild(onlyChild(exportSingleThread(aggregator))).getClassName());
+
+        // a different thread with the same stack trace id gets its own path
+        aggregator.insertData(segment(2, 1, STACK_BAR, 10), 1);
+        assertEquals(2, onlyChild(exportSingleThread(aggregator)).getChildren().size());
+
+        // ids are only unique within a recording
+        aggregator.invalidateStackTraceCache();
+        aggregator.insertData(segment(1, 1, STACK_BAR, 10), 1);
+        StackTraceNode root = onlyChild(exportSingleThread(aggregator));
+        assertEquals(2, root.getChildren().size());
+        assertEquals(40, root.getTimes().get(1));
+        for (StackTraceNode child : root.getChildren()) {
+            // Foo: thread 1 twice, Bar: thread 2 and then thread 1
+            assertEquals(20, child.getTimes().get(1));
+        }
+    }
+
+    @Test
+    public void testPruneInvalidatesCache() {
+        AsyncDataAggregator aggregator = new AsyncDataAggregator(ThreadGrouper.BY_NAME.get(), false);
+        aggregator.insertData(segment(1, 1, STACK_FOO, 10), 1);
+        aggregator.insertData(segment(1, 2, STACK_BAR, 10), 2);
+
+        // removes the whole Foo branch
+        aggregator.pruneData(window -> window == 1);
+        StackTraceNode root = onlyChild(exportSingleThread(aggregator));
+        assertEquals("test.Bar", onlyChild(root).getClassName());
+
+        // the removed nodes must be recreated, not written to
+        aggregator.insertData(segment(1, 1, STACK_FOO, 10), 3);
+        root = onlyChild(exportSingleThread(aggregator));
+        assertEquals(2, root.getChildren().size());
+        assertArrayEquals(new int[]{2, 3}, root.getTimes().windows());
+
+        // removes everything
+        aggregator.pruneData(window -> window <= 3);
+        assertTrue(aggregator.exportData().isEmpty());
+
+        aggregator.insertData(segment(1, 2, STACK_BAR, 10), 4);
+        ThreadNode thread = exportSingleThread(aggregator);
+        assertEquals(10, thread.getTimes().get(4));
+        assertEquals(10, onlyChild(onlyChild(thread)).getTimes().get(4));
+    }
+
+    @Test
+    public void testReplaceData() {
+        AsyncDataAggregator aggregator = new AsyncDataAggregator(ThreadGrouper.BY_NAME.get(), false);
+        aggregator.insertData(segment(1, 1, STACK_FOO, 10), 1);
+
+        // the same data is reported again - it replaces, rather than adds to, the previous data
+        aggregator.replaceData(replacement -> {
+            // exports made while the new data is being inserted still see the previous data
+            assertEquals(10, exportSingleThread(aggregator).getTimes().get(1));
+            replacement.insertData(segment(1, 1, STACK_FOO, 10), 1);
+        });
+        assertEquals(10, exportSingleThread(aggregator).getTimes().get(1));
+
+        aggregator.replaceData(replacement -> replacement.insertData(segment(1, 1, STACK_BAR, 20), 2));
+        ThreadNode thread = exportSingleThread(aggregator);
+        assertArrayEquals(new int[]{2}, thread.getTimes().windows());
+        assertEquals("test.Bar", onlyChild(onlyChild(thread)).getClassName());
+
+        // the cached path of the previous data isn't reused
+        aggregator.insertData(segment(1, 1, STACK_FOO, 10), 2);
+        assertEquals(2, onlyChild(exportSingleThread(aggregator)).getChildren().size());
+
+        // the previous data is kept if the new data can't be read
+        assertThrows(IOException.class, () -> aggregator.replaceData(replacement -> {
+            replacement.insertData(segment(1, 1, STACK_FOO, 10), 3);
+            throw new IOException("test");
+        }));
+        assertEquals(30, exportSingleThread(aggregator).getTimes().get(2));
+
+        aggregator.replaceData(replacement -> { });
+        assertTrue(aggregator.exportData().isEmpty());
+    }
+
+    @Test
+    public void testIgnoreSleeping() {
+        AsyncDataAggregator aggregator = new AsyncDataAggregator(ThreadGrouper.BY_NAME.get(), true);
+        aggregator.insertData(segment(1, 1, STACK_PARK, 10), 1);
+        aggregator.insertData(segment(1, 1, STACK_PARK, 10), 1);
+        assertTrue(aggregator.exportData().isEmpty());
+
+        // the thread state is checked for each sample, even when the stack is cached
+        aggregator.insertData(segment(1, 2, STACK_FOO, 10), 1);
+        aggregator.insertData(new ProfileSegment(1, THREAD_NAME, 2, STACK_FOO, 10, "STATE_SLEEPING", 0), 1);
+        assertEquals(10, exportSingleThread(aggregator).getTimes().get(1));
+    }
+
+    @Test
+    public void testMonitorClassesHaveSeparatePaths() {
+        AsyncStackTraceElement lockA = new AsyncStackTraceElement("test.LockA", AsyncStackTraceElement.CONTENDED_LOCK, null);
+        AsyncStackTraceElement lockB = new AsyncStackTraceElement("test.LockB", AsyncStackTraceElement.CONTENDED_LOCK, null);
+
+        // the same stack trace, contended on two different monitors
+        AsyncDataAggregator aggregator = new AsyncDataAggregator(ThreadGrouper.BY_NAME.get(), false);
+        aggregator.insertData(new ProfileSegment(1, THREAD_NAME, 1, 10, new AsyncStackTraceElement[]{lockA, FOO, RUN}, 1000, THREAD_STATE, 0), 1);
+        aggregator.insertData(new ProfileSegment(1, THREAD_NAME, 1, 20, new AsyncStackTraceElement[]{lockB, FOO, RUN}, 3000, THREAD_STATE, 0), 1);
+        aggregator.insertData(new ProfileSegment(1, THREAD_NAME, 1, 10, new AsyncStackTraceElement[]{lockA, FOO, RUN}, 500, THREAD_STATE, 0), 1);
+
+        StackTraceNode foo = onlyChild(onlyChild(exportSingleThread(aggregator)));
+        assertEquals(4500, foo.getTimes().get(1));
+        assertEquals(2, foo.getChildren().size());
+        for (StackTraceNode monitor : foo.getChildren()) {
+            assertEquals(AsyncStackTraceElement.CONTENDED_LOCK, monitor.getMethodName());
+            assertEquals(monitor.getClassName().equals("test.LockA") ? 1500 : 3000, monitor.getTimes().get(1));
+        }
+    }
+
+    private static ProfileSegment segment(int nativeThreadId, int stackTraceId, AsyncStackTraceElement[] stack, long value) {
+        return new ProfileSegment(nativeThreadId, THREAD_NAME, stackTraceId, stack, value, THREAD_STATE, 0);
+    }
+
+    private static ThreadNode exportSingleThread(AsyncDataAggregator aggregator) {
+        List<ThreadNode> nodes = aggregator.exportData();
+        assertEquals(1, nodes.size());
+        return nodes.get(0);
+    }
+
+    private static StackTraceNode onlyChild(ThreadNode node) {
+        Collection<StackTraceNode> children = node.getChildren();
+        assertEquals(1, children.size());
+        return children.iterator().next();
+    }
+
+    private static StackTraceNode onlyChild(StackTraceNode node) {
+        Collection<StackTraceNode> children = node.getChildren();
+        assertEquals(1, children.size());
+        return children.iterator().next();
+    }
+
+}
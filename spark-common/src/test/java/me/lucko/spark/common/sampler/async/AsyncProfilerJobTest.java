@@ -0,0 +1,243 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.common.sampler.ThreadDumper;
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.async.jfr.JfrReader;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.test.plugin.TestSparkPlugin;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class AsyncProfilerJobTest {
+
+    private static final int WINDOW = 1;
+
+    private static volatile long sink;
+
+    @Test
+    public void testStreamingAggregation(@TempDir Path directory) throws Exception {
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT).replace(" ", "");
+        assumeTrue(os.equals("linux") || os.equals("macosx"), "async profiler is only supported on Linux and macOS");
+
+        try (TestSparkPlugin plugin = new TestSparkPlugin(directory)) {
+            AsyncProfilerAccess access = AsyncProfilerAccess.getInstance(plugin.platform());
+            assumeTrue(access.checkSupported(plugin.platform()), "async profiler is not supported");
+
+            SampleCollector.Execution collector = new SampleCollector.Execution(100);
+            AsyncProfilerJob job = access.startNewProfilerJob();
+            job.init(plugin.platform(), collector, ThreadDumper.ALL, WINDOW, true, false);
+            job.start();
+            generateLoad(4, TimeUnit.SECONDS.toMillis(3));
+            job.stop();
+
+            Path file = job.getOutputFile();
+            try {
+                Map<String, Long> sorted = aggregate(file, collector, true);
+                Map<String, Long> streamed = aggregate(file, collector, false);
+
+                // the simple aggregator doesn't depend on ordering, so the results should be identical
+                assertFalse(sorted.isEmpty());
+                assertEquals(sorted, streamed);
+            } finally {
+                job.deleteOutputFile();
+            }
+        }
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void benchmarkStreamingAggregation(@TempDir Path directory) throws Exception {
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT).replace(" ", "");
+        assumeTrue(os.equals("linux") || os.equals("macosx"), "async profiler is only supported on Linux and macOS");
+
+        try (TestSparkPlugin plugin = new TestSparkPlugin(directory)) {
+            AsyncProfilerAccess access = AsyncProfilerAccess.getInstance(plugin.platform());
+            assumeTrue(access.checkSupported(plugin.platform()), "async profiler is not supported");
+
+            // a longer recording at a high sampling rate, so the sorted path has a large event list to build
+            SampleCollector.Execution collector = new SampleCollector.Execution(100);
+            AsyncProfilerJob job = access.startNewProfilerJob();
+            job.init(plugin.platform(), collector, ThreadDumper.ALL, WINDOW, true, false);
+            job.start();
+            generateLoad(8, TimeUnit.SECONDS.toMillis(20));
+            job.stop();
+
+            Path file = job.getOutputFile();
+            try {
+                // run each once to warm up, then measure
+                measure(file, collector, true);
+                measure(file, collector, false);
+
+                Measurement sorted = measure(file, collector, true);
+                Measurement streamed = measure(file, collector, false);
+
+                System.out.println("JFR aggregation (sorted):   " + sorted);
+                System.out.println("JFR aggregation (streamed): " + streamed);
+
+                assertEquals(sorted.times, streamed.times);
+            } finally {
+                job.deleteOutputFile();
+            }
+        }
+    }
+
+    @Test
+    public void testSurvivorsAreReplacedAfterResume(@TempDir Path directory) throws Exception {
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT).replace(" ", "");
+        assumeTrue(os.equals("linux") || os.equals("macosx"), "async profiler is only supported on Linux and macOS");
+
+        try (TestSparkPlugin plugin = new TestSparkPlugin(directory)) {
+            AsyncProfilerAccess access = AsyncProfilerAccess.getInstance(plugin.platform());
+            assumeTrue(access.checkSupported(plugin.platform()), "async profiler is not supported");
+            assumeTrue(access.checkAllocationProfilingSupported(plugin.platform()), "allocation profiling is not supported");
+
+            SampleCollector.Survivors collector = new SampleCollector.Survivors(16 * 1024);
+            AsyncDataAggregator dataAggregator = new AsyncDataAggregator(ThreadGrouper.BY_NAME.get(), false);
+            List<byte[]> retained = new ArrayList<>();
+
+            AsyncProfilerJob first = access.startNewProfilerJob();
+            first.init(plugin.platform(), collector, ThreadDumper.ALL, WINDOW, true, false);
+            first.start();
+            for (int i = 0; i < 256; i++) {
+                retained.add(new byte[64 * 1024]);
+            }
+            first.stop();
+            first.aggregate(dataAggregator);
+
+            long firstTotal = totalTime(dataAggregator);
+            assertTrue(firstTotal > 0, "no survivors recorded");
+
+            // the resumed session still tracks the objects allocated by the first job,
+            // and reports them again - so they replace, rather than add to, the previous data
+            AsyncProfilerJob second = access.startNewProfilerJob();
+            second.init(plugin.platform(), collector, ThreadDumper.ALL, WINDOW + 1, true, false);
+            second.setResume(true);
+            second.start();
+            second.stop();
+            second.aggregate(dataAggregator);
+
+            long secondTotal = totalTime(dataAggregator);
+            assertTrue(secondTotal > 0, "survivors were not tracked after resuming");
+            assertTrue(secondTotal < firstTotal * 3 / 2, "survivors were accumulated: " + firstTotal + " -> " + secondTotal);
+
+            assertEquals(256, retained.size());
+        }
+    }
+
+    private static long totalTime(AsyncDataAggregator dataAggregator) {
+        long total = 0;
+        for (ThreadNode node : dataAggregator.exportData()) {
+            total += node.getTimes().total();
+        }
+        return total;
+    }
+
+    private static Map<String, Long> aggregate(Path file, SampleCollector.Execution collector, boolean ordered) throws Exception {
+        AsyncDataAggregator dataAggregator = new AsyncDataAggregator(ThreadGrouper.BY_NAME.get(), false);
+        try (JfrReader reader = new JfrReader(file)) {
+            AsyncProfilerJob.readSegments(reader, collector, ThreadDumper.ALL, WINDOW, dataAggregator, ordered);
+        }
+
+        Map<String, Long> times = new HashMap<>();
+        for (ThreadNode node : dataAggregator.exportData()) {
+            times.put(node.getThreadGroup(), node.getTimes().get(WINDOW));
+        }
+        return times;
+    }
+
+    private static Measurement measure(Path file, SampleCollector.Execution collector, boolean ordered) throws Exception {
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                heapPools.add(pool);
+            }
+        }
+
+        System.gc();
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        long baseline = heapPools.stream().mapToLong(pool -> pool.getUsage().getUsed()).sum();
+
+        long start = System.nanoTime();
+        Map<String, Long> times = aggregate(file, collector, ordered);
+        long wallTime = System.nanoTime() - start;
+
+        long peak = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+        return new Measurement(wallTime, peak - baseline, times);
+    }
+
+    private static void generateLoad(int threadCount, long durationMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + durationMillis;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(() -> {
+                long x = 0;
+                while (System.currentTimeMillis() < end) {
+                    x += Long.toString(x).hashCode();
+                }
+                // stop the loop from being optimised away
+                sink = x;
+            }, "Load Thread " + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static final class Measurement {
+        private final long wallTimeNanos;
+        private final long peakHeapGrowth;
+        private final Map<String, Long> times;
+
+        Measurement(long wallTimeNanos, long peakHeapGrowth, Map<String, Long> times) {
+            this.wallTimeNanos = wallTimeNanos;
+            this.peakHeapGrowth = peakHeapGrowth;
+            this.times = times;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%.1fms wall time, %.1fMB peak heap growth",
+                    this.wallTimeNanos / 1e6, this.peakHeapGrowth / (1024d * 1024d));
+        }
+    }
+
+}
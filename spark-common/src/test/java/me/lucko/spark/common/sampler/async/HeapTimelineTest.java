@@ -0,0 +1,91 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.proto.SparkProtos;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HeapTimelineTest {
+
+    // 1 tick = 1 microsecond
+    private static final long TICKS_PER_SEC = 1_000_000;
+
+    @Test
+    public void testTimeline() {
+        HeapTimeline timeline = new HeapTimeline();
+        assertTrue(timeline.isEmpty());
+
+        timeline.accept(1, false, 1_000, 800, TICKS_PER_SEC);
+        timeline.accept(1, true, 6_000, 300, TICKS_PER_SEC);
+        timeline.accept(2, false, 20_000, 900, TICKS_PER_SEC);
+        timeline.accept(2, true, 22_000, 400, TICKS_PER_SEC);
+
+        assertFalse(timeline.isEmpty());
+        assertEquals(300, timeline.getUsedMin());
+        assertEquals(900, timeline.getUsedMax());
+        assertEquals(400, timeline.getUsedAfterGc());
+        assertEquals(2, timeline.getGcCount());
+        assertEquals(7_000_000, timeline.getGcPauseNanos());
+
+        SparkProtos.WindowStatistics.Builder builder = SparkProtos.WindowStatistics.newBuilder();
+        timeline.writeTo(builder);
+        assertEquals(300, builder.getHeapUsedMin());
+        assertEquals(900, builder.getHeapUsedMax());
+        assertEquals(400, builder.getHeapUsedAfterGc());
+        assertEquals(2, builder.getGcCount());
+        assertEquals(7d, builder.getGcPauseTotal());
+    }
+
+    @Test
+    public void testUnmatchedSummaries() {
+        HeapTimeline timeline = new HeapTimeline();
+
+        // started in the previous window - counted, but the pause can't be measured
+        timeline.accept(1, true, 5_000, 300, TICKS_PER_SEC);
+        // still in progress at the end of the window
+        timeline.accept(2, false, 9_000, 700, TICKS_PER_SEC);
+
+        assertEquals(1, timeline.getGcCount());
+        assertEquals(0, timeline.getGcPauseNanos());
+        assertEquals(300, timeline.getUsedAfterGc());
+        assertEquals(300, timeline.getUsedMin());
+        assertEquals(700, timeline.getUsedMax());
+    }
+
+    @Test
+    public void testNoCollections() {
+        HeapTimeline timeline = new HeapTimeline();
+        timeline.accept(0, false, 1_000, 500, TICKS_PER_SEC);
+
+        assertEquals(0, timeline.getGcCount());
+        assertEquals(-1, timeline.getUsedAfterGc());
+
+        SparkProtos.WindowStatistics.Builder builder = SparkProtos.WindowStatistics.newBuilder();
+        timeline.writeTo(builder);
+        assertEquals(0, builder.getHeapUsedAfterGc());
+        assertEquals(500, builder.getHeapUsedMax());
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.common.sampler.async.jfr.JfrReader.MallocEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NativeAllocationMatcherTest {
+
+    @Test
+    public void testFreesAreMatched() {
+        NativeAllocationMatcher matcher = new NativeAllocationMatcher();
+        MallocEvent a = malloc(0x1000, 64, 1);
+        MallocEvent b = malloc(0x2000, 128, 2);
+        MallocEvent c = malloc(0x3000, 256, 3);
+
+        matcher.accept(a);
+        matcher.accept(b);
+        matcher.accept(c);
+        matcher.accept(free(0x2000));
+        assertEquals(64 + 256, matcher.getOutstandingBytes());
+        assertEquals(Arrays.asList(a, c), new ArrayList<>(matcher.getOutstanding()));
+
+        matcher.accept(free(0x1000));
+        matcher.accept(free(0x3000));
+        assertEquals(0, matcher.getOutstandingBytes());
+        assertTrue(matcher.getOutstanding().isEmpty());
+    }
+
+    @Test
+    public void testUnmatchedFreesAreIgnored() {
+        NativeAllocationMatcher matcher = new NativeAllocationMatcher();
+
+        // allocated in an earlier window
+        matcher.accept(free(0x1000));
+        assertEquals(0, matcher.getOutstandingBytes());
+
+        matcher.accept(malloc(0x1000, 32, 1));
+        matcher.accept(free(0x4000));
+        assertEquals(32, matcher.getOutstandingBytes());
+    }
+
+    @Test
+    public void testReusedAddress() {
+        NativeAllocationMatcher matcher = new NativeAllocationMatcher();
+
+        // a free wasn't recorded in between - only the latest allocation is outstanding
+        MallocEvent second = malloc(0x1000, 48, 2);
+        matcher.accept(malloc(0x1000, 16, 1));
+        matcher.accept(second);
+
+        List<MallocEvent> outstanding = new ArrayList<>(matcher.getOutstanding());
+        assertEquals(1, outstanding.size());
+        assertEquals(second, outstanding.get(0));
+        assertEquals(48, matcher.getOutstandingBytes());
+    }
+
+    private static MallocEvent malloc(long address, long size, int stackTraceId) {
+        return new MallocEvent(0, 1, stackTraceId, address, size);
+    }
+
+    private static MallocEvent free(long address) {
+        return new MallocEvent(0, 1, 0, address, 0);
+    }
+
+}
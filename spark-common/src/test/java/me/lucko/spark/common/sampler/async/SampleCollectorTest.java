@@ -0,0 +1,60 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SampleCollectorTest {
+
+    @ParameterizedTest
+    @CsvSource({
+            "-1, 1", // clock skew
+            "0, 1",
+            "59999, 1",
+            "60000, 2",
+            "150000, 3",
+            "899999, 15",
+            "900000, 16",
+            "86400000, 16",
+    })
+    public void testSurvivorAgeBucket(long ageMillis, int expectedBucket) {
+        assertEquals(expectedBucket, SampleCollector.Survivors.ageBucket(TimeUnit.MILLISECONDS.toNanos(ageMillis)));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "64, 0, 64", // every allocation recorded
+            "0, 1024, 0",
+            "1, 1024, 1025",
+            "64, 1024, 1056",
+            "1024, 1024, 1620",
+            "1048576, 1024, 1048576",
+    })
+    public void testNativeAllocationScaleSize(long size, int intervalBytes, long expected) {
+        assertEquals(expected, SampleCollector.NativeAllocation.scaleSize(size, intervalBytes));
+    }
+
+}
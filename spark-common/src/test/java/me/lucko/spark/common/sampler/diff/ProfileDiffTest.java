@@ -0,0 +1,185 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.diff;
+
+import me.lucko.spark.proto.SparkSamplerProtos;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerDiff;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ProfileDiffTest {
+
+    private static SparkSamplerProtos.StackTraceNode.Builder frame(String className, String methodName, int lineNumber) {
+        return SparkSamplerProtos.StackTraceNode.newBuilder()
+                .setClassName(className)
+                .setMethodName(methodName)
+                .setLineNumber(lineNumber);
+    }
+
+    private static SamplerData baseline() {
+        // main (100)
+        // \- test.Foo.run (100)
+        //     \- test.Bar.work (40)
+        return SamplerData.newBuilder()
+                .setMetadata(SparkSamplerProtos.SamplerMetadata.newBuilder().setStartTime(1000))
+                .addTimeWindows(1)
+                .addThreads(SparkSamplerProtos.ThreadNode.newBuilder()
+                        .setName("main")
+                        .addTimes(100)
+                        .addChildren(frame("test.Bar", "work", 10).addTimes(40))
+                        .addChildren(frame("test.Foo", "run", 5).addTimes(100).addChildrenRefs(0))
+                        .addChildrenRefs(1))
+                .build();
+    }
+
+    private static SamplerData current() {
+        // main (50, 150)
+        // \- test.Foo.run (50, 150) - at a different line
+        //     |- test.Bar.work (20, 100)
+        //     \- test.Baz.load (0, 20) - new, sparsely encoded
+        return SamplerData.newBuilder()
+                .setMetadata(SparkSamplerProtos.SamplerMetadata.newBuilder().setStartTime(2000))
+                .addTimeWindows(1)
+                .addTimeWindows(2)
+                .addThreads(SparkSamplerProtos.ThreadNode.newBuilder()
+                        .setName("main")
+                        .addTimes(50)
+                        .addTimes(150)
+                        .addChildren(frame("test.Bar", "work", 12).addTimes(20).addTimes(100))
+                        .addChildren(frame("test.Baz", "load", 3).addTimes(20).addTimeIndexes(1))
+                        .addChildren(frame("test.Foo", "run", 7).addTimes(50).addTimes(150).addChildrenRefs(0).addChildrenRefs(1))
+                        .addChildrenRefs(2))
+                .build();
+    }
+
+    @Test
+    public void testCompare() throws IOException {
+        ProfileDiff diff = ProfileDiff.compare(baseline(), current());
+        assertEquals(4, diff.getNodeCount());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        diff.writeTo(out);
+        SamplerDiff proto = SamplerDiff.parseFrom(out.toByteArray());
+
+        assertEquals(1000, proto.getBaselineMetadata().getStartTime());
+        assertEquals(2000, proto.getCurrentMetadata().getStartTime());
+        assertEquals(100, proto.getBaselineTotal());
+        assertEquals(200, proto.getCurrentTotal());
+
+        List<SamplerDiff.Node> nodes = proto.getNodesList();
+        assertEquals(4, nodes.size());
+
+        assertNode(nodes.get(0), -1, "main", 1, 1);
+        assertNode(nodes.get(1), 0, "test.Foo", 1, 1);
+        assertNode(nodes.get(2), 1, "test.Bar", 0.4, 0.6);
+        assertNode(nodes.get(3), 1, "test.Baz", 0, 0.1);
+
+        assertEquals(0.2, nodes.get(2).getDelta(), 1e-9);
+        assertEquals(1.5, nodes.get(2).getRatio(), 1e-9);
+        assertEquals(Double.POSITIVE_INFINITY, nodes.get(3).getRatio());
+        assertEquals(1, nodes.get(1).getRatio(), 1e-9);
+    }
+
+    private static void assertNode(SamplerDiff.Node node, int parent, String name, double baseline, double current) {
+        assertEquals(parent, node.getParent());
+        assertEquals(name, node.getName());
+        assertEquals(baseline, node.getBaseline(), 1e-9);
+        assertEquals(current, node.getCurrent(), 1e-9);
+    }
+
+    @Test
+    public void testLargestSelfIncreases() {
+        ProfileDiff diff = ProfileDiff.compare(baseline(), current());
+
+        // test.Foo.run self time went from 60% to 30%, so is not included
+        List<ProfileDiff.Change> changes = diff.getLargestSelfIncreases(5);
+        assertEquals(2, changes.size());
+
+        assertEquals("test.Bar", changes.get(0).getClassName());
+        assertEquals("work", changes.get(0).getMethodName());
+        assertEquals(0.2, changes.get(0).getDelta(), 1e-9);
+
+        assertEquals("test.Baz", changes.get(1).getClassName());
+        assertEquals(0.1, changes.get(1).getDelta(), 1e-9);
+
+        assertEquals(1, diff.getLargestSelfIncreases(1).size());
+    }
+
+    @Test
+    public void testIncompatibleProfiles() {
+        SparkSamplerProtos.SamplerMetadata execution = SparkSamplerProtos.SamplerMetadata.newBuilder()
+                .setSamplerMode(SparkSamplerProtos.SamplerMetadata.SamplerMode.EXECUTION)
+                .setSamplerEngine(SparkSamplerProtos.SamplerMetadata.SamplerEngine.ASYNC)
+                .setSamplerEngineEvent("cpu")
+                .build();
+        assertNull(ProfileDiff.getIncompatibility(execution, execution));
+
+        SparkSamplerProtos.SamplerMetadata allocation = execution.toBuilder()
+                .setSamplerMode(SparkSamplerProtos.SamplerMetadata.SamplerMode.ALLOCATION)
+                .setSamplerEngineEvent("alloc")
+                .build();
+        assertEquals("the baseline was recorded in execution mode, but the current profile in allocation mode",
+                ProfileDiff.getIncompatibility(execution, allocation));
+
+        SparkSamplerProtos.SamplerMetadata java = execution.toBuilder()
+                .setSamplerEngine(SparkSamplerProtos.SamplerMetadata.SamplerEngine.JAVA)
+                .build();
+        assertEquals("the baseline was recorded by the async engine, but the current profile by the java engine",
+                ProfileDiff.getIncompatibility(execution, java));
+
+        SparkSamplerProtos.SamplerMetadata wall = execution.toBuilder().setSamplerEngineEvent("wall").build();
+        assertEquals("the baseline measures the 'cpu' event, but the current profile measures 'wall'",
+                ProfileDiff.getIncompatibility(execution, wall));
+
+        SamplerData baseline = baseline().toBuilder().setMetadata(execution).build();
+        SamplerData current = current().toBuilder().setMetadata(allocation).build();
+        assertThrows(IllegalArgumentException.class, () -> ProfileDiff.compare(baseline, current));
+    }
+
+    @Test
+    public void testRead(@TempDir Path directory) throws IOException {
+        SamplerData data = current();
+
+        Path file = directory.resolve("profile.sparkprofile");
+        Files.write(file, data.toByteArray());
+        assertEquals(data, ProfileDiff.read(file));
+
+        Path compressedFile = directory.resolve("profile.sparkprofile.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressedFile))) {
+            data.writeTo(out);
+        }
+        assertEquals(data, ProfileDiff.read(compressedFile));
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.format;
+
+import me.lucko.spark.proto.SparkSamplerProtos;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CollapsedStackWriterTest {
+
+    static SamplerData.Builder createData() {
+        return SamplerData.newBuilder()
+                .setMetadata(SparkSamplerProtos.SamplerMetadata.newBuilder()
+                        .setSamplerMode(SparkSamplerProtos.SamplerMetadata.SamplerMode.EXECUTION)
+                        .setStartTime(1000)
+                        .setInterval(4000)
+                )
+                .addTimeWindows(7)
+                .addTimeWindows(8);
+    }
+
+    static SparkSamplerProtos.ThreadNode createThread(String name) {
+        // name
+        // \- test.Foo.run (10ms, 20ms)
+        //     \- test.Bar.work (0ms, 6ms - sparsely encoded)
+        return SparkSamplerProtos.ThreadNode.newBuilder()
+                .setName(name)
+                .addTimes(10)
+                .addTimes(20)
+                .addChildren(SparkSamplerProtos.StackTraceNode.newBuilder()
+                        .setClassName("test.Bar")
+                        .setMethodName("work")
+                        .setLineNumber(12)
+                        .addTimes(6)
+                        .addTimeIndexes(1))
+                .addChildren(SparkSamplerProtos.StackTraceNode.newBuilder()
+                        .setClassName("test.Foo")
+                        .setMethodName("run")
+                        .setLineNumber(5)
+                        .addTimes(10)
+                        .addTimes(20)
+                        .addChildrenRefs(0))
+                .addChildrenRefs(1)
+                .build();
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        SamplerData.Builder proto = createData();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CollapsedStackWriter writer = new CollapsedStackWriter(out);
+        writer.writeThread(proto, createThread("Server thread"));
+        writer.writeThread(proto, createThread("Worker;1"));
+        writer.finish(proto);
+
+        String expected = "Server thread;test.Foo.run 24000\n" +
+                "Server thread;test.Foo.run;test.Bar.work 6000\n" +
+                "Worker:1;test.Foo.run 24000\n" +
+                "Worker:1;test.Foo.run;test.Bar.work 6000\n";
+        assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+}
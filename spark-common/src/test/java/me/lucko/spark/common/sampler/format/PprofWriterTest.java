@@ -0,0 +1,104 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.format;
+
+import me.lucko.spark.proto.PprofProtos;
+import me.lucko.spark.proto.SparkProtos;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PprofWriterTest {
+
+    @Test
+    public void testWrite() throws IOException {
+        SamplerData.Builder proto = CollapsedStackWriterTest.createData()
+                .putTimeWindowStatistics(8, SparkProtos.WindowStatistics.newBuilder()
+                        .setStartTime(60000)
+                        .setEndTime(120000)
+                        .build());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PprofWriter writer = new PprofWriter(out);
+        writer.writeThread(proto, CollapsedStackWriterTest.createThread("Server thread"));
+        writer.writeThread(proto, CollapsedStackWriterTest.createThread("Worker"));
+        writer.finish(proto);
+
+        PprofProtos.Profile profile = PprofProtos.Profile.parseFrom(out.toByteArray());
+        List<String> strings = profile.getStringTableList();
+
+        assertEquals("", strings.get(0));
+        assertEquals("execution", strings.get((int) profile.getSampleType(0).getType()));
+        assertEquals("microseconds", strings.get((int) profile.getSampleType(0).getUnit()));
+        assertEquals(4000, profile.getPeriod());
+        assertEquals(1_000_000_000L, profile.getTimeNanos());
+
+        // functions and locations are shared between threads
+        assertEquals(2, profile.getFunctionCount());
+        assertEquals(2, profile.getLocationCount());
+
+        // one sample per stack & window with a non-zero self time
+        List<String> samples = new ArrayList<>();
+        for (PprofProtos.Sample sample : profile.getSampleList()) {
+            StringBuilder sb = new StringBuilder();
+            for (PprofProtos.Label label : sample.getLabelList()) {
+                sb.append(strings.get((int) label.getKey())).append('=');
+                sb.append(label.getStr() != 0 ? strings.get((int) label.getStr()) : String.valueOf(label.getNum()));
+                sb.append(' ');
+            }
+            for (long locationId : sample.getLocationIdList()) {
+                sb.append(describe(profile, locationId)).append(' ');
+            }
+            sb.append(sample.getValue(0));
+            samples.add(sb.toString());
+        }
+
+        assertEquals(Arrays.asList(
+                "thread=Server thread window=7 test.Foo.run:5 10000",
+                "thread=Server thread window=8 window_start=60000 window_end=120000 test.Foo.run:5 14000",
+                "thread=Server thread window=8 window_start=60000 window_end=120000 test.Bar.work:12 test.Foo.run:5 6000",
+                "thread=Worker window=7 test.Foo.run:5 10000",
+                "thread=Worker window=8 window_start=60000 window_end=120000 test.Foo.run:5 14000",
+                "thread=Worker window=8 window_start=60000 window_end=120000 test.Bar.work:12 test.Foo.run:5 6000"
+        ), samples);
+    }
+
+    private static String describe(PprofProtos.Profile profile, long locationId) {
+        PprofProtos.Location location = profile.getLocationList().stream()
+                .filter(l -> l.getId() == locationId)
+                .findFirst()
+                .orElseThrow(IllegalStateException::new);
+        PprofProtos.Line line = location.getLine(0);
+        PprofProtos.Function function = profile.getFunctionList().stream()
+                .filter(f -> f.getId() == line.getFunctionId())
+                .findFirst()
+                .orElseThrow(IllegalStateException::new);
+        return profile.getStringTable((int) function.getName()) + ":" + line.getLine();
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AdaptiveIntervalControllerTest {
+
+    private static final int BASE_INTERVAL = (int) TimeUnit.MILLISECONDS.toMicros(10);
+
+    @Test
+    public void testStartsAtBaseInterval() {
+        AdaptiveIntervalController controller = new AdaptiveIntervalController(BASE_INTERVAL, 0.01);
+        assertEquals(1, controller.getIntervalTicks());
+        assertEquals(BASE_INTERVAL, controller.getInterval());
+    }
+
+    @Test
+    public void testCheapSamplesKeepBaseInterval() {
+        AdaptiveIntervalController controller = new AdaptiveIntervalController(BASE_INTERVAL, 0.01);
+
+        // 50us per sample at 10ms = 0.5% of a core
+        for (int i = 0; i < 100; i++) {
+            controller.recordCaptureCost(TimeUnit.MICROSECONDS.toNanos(40));
+            controller.recordInsertCost(TimeUnit.MICROSECONDS.toNanos(10));
+        }
+
+        assertEquals(BASE_INTERVAL, controller.getInterval());
+        assertEquals(0.005, controller.getOverhead(), 1e-9);
+    }
+
+    @Test
+    public void testWidensToHoldBudget() {
+        AdaptiveIntervalController controller = new AdaptiveIntervalController(BASE_INTERVAL, 0.01);
+
+        // 350us per sample needs a 35ms interval to stay within 1% of a core, rounded up to whole ticks
+        for (int i = 0; i < 100; i++) {
+            controller.recordCaptureCost(TimeUnit.MICROSECONDS.toNanos(250));
+            controller.recordInsertCost(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+
+        assertEquals(4, controller.getIntervalTicks());
+        assertEquals(4 * BASE_INTERVAL, controller.getInterval());
+        assertTrue(controller.getOverhead() <= controller.getBudget());
+    }
+
+    @Test
+    public void testNarrowsWhenCostFalls() {
+        AdaptiveIntervalController controller = new AdaptiveIntervalController(BASE_INTERVAL, 0.01);
+
+        for (int i = 0; i < 100; i++) {
+            controller.recordCaptureCost(TimeUnit.MICROSECONDS.toNanos(950));
+        }
+        assertEquals(10, controller.getIntervalTicks());
+
+        for (int i = 0; i < 100; i++) {
+            controller.recordCaptureCost(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+        assertEquals(1, controller.getIntervalTicks());
+    }
+
+    @Test
+    public void testIntervalIsBounded() {
+        AdaptiveIntervalController controller = new AdaptiveIntervalController(BASE_INTERVAL, 0.01);
+
+        // 1 second per sample - the budget can't be met
+        for (int i = 0; i < 100; i++) {
+            controller.recordCaptureCost(TimeUnit.SECONDS.toNanos(1));
+        }
+        assertEquals(20, controller.getIntervalTicks());
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new AdaptiveIntervalController(0, 0.01));
+        assertThrows(IllegalArgumentException.class, () -> new AdaptiveIntervalController(BASE_INTERVAL, 0));
+        assertThrows(IllegalArgumentException.class, () -> new AdaptiveIntervalController(BASE_INTERVAL, 1.5));
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class JavaFrameTableTest {
+
+    private static final StackTraceNode.Describer<StackTraceElement> NAIVE_DESCRIBER = (element, parent) -> {
+        int parentLineNumber = parent == null ? StackTraceNode.NULL_LINE_NUMBER : parent.getLineNumber();
+        return new StackTraceNode.JavaDescription(element.getClassName(), element.getMethodName(), element.getLineNumber(), parentLineNumber);
+    };
+
+    private static final StackTraceElement[] STACK = {
+            new StackTraceElement("test.Foo", "leaf", "Foo.java", 30),
+            new StackTraceElement("test.Foo", "middle", "Foo.java", 20),
+            new StackTraceElement("test.Foo", "run", "Foo.java", 10),
+            new StackTraceElement("java.lang.Thread", "run", "Thread.java", 750)
+    };
+
+    @Test
+    public void testInterning() {
+        JavaFrameTable table = new JavaFrameTable();
+
+        StackTraceElement element = new StackTraceElement("test.Foo", "run", "Foo.java", 10);
+        StackTraceElement parent = new StackTraceElement("java.lang.Thread", "run", "Thread.java", 750);
+
+        StackTraceNode.Description first = table.describe(element, parent);
+        StackTraceNode.Description second = table.describe(new StackTraceElement("test.Foo", "run", "Foo.java", 10), parent);
+        assertSame(first, second);
+        assertEquals(NAIVE_DESCRIBER.describe(element, parent), first);
+        assertEquals(1, table.size());
+
+        // a different parent line is a different frame
+        StackTraceNode.Description root = table.describe(element, null);
+        assertNotEquals(first, root);
+        assertEquals(NAIVE_DESCRIBER.describe(element, null), root);
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void testResize() {
+        JavaFrameTable table = new JavaFrameTable();
+
+        StackTraceNode.Description[] descriptions = new StackTraceNode.Description[10_000];
+        for (int i = 0; i < descriptions.length; i++) {
+            descriptions[i] = table.describe(new StackTraceElement("test.Foo", "method" + (i % 100), "Foo.java", i), null);
+        }
+        assertEquals(descriptions.length, table.size());
+
+        for (int i = 0; i < descriptions.length; i++) {
+            assertSame(descriptions[i], table.describe(new StackTraceElement("test.Foo", "method" + (i % 100), "Foo.java", i), null));
+        }
+    }
+
+    @Test
+    public void testIngestAllocationRate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+        int samples = 100_000;
+        long interned = bytesPerSample(threadBean, new JavaFrameTable(), samples);
+        long naive = bytesPerSample(threadBean, NAIVE_DESCRIBER, samples);
+
+        // the naive describer allocates a description for every frame of every sample
+        assertTrue(interned < naive, "interned: " + interned + ", naive: " + naive);
+        assertTrue(interned < 8, "interned: " + interned);
+    }
+
+    private static long bytesPerSample(com.sun.management.ThreadMXBean bean, StackTraceNode.Describer<StackTraceElement> describer, int samples) {
+        ThreadNode node = new ThreadNode("test");
+        long threadId = Thread.currentThread().getId();
+
+        // warm up, so that the tree and time rings have already been created
+        for (int i = 0; i < samples; i++) {
+            node.log(describer, STACK, 1, 1);
+        }
+
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < samples; i++) {
+            node.log(describer, STACK, 1, 1);
+        }
+        long after = bean.getThreadAllocatedBytes(threadId);
+
+        return (after - before) / samples;
+    }
+
+}
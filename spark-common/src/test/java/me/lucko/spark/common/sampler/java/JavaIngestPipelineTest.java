@@ -0,0 +1,150 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JavaIngestPipelineTest {
+
+    private static final int INTERVAL = 4000;
+
+    @Test
+    public void testBoundedQueue() {
+        ExecutorService workerPool = Executors.newFixedThreadPool(4);
+        GatedExecutor executor = new GatedExecutor(workerPool);
+        List<Integer> windows = Collections.synchronizedList(new ArrayList<>());
+
+        JavaDataAggregator aggregator = new SimpleJavaDataAggregator(workerPool, ThreadGrouper.BY_NAME.get(), INTERVAL, false);
+        JavaIngestPipeline pipeline = new JavaIngestPipeline(aggregator, executor, windows::add, cost -> {}, 4);
+
+        ThreadInfo[] dump = dumpCurrentThread();
+        assertTrue(pipeline.submit(dump, INTERVAL, 1));
+        assertTrue(pipeline.submit(dump, INTERVAL, 1));
+        assertTrue(pipeline.submit(dump, INTERVAL, 2));
+        assertTrue(pipeline.submit(dump, 3 * INTERVAL, 2)); // e.g. a widened interval
+        assertFalse(pipeline.submit(dump, INTERVAL, 2));
+        assertFalse(pipeline.submit(dump, INTERVAL, 2));
+
+        assertEquals(4, pipeline.getQueueDepth());
+        assertEquals(2, pipeline.getDroppedDumps());
+        assertEquals(0, pipeline.getIngestedDumps());
+
+        // let the drain task run, then wait for it to finish
+        executor.open();
+        ThreadNode node = exportCurrentThread(aggregator);
+
+        assertEquals(0, pipeline.getQueueDepth());
+        assertEquals(4, pipeline.getIngestedDumps());
+        assertEquals(Arrays.asList(1, 2), windows);
+        assertEquals(2L * INTERVAL, node.getTimes().get(1));
+        assertEquals(4L * INTERVAL, node.getTimes().get(2));
+    }
+
+    @Test
+    public void testConcurrentSubmit() throws InterruptedException {
+        ExecutorService workerPool = Executors.newFixedThreadPool(4);
+        JavaDataAggregator aggregator = new SimpleJavaDataAggregator(workerPool, ThreadGrouper.BY_NAME.get(), INTERVAL, false);
+        JavaIngestPipeline pipeline = new JavaIngestPipeline(aggregator, workerPool, window -> {}, cost -> {}, Integer.MAX_VALUE);
+
+        ThreadInfo[] dump = dumpCurrentThread();
+        int submits = 10_000;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < submits; i++) {
+                    pipeline.submit(dump, INTERVAL, 1);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        ThreadNode node = exportCurrentThread(aggregator);
+
+        assertEquals(0, pipeline.getDroppedDumps());
+        assertEquals(2L * submits, pipeline.getIngestedDumps());
+        assertEquals(2L * submits * INTERVAL, node.getTimes().get(1));
+        assertTrue(pipeline.getMaxIngestLatencyMillis() >= pipeline.getMeanIngestLatencyMillis());
+    }
+
+    private static ThreadInfo[] dumpCurrentThread() {
+        return new ThreadInfo[]{ManagementFactory.getThreadMXBean().getThreadInfo(Thread.currentThread().getId(), Integer.MAX_VALUE)};
+    }
+
+    private static ThreadNode exportCurrentThread(JavaDataAggregator aggregator) {
+        // exporting waits for the worker pool to finish
+        List<ThreadNode> nodes = aggregator.exportData();
+        assertEquals(1, nodes.size());
+
+        ThreadNode node = nodes.get(0);
+        assertEquals(Thread.currentThread().getName(), node.getThreadGroup());
+        return node;
+    }
+
+    /**
+     * An executor which holds tasks until it is opened.
+     */
+    private static final class GatedExecutor implements Executor {
+        private final Executor delegate;
+        private final List<Runnable> held = new ArrayList<>();
+        private boolean open = false;
+
+        GatedExecutor(Executor delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            if (this.open) {
+                this.delegate.execute(command);
+            } else {
+                this.held.add(command);
+            }
+        }
+
+        synchronized void open() {
+            this.open = true;
+            this.held.forEach(this.delegate::execute);
+            this.held.clear();
+        }
+    }
+
+}
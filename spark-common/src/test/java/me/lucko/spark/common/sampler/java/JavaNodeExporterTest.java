@@ -0,0 +1,131 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
+import me.lucko.spark.common.util.MethodDisambiguator;
+import me.lucko.spark.common.util.classfinder.FallbackClassFinder;
+import me.lucko.spark.proto.SparkSamplerProtos;
+import me.lucko.spark.test.TestClass;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class JavaNodeExporterTest {
+
+    private static final StackTraceNode.Describer<StackTraceNode.JavaDescription> DESCRIBER = (element, parent) -> element;
+
+    // a mix of classes and lines that can (TestClass lines 25-40) and can't be disambiguated
+    private static final String[] CLASS_NAMES = {TestClass.class.getName(), "test.Missing", "test.Other"};
+    private static final String[] METHOD_NAMES = {"test", "run"};
+    private static final int[] LINE_NUMBERS = {24, 25, 26, 29, 31, 32, 37, 100};
+    private static final int[] PARENT_LINE_NUMBERS = {StackTraceNode.NULL_LINE_NUMBER, 1, 2};
+
+    @ParameterizedTest
+    @EnumSource(MergeStrategy.class)
+    public void testMatchesPairwiseMerge(MergeStrategy mergeStrategy) {
+        MethodDisambiguator disambiguator = new MethodDisambiguator(FallbackClassFinder.INSTANCE);
+
+        for (long seed = 0; seed < 50; seed++) {
+            // export is destructive (children are merged in place), so each exporter needs its own copy
+            List<ThreadNode> expectedThreads = randomThreads(seed);
+            List<ThreadNode> actualThreads = randomThreads(seed);
+
+            ProtoTimeEncoder timeEncoder = new ProtoTimeEncoder(time -> time, expectedThreads);
+            JavaNodeExporter expectedExporter = new PairwiseJavaNodeExporter(timeEncoder, mergeStrategy, disambiguator);
+            JavaNodeExporter actualExporter = new JavaNodeExporter(timeEncoder, mergeStrategy, disambiguator);
+
+            for (int i = 0; i < expectedThreads.size(); i++) {
+                SparkSamplerProtos.ThreadNode expected = expectedExporter.export(expectedThreads.get(i));
+                SparkSamplerProtos.ThreadNode actual = actualExporter.export(actualThreads.get(i));
+                assertEquals(expected, actual, "seed " + seed);
+            }
+        }
+    }
+
+    private static List<ThreadNode> randomThreads(long seed) {
+        Random random = new Random(seed);
+        List<ThreadNode> threads = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            ThreadNode thread = new ThreadNode("Thread " + t);
+            int stacks = 1 + random.nextInt(200);
+            for (int s = 0; s < stacks; s++) {
+                StackTraceNode.JavaDescription[] stack = new StackTraceNode.JavaDescription[1 + random.nextInt(6)];
+                for (int i = 0; i < stack.length; i++) {
+                    stack[i] = new StackTraceNode.JavaDescription(
+                            CLASS_NAMES[random.nextInt(CLASS_NAMES.length)],
+                            METHOD_NAMES[random.nextInt(METHOD_NAMES.length)],
+                            LINE_NUMBERS[random.nextInt(LINE_NUMBERS.length)],
+                            PARENT_LINE_NUMBERS[random.nextInt(PARENT_LINE_NUMBERS.length)]
+                    );
+                }
+                thread.log(DESCRIBER, stack, 1 + random.nextInt(100), 1 + random.nextInt(3));
+            }
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    /**
+     * The previous implementation, which compares each child against every child kept so far.
+     */
+    private static final class PairwiseJavaNodeExporter extends JavaNodeExporter {
+        private final MergeStrategy mergeStrategy;
+        private final MethodDisambiguator methodDisambiguator;
+
+        PairwiseJavaNodeExporter(ProtoTimeEncoder timeEncoder, MergeStrategy mergeStrategy, MethodDisambiguator methodDisambiguator) {
+            super(timeEncoder, mergeStrategy, methodDisambiguator);
+            this.mergeStrategy = mergeStrategy;
+            this.methodDisambiguator = methodDisambiguator;
+        }
+
+        @Override
+        protected Collection<StackTraceNode> exportChildren(Collection<StackTraceNode> children) {
+            if (children.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            List<StackTraceNode> list = new ArrayList<>(children.size());
+
+            outer:
+            for (StackTraceNode child : children) {
+                for (StackTraceNode other : list) {
+                    if (this.mergeStrategy.shouldMerge(this.methodDisambiguator, other, child)) {
+                        other.merge(child);
+                        continue outer;
+                    }
+                }
+                list.add(child);
+            }
+            return list;
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import me.lucko.spark.proto.SparkSamplerProtos.LockContention;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LockContentionAggregatorTest {
+
+    @Test
+    public void testBlockedOnMonitor() throws InterruptedException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Object lock = new LockObject();
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Thread owner = new Thread(() -> holdLock(lock, locked, release), "Owner Thread");
+        Thread waiter = new Thread(() -> {
+            synchronized (lock) {
+                lock.hashCode();
+            }
+        }, "Waiter Thread");
+
+        owner.start();
+        locked.await();
+        waiter.start();
+        try {
+            while (waiter.getState() != Thread.State.BLOCKED) {
+                Thread.sleep(1);
+            }
+
+            // only the waiter is dumped - the owner is looked up separately
+            ThreadInfo[] dumps = threadBean.getThreadInfo(new long[]{waiter.getId()}, Integer.MAX_VALUE);
+            LockContentionAggregator aggregator = new LockContentionAggregator();
+            aggregator.record(dumps, 4000, 1, threadBean);
+            aggregator.record(dumps, 4000, 1, threadBean);
+            aggregator.record(dumps, 10000, 2, threadBean);
+
+            SamplerData.Builder proto = SamplerData.newBuilder();
+            aggregator.writeTo(proto);
+            List<LockContention> contention = proto.getLockContentionList();
+            assertEquals(2, contention.size());
+
+            LockContention first = contention.get(0);
+            assertEquals(1, first.getWindow());
+            assertEquals("Waiter Thread", first.getWaiterThread());
+            assertEquals("Owner Thread", first.getOwnerThread());
+            assertEquals(LockObject.class.getName(), first.getLockClass());
+            assertEquals(8d, first.getTime());
+
+            // the owner was waiting for the release latch while it held the lock
+            assertEquals(1, first.getOwnerStacksCount());
+            LockContention.OwnerStack ownerStack = first.getOwnerStacks(0);
+            assertEquals(8d, ownerStack.getTime());
+            assertTrue(ownerStack.getFramesList().stream().anyMatch(frame -> frame.getMethodName().equals("holdLock")));
+
+            assertEquals(2, contention.get(1).getWindow());
+            assertEquals(10d, contention.get(1).getTime());
+
+            aggregator.pruneData(window -> window < 2);
+            proto = SamplerData.newBuilder();
+            aggregator.writeTo(proto);
+            assertEquals(1, proto.getLockContentionCount());
+            assertEquals(2, proto.getLockContention(0).getWindow());
+        } finally {
+            release.countDown();
+            owner.join();
+            waiter.join();
+        }
+    }
+
+    @Test
+    public void testOrdering() {
+        LockContentionAggregator aggregator = new LockContentionAggregator();
+        StackTraceElement[] stackA = {new StackTraceElement("test.Owner", "a", null, 1)};
+        StackTraceElement[] stackB = {new StackTraceElement("test.Owner", "b", null, 2)};
+
+        aggregator.insert(2, "Main", "Worker", "test.Lock", 1000, stackA);
+        aggregator.insert(1, "Main", "Worker", "test.Lock", 1000, stackA);
+        aggregator.insert(1, "Main", "Other", "test.Lock", 5000, stackA);
+        aggregator.insert(1, "Main", "Worker", "test.Lock", 3000, stackB);
+
+        SamplerData.Builder proto = SamplerData.newBuilder();
+        aggregator.writeTo(proto);
+
+        // by window, then most time first
+        assertEquals(3, proto.getLockContentionCount());
+        assertEquals("Other", proto.getLockContention(0).getOwnerThread());
+        assertEquals("Worker", proto.getLockContention(1).getOwnerThread());
+        assertEquals(2, proto.getLockContention(2).getWindow());
+
+        LockContention worker = proto.getLockContention(1);
+        assertEquals(4d, worker.getTime());
+        assertEquals(2, worker.getOwnerStacksCount());
+        assertEquals("b", worker.getOwnerStacks(0).getFrames(0).getMethodName());
+        assertEquals(3d, worker.getOwnerStacks(0).getTime());
+        assertEquals(1d, worker.getOwnerStacks(1).getTime());
+    }
+
+    private static void holdLock(Object lock, CountDownLatch locked, CountDownLatch release) {
+        synchronized (lock) {
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static final class LockObject {
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SamplingJitterTest {
+
+    // a synthetic 50ms tick, which spends the first 2ms (4%) in a short phase
+    private static final long TICK_LENGTH = 50_000; // us
+    private static final long SHORT_PHASE_LENGTH = 2_000; // us
+    private static final double SHORT_PHASE_FRACTION = (double) SHORT_PHASE_LENGTH / TICK_LENGTH;
+
+    // a 10ms interval divides the tick, so fixed rate samples always land in the same phases
+    private static final long INTERVAL = 10_000; // us
+    private static final long DURATION = 10_000 * TICK_LENGTH;
+
+    @ParameterizedTest
+    @EnumSource(value = SamplingJitter.class, names = {"UNIFORM", "POISSON"})
+    public void testRemovesAliasingBias(SamplingJitter jitter) {
+        double fixedEstimate = simulate(SamplingJitter.NONE, null);
+        double jitteredEstimate = simulate(jitter, null);
+
+        // the fixed rate sampler never sees the short phase
+        assertEquals(0, fixedEstimate);
+        assertTrue(Math.abs(jitteredEstimate - SHORT_PHASE_FRACTION) < 0.005, Double.toString(jitteredEstimate));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = SamplingJitter.class, names = {"UNIFORM", "POISSON"})
+    public void testSpreadsSamplesAcrossTickPhases(SamplingJitter jitter) {
+        TickPhaseHistogram fixedPhases = new TickPhaseHistogram();
+        simulate(SamplingJitter.NONE, fixedPhases);
+        TickPhaseHistogram jitteredPhases = new TickPhaseHistogram();
+        simulate(jitter, jitteredPhases);
+
+        // fixed rate samples fall into only half of the phases
+        int emptyPhases = 0;
+        for (long count : fixedPhases.getCounts()) {
+            if (count == 0) {
+                emptyPhases++;
+            }
+        }
+        assertEquals(TickPhaseHistogram.BUCKETS / 2, emptyPhases);
+
+        // jittered samples are spread evenly
+        long[] counts = jitteredPhases.getCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        double expected = (double) total / TickPhaseHistogram.BUCKETS;
+        for (long count : counts) {
+            assertTrue(Math.abs(count - expected) < expected * 0.1, count + " vs " + expected);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(SamplingJitter.class)
+    public void testMeanDelayIsInterval(SamplingJitter jitter) {
+        Random random = new Random(0);
+        long total = 0;
+        int samples = 100_000;
+        for (int i = 0; i < samples; i++) {
+            long delay = jitter.nextDelay(INTERVAL, random);
+            assertTrue(delay > 0);
+            total += delay;
+        }
+        assertEquals(INTERVAL, (double) total / samples, INTERVAL * 0.01);
+    }
+
+    /**
+     * Samples the synthetic tick workload, weighting each sample by the time elapsed since
+     * the previous one, as the {@link JavaSampler} does.
+     *
+     * @return the estimated fraction of time spent in the short phase
+     */
+    private static double simulate(SamplingJitter jitter, TickPhaseHistogram phases) {
+        Random random = new Random(0);
+        long shortPhaseTime = 0;
+        long totalTime = 0;
+
+        long nextTick = 0;
+        long time = INTERVAL / 2;
+        long lastSample = 0;
+        while (time < DURATION) {
+            if (phases != null) {
+                while (nextTick <= time) {
+                    phases.recordTick(nextTick * 1000 + 1);
+                    nextTick += TICK_LENGTH;
+                }
+                phases.record(time * 1000 + 1);
+            }
+
+            long weight = time - lastSample;
+            if (time % TICK_LENGTH < SHORT_PHASE_LENGTH) {
+                shortPhaseTime += weight;
+            }
+            totalTime += weight;
+
+            lastSample = time;
+            time += jitter.nextDelay(INTERVAL, random);
+        }
+
+        return (double) shortPhaseTime / totalTime;
+    }
+
+}
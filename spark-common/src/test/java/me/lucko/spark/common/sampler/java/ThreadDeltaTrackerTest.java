@@ -0,0 +1,146 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class ThreadDeltaTrackerTest {
+
+    @Test
+    public void testDeltas() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        ThreadInfo[] dumps = threadBean.getThreadInfo(new long[]{Thread.currentThread().getId()}, 0);
+        long threadId = dumps[0].getThreadId();
+
+        FixedTracker tracker = new FixedTracker(10);
+
+        // first seen - no previous value to compare against
+        tracker.counters.put(threadId, 1000L);
+        assertArrayEquals(new int[]{0}, tracker.measure(dumps));
+
+        tracker.counters.put(threadId, 1055L);
+        assertArrayEquals(new int[]{5}, tracker.measure(dumps));
+
+        // the remainder (5 units) is carried over
+        tracker.counters.put(threadId, 1060L);
+        assertArrayEquals(new int[]{1}, tracker.measure(dumps));
+
+        // terminated
+        tracker.counters.put(threadId, -1L);
+        assertArrayEquals(new int[]{0}, tracker.measure(dumps));
+
+        assertTrue(tracker.getMeanCostMicros() > 0);
+    }
+
+    @Test
+    public void testExitedThreads() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        ThreadInfo[] dumps = threadBean.getThreadInfo(new long[]{Thread.currentThread().getId()}, 0);
+        long threadId = dumps[0].getThreadId();
+
+        // the dump contains a null entry for each thread which exited before it was taken
+        ThreadInfo[] partialDumps = new ThreadInfo[]{null, dumps[0], null};
+
+        FixedTracker tracker = new FixedTracker(10);
+        tracker.counters.put(threadId, 1000L);
+        assertArrayEquals(new int[]{0, 0, 0}, tracker.measure(partialDumps));
+
+        tracker.counters.put(threadId, 1050L);
+        assertArrayEquals(new int[]{0, 5, 0}, tracker.measure(partialDumps));
+    }
+
+    @Test
+    public void testAllocatingThread() throws InterruptedException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(ThreadAllocationTracker.isSupported(threadBean), "thread allocation measurement is not supported");
+
+        CountDownLatch allocate = new CountDownLatch(1);
+        CountDownLatch allocated = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicReference<byte[][]> retained = new AtomicReference<>();
+        Thread allocatingThread = new Thread(() -> {
+            try {
+                allocate.await();
+                byte[][] arrays = new byte[64][];
+                for (int i = 0; i < arrays.length; i++) {
+                    arrays[i] = new byte[16 * 1024];
+                }
+                retained.set(arrays);
+                allocated.countDown();
+                finish.await();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }, "Allocating Thread");
+        allocatingThread.start();
+
+        try {
+            ThreadAllocationTracker tracker = new ThreadAllocationTracker(threadBean);
+            ThreadInfo[] dumps = threadBean.getThreadInfo(new long[]{allocatingThread.getId()}, 0);
+            assertArrayEquals(new int[]{0}, tracker.measure(dumps));
+
+            allocate.countDown();
+            allocated.await();
+
+            int[] weights = tracker.measure(dumps);
+            assertTrue(weights[0] >= 64 * 16 * 1024, Integer.toString(weights[0]));
+        } finally {
+            finish.countDown();
+            allocatingThread.join();
+        }
+    }
+
+    private static final class FixedTracker extends ThreadDeltaTracker {
+        private final Map<Long, Long> counters = new HashMap<>();
+        private final long unitsPerWeight;
+
+        FixedTracker(long unitsPerWeight) {
+            this.unitsPerWeight = unitsPerWeight;
+        }
+
+        @Override
+        protected long[] readCounters(long[] threadIds) {
+            long[] values = new long[threadIds.length];
+            for (int i = 0; i < threadIds.length; i++) {
+                values[i] = this.counters.get(threadIds[i]);
+            }
+            return values;
+        }
+
+        @Override
+        protected long unitsPerWeight() {
+            return this.unitsPerWeight;
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NodeBudgetTest {
+
+    private static final StackTraceNode.Describer<StackTraceNode.JavaDescription> DESCRIBER = (element, parent) -> element;
+
+    private static final StackTraceNode.JavaDescription RUN = frame("java.lang.Thread", "run");
+    private static final StackTraceNode.JavaDescription HOT = frame("test.Hot", "tick");
+
+    @Test
+    public void testWithinBudget() {
+        ThreadNode thread = createThread();
+        int nodes = countNodes(thread);
+
+        assertEquals(0, new NodeBudget(nodes).enforce(Collections.singletonList(thread)));
+        assertEquals(nodes, countNodes(thread));
+        assertFalse(findOther(thread).isPresent());
+
+        assertEquals(0, new NodeBudget(0).enforce(Collections.singletonList(thread)));
+        assertEquals(nodes, countNodes(thread));
+    }
+
+    @Test
+    public void testCollapse() {
+        ThreadNode thread = createThread();
+        StackTraceNode run = child(thread, RUN);
+        long runTotal = run.getTimes().total();
+        long window1 = run.getTimes().get(1);
+        long window2 = run.getTimes().get(2);
+        int nodes = countNodes(thread);
+
+        int collapsed = new NodeBudget(20).enforce(Collections.singletonList(thread));
+        assertTrue(collapsed > 0);
+
+        // collapsed down to 90% of the budget
+        int remaining = countNodes(thread);
+        assertTrue(remaining <= 18, "remaining " + remaining);
+        assertEquals(nodes - collapsed + 1, remaining); // +1 for the 'other' node
+
+        // the heaviest path is kept
+        StackTraceNode hot = child(run, HOT);
+        assertEquals(1000 * 2, hot.getTimes().total());
+
+        // the light subtrees are folded into 'other', preserving the parent's total time
+        StackTraceNode other = findOther(thread).orElseThrow(AssertionError::new);
+        assertTrue(other.isOther());
+        assertTrue(other.getChildren().isEmpty());
+        assertEquals(runTotal, run.getChildren().stream().mapToLong(n -> n.getTimes().total()).sum());
+        assertEquals(window1, run.getChildren().stream().mapToLong(n -> n.getTimes().get(1)).sum());
+        assertEquals(window2, run.getChildren().stream().mapToLong(n -> n.getTimes().get(2)).sum());
+
+        // enforcing again (e.g. on the next window) is a no-op until the tree grows again
+        assertEquals(0, new NodeBudget(20).enforce(Collections.singletonList(thread)));
+    }
+
+    private static ThreadNode createThread() {
+        ThreadNode thread = new ThreadNode("Test Thread");
+        for (int window = 1; window <= 2; window++) {
+            thread.log(DESCRIBER, new StackTraceNode.JavaDescription[]{HOT, RUN}, 1000, window);
+
+            // 10 light paths, each 3 frames deep
+            for (int i = 0; i < 10; i++) {
+                StackTraceNode.JavaDescription[] stack = {
+                        frame("test.Leaf" + i, "c"),
+                        frame("test.Leaf" + i, "b"),
+                        frame("test.Leaf" + i, "a"),
+                        RUN
+                };
+                thread.log(DESCRIBER, stack, 1 + i, window);
+            }
+        }
+        return thread;
+    }
+
+    private static StackTraceNode.JavaDescription frame(String className, String methodName) {
+        return new StackTraceNode.JavaDescription(className, methodName, StackTraceNode.NULL_LINE_NUMBER, StackTraceNode.NULL_LINE_NUMBER);
+    }
+
+    private static StackTraceNode child(AbstractNode node, StackTraceNode.Description description) {
+        return node.getChildren().stream()
+                .filter(n -> n.description.equals(description))
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+    }
+
+    private static Optional<StackTraceNode> findOther(ThreadNode thread) {
+        return allNodes(thread).stream().filter(StackTraceNode::isOther).findFirst();
+    }
+
+    private static int countNodes(ThreadNode thread) {
+        return allNodes(thread).size();
+    }
+
+    private static List<StackTraceNode> allNodes(ThreadNode thread) {
+        List<StackTraceNode> nodes = new ArrayList<>();
+        Deque<AbstractNode> stack = new ArrayDeque<>();
+        stack.push(thread);
+        while (!stack.isEmpty()) {
+            for (StackTraceNode child : stack.pop().getChildren()) {
+                nodes.add(child);
+                stack.push(child);
+            }
+        }
+        return nodes;
+    }
+
+}
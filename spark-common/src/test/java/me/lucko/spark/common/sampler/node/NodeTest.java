@@ -21,7 +21,6 @@
 package me.lucko.spark.common.sampler.node;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
 import me.lucko.spark.common.sampler.SamplerMode;
 import me.lucko.spark.common.sampler.async.AsyncNodeExporter;
 import me.lucko.spark.common.sampler.async.AsyncStackTraceElement;
@@ -64,32 +63,32 @@ public class NodeTest {
     @Test
     public void testBasicLog() {
         ThreadNode threadNode = new ThreadNode("Test Thread");
-        assertEquals(0, threadNode.getTimeWindows().size());
+        assertEquals(0, threadNode.getTimes().size());
 
         threadNode.log(STACK_TRACE_DESCRIBER, STACK_1, TimeUnit.SECONDS.toMicros(1), WINDOW);
 
         Collection<StackTraceNode> children1 = threadNode.getChildren();
         assertEquals(1, children1.size());
-        assertEquals(ImmutableSet.of(WINDOW), threadNode.getTimeWindows());
+        assertArrayEquals(new int[]{WINDOW}, threadNode.getTimes().windows());
 
         StackTraceNode node1 = children1.iterator().next();
-        assertEquals(ImmutableSet.of(WINDOW), node1.getTimeWindows());
+        assertArrayEquals(new int[]{WINDOW}, node1.getTimes().windows());
         assertEquals("java.lang.Thread", node1.getClassName());
         assertEquals("run", node1.getMethodName());
         assertEquals("()V", node1.getMethodDescription());
         assertEquals(StackTraceNode.NULL_LINE_NUMBER, node1.getLineNumber());
         assertEquals(StackTraceNode.NULL_LINE_NUMBER, node1.getParentLineNumber());
-        assertEquals(TimeUnit.SECONDS.toMicros(1), node1.getTimeAccumulator(WINDOW).longValue());
+        assertEquals(TimeUnit.SECONDS.toMicros(1), node1.getTimes().get(WINDOW));
 
         threadNode.log(STACK_TRACE_DESCRIBER, STACK_2, TimeUnit.SECONDS.toMicros(1), WINDOW);
-        assertEquals(TimeUnit.SECONDS.toMicros(2), node1.getTimeAccumulator(WINDOW).longValue());
+        assertEquals(TimeUnit.SECONDS.toMicros(2), node1.getTimes().get(WINDOW));
 
         Collection<StackTraceNode> children2 = node1.getChildren();
         assertEquals(2, children2.size());
 
         for (StackTraceNode node2 : children2) {
-            assertEquals(ImmutableSet.of(WINDOW), node2.getTimeWindows());
-            assertEquals(TimeUnit.SECONDS.toMicros(1), node2.getTimeAccumulator(WINDOW).longValue());
+            assertArrayEquals(new int[]{WINDOW}, node2.getTimes().windows());
+            assertEquals(TimeUnit.SECONDS.toMicros(1), node2.getTimes().get(WINDOW));
         }
     }
 
@@ -164,31 +163,31 @@ public class NodeTest {
         StackTraceNode threadRunNode = threadNode.getChildren().iterator().next();
         Collection<StackTraceNode> fooBarNodes = threadRunNode.getChildren();
 
-        assertEquals(2, threadNode.getTimeWindows().size());
+        assertEquals(2, threadNode.getTimes().size());
         assertEquals(2, threadRunNode.getChildren().size());
-        assertEquals(2, threadRunNode.getTimeWindows().size());
+        assertEquals(2, threadRunNode.getTimes().size());
 
         for (StackTraceNode node : fooBarNodes) {
-            assertEquals(1, node.getTimeWindows().size());
+            assertEquals(1, node.getTimes().size());
             assertEquals(1, node.getChildren().size());
-            assertEquals(1, node.getChildren().iterator().next().getTimeWindows().size());
+            assertEquals(1, node.getChildren().iterator().next().getTimes().size());
             assertEquals(0, node.getChildren().iterator().next().getChildren().size());
         }
 
         assertFalse(threadNode.removeTimeWindowsRecursively(w -> w == WINDOW));
-        assertEquals(1, threadNode.getTimeWindows().size());
+        assertEquals(1, threadNode.getTimes().size());
         assertEquals(1, threadRunNode.getChildren().size());
-        assertEquals(1, threadRunNode.getTimeWindows().size());
+        assertEquals(1, threadRunNode.getTimes().size());
 
         assertTrue(threadNode.removeTimeWindowsRecursively(w -> w == WINDOW + 1));
-        assertEquals(0, threadNode.getTimeWindows().size());
+        assertEquals(0, threadNode.getTimes().size());
         assertEquals(0, threadNode.getChildren().size());
 
         // doesn't bother updating nested children that have been removed
         for (StackTraceNode node : fooBarNodes) {
-            assertEquals(1, node.getTimeWindows().size());
+            assertEquals(1, node.getTimes().size());
             assertEquals(1, node.getChildren().size());
-            assertEquals(1, node.getChildren().iterator().next().getTimeWindows().size());
+            assertEquals(1, node.getChildren().iterator().next().getTimes().size());
             assertEquals(0, node.getChildren().iterator().next().getChildren().size());
         }
     }
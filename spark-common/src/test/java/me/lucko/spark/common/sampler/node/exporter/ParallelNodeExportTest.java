@@ -0,0 +1,177 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node.exporter;
+
+import me.lucko.spark.common.sampler.java.JavaNodeExporter;
+import me.lucko.spark.common.sampler.java.MergeStrategy;
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
+import me.lucko.spark.common.util.MethodDisambiguator;
+import me.lucko.spark.common.util.classfinder.FallbackClassFinder;
+import me.lucko.spark.proto.SparkSamplerProtos;
+import me.lucko.spark.test.TestClass;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ParallelNodeExportTest {
+
+    private static final StackTraceNode.Describer<StackTraceNode.JavaDescription> DESCRIBER = (element, parent) -> element;
+
+    private static final String[] CLASS_NAMES = {TestClass.class.getName(), "test.Missing", "test.Other", "test.Another"};
+    private static final String[] METHOD_NAMES = {"test", "run", "tick", "call"};
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 4, 8})
+    public void testMatchesSerialExport(int parallelism) {
+        for (long seed = 0; seed < 10; seed++) {
+            // export is destructive (children are merged in place), so each export needs its own copy
+            List<ThreadNode> expectedThreads = randomThreads(seed, 12, 500);
+            List<ThreadNode> actualThreads = randomThreads(seed, 12, 500);
+
+            byte[] expected = exportSerial(expectedThreads);
+            byte[] actual = exportParallel(actualThreads, parallelism);
+            assertArrayEquals(expected, actual, "seed " + seed);
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        List<ThreadNode> threads = new ArrayList<>();
+        assertEquals(1, ParallelNodeExport.defaultParallelism(threads.size()));
+        assertArrayEquals(exportSerial(threads), exportParallel(threads, 4));
+    }
+
+    @Test
+    public void testExceptionPropagated() {
+        List<ThreadNode> threads = randomThreads(0, 4, 10);
+        NodeExporter exporter = node -> {
+            throw new IllegalStateException(node.getThreadLabel());
+        };
+
+        try (ParallelNodeExport export = new ParallelNodeExport(exporter, threads, 4)) {
+            IllegalStateException e = assertThrows(IllegalStateException.class, () -> export.get(2));
+            assertEquals("Thread 2", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLargeExport() {
+        int parallelism = ParallelNodeExport.defaultParallelism(Integer.MAX_VALUE);
+
+        byte[] serial = exportSerial(randomThreads(1, 16, 20000));
+        byte[] parallel = exportParallel(randomThreads(1, 16, 20000), parallelism);
+        assertArrayEquals(serial, parallel);
+
+        // the shared executor is reused by the next export
+        assertArrayEquals(serial, exportParallel(randomThreads(1, 16, 20000), parallelism));
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void benchmarkExport() {
+        int parallelism = ParallelNodeExport.defaultParallelism(Integer.MAX_VALUE);
+
+        // run each a few times to warm up, then measure
+        for (int i = 0; i < 3; i++) {
+            exportSerial(randomThreads(0, 16, 5000));
+            exportParallel(randomThreads(0, 16, 5000), parallelism);
+        }
+
+        List<ThreadNode> serialThreads = randomThreads(1, 16, 20000);
+        List<ThreadNode> parallelThreads = randomThreads(1, 16, 20000);
+
+        long start = System.nanoTime();
+        byte[] serial = exportSerial(serialThreads);
+        long serialTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        byte[] parallel = exportParallel(parallelThreads, parallelism);
+        long parallelTime = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.ROOT, "Thread node export (serial):   %.1fms", serialTime / 1e6));
+        System.out.println(String.format(Locale.ROOT, "Thread node export (parallel): %.1fms, %d threads, %.2fx speedup",
+                parallelTime / 1e6, parallelism, (double) serialTime / parallelTime));
+
+        assertArrayEquals(serial, parallel);
+    }
+
+    private static byte[] exportSerial(List<ThreadNode> threads) {
+        NodeExporter exporter = createExporter(threads);
+        SparkSamplerProtos.SamplerData.Builder proto = SparkSamplerProtos.SamplerData.newBuilder();
+        for (ThreadNode thread : threads) {
+            proto.addThreads(exporter.export(thread));
+        }
+        return proto.build().toByteArray();
+    }
+
+    private static byte[] exportParallel(List<ThreadNode> threads, int parallelism) {
+        NodeExporter exporter = createExporter(threads);
+        SparkSamplerProtos.SamplerData.Builder proto = SparkSamplerProtos.SamplerData.newBuilder();
+        try (ParallelNodeExport export = new ParallelNodeExport(exporter, threads, parallelism)) {
+            for (int i = 0; i < threads.size(); i++) {
+                proto.addThreads(export.get(i));
+            }
+        }
+        return proto.build().toByteArray();
+    }
+
+    private static NodeExporter createExporter(List<ThreadNode> threads) {
+        ProtoTimeEncoder timeEncoder = new ProtoTimeEncoder(time -> time / 1000d, threads);
+        MethodDisambiguator disambiguator = new MethodDisambiguator(FallbackClassFinder.INSTANCE);
+        return new JavaNodeExporter(timeEncoder, MergeStrategy.SAME_METHOD, disambiguator);
+    }
+
+    private static List<ThreadNode> randomThreads(long seed, int threadCount, int maxStacks) {
+        Random random = new Random(seed);
+        List<ThreadNode> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            ThreadNode thread = new ThreadNode("Thread " + t);
+            int stacks = 1 + random.nextInt(maxStacks);
+            for (int s = 0; s < stacks; s++) {
+                StackTraceNode.JavaDescription[] stack = new StackTraceNode.JavaDescription[1 + random.nextInt(12)];
+                for (int i = 0; i < stack.length; i++) {
+                    stack[i] = new StackTraceNode.JavaDescription(
+                            CLASS_NAMES[random.nextInt(CLASS_NAMES.length)],
+                            METHOD_NAMES[random.nextInt(METHOD_NAMES.length)],
+                            1 + random.nextInt(40),
+                            StackTraceNode.NULL_LINE_NUMBER
+                    );
+                }
+                thread.log(DESCRIBER, stack, 1 + random.nextInt(100), 1 + random.nextInt(5));
+            }
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+}
@@ -20,35 +20,293 @@
 
 package me.lucko.spark.common.sampler.window;
 
-import com.google.common.collect.ImmutableMap;
+import me.lucko.spark.common.sampler.async.AsyncNodeExporter;
+import me.lucko.spark.common.sampler.async.AsyncStackTraceElement;
+import me.lucko.spark.common.sampler.node.AbstractNode;
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.proto.SparkSamplerProtos;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
-import java.util.concurrent.atomic.LongAdder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ProtoTimeEncoderTest {
 
+    private static final StackTraceNode.Describer<StackTraceNode.JavaDescription> JAVA_DESCRIBER = (element, parent) -> element;
+
+    /** A short profile recorded from a JVM running javac, gzip and collection-heavy threads */
+    private static final String RECORDED_PROFILE = "/recorded-profile.sparkprofile.gz";
+
+    private static volatile long sink;
+
     @Test
     public void testSimple() {
         ProtoTimeEncoder encoder = new ProtoTimeEncoder(l -> l, IntStream.of(7, 1, 3, 5));
         assertArrayEquals(new int[]{1, 3, 5, 7}, encoder.getKeys());
 
-        assertArrayEquals(new double[]{0, 0, 0, 0}, encoder.encode(ImmutableMap.of()));
-        assertArrayEquals(new double[]{0, 100, 0, 0}, encoder.encode(ImmutableMap.of(3, longAdder(100))));
-        assertArrayEquals(new double[]{0, 100, 200, 0}, encoder.encode(ImmutableMap.of(3, longAdder(100), 5, longAdder(200))));
+        assertArrayEquals(new double[]{0, 0, 0, 0}, encoder.encode(times()));
+        assertArrayEquals(new double[]{0, 100, 0, 0}, encoder.encode(times(3, 100)));
+        assertArrayEquals(new double[]{0, 100, 200, 0}, encoder.encode(times(3, 100, 5, 200)));
 
-        RuntimeException ex = assertThrows(RuntimeException.class, () -> encoder.encode(ImmutableMap.of(9, longAdder(300))));
+        RuntimeException ex = assertThrows(RuntimeException.class, () -> encoder.encode(times(9, 300)));
         assertTrue(ex.getMessage().startsWith("No index for key 9"));
     }
 
-    private static LongAdder longAdder(long l) {
-        LongAdder longAdder = new LongAdder();
-        longAdder.add(l);
-        return longAdder;
+    @Test
+    public void testKeysFromNodes() {
+        ThreadNode a = new ThreadNode("a");
+        a.getTimes().add(5, 1);
+        a.getTimes().add(2, 1);
+        ThreadNode b = new ThreadNode("b");
+        b.getTimes().add(9, 1);
+        b.getTimes().add(5, 1);
+        ThreadNode c = new ThreadNode("c");
+
+        ProtoTimeEncoder encoder = new ProtoTimeEncoder(l -> l, Arrays.asList(a, b, c));
+        assertArrayEquals(new int[]{2, 5, 9}, encoder.getKeys());
+
+        assertArrayEquals(new int[0], new ProtoTimeEncoder(l -> l, new ArrayList<>()).getKeys());
+    }
+
+    @Test
+    public void testSparse() {
+        ProtoTimeEncoder encoder = new ProtoTimeEncoder(l -> l, IntStream.of(7, 1, 3, 5));
+
+        // sparse when smaller
+        assertEncoded(encoder, times(3, 100), true, new double[]{100}, new int[]{1});
+        assertEncoded(encoder, times(1, 100, 7, 200), true, new double[]{100, 200}, new int[]{0, 3});
+        assertEncoded(encoder, times(1, 100, 3, 200, 5, 300), true, new double[]{100, 200, 300}, new int[]{0, 1, 2});
+
+        // dense when not smaller, empty, or not allowed
+        assertEncoded(encoder, times(1, 100, 3, 200, 5, 300, 7, 400), true, new double[]{100, 200, 300, 400}, new int[0]);
+        assertEncoded(encoder, times(), true, new double[]{0, 0, 0, 0}, new int[0]);
+        assertEncoded(encoder, times(3, 100), false, new double[]{0, 100, 0, 0}, new int[0]);
+    }
+
+    @Test
+    public void testSparseExport() {
+        List<ThreadNode> profile = randomProfile(1);
+        SparkSamplerProtos.SamplerData dense = export(profile, false);
+        SparkSamplerProtos.SamplerData sparse = export(profile, true);
+
+        // most nodes are only seen in a few of the windows
+        int denseSize = dense.getSerializedSize();
+        int sparseSize = sparse.getSerializedSize();
+        assertTrue(sparseSize < denseSize / 2, "sparse: " + sparseSize + " bytes, dense: " + denseSize + " bytes");
+
+        assertSameTimes(dense, sparse);
+    }
+
+    @Test
+    public void testSparseExportRecorded() throws IOException {
+        List<ThreadNode> profile = loadRecordedProfile();
+        SparkSamplerProtos.SamplerData dense = export(profile, false);
+        SparkSamplerProtos.SamplerData sparse = export(profile, true);
+
+        int denseSize = dense.getSerializedSize();
+        int sparseSize = sparse.getSerializedSize();
+        assertTrue(sparseSize < denseSize / 2, "sparse: " + sparseSize + " bytes, dense: " + denseSize + " bytes");
+
+        assertSameTimes(dense, sparse);
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void benchmarkRecordedProfile() throws IOException {
+        List<ThreadNode> profile = loadRecordedProfile();
+        int denseSize = export(profile, false).getSerializedSize();
+        int sparseSize = export(profile, true).getSerializedSize();
+
+        ProtoTimeEncoder encoder = new ProtoTimeEncoder(time -> time / 1000d, profile);
+        List<AbstractNode> nodes = new ArrayList<>();
+        for (ThreadNode thread : profile) {
+            collectNodes(thread, nodes);
+        }
+
+        // run each a few times to warm up, then measure
+        for (int i = 0; i < 20; i++) {
+            encodeAll(encoder, nodes, false);
+            encodeAll(encoder, nodes, true);
+        }
+        int iterations = 100;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            encodeAll(encoder, nodes, false);
+        }
+        long denseTime = (System.nanoTime() - start) / iterations;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            encodeAll(encoder, nodes, true);
+        }
+        long sparseTime = (System.nanoTime() - start) / iterations;
+
+        System.out.println(String.format(Locale.ROOT, "Recorded profile: %d nodes, %d windows", nodes.size(), encoder.getKeys().length));
+        System.out.println(String.format(Locale.ROOT, "Time encoding (dense):  %d bytes, %.2fms", denseSize, denseTime / 1e6));
+        System.out.println(String.format(Locale.ROOT, "Time encoding (sparse): %d bytes, %.2fms, %.1f%% of dense size",
+                sparseSize, sparseTime / 1e6, sparseSize * 100d / denseSize));
+    }
+
+    private static void assertSameTimes(SparkSamplerProtos.SamplerData dense, SparkSamplerProtos.SamplerData sparse) {
+        // expanding the sparse times should give the dense times
+        for (int t = 0; t < dense.getThreadsCount(); t++) {
+            SparkSamplerProtos.ThreadNode denseThread = dense.getThreads(t);
+            SparkSamplerProtos.ThreadNode sparseThread = sparse.getThreads(t);
+            int keys = dense.getTimeWindowsCount();
+
+            assertEquals(denseThread.getTimesList(), expand(keys, sparseThread.getTimesList(), sparseThread.getTimeIndexesList()));
+            for (int i = 0; i < denseThread.getChildrenCount(); i++) {
+                SparkSamplerProtos.StackTraceNode denseNode = denseThread.getChildren(i);
+                SparkSamplerProtos.StackTraceNode sparseNode = sparseThread.getChildren(i);
+                assertEquals(denseNode.getTimesList(), expand(keys, sparseNode.getTimesList(), sparseNode.getTimeIndexesList()));
+            }
+        }
+    }
+
+    private static void assertEncoded(ProtoTimeEncoder encoder, TimeRing times, boolean sparse, double[] expectedTimes, int[] expectedIndexes) {
+        List<Double> actualTimes = new ArrayList<>();
+        List<Integer> actualIndexes = new ArrayList<>();
+        encoder.encode(times, sparse, actualTimes::add, actualIndexes::add);
+
+        assertArrayEquals(expectedTimes, actualTimes.stream().mapToDouble(Double::doubleValue).toArray());
+        assertArrayEquals(expectedIndexes, actualIndexes.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private static void encodeAll(ProtoTimeEncoder encoder, List<AbstractNode> nodes, boolean sparse) {
+        long[] count = new long[1];
+        for (AbstractNode node : nodes) {
+            node.encodeTimesForProto(encoder, sparse, time -> count[0]++, index -> count[0]++);
+        }
+        sink = count[0];
+    }
+
+    private static void collectNodes(AbstractNode node, List<AbstractNode> nodes) {
+        nodes.add(node);
+        for (StackTraceNode child : node.getChildren()) {
+            collectNodes(child, nodes);
+        }
+    }
+
+    private static List<Double> expand(int keys, List<Double> times, List<Integer> timeIndexes) {
+        if (timeIndexes.isEmpty()) {
+            return times;
+        }
+        Double[] expanded = new Double[keys];
+        Arrays.fill(expanded, 0d);
+        for (int i = 0; i < timeIndexes.size(); i++) {
+            expanded[timeIndexes.get(i)] = times.get(i);
+        }
+        return Arrays.asList(expanded);
+    }
+
+    private static SparkSamplerProtos.SamplerData export(List<ThreadNode> profile, boolean sparse) {
+        ProtoTimeEncoder encoder = new ProtoTimeEncoder(time -> time / 1000d, profile);
+        AsyncNodeExporter exporter = new AsyncNodeExporter(encoder, sparse);
+
+        SparkSamplerProtos.SamplerData.Builder proto = SparkSamplerProtos.SamplerData.newBuilder();
+        for (int window : encoder.getKeys()) {
+            proto.addTimeWindows(window);
+        }
+        for (ThreadNode thread : profile) {
+            proto.addThreads(exporter.export(thread));
+        }
+        return proto.build();
+    }
+
+    /**
+     * Generates a profile spanning the full window history, where (as in a real profile)
+     * the shallow frames are seen in every window but most deep frames in only a few.
+     */
+    private static List<ThreadNode> randomProfile(long seed) {
+        StackTraceNode.Describer<AsyncStackTraceElement> describer = (element, parent) -> new StackTraceNode.AsyncDescription(element.getClassName(), element.getMethodName(), element.getMethodDescription());
+
+        Random random = new Random(seed);
+        List<ThreadNode> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            ThreadNode thread = new ThreadNode("Thread " + t);
+            for (int window = 0; window < ProfilingWindowUtils.HISTORY_SIZE; window++) {
+                for (int s = 0; s < 200; s++) {
+                    AsyncStackTraceElement[] stack = new AsyncStackTraceElement[1 + random.nextInt(24)];
+                    for (int i = 0; i < stack.length; i++) {
+                        // deeper frames are picked from a wider range of methods
+                        int method = random.nextInt(2 + i * 4);
+                        stack[stack.length - 1 - i] = new AsyncStackTraceElement("test.Class" + i, "method" + method, "()V");
+                    }
+                    thread.log(describer, stack, 1 + random.nextInt(50_000), window);
+                }
+            }
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    /**
+     * Loads the recorded profile, rebuilding the thread nodes by logging the self time
+     * (the time not accounted for by any children) of each exported node.
+     */
+    private static List<ThreadNode> loadRecordedProfile() throws IOException {
+        SparkSamplerProtos.SamplerData data;
+        try (InputStream in = new GZIPInputStream(ProtoTimeEncoderTest.class.getResourceAsStream(RECORDED_PROFILE))) {
+            data = SparkSamplerProtos.SamplerData.parseFrom(in);
+        }
+
+        List<ThreadNode> threads = new ArrayList<>();
+        for (SparkSamplerProtos.ThreadNode proto : data.getThreadsList()) {
+            ThreadNode thread = new ThreadNode(proto.getName());
+            for (int ref : proto.getChildrenRefsList()) {
+                logRecorded(thread, data.getTimeWindowsList(), proto, ref, new ArrayDeque<>());
+            }
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    private static void logRecorded(ThreadNode thread, List<Integer> windows, SparkSamplerProtos.ThreadNode proto, int index, Deque<StackTraceNode.JavaDescription> path) {
+        SparkSamplerProtos.StackTraceNode node = proto.getChildren(index);
+        path.push(new StackTraceNode.JavaDescription(node.getClassName(), node.getMethodName(), node.getLineNumber(), node.getParentLineNumber()));
+
+        double[] selfTimes = expand(windows.size(), node.getTimesList(), node.getTimeIndexesList()).stream().mapToDouble(Double::doubleValue).toArray();
+        for (int ref : node.getChildrenRefsList()) {
+            SparkSamplerProtos.StackTraceNode child = proto.getChildren(ref);
+            List<Double> childTimes = expand(windows.size(), child.getTimesList(), child.getTimeIndexesList());
+            for (int i = 0; i < selfTimes.length; i++) {
+                selfTimes[i] -= childTimes.get(i);
+            }
+            logRecorded(thread, windows, proto, ref, path);
+        }
+
+        // the path is a stack, so it is iterated from the leaf to the root
+        StackTraceNode.JavaDescription[] stack = path.toArray(new StackTraceNode.JavaDescription[0]);
+        for (int i = 0; i < selfTimes.length; i++) {
+            long time = Math.round(selfTimes[i] * 1000); // milliseconds -> microseconds
+            if (time > 0) {
+                thread.log(JAVA_DESCRIBER, stack, time, windows.get(i));
+            }
+        }
+        path.pop();
+    }
+
+    private static TimeRing times(long... windowsAndValues) {
+        TimeRing times = new TimeRing();
+        for (int i = 0; i < windowsAndValues.length; i += 2) {
+            times.add((int) windowsAndValues[i], windowsAndValues[i + 1]);
+        }
+        return times;
     }
 
 }
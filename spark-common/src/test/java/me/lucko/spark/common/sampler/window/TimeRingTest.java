@@ -0,0 +1,147 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.window;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TimeRingTest {
+
+    @Test
+    public void testAddAndGet() {
+        TimeRing times = new TimeRing();
+        assertTrue(times.isEmpty());
+        assertEquals(0, times.get(100));
+
+        times.add(100, 5);
+        times.add(100, 10);
+        times.add(101, 1);
+
+        assertEquals(2, times.size());
+        assertEquals(15, times.get(100));
+        assertEquals(1, times.get(101));
+        assertEquals(0, times.get(102));
+        assertArrayEquals(new int[]{100, 101}, times.windows());
+    }
+
+    @Test
+    public void testFullHistory() {
+        int start = 28_000_000;
+        int count = ProfilingWindowUtils.HISTORY_SIZE + 2;
+
+        TimeRing times = new TimeRing();
+        for (int i = 0; i < count; i++) {
+            times.add(start + i, i + 1);
+        }
+
+        assertEquals(count, times.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + 1, times.get(start + i));
+        }
+    }
+
+    @Test
+    public void testCollidingWindows() {
+        TimeRing times = new TimeRing();
+
+        // windows which are all equal modulo every power of two up to 1024
+        for (int i = 0; i < 10; i++) {
+            times.add(i * 1024, i + 1);
+        }
+
+        Map<Integer, Long> seen = new HashMap<>();
+        times.forEach(seen::put);
+
+        assertEquals(10, seen.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, (long) seen.get(i * 1024));
+        }
+    }
+
+    @Test
+    public void testRemoveIf() {
+        TimeRing times = new TimeRing();
+        for (int i = 0; i < 10; i++) {
+            times.add(i, 1);
+        }
+
+        assertFalse(times.removeIf(w -> w > 100));
+        assertTrue(times.removeIf(w -> w < 8));
+        assertArrayEquals(new int[]{8, 9}, times.windows());
+
+        // windows can be recorded again after they have been removed
+        times.add(3, 7);
+        assertArrayEquals(new int[]{3, 8, 9}, times.windows());
+        assertEquals(7, times.get(3));
+
+        assertTrue(times.removeIf(w -> true));
+        assertTrue(times.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentAdd() throws InterruptedException {
+        TimeRing times = new TimeRing();
+        int threadCount = 4;
+        int iterations = 20_000;
+        int windows = 16;
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                // spread writes over several windows so that the ring is resized whilst being written to
+                for (int i = 0; i < iterations; i++) {
+                    times.add(i % windows, 1);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long total = 0;
+        for (int window : times.windows()) {
+            total += times.get(window);
+        }
+        assertEquals(windows, times.size());
+        assertEquals((long) threadCount * iterations, total);
+    }
+
+}
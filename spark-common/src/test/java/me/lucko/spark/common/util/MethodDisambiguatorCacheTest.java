@@ -0,0 +1,133 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.util;
+
+import me.lucko.spark.common.util.MethodDisambiguator.ClassCache;
+import me.lucko.spark.common.util.classfinder.ClassFinder;
+import me.lucko.spark.common.util.classfinder.FallbackClassFinder;
+import me.lucko.spark.test.TestClass;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MethodDisambiguatorCacheTest {
+
+    @Test
+    public void testSharedBetweenDisambiguators() {
+        ClassCache cache = new ClassCache(16);
+
+        assertTrue(new MethodDisambiguator(FallbackClassFinder.INSTANCE, cache).disambiguate(TestClass.class.getName(), "test", 25).isPresent());
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // a new disambiguator (i.e. the next export) reuses the computed class
+        assertTrue(new MethodDisambiguator(FallbackClassFinder.INSTANCE, cache).disambiguate(TestClass.class.getName(), "test", 31).isPresent());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testFailuresAreCached() {
+        ClassCache cache = new ClassCache(16);
+
+        for (int i = 0; i < 3; i++) {
+            MethodDisambiguator disambiguator = new MethodDisambiguator(FallbackClassFinder.INSTANCE, cache);
+            assertFalse(disambiguator.disambiguate("test.Missing", "test", 25).isPresent());
+        }
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testClassLoaderIsCached() {
+        ClassCache cache = new ClassCache(16);
+        AtomicInteger created = new AtomicInteger();
+        AtomicInteger lookups = new AtomicInteger();
+        Supplier<ClassFinder> classFinder = () -> {
+            created.incrementAndGet();
+            return className -> {
+                lookups.incrementAndGet();
+                return FallbackClassFinder.INSTANCE.findClass(className);
+            };
+        };
+
+        // not a system resource, so the class finder is needed to look for it
+        assertFalse(new MethodDisambiguator(classFinder, cache).disambiguate("test.Missing", "test", 25).isPresent());
+        assertEquals(1, created.get());
+        assertEquals(1, lookups.get());
+
+        // the next export doesn't need to create a class finder at all
+        assertFalse(new MethodDisambiguator(classFinder, cache).disambiguate("test.Missing", "test", 25).isPresent());
+        assertTrue(new MethodDisambiguator(classFinder, cache).disambiguate(TestClass.class.getName(), "test", 25).isPresent());
+        assertEquals(1, created.get());
+        assertEquals(1, lookups.get());
+
+        // unless the class has been invalidated
+        cache.invalidate("test.Missing");
+        assertFalse(new MethodDisambiguator(classFinder, cache).disambiguate("test.Missing", "test", 25).isPresent());
+        assertEquals(2, created.get());
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        ClassCache cache = new ClassCache(2);
+
+        disambiguate(cache, TestClass.class.getName());
+        disambiguate(cache, String.class.getName());
+        disambiguate(cache, TestClass.class.getName()); // hit, String is now the eldest
+        disambiguate(cache, Integer.class.getName());   // evicts String
+        assertEquals(2, cache.size());
+
+        disambiguate(cache, TestClass.class.getName());
+        long misses = cache.getMisses();
+        disambiguate(cache, String.class.getName());
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void testInvalidate() {
+        ClassCache cache = new ClassCache(16);
+
+        disambiguate(cache, TestClass.class.getName());
+        disambiguate(cache, String.class.getName());
+        cache.invalidate(TestClass.class.getName());
+        assertEquals(1, cache.size());
+
+        long misses = cache.getMisses();
+        disambiguate(cache, TestClass.class.getName());
+        assertEquals(misses + 1, cache.getMisses());
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    private static void disambiguate(ClassCache cache, String className) {
+        new MethodDisambiguator(FallbackClassFinder.INSTANCE, cache).disambiguate(className, "test", 25);
+    }
+
+}
@@ -0,0 +1,452 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.ws;
+
+import me.lucko.spark.common.sampler.async.AsyncNodeExporter;
+import me.lucko.spark.common.sampler.async.AsyncStackTraceElement;
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
+import me.lucko.spark.proto.SparkSamplerProtos;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkWebSocketProtos.ServerUpdateSamplerDelta;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SamplerDeltaEncoderTest {
+
+    private static final StackTraceNode.Describer<AsyncStackTraceElement> STACK_TRACE_DESCRIBER = (element, parent) -> new StackTraceNode.AsyncDescription(element.getClassName(), element.getMethodName(), element.getMethodDescription());
+
+    private static final AsyncStackTraceElement RUN = new AsyncStackTraceElement("java.lang.Thread", "run", "()V");
+    private static final AsyncStackTraceElement FOO = new AsyncStackTraceElement("test.Foo", "run", "()V");
+    private static final AsyncStackTraceElement BAR = new AsyncStackTraceElement("test.Bar", "run", "()V");
+    private static final AsyncStackTraceElement BAZ = new AsyncStackTraceElement("test.Baz", "run", "()V");
+
+    @Test
+    public void testDeltaMatchesFullExport() {
+        ThreadNode main = new ThreadNode("Main");
+        ThreadNode worker = new ThreadNode("Worker");
+        List<ThreadNode> threads = new ArrayList<>(Arrays.asList(main, worker));
+
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 1);
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{BAR, RUN}, 20, 2);
+        worker.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{BAR, RUN}, 30, 2);
+
+        SamplerDeltaEncoder encoder = new SamplerDeltaEncoder();
+        Client client = new Client();
+
+        // no keyframe yet
+        assertNull(encoder.encodeDelta(export(threads)));
+
+        SamplerData keyframe = export(threads);
+        int version = encoder.encodeKeyframe(keyframe);
+        client.applyKeyframe(keyframe);
+
+        // the client hasn't acknowledged the keyframe yet
+        assertNull(encoder.encodeDelta(export(threads)));
+        encoder.acknowledge(version);
+
+        // a new window, with one new node
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 40, 3);
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{BAZ, FOO, RUN}, 50, 3);
+
+        SamplerData data = export(threads);
+        ServerUpdateSamplerDelta delta = encoder.encodeDelta(data);
+        assertNotNull(delta);
+        assertEquals(version, delta.getBaseVersion());
+        assertEquals(0, delta.getNewThreadsCount());
+        assertEquals(1, delta.getNewNodesCount());
+        assertEquals("test.Baz", delta.getNewNodes(0).getNode().getClassName());
+        assertEquals(1, delta.getWindowTimesCount());
+        assertEquals(3, delta.getWindowTimes(0).getWindow());
+
+        client.applyDelta(delta);
+        assertEquals(Client.canonical(data), client.times);
+    }
+
+    @Test
+    public void testCumulativeDelta() {
+        ThreadNode main = new ThreadNode("Main");
+        List<ThreadNode> threads = new ArrayList<>(Arrays.asList(main));
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 1);
+
+        SamplerDeltaEncoder encoder = new SamplerDeltaEncoder();
+        Client client = new Client();
+
+        SamplerData keyframe = export(threads);
+        encoder.acknowledge(encoder.encodeKeyframe(keyframe));
+        client.applyKeyframe(keyframe);
+
+        // the client misses this delta (never acknowledges it)
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{BAR, RUN}, 20, 2);
+        assertNotNull(encoder.encodeDelta(export(threads)));
+
+        // a new thread, and window 1 is pruned
+        ThreadNode worker = new ThreadNode("Worker");
+        threads.add(worker);
+        worker.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{BAZ, RUN}, 30, 3);
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{BAZ, BAR, RUN}, 40, 3);
+        main.removeTimeWindowsRecursively(window -> window == 1);
+
+        SamplerData data = export(threads);
+        ServerUpdateSamplerDelta delta = encoder.encodeDelta(data);
+        assertNotNull(delta);
+        assertEquals(1, delta.getBaseVersion());
+        assertEquals(3, delta.getVersion());
+        assertEquals(1, delta.getNewThreadsCount());
+        assertEquals(2, delta.getWindowTimesCount()); // windows 2 and 3
+
+        client.applyDelta(delta);
+        assertEquals(Client.canonical(data), client.times);
+    }
+
+    @Test
+    public void testNewestWindowIsResent() {
+        ThreadNode main = new ThreadNode("Main");
+        List<ThreadNode> threads = new ArrayList<>(Arrays.asList(main));
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 1);
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 2);
+
+        SamplerDeltaEncoder encoder = new SamplerDeltaEncoder();
+        Client client = new Client();
+
+        SamplerData keyframe = export(threads);
+        encoder.acknowledge(encoder.encodeKeyframe(keyframe));
+        client.applyKeyframe(keyframe);
+
+        // nothing has changed
+        ServerUpdateSamplerDelta delta = encoder.encodeDelta(export(threads));
+        assertNotNull(delta);
+        assertEquals(0, delta.getWindowTimesCount());
+        encoder.acknowledge(delta.getVersion());
+
+        // more samples are logged into window 2, which the client already has
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 5, 2);
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{BAR, RUN}, 20, 2);
+
+        SamplerData data = export(threads);
+        delta = encoder.encodeDelta(data);
+        assertNotNull(delta);
+        assertEquals(1, delta.getWindowTimesCount());
+        assertEquals(2, delta.getWindowTimes(0).getWindow());
+        encoder.acknowledge(delta.getVersion());
+
+        client.applyDelta(delta);
+        assertEquals(Client.canonical(data), client.times);
+        assertEquals(35.0, client.times.get("Main").get(2));
+
+        // window 2 is finished off after a new window has started
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{BAR, RUN}, 10, 2);
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 3);
+
+        data = export(threads);
+        delta = encoder.encodeDelta(data);
+        assertNotNull(delta);
+        assertEquals(2, delta.getWindowTimesCount()); // windows 2 and 3
+        encoder.acknowledge(delta.getVersion());
+
+        client.applyDelta(delta);
+        assertEquals(Client.canonical(data), client.times);
+
+        // windows 2 and 3 haven't changed, so neither is sent again
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 4);
+        delta = encoder.encodeDelta(export(threads));
+        assertNotNull(delta);
+        assertEquals(1, delta.getWindowTimesCount());
+        assertEquals(4, delta.getWindowTimes(0).getWindow());
+    }
+
+    @Test
+    public void testOlderWindowIsResent() {
+        ThreadNode main = new ThreadNode("Main");
+        List<ThreadNode> threads = new ArrayList<>(Arrays.asList(main));
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 1);
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 2);
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 3);
+
+        SamplerDeltaEncoder encoder = new SamplerDeltaEncoder();
+        Client client = new Client();
+
+        SamplerData keyframe = export(threads);
+        encoder.acknowledge(encoder.encodeKeyframe(keyframe));
+        client.applyKeyframe(keyframe);
+
+        // the data is replaced as a whole, rewriting the times in window 1
+        ThreadNode replacement = new ThreadNode("Main");
+        replacement.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{BAR, RUN}, 25, 1);
+        replacement.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 2);
+        replacement.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 3);
+        threads.set(0, replacement);
+
+        SamplerData data = export(threads);
+        ServerUpdateSamplerDelta delta = encoder.encodeDelta(data);
+        assertNotNull(delta);
+        assertEquals(1, delta.getWindowTimesCount());
+        assertEquals(1, delta.getWindowTimes(0).getWindow());
+        encoder.acknowledge(delta.getVersion());
+
+        client.applyDelta(delta);
+        assertEquals(Client.canonical(data), client.times);
+
+        // the rewritten window isn't sent again once the client has it
+        delta = encoder.encodeDelta(export(threads));
+        assertNotNull(delta);
+        assertEquals(0, delta.getWindowTimesCount());
+    }
+
+    @Test
+    public void testSparseTimes() {
+        ThreadNode main = new ThreadNode("Main");
+        List<ThreadNode> threads = new ArrayList<>(Arrays.asList(main));
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 1);
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{BAR, RUN}, 20, 2);
+
+        SamplerDeltaEncoder encoder = new SamplerDeltaEncoder();
+        Client client = new Client();
+
+        encoder.acknowledge(encoder.encodeKeyframe(export(threads, true)));
+        client.applyKeyframe(export(threads));
+
+        // most nodes only have a time in one of the windows, so are sparsely encoded
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{BAZ, RUN}, 30, 3);
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 40, 3);
+
+        SamplerData data = export(threads, true);
+        assertTrue(data.getThreads(0).getChildrenList().stream().anyMatch(node -> node.getTimeIndexesCount() != 0));
+
+        ServerUpdateSamplerDelta delta = encoder.encodeDelta(data);
+        assertNotNull(delta);
+
+        client.applyDelta(delta);
+        assertEquals(Client.canonical(export(threads)), client.times);
+    }
+
+    @Test
+    public void testLockContention() {
+        ThreadNode main = new ThreadNode("Main");
+        List<ThreadNode> threads = new ArrayList<>(Arrays.asList(main));
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 1);
+
+        SparkSamplerProtos.LockContention first = lockContention(1, "Main", "Worker", 5);
+        SparkSamplerProtos.LockContention second = lockContention(2, "Worker", "Main", 15);
+
+        SamplerDeltaEncoder encoder = new SamplerDeltaEncoder();
+        encoder.acknowledge(encoder.encodeKeyframe(export(threads).toBuilder().addLockContention(first).build()));
+
+        // unchanged, so not sent
+        ServerUpdateSamplerDelta delta = encoder.encodeDelta(export(threads).toBuilder().addLockContention(first).build());
+        assertNotNull(delta);
+        assertFalse(delta.hasLockContention());
+        encoder.acknowledge(delta.getVersion());
+
+        // a new edge - the whole section is sent
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 2);
+        SamplerData data = export(threads).toBuilder().addLockContention(first).addLockContention(second).build();
+        delta = encoder.encodeDelta(data);
+        assertNotNull(delta);
+        assertTrue(delta.hasLockContention());
+        assertEquals(data.getLockContentionList(), delta.getLockContention().getEntriesList());
+
+        // the client hasn't acknowledged the change, so it is sent again
+        delta = encoder.encodeDelta(data);
+        assertNotNull(delta);
+        assertTrue(delta.hasLockContention());
+        encoder.acknowledge(delta.getVersion());
+
+        delta = encoder.encodeDelta(data);
+        assertNotNull(delta);
+        assertFalse(delta.hasLockContention());
+        encoder.acknowledge(delta.getVersion());
+
+        // the edges are pruned - an empty section is sent to clear them
+        delta = encoder.encodeDelta(export(threads));
+        assertNotNull(delta);
+        assertTrue(delta.hasLockContention());
+        assertEquals(0, delta.getLockContention().getEntriesCount());
+    }
+
+    @Test
+    public void testKeyframeInterval() {
+        ThreadNode main = new ThreadNode("Main");
+        List<ThreadNode> threads = new ArrayList<>(Arrays.asList(main));
+
+        SamplerDeltaEncoder encoder = new SamplerDeltaEncoder();
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, 0);
+        encoder.acknowledge(encoder.encodeKeyframe(export(threads)));
+
+        for (int window = 1; window <= SamplerDeltaEncoder.KEYFRAME_INTERVAL; window++) {
+            main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{FOO, RUN}, 10, window);
+            ServerUpdateSamplerDelta delta = encoder.encodeDelta(export(threads));
+            assertNotNull(delta);
+            encoder.acknowledge(delta.getVersion());
+        }
+        assertNull(encoder.encodeDelta(export(threads)));
+    }
+
+    @Test
+    public void testDeltaIsSmallerThanFullExport() {
+        ThreadNode main = new ThreadNode("Main");
+        List<ThreadNode> threads = new ArrayList<>(Arrays.asList(main));
+
+        // a large tree built up over previous windows
+        for (int window = 1; window <= 10; window++) {
+            for (int i = 0; i < 200; i++) {
+                AsyncStackTraceElement leaf = new AsyncStackTraceElement("test.Class" + i, "method" + window, "()V");
+                main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{leaf, FOO, RUN}, 10, window);
+            }
+        }
+
+        SamplerDeltaEncoder encoder = new SamplerDeltaEncoder();
+        encoder.acknowledge(encoder.encodeKeyframe(export(threads)));
+
+        // the new window only touches a few nodes
+        main.log(STACK_TRACE_DESCRIBER, new AsyncStackTraceElement[]{BAR, FOO, RUN}, 10, 11);
+        SamplerData data = export(threads);
+        ServerUpdateSamplerDelta delta = encoder.encodeDelta(data);
+        assertNotNull(delta);
+
+        assertTrue(delta.getSerializedSize() * 100 < data.getSerializedSize(), delta.getSerializedSize() + " vs " + data.getSerializedSize());
+    }
+
+    private static SparkSamplerProtos.LockContention lockContention(int window, String waiter, String owner, double time) {
+        return SparkSamplerProtos.LockContention.newBuilder()
+                .setWindow(window)
+                .setWaiterThread(waiter)
+                .setOwnerThread(owner)
+                .setLockClass("java.lang.Object")
+                .setTime(time)
+                .build();
+    }
+
+    private static SamplerData export(List<ThreadNode> threads) {
+        return export(threads, false);
+    }
+
+    private static SamplerData export(List<ThreadNode> threads, boolean sparseTimes) {
+        ProtoTimeEncoder timeEncoder = new ProtoTimeEncoder(time -> time, threads);
+        AsyncNodeExporter exporter = new AsyncNodeExporter(timeEncoder, sparseTimes);
+
+        SamplerData.Builder proto = SamplerData.newBuilder();
+        for (int window : timeEncoder.getKeys()) {
+            proto.addTimeWindows(window);
+        }
+        for (ThreadNode thread : threads) {
+            proto.addThreads(exporter.export(thread));
+        }
+        return proto.build();
+    }
+
+    /**
+     * A minimal implementation of the client side of the protocol.
+     */
+    private static final class Client {
+        private final Map<Integer, String> paths = new HashMap<>();
+        private Map<String, Map<Integer, Double>> times = new TreeMap<>();
+
+        void applyKeyframe(SamplerData data) {
+            this.paths.clear();
+            this.times = canonical(data);
+
+            int nextId = 1;
+            for (SparkSamplerProtos.ThreadNode thread : data.getThreadsList()) {
+                this.paths.put(nextId++, thread.getName());
+                String[] nodePaths = nodePaths(thread);
+                for (String path : nodePaths) {
+                    this.paths.put(nextId++, path);
+                }
+            }
+        }
+
+        void applyDelta(ServerUpdateSamplerDelta delta) {
+            for (ServerUpdateSamplerDelta.NewThread thread : delta.getNewThreadsList()) {
+                this.paths.put(thread.getId(), thread.getName());
+            }
+            for (ServerUpdateSamplerDelta.NewNode node : delta.getNewNodesList()) {
+                this.paths.put(node.getId(), this.paths.get(node.getParentId()) + "/" + describe(node.getNode()));
+            }
+            for (ServerUpdateSamplerDelta.WindowTimes windowTimes : delta.getWindowTimesList()) {
+                // replace any times already held for the window
+                this.times.values().forEach(times -> times.remove(windowTimes.getWindow()));
+                for (int i = 0; i < windowTimes.getNodeIdsCount(); i++) {
+                    String path = this.paths.get(windowTimes.getNodeIds(i));
+                    this.times.computeIfAbsent(path, p -> new TreeMap<>()).merge(windowTimes.getWindow(), windowTimes.getTimes(i), Double::sum);
+                }
+            }
+
+            Set<Integer> windows = new HashSet<>(delta.getTimeWindowsList());
+            this.times.values().forEach(times -> times.keySet().retainAll(windows));
+            this.times.values().removeIf(Map::isEmpty);
+        }
+
+        static Map<String, Map<Integer, Double>> canonical(SamplerData data) {
+            Map<String, Map<Integer, Double>> result = new TreeMap<>();
+            for (SparkSamplerProtos.ThreadNode thread : data.getThreadsList()) {
+                addTimes(result, thread.getName(), data.getTimeWindowsList(), thread.getTimesList());
+                String[] nodePaths = nodePaths(thread);
+                for (int i = 0; i < nodePaths.length; i++) {
+                    addTimes(result, nodePaths[i], data.getTimeWindowsList(), thread.getChildren(i).getTimesList());
+                }
+            }
+            return result;
+        }
+
+        private static void addTimes(Map<String, Map<Integer, Double>> result, String path, List<Integer> windows, List<Double> times) {
+            for (int i = 0; i < windows.size(); i++) {
+                if (times.get(i) != 0) {
+                    result.computeIfAbsent(path, p -> new TreeMap<>()).merge(windows.get(i), times.get(i), Double::sum);
+                }
+            }
+        }
+
+        private static String[] nodePaths(SparkSamplerProtos.ThreadNode thread) {
+            String[] paths = new String[thread.getChildrenCount()];
+            // children are in post order, so resolve from the end (parents come after their children)
+            for (int ref : thread.getChildrenRefsList()) {
+                paths[ref] = thread.getName() + "/" + describe(thread.getChildren(ref));
+            }
+            for (int i = paths.length - 1; i >= 0; i--) {
+                for (int ref : thread.getChildren(i).getChildrenRefsList()) {
+                    paths[ref] = paths[i] + "/" + describe(thread.getChildren(ref));
+                }
+            }
+            return paths;
+        }
+
+        private static String describe(SparkSamplerProtos.StackTraceNode node) {
+            return node.getClassName() + "." + node.getMethodName() + node.getMethodDesc();
+        }
+    }
+
+}
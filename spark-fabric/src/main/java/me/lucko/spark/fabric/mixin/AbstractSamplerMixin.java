@@ -20,13 +20,14 @@ import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 @Mixin(AbstractSampler.class)
 public class AbstractSamplerMixin {
     @Inject(method = "writeDataToProto", at = @At(value = "INVOKE", target = "Ljava/util/List;sort(Ljava/util/Comparator;)V", shift = At.Shift.AFTER), remap = false)
-    public void remap(SparkSamplerProtos.SamplerData.Builder proto, DataAggregator dataAggregator, Function<ProtoTimeEncoder, NodeExporter> nodeExporterFunction, ClassSourceLookup classSourceLookup, Supplier<ClassFinder> classFinderSupplier, CallbackInfo ci, @Local List<ThreadNode> data){
+    public void remap(SparkSamplerProtos.SamplerData.Builder proto, DataAggregator dataAggregator, Function<ProtoTimeEncoder, NodeExporter> nodeExporterFunction, ClassSourceLookup classSourceLookup, Supplier<ClassFinder> classFinderSupplier, Consumer<SparkSamplerProtos.ThreadNode> threadSink, CallbackInfo ci, @Local List<ThreadNode> data){
         data.forEach(AbstractSamplerMixin::updateNodeChildrenInformation);
     }
 